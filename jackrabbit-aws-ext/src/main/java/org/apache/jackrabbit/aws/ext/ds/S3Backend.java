@@ -17,6 +17,7 @@
 
 package org.apache.jackrabbit.aws.ext.ds;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -57,6 +58,7 @@ import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.CopyObjectRequest;
 import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
@@ -405,6 +407,50 @@ public class S3Backend extends AbstractBackend {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the requested part of the object is downloaded, using a ranged
+     * GET request.
+     */
+    @Override
+    public InputStream read(DataIdentifier identifier, long offset,
+            long length) throws DataStoreException {
+        if (length == 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        long start = System.currentTimeMillis();
+        String key = getKeyName(identifier);
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(
+                getClass().getClassLoader());
+            GetObjectRequest request = new GetObjectRequest(bucket, key);
+            if (length < 0) {
+                request.setRange(offset);
+            } else {
+                request.setRange(offset, offset + length - 1);
+            }
+            S3Object object = s3service.getObject(request);
+            InputStream in = new S3BackendResourceAbortableInputStream(
+                object.getObjectContent());
+            LOG.debug("[{}] read of range [{}] length [{}] took [{}]ms",
+                new Object[] { identifier, offset, length,
+                    (System.currentTimeMillis() - start) });
+            return in;
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 416) {
+                // the offset is beyond the end of the object
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            throw new DataStoreException("Object not found: " + key, e);
+        } finally {
+            if (contextClassLoader != null) {
+                Thread.currentThread().setContextClassLoader(contextClassLoader);
+            }
+        }
+    }
+
     @Override
     public Iterator<DataIdentifier> getAllIdentifiers()
             throws DataStoreException {
@@ -55,6 +55,12 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
     /** Logger instance for this class */
     private static Logger log = LoggerFactory.getLogger(LazyItemIterator.class);
 
+    /**
+     * Number of node states that are announced to the shared item state
+     * manager at once, so they can be loaded in a single batch.
+     */
+    private static final int PREFETCH_SIZE = 100;
+
     /**
      * The session context used to access the repository.
      */
@@ -75,6 +81,9 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
     /** prefetched item to be returned on <code>{@link #next()}</code> */
     private Item next;
 
+    /** position up to which the item states have been prefetched */
+    private int prefetchedPos;
+
     /**
      * Creates a new <code>LazyItemIterator</code> instance.
      *
@@ -114,6 +123,9 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
         // reset
         next = null;
         while (next == null && pos < idList.size()) {
+            if (pos >= prefetchedPos) {
+                prefetchStates();
+            }
             ItemId id = idList.get(pos);
             try {
                 if (parentId != null) {
@@ -158,6 +170,24 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
         }
     }
 
+    /**
+     * Announces the node states of the next {@link #PREFETCH_SIZE} items to
+     * the workspace item state manager, so that they can be loaded from the
+     * persistence manager in a single batch.
+     */
+    private void prefetchStates() {
+        prefetchedPos = Math.min(pos + PREFETCH_SIZE, idList.size());
+        List<NodeId> ids = new ArrayList<NodeId>(prefetchedPos - pos);
+        for (ItemId id : idList.subList(pos, prefetchedPos)) {
+            if (id.denotesNode()) {
+                ids.add((NodeId) id);
+            }
+        }
+        if (ids.size() > 1) {
+            sessionContext.getWorkspace().getItemStateManager().prefetch(ids);
+        }
+    }
+
     //---------------------------------------------------------< NodeIterator >
     /**
      * {@inheritDoc}
@@ -28,6 +28,7 @@ import org.apache.jackrabbit.core.cluster.ClusterNode;
 import org.apache.jackrabbit.core.config.RepositoryConfig;
 import org.apache.jackrabbit.core.data.DataStore;
 import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.gc.BinaryReferenceTracker;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.NodeIdFactory;
 import org.apache.jackrabbit.core.nodetype.NodeTypeRegistry;
@@ -87,6 +88,11 @@ public class RepositoryContext {
      */
     private DataStore dataStore;
 
+    /**
+     * The tracker of the data store references, or <code>null</code>.
+     */
+    private BinaryReferenceTracker binaryReferenceTracker;
+
     /**
      * The cluster node instance of this repository, or <code>null</code>.
      */
@@ -336,6 +342,27 @@ public class RepositoryContext {
         this.dataStore = dataStore;
     }
 
+    /**
+     * Returns the tracker of the references to data store records, or
+     * <code>null</code> if the references are not tracked.
+     *
+     * @return reference tracker, or <code>null</code>
+     */
+    public BinaryReferenceTracker getBinaryReferenceTracker() {
+        return binaryReferenceTracker;
+    }
+
+    /**
+     * Sets the tracker of the references to data store records.
+     *
+     * @param binaryReferenceTracker reference tracker
+     */
+    void setBinaryReferenceTracker(
+            BinaryReferenceTracker binaryReferenceTracker) {
+        assert binaryReferenceTracker != null;
+        this.binaryReferenceTracker = binaryReferenceTracker;
+    }
+
     /**
      * Returns the cluster node instance of this repository, or
      * <code>null</code> if clustering is not enabled.
@@ -30,7 +30,9 @@ import org.apache.jackrabbit.core.config.RepositoryConfig;
 import org.apache.jackrabbit.core.lock.LockManagerImpl;
 import org.apache.jackrabbit.core.nodetype.InvalidNodeTypeDefException;
 import org.apache.jackrabbit.core.nodetype.NodeTypeRegistry;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
 import org.apache.jackrabbit.core.persistence.PersistenceCopier;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.QNodeTypeDefinition;
 import org.slf4j.Logger;
@@ -48,6 +50,14 @@ import org.slf4j.LoggerFactory;
  * The static copy() methods will remove the target search index folders from
  * their default locations to trigger automatic reindexing when the repository
  * is next started.
+ * <p>
+ * By default the content of each workspace and of the version store is
+ * copied recursively by a single thread. Large repositories can be copied
+ * faster with several {@link #setThreads(int) threads}, and a
+ * {@link #setCheckpointDirectory(File) checkpoint directory} allows an
+ * interrupted copy to be resumed. Both use
+ * {@link PersistenceCopier#copyAll()}, which requires persistence managers
+ * that implement {@link IterablePersistenceManager}.
  *
  * @since Apache Jackrabbit 1.6
  */
@@ -69,6 +79,22 @@ public class RepositoryCopier {
      */
     private final RepositoryContext target;
 
+    /**
+     * Number of threads used to copy the content of a persistence manager.
+     */
+    private int threads = 1;
+
+    /**
+     * Number of nodes copied in one batch when using several threads or
+     * a checkpoint directory.
+     */
+    private int batchSize = PersistenceCopier.DEFAULT_BATCH_SIZE;
+
+    /**
+     * Directory of the checkpoint files, or <code>null</code>.
+     */
+    private File checkpointDirectory;
+
     /**
      * Copies the contents of the repository in the given source directory
      * to a repository in the given target directory.
@@ -182,6 +208,48 @@ public class RepositoryCopier {
         this.target = target.getRepositoryContext();
     }
 
+    /**
+     * Sets the number of threads used to copy the content of each workspace
+     * and of the version store. The default is one thread.
+     *
+     * @param threads number of threads, at least one
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid number of threads: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the number of nodes that are copied and stored in the target
+     * repository at once when using several threads or a checkpoint
+     * directory. The default is {@link PersistenceCopier#DEFAULT_BATCH_SIZE}.
+     *
+     * @param batchSize number of nodes per batch, at least one
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid batch size: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the directory in which the progress of the copy is recorded.
+     * If the copy is interrupted, calling {@link #copy()} again with the
+     * same checkpoint directory continues where the previous copy stopped.
+     * The directory should be removed before copying into a new target.
+     *
+     * @param checkpointDirectory checkpoint directory, or <code>null</code>
+     *                            (the default) to always copy everything
+     */
+    public void setCheckpointDirectory(File checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
     /**
      * Copies the full content from the source to the target repository.
      * <p>
@@ -249,12 +317,18 @@ public class RepositoryCopier {
 
     private void copyVersionStore() throws RepositoryException {
         logger.info("Copying version histories");
+        PersistenceManager sourceManager =
+            source.getInternalVersionManager().getPersistenceManager();
         PersistenceCopier copier = new PersistenceCopier(
-                source.getInternalVersionManager().getPersistenceManager(),
+                sourceManager,
                 target.getInternalVersionManager().getPersistenceManager(),
                 target.getDataStore());
-        copier.copy(RepositoryImpl.VERSION_STORAGE_NODE_ID);
-        copier.copy(RepositoryImpl.ACTIVITIES_NODE_ID);
+        if (isCopyAll(sourceManager)) {
+            copyAll(copier, "version");
+        } else {
+            copier.copy(RepositoryImpl.VERSION_STORAGE_NODE_ID);
+            copier.copy(RepositoryImpl.ACTIVITIES_NODE_ID);
+        }
     }
 
     private void copyWorkspaces() throws RepositoryException {
@@ -268,12 +342,18 @@ public class RepositoryCopier {
             }
 
             // Copy all the workspace content
+            PersistenceManager sourceManager =
+                source.getRepository().getWorkspaceInfo(name).getPersistenceManager();
             PersistenceCopier copier = new PersistenceCopier(
-                    source.getRepository().getWorkspaceInfo(name).getPersistenceManager(),
+                    sourceManager,
                     target.getRepository().getWorkspaceInfo(name).getPersistenceManager(),
                     target.getDataStore());
             copier.excludeNode(RepositoryImpl.SYSTEM_ROOT_NODE_ID);
-            copier.copy(RepositoryImpl.ROOT_NODE_ID);
+            if (isCopyAll(sourceManager)) {
+                copyAll(copier, "workspace-" + name);
+            } else {
+                copier.copy(RepositoryImpl.ROOT_NODE_ID);
+            }
 
             // Copy all the active open-scoped locks
             LockManagerImpl sourceLockManager =
@@ -284,4 +364,35 @@ public class RepositoryCopier {
         }
     }
 
+    /**
+     * Checks whether the content of the given persistence manager should
+     * be copied with {@link PersistenceCopier#copyAll()}.
+     *
+     * @param manager source persistence manager
+     * @return <code>true</code> if several threads or checkpoints are used
+     *         and the persistence manager supports them
+     */
+    private boolean isCopyAll(PersistenceManager manager) {
+        if (threads == 1 && checkpointDirectory == null) {
+            return false;
+        } else if (manager instanceof IterablePersistenceManager) {
+            return true;
+        } else {
+            logger.warn("{} can not list its nodes,"
+                    + " copying its content with a single thread", manager);
+            return false;
+        }
+    }
+
+    private void copyAll(PersistenceCopier copier, String checkpoint)
+            throws RepositoryException {
+        copier.setThreads(threads);
+        copier.setBatchSize(batchSize);
+        if (checkpointDirectory != null) {
+            checkpointDirectory.mkdirs();
+            copier.setCheckpoint(new File(checkpointDirectory, checkpoint));
+        }
+        copier.copyAll();
+    }
+
 }
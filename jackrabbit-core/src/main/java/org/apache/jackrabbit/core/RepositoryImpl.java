@@ -77,6 +77,7 @@ import org.apache.jackrabbit.core.data.DataStoreException;
 import org.apache.jackrabbit.core.fs.FileSystem;
 import org.apache.jackrabbit.core.fs.FileSystemException;
 import org.apache.jackrabbit.core.fs.FileSystemResource;
+import org.apache.jackrabbit.core.gc.BinaryReferenceTracker;
 import org.apache.jackrabbit.core.gc.GarbageCollector;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.NodeIdFactory;
@@ -279,6 +280,7 @@ public class RepositoryImpl extends AbstractRepository
             // Create item state cache manager
             context.setItemStateCacheFactory(
                     new ManagedMLRUItemStateCacheFactory(cacheMgr));
+            cacheMgr.registerMBean(repConfig.getHomeDir());
 
             DataStore dataStore = repConfig.getDataStore();
             if (dataStore != null) {
@@ -311,6 +313,32 @@ public class RepositoryImpl extends AbstractRepository
                 clusterNode.setListener(this);
             }
 
+            // optionally track the references to data store records, so that
+            // the garbage collector does not need to scan the repository.
+            // Without tracking, the saved references miss the changes of
+            // this run and are discarded
+            File referencesDir =
+                new File(repConfig.getHomeDir(), "repository/gc");
+            try {
+                if (dataStore != null && Boolean.getBoolean(
+                        "org.apache.jackrabbit.garbagecollector.incremental")) {
+                    if (clusterNode != null) {
+                        log.warn("Data store references can not be tracked"
+                                + " in a cluster, the garbage collection"
+                                + " scans the repository");
+                        BinaryReferenceTracker.discard(referencesDir);
+                    } else {
+                        context.setBinaryReferenceTracker(
+                                new BinaryReferenceTracker(referencesDir));
+                    }
+                } else {
+                    BinaryReferenceTracker.discard(referencesDir);
+                }
+            } catch (IOException e) {
+                throw new RepositoryException(
+                        "Unable to initialize the data store references", e);
+            }
+
             // init version manager
             InternalVersionManagerImpl vMgr = createVersionManager(
                     repConfig.getVersioningConfig(), delegatingDispatcher);
@@ -1135,8 +1163,20 @@ public class RepositoryImpl extends AbstractRepository
             log.error("Error while closing Version Manager.", e);
         }
 
+        BinaryReferenceTracker referenceTracker =
+            context.getBinaryReferenceTracker();
+        if (referenceTracker != null) {
+            try {
+                referenceTracker.close();
+            } catch (IOException e) {
+                log.error("Error while saving the data store references", e);
+            }
+        }
+
         repDescriptors.clear();
 
+        cacheMgr.unregisterMBean();
+
         DataStore dataStore = context.getDataStore();
         if (dataStore != null) {
             try {
@@ -1373,7 +1413,8 @@ public class RepositoryImpl extends AbstractRepository
                     context.getNamespaceRegistry(),
                     context.getNodeTypeRegistry(),
                     context.getDataStore(),
-                    context.getRepositoryStatistics());
+                    context.getRepositoryStatistics(),
+                    context.getBinaryReferenceTracker());
             pm.init(pmContext);
             return pm;
         } catch (Exception e) {
@@ -44,6 +44,7 @@ import org.apache.jackrabbit.core.query.QueryHandler;
 import org.apache.jackrabbit.core.query.QueryHandlerContext;
 import org.apache.jackrabbit.core.query.QueryHandlerFactory;
 import org.apache.jackrabbit.core.query.QueryObjectModelImpl;
+import org.apache.jackrabbit.core.query.lucene.SearchIndex;
 import org.apache.jackrabbit.core.session.SessionContext;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NodeState;
@@ -282,6 +283,23 @@ public class SearchManager implements SynchronousEventListener {
         return handler.getWeaklyReferringNodes(id);
     }
 
+    /**
+     * Waits until the changes that were saved before this method is called
+     * are visible to queries. This only has an effect if the query handler
+     * is a {@link SearchIndex} that indexes asynchronously.
+     *
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return <code>true</code> if the changes are indexed,
+     *         <code>false</code> if the timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean waitForIndex(long timeout) throws InterruptedException {
+        if (handler instanceof SearchIndex) {
+            return ((SearchIndex) handler).waitForIndex(timeout);
+        }
+        return true;
+    }
+
     /**
      * Checks if the given event should be excluded based on the
      * {@link #excludePath} setting.
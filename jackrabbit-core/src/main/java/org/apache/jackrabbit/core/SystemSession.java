@@ -16,6 +16,7 @@
  */
 package org.apache.jackrabbit.core;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Set;
 import java.security.Principal;
@@ -32,6 +33,7 @@ import javax.security.auth.Subject;
 import org.apache.jackrabbit.api.security.authorization.PrivilegeManager;
 import org.apache.jackrabbit.core.config.WorkspaceConfig;
 import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.security.AMContext;
 import org.apache.jackrabbit.core.security.AbstractAccessControlManager;
 import org.apache.jackrabbit.core.security.AccessManager;
@@ -219,6 +221,15 @@ class SystemSession extends SessionImpl {
             return true;
         }
 
+        /**
+         * Always returns an empty set.
+         *
+         * @see AccessManager#getUnreadableNodes(Collection)
+         */
+        public Set<NodeId> getUnreadableNodes(Collection<NodeId> nodeIds) throws RepositoryException {
+            return Collections.emptySet();
+        }
+
         /**
          * {@inheritDoc}
          *
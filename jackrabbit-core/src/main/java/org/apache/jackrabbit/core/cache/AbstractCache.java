@@ -80,6 +80,12 @@ public abstract class AbstractCache implements Cache {
      */
     private final AtomicLong missCount = new AtomicLong();
 
+    /**
+     * Total time in nanoseconds spent on loading missed entries, as
+     * reported by the user of the cache.
+     */
+    private final AtomicLong missDuration = new AtomicLong();
+
     /**
      * Cache access listener. Set in the
      * {@link #setAccessListener(CacheAccessListener)} method and accessed
@@ -128,6 +134,21 @@ public abstract class AbstractCache implements Cache {
         missCount.incrementAndGet();
     }
 
+    /**
+     * Records the time it took to load an entry that was not found in the
+     * cache. The {@link CacheManager} uses the miss durations to give more
+     * memory to caches whose misses are expensive.
+     *
+     * @param nanos the time in nanoseconds
+     */
+    public void recordMissDuration(long nanos) {
+        missDuration.addAndGet(nanos);
+    }
+
+    public long getMissDuration() {
+        return missDuration.get();
+    }
+
     public long getAccessCount() {
         return accessCount.get();
     }
@@ -198,6 +219,8 @@ public abstract class AbstractCache implements Cache {
         c.append(getTotalAccessCount());
         c.append(", miss=");
         c.append(getMissCount());
+        c.append(", missdurationms=");
+        c.append(getMissDuration() / 1000000);
         return c.toString();
     }
 }
@@ -70,6 +70,18 @@ public interface Cache {
      */
     void resetMissCount();
 
+    /**
+     * Get the total time spent on loading entries that were not found in the
+     * cache, in nanoseconds. Returns 0 if the cache does not know how long
+     * loading its entries takes, which is what the default implementation
+     * does.
+     *
+     * @return the total miss duration in nanoseconds
+     */
+    default long getMissDuration() {
+        return 0;
+    }
+
     /**
      * Get the number of elements/objects in the cache.
      * @return the number of elements
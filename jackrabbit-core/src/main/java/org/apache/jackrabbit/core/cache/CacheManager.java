@@ -16,10 +16,16 @@
  */
 package org.apache.jackrabbit.core.cache;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.WeakHashMap;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,8 +40,20 @@ import org.slf4j.LoggerFactory;
  * distributing the memory in this way, there might be some unused memory (if
  * one or more caches did not use some of the allocated memory). This unused
  * memory is distributed evenly across the full caches.
+ * <p>
+ * In cost-aware mode, the memory is distributed according to the time spent
+ * on cache misses instead of the access counts, so that caches whose misses
+ * are expensive (like the bundle cache of a database persistence manager)
+ * get more memory than caches whose misses are cheap. Caches report the
+ * time spent on misses through {@link AbstractCache#recordMissDuration(long)};
+ * for caches that don't, a default cost per miss is assumed. Currently only
+ * the bundle caches of the bundle persistence managers measure their
+ * misses. All other caches, like the item state caches, are weighted with
+ * the default cost of 10 microseconds per miss, which can be changed with
+ * the system property <code>org.apache.jackrabbit.cacheDefaultMissCost</code>
+ * or through the MBean.
  */
-public class CacheManager implements CacheAccessListener {
+public class CacheManager implements CacheAccessListener, CacheManagerMBean {
 
     /** The logger instance. */
     private static Logger log = LoggerFactory.getLogger(CacheManager.class);
@@ -49,8 +67,15 @@ public class CacheManager implements CacheAccessListener {
     /** The default maximum memory per cache. */
     private static final long DEFAULT_MAX_MEMORY_PER_CACHE = 4 * 1024 * 1024;
 
-    /** The set of caches (weakly referenced). */
-    private WeakHashMap<Cache, Object> caches = new WeakHashMap<Cache, Object>();
+    /** The default cost of a cache miss (in ns), unless reported by the cache. */
+    private static final long DEFAULT_MISS_COST = 10 * 1000;
+
+    /**
+     * The set of caches (weakly referenced), with the miss statistics at the
+     * time of the previous resize.
+     */
+    private WeakHashMap<Cache, MissStatistics> caches =
+        new WeakHashMap<Cache, MissStatistics>();
 
     /** The default minimum resize interval (in ms). */
     private static final int DEFAULT_MIN_RESIZE_INTERVAL = 1000;
@@ -86,6 +111,18 @@ public class CacheManager implements CacheAccessListener {
             "org.apache.jackrabbit.cacheLogStatsInterval",
             DEFAULT_LOG_STATS_INTERVAL);
 
+    /** Whether the memory is distributed according to the miss costs. */
+    private volatile boolean costAware =
+        Boolean.getBoolean("org.apache.jackrabbit.cacheCostAware");
+
+    /** The cost of a cache miss (in ns) for caches that don't report it. */
+    private volatile long defaultMissCost = Long.getLong(
+            "org.apache.jackrabbit.cacheDefaultMissCost",
+            DEFAULT_MISS_COST);
+
+    /** The name this cache manager is registered with as MBean, if any. */
+    private ObjectName objectName;
+
     /** The last time the caches where resized. */
     private volatile long nextResize =
         System.currentTimeMillis() + DEFAULT_MIN_RESIZE_INTERVAL;
@@ -128,6 +165,69 @@ public class CacheManager implements CacheAccessListener {
         this.minResizeInterval = minResizeInterval;
     }
 
+    public boolean isCostAware() {
+        return costAware;
+    }
+
+    public void setCostAware(boolean costAware) {
+        this.costAware = costAware;
+    }
+
+    public long getDefaultMissCost() {
+        return defaultMissCost;
+    }
+
+    public void setDefaultMissCost(long defaultMissCost) {
+        this.defaultMissCost = defaultMissCost;
+    }
+
+    public String[] getCacheAllocations() {
+        List<Cache> list = new ArrayList<Cache>();
+        synchronized (caches) {
+            list.addAll(caches.keySet());
+        }
+        String[] allocations = new String[list.size()];
+        for (int i = 0; i < allocations.length; i++) {
+            allocations[i] = list.get(i).getCacheInfoAsString();
+        }
+        return allocations;
+    }
+
+    /**
+     * Registers this cache manager with the platform MBean server. Failures
+     * are logged and otherwise ignored.
+     *
+     * @param name identifies the repository, typically its home directory
+     */
+    public synchronized void registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(
+                    "org.apache.jackrabbit:type=CacheManager,name="
+                    + ObjectName.quote(name));
+            server.registerMBean(this, on);
+            objectName = on;
+        } catch (JMException e) {
+            log.warn("Unable to register the cache manager MBean", e);
+        }
+    }
+
+    /**
+     * Unregisters this cache manager from the platform MBean server, if it
+     * was registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        objectName);
+            } catch (JMException e) {
+                log.warn("Unable to unregister the cache manager MBean", e);
+            }
+            objectName = null;
+        }
+    }
+
     /**
      * After one of the caches is accessed a number of times, this method is called.
      * Resize the caches if required.
@@ -185,8 +285,15 @@ public class CacheManager implements CacheAccessListener {
         // so can't use size() / keySet() directly
         // only using the iterator guarantees that we don't get null references
         List<Cache> list = new ArrayList<Cache>();
+        List<MissStatistics> statistics = new ArrayList<MissStatistics>();
         synchronized (caches) {
-            list.addAll(caches.keySet());
+            for (Map.Entry<Cache, MissStatistics> entry : caches.entrySet()) {
+                Cache cache = entry.getKey();
+                if (cache != null) {
+                    list.add(cache);
+                    statistics.add(entry.getValue());
+                }
+            }
         }
         if (list.size() == 0) {
             // nothing to do
@@ -194,27 +301,38 @@ public class CacheManager implements CacheAccessListener {
         }
         CacheInfo[] infos = new CacheInfo[list.size()];
         for (int i = 0; i < list.size(); i++) {
-            infos[i] = new CacheInfo((Cache) list.get(i));
+            infos[i] = new CacheInfo(
+                    list.get(i), statistics.get(i), defaultMissCost);
         }
-        // calculate the total access count and memory used
+        // calculate the total access count, miss cost and memory used
         long totalAccessCount = 0;
+        long totalMissCost = 0;
         long totalMemoryUsed = 0;
         for (CacheInfo info : infos) {
             totalAccessCount += info.getAccessCount();
+            totalMissCost += info.getMissCost();
             totalMemoryUsed += info.getMemoryUsed();
         }
         // try to distribute the memory based on the access count
-        // and memory used (higher numbers - more memory)
+        // (or miss cost) and memory used (higher numbers - more memory)
         // and find out how many caches are full
-        // 50% is distributed according to access count,
+        // 50% is distributed according to access count (or miss cost),
         // and 50% according to memory used
+        boolean byCost = costAware && totalMissCost > 0;
         double memoryPerAccess = (double) maxMemory / 2.
                 / Math.max(1., (double) totalAccessCount);
+        double memoryPerCost = (double) maxMemory / 2.
+                / Math.max(1., (double) totalMissCost);
         double memoryPerUsed = (double) maxMemory / 2.
                 / Math.max(1., (double) totalMemoryUsed);
         int fullCacheCount = 0;
         for (CacheInfo info : infos) {
-            long mem = (long) (memoryPerAccess * info.getAccessCount());
+            long mem;
+            if (byCost) {
+                mem = (long) (memoryPerCost * info.getMissCost());
+            } else {
+                mem = (long) (memoryPerAccess * info.getAccessCount());
+            }
             mem += (long) (memoryPerUsed * info.getMemoryUsed());
             mem = Math.min(mem, maxMemoryPerCache);
             if (info.wasFull()) {
@@ -246,6 +364,7 @@ public class CacheManager implements CacheAccessListener {
             if (log.isTraceEnabled()) {
                 log.trace(cache + " now:" + cache.getMaxMemorySize() + " used:"
                         + info.getMemoryUsed() + " access:" + info.getAccessCount()
+                        + " misscost:" + info.getMissCost()
                         + " new:" + info.getMemory());
             }
             cache.setMaxMemorySize(info.getMemory());
@@ -260,7 +379,7 @@ public class CacheManager implements CacheAccessListener {
      */
     public void add(Cache cache) {
         synchronized (caches) {
-            caches.put(cache, null);
+            caches.put(cache, new MissStatistics());
         }
     }
 
@@ -278,6 +397,18 @@ public class CacheManager implements CacheAccessListener {
         }
     }
 
+    /**
+     * The miss count and miss duration of a cache at the time of the
+     * previous resize.
+     */
+    private static class MissStatistics {
+
+        private long missCount;
+
+        private long missDuration;
+
+    }
+
     /**
      * Internal copy of the cache information.
      */
@@ -286,12 +417,34 @@ public class CacheManager implements CacheAccessListener {
 
         private long accessCount;
 
+        private long missCost;
+
         private long memory;
 
         private long memoryUsed;
 
         private boolean wasFull;
 
+        CacheInfo(Cache cache, MissStatistics previous, long defaultMissCost) {
+            this(cache);
+            // the miss counters are not reset, as they are also used for
+            // logging, so compare with the values of the previous resize
+            long missCount = cache.getMissCount();
+            long missDuration = cache.getMissDuration();
+            long misses = missCount - previous.missCount;
+            if (misses < 0) {
+                // the counter was reset
+                misses = missCount;
+            }
+            if (missDuration > 0) {
+                missCost = Math.max(0, missDuration - previous.missDuration);
+            } else {
+                missCost = misses * defaultMissCost;
+            }
+            previous.missCount = missCount;
+            previous.missDuration = missDuration;
+        }
+
         CacheInfo(Cache cache) {
             this.cache = cache;
             // copy the data as this runs in a different thread
@@ -316,6 +469,10 @@ public class CacheManager implements CacheAccessListener {
             return accessCount;
         }
 
+        long getMissCost() {
+            return missCost;
+        }
+
         long getMemoryUsed() {
             return memoryUsed;
         }
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+/**
+ * Management interface of the {@link CacheManager}, registered as a JMX
+ * MBean by the repository.
+ */
+public interface CacheManagerMBean {
+
+    /**
+     * Get the amount of memory distributed across the caches.
+     * @return the size in bytes
+     */
+    long getMaxMemory();
+
+    void setMaxMemory(long maxMemory);
+
+    /**
+     * Get the maximum memory per cache, unless there is unused memory.
+     * @return the size in bytes
+     */
+    long getMaxMemoryPerCache();
+
+    void setMaxMemoryPerCache(long maxMemoryPerCache);
+
+    /**
+     * Get the minimum memory per cache.
+     * @return the size in bytes
+     */
+    long getMinMemoryPerCache();
+
+    void setMinMemoryPerCache(long minMemoryPerCache);
+
+    /**
+     * Get the minimum time between two redistributions of the memory.
+     * @return the interval in milliseconds
+     */
+    long getMinResizeInterval();
+
+    void setMinResizeInterval(long minResizeInterval);
+
+    /**
+     * Whether the memory is distributed according to the time spent on
+     * cache misses instead of the number of cache accesses.
+     * @return <code>true</code> if the distribution is cost-aware
+     */
+    boolean isCostAware();
+
+    void setCostAware(boolean costAware);
+
+    /**
+     * Get the assumed cost of a miss for caches that don't report the time
+     * spent on misses.
+     * @return the cost in nanoseconds
+     */
+    long getDefaultMissCost();
+
+    void setDefaultMissCost(long defaultMissCost);
+
+    /**
+     * Get the current allocation and usage of each managed cache.
+     * @return one line per cache
+     */
+    String[] getCacheAllocations();
+
+}
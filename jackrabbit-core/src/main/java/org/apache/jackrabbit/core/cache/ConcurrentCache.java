@@ -29,7 +29,8 @@ import java.util.Map;
  * eviction algorithm similar but not exactly the same as LRU. None of the
  * methods of this class are synchronized, but they are all thread-safe.
  */
-public class ConcurrentCache<K, V> extends AbstractCache {
+public class ConcurrentCache<K, V> extends AbstractCache
+        implements EntryCache<K, V> {
 
     /**
      * Default number of cache segments to use. Use the number of available
@@ -70,6 +71,7 @@ public class ConcurrentCache<K, V> extends AbstractCache {
                 protected boolean removeEldestEntry(Map.Entry<K, E<V>> eldest) {
                     if (isTooBig()) {
                         recordSizeChange(-eldest.getValue().size);
+                        evicted(eldest.getKey(), eldest.getValue().value);
                         return true;
                     } else {
                         return false;
@@ -83,6 +85,18 @@ public class ConcurrentCache<K, V> extends AbstractCache {
         this(name, DEFAULT_NUMBER_OF_SEGMENTS);
     }
 
+    /**
+     * Called when an entry is evicted because the cache is too big, but not
+     * when an entry is removed or replaced. Called while holding the lock
+     * of a cache segment, so it must not access this cache. The default
+     * implementation does nothing.
+     *
+     * @param key entry key
+     * @param value entry value
+     */
+    protected void evicted(K key, V value) {
+    }
+
     /**
      * Returns the cache segment for the given entry key. The segment is
      * selected based on the hash code of the key, after a transformation
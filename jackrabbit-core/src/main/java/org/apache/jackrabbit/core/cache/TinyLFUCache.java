@@ -0,0 +1,615 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent cache implementation with a frequency-aware admission policy
+ * (W-TinyLFU). New entries are added to a small LRU window. Entries leaving
+ * the window only replace an entry of the main cache if they were accessed
+ * more often than that entry, according to a compact, periodically aged
+ * frequency sketch. This keeps a frequently used working set in the cache
+ * even while large traversals pass through it, where plain LRU caches such
+ * as {@link ConcurrentCache} would evict the whole working set.
+ * <p>
+ * Reads do not acquire any locks: a cache hit is recorded in a bounded
+ * buffer that is applied to the eviction policy in batches, by whichever
+ * thread gets hold of the policy lock. Accesses that don't fit into the
+ * buffer are dropped, which only affects the accuracy of the policy.
+ * Writes update the policy immediately while holding the lock. None of the
+ * methods of this class are synchronized, but they are all thread-safe.
+ */
+public class TinyLFUCache<K, V> extends AbstractCache
+        implements EntryCache<K, V> {
+
+    /**
+     * Percentage of the maximum size used for the admission window.
+     */
+    private static final int WINDOW_PERCENTAGE = 1;
+
+    /**
+     * Percentage of the main cache used for entries that were accessed
+     * again after they had been admitted.
+     */
+    private static final int PROTECTED_PERCENTAGE = 80;
+
+    /**
+     * Size of the read buffer, a power of two.
+     */
+    private static final int READ_BUFFER_SIZE = 128;
+
+    /**
+     * Number of buffered reads after which a reader tries to apply them.
+     */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    /** Entry is in the admission window. */
+    private static final int WINDOW = 0;
+
+    /** Entry is in the main cache and was not accessed since admission. */
+    private static final int PROBATION = 1;
+
+    /** Entry is in the main cache and was accessed since admission. */
+    private static final int PROTECTED = 2;
+
+    private static final class E<K, V> {
+
+        private final K key;
+
+        private final V value;
+
+        private final long size;
+
+        /**
+         * The queue this entry is in. Guarded by the policy lock.
+         */
+        private int queue;
+
+        /**
+         * Set when the entry is no longer in the cache. Guarded by the
+         * policy lock.
+         */
+        private boolean removed;
+
+        private E<K, V> previous;
+
+        private E<K, V> next;
+
+        private E(K key, V value, long size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * Doubly linked list of entries in access order, least recently used
+     * entry first. Guarded by the policy lock.
+     */
+    private static final class Queue<K, V> {
+
+        private final E<K, V> head = new E<K, V>(null, null, 0);
+
+        private long size;
+
+        private Queue() {
+            head.previous = head;
+            head.next = head;
+        }
+
+        private E<K, V> first() {
+            return head.next != head ? head.next : null;
+        }
+
+        private E<K, V> next(E<K, V> entry) {
+            return entry.next != head ? entry.next : null;
+        }
+
+        private void add(E<K, V> entry) {
+            entry.previous = head.previous;
+            entry.next = head;
+            head.previous.next = entry;
+            head.previous = entry;
+            size += entry.size;
+        }
+
+        private void remove(E<K, V> entry) {
+            entry.previous.next = entry.next;
+            entry.next.previous = entry.previous;
+            entry.previous = null;
+            entry.next = null;
+            size -= entry.size;
+        }
+
+        private void moveToEnd(E<K, V> entry) {
+            remove(entry);
+            add(entry);
+        }
+
+        private void clear() {
+            head.previous = head;
+            head.next = head;
+            size = 0;
+        }
+
+    }
+
+    /**
+     * Approximate access frequencies of keys, stored as 4-bit counters in
+     * a count-min sketch. All counters are halved periodically, so that
+     * the sketch reflects recent rather than all-time popularity. Guarded
+     * by the policy lock.
+     */
+    private static final class FrequencySketch {
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private static final int[] SEEDS = {
+            0x97cb3127, 0xb2c3a5ed, 0x8a4bd0f5, 0xc2b2ae35 };
+
+        private long[] table = new long[0];
+
+        private int additions;
+
+        private int sampleSize;
+
+        /**
+         * Grows the sketch so that it can track the given number of
+         * entries. Growing the sketch discards the collected frequencies.
+         */
+        private void ensureCapacity(long entries) {
+            int length = Integer.highestOneBit(
+                    (int) Math.min(Math.max(entries, 16), 1 << 24) - 1) << 1;
+            if (table.length < length) {
+                table = new long[length];
+                sampleSize = 10 * length;
+                additions = 0;
+            }
+        }
+
+        private int frequency(Object key) {
+            int hash = key.hashCode();
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int h = spread(hash, i);
+                int shift = (h & 15) << 2;
+                int count = (int) ((table[index(h)] >>> shift) & 15L);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        private void increment(Object key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int h = spread(hash, i);
+                int index = index(h);
+                int shift = (h & 15) << 2;
+                if (((table[index] >>> shift) & 15L) != 15L) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int index(int h) {
+            return (h >>> 4) & (table.length - 1);
+        }
+
+        private static int spread(int hash, int i) {
+            int h = hash * SEEDS[i];
+            return h ^ (h >>> 16);
+        }
+
+    }
+
+    private final String name;
+
+    private final ConcurrentHashMap<K, E<K, V>> map =
+        new ConcurrentHashMap<K, E<K, V>>();
+
+    /**
+     * Lock guarding the eviction policy: the queues, the sketch and the
+     * read position in the read buffer.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Queue<K, V> window = new Queue<K, V>();
+
+    private final Queue<K, V> probation = new Queue<K, V>();
+
+    private final Queue<K, V> protectedQueue = new Queue<K, V>();
+
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    private final AtomicReferenceArray<E<K, V>> readBuffer =
+        new AtomicReferenceArray<E<K, V>>(READ_BUFFER_SIZE);
+
+    private final AtomicLong readBufferWriteCount = new AtomicLong();
+
+    /**
+     * Number of entries taken from the read buffer. Only modified while
+     * holding the policy lock.
+     */
+    private volatile long readBufferReadCount;
+
+    public TinyLFUCache(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Checks if the identified entry is cached.
+     *
+     * @param key entry key
+     * @return <code>true</code> if the entry is cached,
+     *         <code>false</code> otherwise
+     */
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Returns the identified cache entry.
+     *
+     * @param key entry key
+     * @return entry value, or <code>null</code> if not found
+     */
+    public V get(K key) {
+        recordCacheAccess();
+
+        E<K, V> entry = map.get(key);
+        if (entry != null) {
+            recordRead(entry);
+            return entry.value;
+        }
+        recordCacheMiss();
+        return null;
+    }
+
+    /**
+     * Returns all values in the cache. Note that this method is not
+     * synchronized over the entire cache, so it is only guaranteed to
+     * return accurate results when there are no concurrent threads modifying
+     * the cache.
+     *
+     * @return cached values
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<V>();
+        for (E<K, V> entry : map.values()) {
+            values.add(entry.value);
+        }
+        return values;
+    }
+
+    /**
+     * Adds the given entry to the cache. The entry is added to the
+     * admission window, and only remains cached when leaving the window if
+     * it is accessed more frequently than the entries of the main cache.
+     *
+     * @param key entry key
+     * @param value entry value
+     * @param size entry size
+     * @return the previous value, or <code>null</code>
+     */
+    public V put(K key, V value, long size) {
+        E<K, V> entry = new E<K, V>(key, value, size);
+        lock.lock();
+        try {
+            drainReadBuffer();
+            recordSizeChange(size);
+            E<K, V> previous = map.put(key, entry);
+            if (previous != null) {
+                unlink(previous);
+                discard(previous);
+            }
+            sketch.ensureCapacity(map.size());
+            sketch.increment(key);
+            entry.queue = WINDOW;
+            window.add(entry);
+            evict();
+            return previous != null ? previous.value : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the identified entry from the cache.
+     *
+     * @param key entry key
+     * @return removed entry, or <code>null</code> if not found
+     */
+    public V remove(K key) {
+        lock.lock();
+        try {
+            E<K, V> entry = map.remove(key);
+            if (entry != null) {
+                unlink(entry);
+                discard(entry);
+                return entry.value;
+            } else {
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            drainReadBuffer();
+            for (E<K, V> entry : map.values()) {
+                entry.removed = true;
+            }
+            map.clear();
+            recordSizeChange(
+                    -(window.size + probation.size + protectedQueue.size));
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if the cache size is zero.
+     */
+    public boolean isEmpty() {
+        return getMemoryUsed() == 0;
+    }
+
+    /**
+     * Sets the maximum size of the cache and evicts any excess items until
+     * the current size falls within the given limit.
+     */
+    @Override
+    public void setMaxMemorySize(long size) {
+        super.setMaxMemorySize(size);
+        lock.lock();
+        try {
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getElementCount() {
+        return map.size();
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + getClass().getSimpleName() + "@"
+                + Integer.toHexString(hashCode()) + "]";
+    }
+
+    /**
+     * Called when an entry is evicted because the cache is too big or the
+     * entry was not admitted to the main cache, but not when an entry is
+     * removed or replaced. Called while holding the policy lock, so it must
+     * not access this cache. The default implementation does nothing.
+     *
+     * @param key entry key
+     * @param value entry value
+     */
+    protected void evicted(K key, V value) {
+    }
+
+    /**
+     * Records a cache hit in the read buffer, and applies the buffered
+     * reads to the policy if enough of them have accumulated and the policy
+     * lock is available.
+     */
+    private void recordRead(E<K, V> entry) {
+        long writeCount = readBufferWriteCount.get();
+        if (writeCount - readBufferReadCount < READ_BUFFER_SIZE
+                && readBufferWriteCount.compareAndSet(writeCount, writeCount + 1)) {
+            readBuffer.lazySet(
+                    (int) (writeCount & (READ_BUFFER_SIZE - 1)), entry);
+            writeCount++;
+        }
+        if (writeCount - readBufferReadCount >= READ_BUFFER_DRAIN_THRESHOLD
+                && lock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies the buffered reads to the policy. Must be called while holding
+     * the policy lock.
+     */
+    private void drainReadBuffer() {
+        long readCount = readBufferReadCount;
+        long writeCount = readBufferWriteCount.get();
+        while (readCount < writeCount) {
+            int index = (int) (readCount & (READ_BUFFER_SIZE - 1));
+            E<K, V> entry = readBuffer.getAndSet(index, null);
+            if (entry == null) {
+                // the slot has been reserved but not yet written
+                break;
+            }
+            onAccess(entry);
+            readCount++;
+        }
+        readBufferReadCount = readCount;
+    }
+
+    /**
+     * Updates the policy for an accessed entry.
+     */
+    private void onAccess(E<K, V> entry) {
+        sketch.increment(entry.key);
+        if (entry.removed) {
+            return;
+        }
+        if (entry.queue == WINDOW) {
+            window.moveToEnd(entry);
+        } else if (entry.queue == PROBATION) {
+            probation.remove(entry);
+            entry.queue = PROTECTED;
+            protectedQueue.add(entry);
+            // demote the least recently used protected entries
+            long maxProtected = getMainMaxSize() * PROTECTED_PERCENTAGE / 100;
+            E<K, V> first = protectedQueue.first();
+            while (protectedQueue.size > maxProtected && first != null) {
+                protectedQueue.remove(first);
+                first.queue = PROBATION;
+                probation.add(first);
+                first = protectedQueue.first();
+            }
+        } else {
+            protectedQueue.moveToEnd(entry);
+        }
+    }
+
+    /**
+     * Moves entries from the window to the main cache, admitting them only
+     * if they are more popular than the entries they would replace, and
+     * evicts entries until the cache is small enough. Must be called while
+     * holding the policy lock.
+     */
+    private void evict() {
+        long maxWindow = getMaxMemorySize() * WINDOW_PERCENTAGE / 100;
+        long maxMain = getMainMaxSize();
+        E<K, V> candidate = window.first();
+        while (window.size > maxWindow && candidate != null) {
+            window.remove(candidate);
+            if (admit(candidate, maxMain)) {
+                candidate.queue = PROBATION;
+                probation.add(candidate);
+            } else {
+                evict(candidate);
+            }
+            candidate = window.first();
+        }
+
+        // shrink after the maximum size was reduced
+        while (isTooBig()) {
+            E<K, V> victim = probation.first();
+            if (victim == null) {
+                victim = protectedQueue.first();
+            }
+            if (victim == null) {
+                victim = window.first();
+            }
+            if (victim == null) {
+                break;
+            }
+            unlink(victim);
+            evict(victim);
+        }
+    }
+
+    /**
+     * Decides whether the candidate leaving the window is admitted to the
+     * main cache, and if so evicts as many victims from the main cache as
+     * necessary. The candidate is only admitted if it is more popular than
+     * all of these victims, and no entry is evicted for a candidate that is
+     * rejected.
+     *
+     * @return <code>true</code> if the candidate is admitted
+     */
+    private boolean admit(E<K, V> candidate, long maxMain) {
+        if (candidate.size > maxMain) {
+            return false;
+        }
+        int frequency = sketch.frequency(candidate.key);
+        long excess = probation.size + protectedQueue.size + candidate.size - maxMain;
+        List<E<K, V>> victims = new ArrayList<E<K, V>>();
+        Queue<K, V> queue = probation;
+        E<K, V> victim = queue.first();
+        while (excess > 0) {
+            if (victim == null && queue == probation) {
+                queue = protectedQueue;
+                victim = queue.first();
+            }
+            if (victim == null || sketch.frequency(victim.key) >= frequency) {
+                return false;
+            }
+            victims.add(victim);
+            excess -= victim.size;
+            victim = queue.next(victim);
+        }
+        for (E<K, V> v : victims) {
+            unlink(v);
+            evict(v);
+        }
+        return true;
+    }
+
+    /**
+     * Removes an entry that is no longer in a queue from the map.
+     */
+    private void evict(E<K, V> entry) {
+        map.remove(entry.key, entry);
+        discard(entry);
+        evicted(entry.key, entry.value);
+    }
+
+    /**
+     * Removes an entry from its queue. Must be called while holding the
+     * policy lock.
+     */
+    private void unlink(E<K, V> entry) {
+        if (entry.queue == WINDOW) {
+            window.remove(entry);
+        } else if (entry.queue == PROBATION) {
+            probation.remove(entry);
+        } else {
+            protectedQueue.remove(entry);
+        }
+    }
+
+    /**
+     * Marks an entry that is no longer in the map or in a queue as removed
+     * and records the size change. Must be called while holding the policy
+     * lock.
+     */
+    private void discard(E<K, V> entry) {
+        entry.removed = true;
+        recordSizeChange(-entry.size);
+    }
+
+    private long getMainMaxSize() {
+        return getMaxMemorySize() - getMaxMemorySize() * WINDOW_PERCENTAGE / 100;
+    }
+
+}
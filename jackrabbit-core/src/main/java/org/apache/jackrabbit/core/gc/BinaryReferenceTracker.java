@@ -0,0 +1,457 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.gc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.data.DataIdentifier;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the number of references to each data store record, so
+ * that the {@link GarbageCollector} can find the records in use without
+ * scanning the whole repository. The persistence managers report the
+ * binary values they add and remove when they store a change log.
+ * <p>
+ * The reference counts are only correct if they have been built from a
+ * complete scan of all persistence managers, and if all changes since then
+ * have been reported. They are kept in memory and saved when the tracker is
+ * {@link #close() closed}. The saved file is removed when it is loaded, so
+ * that after an unclean shutdown the tracker is {@link #isComplete()
+ * incomplete} and must be rebuilt. Changes made by other cluster nodes are
+ * not seen, so the tracker must not be used in a cluster. A repository that
+ * runs without a tracker {@link #discard(File) discards} the saved file, as
+ * the changes of that run are not counted. Bundles that are written without
+ * storing a change log, for example to fix inconsistencies, are not counted
+ * either and {@link #invalidate(Object) invalidate} the tracker.
+ * <p>
+ * While the tracker is rebuilt, each persistence manager is scanned in the
+ * order of its node ids, and the changes of a node are only counted once
+ * the scan has passed it. Earlier changes are part of the state seen by
+ * the scan.
+ */
+public class BinaryReferenceTracker {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger log =
+        LoggerFactory.getLogger(BinaryReferenceTracker.class);
+
+    /**
+     * The name of the file in which the reference counts are saved.
+     */
+    private static final String FILE_NAME = "references.txt";
+
+    /**
+     * Marks a persistence manager that has been scanned completely.
+     */
+    private static final NodeId SCANNED = new NodeId(0, 0);
+
+    /**
+     * The file in which the reference counts are saved.
+     */
+    private final File file;
+
+    /**
+     * The number of references to each record.
+     */
+    private Map<DataIdentifier, Integer> counts =
+        new HashMap<DataIdentifier, Integer>();
+
+    /**
+     * Whether the counts include all references.
+     */
+    private boolean complete;
+
+    /**
+     * The counts being rebuilt, or <code>null</code> if the tracker is not
+     * being rebuilt.
+     */
+    private Map<DataIdentifier, Integer> rebuilt;
+
+    /**
+     * The last scanned node of each persistence manager while the tracker
+     * is rebuilt, {@link #SCANNED} once all nodes are scanned.
+     */
+    private final Map<Object, NodeId> positions =
+        new IdentityHashMap<Object, NodeId>();
+
+    /**
+     * The order of the node ids of each persistence manager that is being
+     * scanned, if known.
+     */
+    private final Map<Object, Comparator<NodeId>> orders =
+        new IdentityHashMap<Object, Comparator<NodeId>>();
+
+    /**
+     * The persistence managers that stored changes while the tracker is
+     * rebuilt.
+     */
+    private final Set<Object> updated =
+        Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    /**
+     * Whether the tracker has been invalidated while it is rebuilt.
+     */
+    private boolean invalidated;
+
+    /**
+     * Creates a tracker that saves the reference counts in the given
+     * directory, and loads them if they were saved before.
+     *
+     * @param directory the directory
+     * @throws IOException if the saved reference counts can not be read
+     */
+    public BinaryReferenceTracker(File directory) throws IOException {
+        file = new File(directory, FILE_NAME);
+        if (file.exists()) {
+            Reader reader = new InputStreamReader(
+                    new FileInputStream(file), "UTF-8");
+            try {
+                BufferedReader lines = new BufferedReader(reader);
+                String line = lines.readLine();
+                while (line != null) {
+                    int space = line.indexOf(' ');
+                    counts.put(
+                            new DataIdentifier(line.substring(0, space)),
+                            Integer.valueOf(line.substring(space + 1)));
+                    line = lines.readLine();
+                }
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+            FileUtils.forceDelete(file);
+            complete = true;
+            log.info("Loaded the references to {} data store records",
+                    counts.size());
+        } else {
+            FileUtils.forceMkdir(directory);
+            log.info("Data store references are not available,"
+                    + " the next garbage collection will rebuild them");
+        }
+    }
+
+    /**
+     * Deletes the reference counts saved in the given directory, if any.
+     * Called when the repository starts without a tracker, so that the
+     * counts are rebuilt once a tracker is used again.
+     *
+     * @param directory the directory
+     * @throws IOException if the saved reference counts can not be deleted
+     */
+    public static void discard(File directory) throws IOException {
+        File file = new File(directory, FILE_NAME);
+        if (file.exists()) {
+            FileUtils.forceDelete(file);
+            log.info("Data store references are not tracked,"
+                    + " discarded the saved references");
+        }
+    }
+
+    /**
+     * Returns whether the reference counts include all references.
+     *
+     * @return <code>true</code> if the tracker can be used to find the
+     *         records in use
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns whether the given record is referenced.
+     *
+     * @param identifier the record identifier
+     * @return <code>true</code> if at least one binary value references
+     *         the record
+     */
+    public synchronized boolean isReferenced(DataIdentifier identifier) {
+        return counts.containsKey(identifier);
+    }
+
+    /**
+     * Returns the number of referenced records.
+     *
+     * @return the number of records
+     */
+    public synchronized int size() {
+        return counts.size();
+    }
+
+    /**
+     * Applies the changes that a persistence manager has stored. Must be
+     * called while the persistence manager does not store other changes or
+     * scan its nodes.
+     *
+     * @param source the persistence manager
+     * @param changes the changed references
+     */
+    public synchronized void update(Object source, Changes changes) {
+        NodeId position = null;
+        Comparator<NodeId> order = null;
+        if (rebuilt != null) {
+            position = positions.get(source);
+            order = orders.get(source);
+            updated.add(source);
+        }
+        for (Change change : changes.changes) {
+            update(counts, change);
+            if (position == SCANNED || (position != null && order != null
+                    && order.compare(change.id, position) <= 0)) {
+                update(rebuilt, change);
+            }
+        }
+    }
+
+    /**
+     * Marks the reference counts as incomplete, because a persistence manager
+     * changed references without reporting them. The counts are rebuilt by
+     * the next garbage collection, and a rebuild that is in progress fails.
+     *
+     * @param source the persistence manager
+     */
+    public synchronized void invalidate(Object source) {
+        if (complete || rebuilt != null) {
+            log.warn("{} stored changes that were not tracked,"
+                    + " data store references are incomplete", source);
+        }
+        complete = false;
+        if (rebuilt != null) {
+            invalidated = true;
+        }
+    }
+
+    /**
+     * Starts to rebuild the reference counts. The persistence managers then
+     * report the references of all their nodes with
+     * {@link #scanned(Object, Comparator, NodeId, Changes)}.
+     */
+    public synchronized void startRebuild() {
+        cancelRebuild();
+        rebuilt = new HashMap<DataIdentifier, Integer>();
+    }
+
+    /**
+     * Adds the references of a batch of scanned nodes to the counts that
+     * are being rebuilt. Must be called while the persistence manager does
+     * not store any changes. If the order of the node ids is not known, the
+     * persistence manager must not store any changes until all nodes have
+     * been scanned.
+     *
+     * @param source the persistence manager
+     * @param order the order in which the nodes are scanned, or
+     *              <code>null</code> if not known
+     * @param last the last scanned node, or <code>null</code> if all nodes
+     *             have been scanned
+     * @param references the references of the scanned nodes
+     */
+    public synchronized void scanned(Object source, Comparator<NodeId> order,
+            NodeId last, Changes references) {
+        if (rebuilt == null) {
+            throw new IllegalStateException("Not rebuilding");
+        }
+        for (Change change : references.changes) {
+            update(rebuilt, change);
+        }
+        positions.put(source, last != null ? last : SCANNED);
+        if (order != null) {
+            orders.put(source, order);
+        }
+    }
+
+    /**
+     * Replaces the reference counts with the rebuilt ones. All persistence
+     * managers must have been scanned. If a persistence manager that was not
+     * scanned has stored changes in the meantime, for example the one of a
+     * new workspace, or if the tracker has been invalidated, the rebuilt
+     * counts are discarded and the tracker is incomplete.
+     *
+     * @return <code>true</code> if the tracker is now complete
+     */
+    public synchronized boolean finishRebuild() {
+        if (rebuilt == null) {
+            throw new IllegalStateException("Not rebuilding");
+        }
+        if (invalidated) {
+            cancelRebuild();
+            return false;
+        }
+        for (Object source : updated) {
+            if (positions.get(source) != SCANNED) {
+                log.warn("{} stored changes but was not scanned,"
+                        + " data store references are incomplete", source);
+                cancelRebuild();
+                complete = false;
+                return false;
+            }
+        }
+        counts = rebuilt;
+        cancelRebuild();
+        complete = true;
+        log.info("Rebuilt the references to {} data store records",
+                counts.size());
+        return true;
+    }
+
+    /**
+     * Stops rebuilding the reference counts, for example because the scan
+     * failed.
+     */
+    public synchronized void cancelRebuild() {
+        rebuilt = null;
+        positions.clear();
+        orders.clear();
+        updated.clear();
+        invalidated = false;
+    }
+
+    /**
+     * Saves the reference counts if they are complete.
+     *
+     * @throws IOException if the reference counts can not be saved
+     */
+    public synchronized void close() throws IOException {
+        if (!complete) {
+            return;
+        }
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), "UTF-8"));
+        try {
+            for (Map.Entry<DataIdentifier, Integer> entry : counts.entrySet()) {
+                writer.write(entry.getKey().toString());
+                writer.write(' ');
+                writer.write(entry.getValue().toString());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+        complete = false;
+    }
+
+    private static void update(
+            Map<DataIdentifier, Integer> counts, Change change) {
+        Integer count = counts.get(change.identifier);
+        int value = (count != null ? count : 0) + change.delta;
+        if (value > 0) {
+            counts.put(change.identifier, value);
+        } else {
+            counts.remove(change.identifier);
+        }
+    }
+
+    /**
+     * The references that were added and removed by a change log, or the
+     * references of scanned nodes.
+     */
+    public static class Changes {
+
+        private final List<Change> changes = new ArrayList<Change>();
+
+        /**
+         * Adds the data store records of the given values to the references
+         * of a node. Values that are not stored in the data store are
+         * ignored.
+         *
+         * @param id the node
+         * @param values the values
+         */
+        public void added(NodeId id, InternalValue[] values) {
+            add(id, values, 1);
+        }
+
+        /**
+         * Removes the data store records of the given values from the
+         * references of a node. Values that are not stored in the data store
+         * are ignored.
+         *
+         * @param id the node
+         * @param values the values
+         */
+        public void removed(NodeId id, InternalValue[] values) {
+            add(id, values, -1);
+        }
+
+        /**
+         * Returns whether there are no changes.
+         *
+         * @return <code>true</code> if there are no changes
+         */
+        public boolean isEmpty() {
+            return changes.isEmpty();
+        }
+
+        private void add(NodeId id, InternalValue[] values, int delta) {
+            if (values != null) {
+                for (InternalValue value : values) {
+                    if (value != null && value.isInDataStore()) {
+                        changes.add(new Change(
+                                id, value.getDataIdentifier(), delta));
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A reference added to or removed from a node.
+     */
+    private static class Change {
+
+        private final NodeId id;
+
+        private final DataIdentifier identifier;
+
+        private final int delta;
+
+        private Change(NodeId id, DataIdentifier identifier, int delta) {
+            this.id = id;
+            this.identifier = identifier;
+            this.delta = delta;
+        }
+
+    }
+
+}
@@ -18,6 +18,7 @@ package org.apache.jackrabbit.core.gc;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -47,12 +48,15 @@ import org.apache.jackrabbit.api.management.DataStoreGarbageCollector;
 import org.apache.jackrabbit.api.management.MarkEventListener;
 import org.apache.jackrabbit.core.RepositoryContext;
 import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.data.DataIdentifier;
 import org.apache.jackrabbit.core.data.DataStore;
+import org.apache.jackrabbit.core.data.DataStoreException;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
 import org.apache.jackrabbit.core.observation.SynchronousEventListener;
 import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.persistence.bundle.AbstractBundlePersistenceManager;
 import org.apache.jackrabbit.core.persistence.util.NodeInfo;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
@@ -72,6 +76,12 @@ import org.slf4j.LoggerFactory;
  * entries are detected because the modified date is changed when they are
  * added.
  * <p>
+ * If the repository tracks the references to data store records (see
+ * {@link BinaryReferenceTracker}), the nodes are not scanned. Instead, the
+ * records in the data store that are referenced are marked. The references
+ * are rebuilt from a scan of the persistence managers if they are not
+ * complete, for example after an unclean shutdown.
+ * <p>
  * Example code to run the data store garbage collection:
  * <pre>
  * JackrabbitRepositoryFactory jf = (JackrabbitRepositoryFactory) factory;
@@ -122,6 +132,13 @@ public class GarbageCollector implements DataStoreGarbageCollector {
      */
     private static final boolean NODE_ID_SCAN = Boolean.getBoolean("org.apache.jackrabbit.garbagecollector.node_id.scan");
 
+    /**
+     * The number of referenced data store records that are collected during the
+     * persistence manager scan before they are marked at once, see
+     * {@link DataStore#touchAll(java.util.Collection, long)}. Defaults to 1000.
+     */
+    private static final int TOUCH_BATCH_SIZE = Integer.getInteger("org.apache.jackrabbit.garbagecollector.touchbatchsize", 1000);
+
     private MarkEventListener callback;
 
     private long sleepBetweenNodes;
@@ -218,7 +235,14 @@ public class GarbageCollector implements DataStoreGarbageCollector {
             store.updateModifiedDateOnAccess(startScanTimestamp);
         }
 
-        if (pmList == null || !persistenceManagerScan) {
+        BinaryReferenceTracker tracker = getBinaryReferenceTracker();
+        if (tracker != null) {
+            try {
+                markReferences(tracker);
+            } catch (ItemStateException e) {
+                throw new RepositoryException(e);
+            }
+        } else if (pmList == null || !persistenceManagerScan) {
             for (SessionImpl s : sessionList) {
                 scanNodes(s);
             }
@@ -235,6 +259,76 @@ public class GarbageCollector implements DataStoreGarbageCollector {
         }
     }
 
+    /**
+     * Returns the tracker of the data store references, if the repository
+     * has one and all persistence managers report their references to it.
+     *
+     * @return the tracker, or <code>null</code> if the nodes must be scanned
+     */
+    private BinaryReferenceTracker getBinaryReferenceTracker() {
+        if (pmList == null || !persistenceManagerScan) {
+            return null;
+        }
+        for (IterablePersistenceManager pm : pmList) {
+            if (!(pm instanceof AbstractBundlePersistenceManager)) {
+                return null;
+            }
+        }
+        return context.getBinaryReferenceTracker();
+    }
+
+    /**
+     * Marks the records that are referenced according to the tracker. If
+     * the references are not complete, they are rebuilt first. If that
+     * fails because of concurrent changes, the persistence managers are
+     * scanned instead.
+     *
+     * @param tracker the tracker of the data store references
+     */
+    private void markReferences(BinaryReferenceTracker tracker)
+            throws RepositoryException, ItemStateException {
+        if (!tracker.isComplete()) {
+            LOG.info("Rebuilding the data store references");
+            boolean complete = false;
+            tracker.startRebuild();
+            try {
+                for (IterablePersistenceManager pm : pmList) {
+                    ((AbstractBundlePersistenceManager) pm)
+                        .scanBinaryReferences(tracker);
+                }
+                complete = tracker.finishRebuild();
+            } finally {
+                if (!complete) {
+                    tracker.cancelRebuild();
+                }
+            }
+            if (!complete) {
+                scanPersistenceManagersByNodeInfos();
+                return;
+            }
+        }
+
+        // records that are referenced later on are marked when the
+        // reference is added, as with a scan of the nodes
+        int total = 0;
+        int marked = 0;
+        List<DataIdentifier> referenced = new ArrayList<DataIdentifier>(TOUCH_BATCH_SIZE);
+        Iterator<DataIdentifier> it = store.getAllIdentifiers();
+        while (it.hasNext()) {
+            DataIdentifier identifier = it.next();
+            total++;
+            if (tracker.isReferenced(identifier)) {
+                referenced.add(identifier);
+                if (referenced.size() >= TOUCH_BATCH_SIZE) {
+                    touchReferenced(referenced);
+                }
+                marked++;
+            }
+        }
+        touchReferenced(referenced);
+        LOG.info("Marked {} of {} data store records", marked, total);
+    }
+
     private void scanNodes(SessionImpl session) throws RepositoryException {
 
         // add a listener to get 'moved' nodes
@@ -259,6 +353,7 @@ public class GarbageCollector implements DataStoreGarbageCollector {
         for (IterablePersistenceManager pm : pmList) {
             pmCount++;
             int count = 0;
+            List<DataIdentifier> referenced = new ArrayList<DataIdentifier>(TOUCH_BATCH_SIZE);
             Map<NodeId,NodeInfo> batch = pm.getAllNodeInfos(null, NODESATONCE);
             while (!batch.isEmpty()) {
                 NodeId lastId = null;
@@ -279,11 +374,7 @@ public class GarbageCollector implements DataStoreGarbageCollector {
                                 PropertyId pid = new PropertyId(info.getId(), name);
                                 PropertyState ps = pm.load(pid);
                                 if (ps.getType() == PropertyType.BINARY) {
-                                    for (InternalValue v : ps.getValues()) {
-                                        // getLength will update the last modified date
-                                        // if the persistence manager scan is running
-                                        v.getLength();
-                                    }
+                                    markReferenced(referenced, ps.getValues());
                                 }
                             }
                         } catch (NoSuchItemStateException ignored) {
@@ -293,6 +384,7 @@ public class GarbageCollector implements DataStoreGarbageCollector {
                 }
                 batch = pm.getAllNodeInfos(lastId, NODESATONCE);
             }
+            touchReferenced(referenced);
         }
         NodeInfo.clearPool();
     }
@@ -330,6 +422,7 @@ public class GarbageCollector implements DataStoreGarbageCollector {
     
     private void scanNodeIdList(int split, List<NodeId> nodeList, PersistenceManager pm, int pmCount) throws RepositoryException, ItemStateException {
         int count = 0;
+        List<DataIdentifier> referenced = new ArrayList<DataIdentifier>(TOUCH_BATCH_SIZE);
         for (NodeId id : nodeList) {
             count++;
             if (count % 1000 == 0) {
@@ -349,11 +442,7 @@ public class GarbageCollector implements DataStoreGarbageCollector {
                     PropertyId pid = new PropertyId(id, name);
                     PropertyState ps = pm.load(pid);
                     if (ps.getType() == PropertyType.BINARY) {
-                        for (InternalValue v : ps.getValues()) {
-                            // getLength will update the last modified date
-                            // if the persistence manager scan is running
-                            v.getLength();
-                        }
+                        markReferenced(referenced, ps.getValues());
                     }
                 }
             } catch (NoSuchItemStateException e) {
@@ -361,6 +450,38 @@ public class GarbageCollector implements DataStoreGarbageCollector {
                 // ignore it
             }
         }
+        touchReferenced(referenced);
+    }
+
+    /**
+     * Adds the data store records of the given values to the referenced
+     * records, and marks them once there are enough.
+     *
+     * @param referenced the referenced records that are not marked yet
+     * @param values the values of a binary property
+     */
+    private void markReferenced(List<DataIdentifier> referenced, InternalValue[] values)
+            throws DataStoreException {
+        for (InternalValue v : values) {
+            if (v.isInDataStore()) {
+                referenced.add(v.getDataIdentifier());
+                if (referenced.size() >= TOUCH_BATCH_SIZE) {
+                    touchReferenced(referenced);
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the last modified date of the referenced records at once.
+     *
+     * @param referenced the referenced records, cleared afterwards
+     */
+    private void touchReferenced(List<DataIdentifier> referenced) throws DataStoreException {
+        if (!referenced.isEmpty()) {
+            store.touchAll(referenced, startScanTimestamp);
+            referenced.clear();
+        }
     }
 
     private <T> List<List<T>> splitIntoParts(List<T> ls, int parts) {
@@ -0,0 +1,447 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.id;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Insertion-ordered map with {@link NodeId} keys. The keys are not kept as
+ * objects, but as the two longs of the node id in a plain array, and are
+ * found through an open addressing hash table of entry indexes. This needs
+ * about 30 bytes per entry, compared to about 80 bytes for a
+ * <code>HashMap</code> entry and its node id, and creates no garbage when
+ * entries are added.
+ * <p>
+ * Replacing the value of an existing key keeps the position of the entry.
+ * Removed entries leave a gap that is only reclaimed when the map is grown,
+ * so the map may be modified while iterating over it, but
+ * {@link #put(NodeId, Object) adding} entries while iterating leads to
+ * undefined results.
+ * <p>
+ * This class is not thread-safe, and does not implement
+ * {@link java.util.Map} to avoid creating node id objects on every access.
+ *
+ * @param <V> the value type
+ */
+public class NodeIdMap<V> implements Cloneable {
+
+    /** Marks an unused slot of the hash table. */
+    private static final int FREE = -1;
+
+    /** Marks a slot of the hash table whose entry was removed. */
+    private static final int DELETED = -2;
+
+    /** Marks a removed entry in the value array. */
+    private static final Object REMOVED = new Object();
+
+    /** The keys of the entries: msb and lsb of each node id. */
+    private long[] keys;
+
+    /** The values of the entries. */
+    private Object[] values;
+
+    /** The hash table of entry indexes. Its length is a power of two. */
+    private int[] table;
+
+    /** The number of used entries, including removed entries. */
+    private int count;
+
+    /** The number of live entries. */
+    private int size;
+
+    /**
+     * Creates an empty map.
+     */
+    public NodeIdMap() {
+        this(4);
+    }
+
+    /**
+     * Creates an empty map with room for the given number of entries.
+     *
+     * @param capacity the expected number of entries
+     */
+    public NodeIdMap(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the map is empty.
+     *
+     * @return <code>true</code> if there are no entries
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Checks whether there is an entry for the given key.
+     *
+     * @param id the key
+     * @return <code>true</code> if there is an entry
+     */
+    public boolean containsKey(NodeId id) {
+        return indexOf(id.getMostSignificantBits(), id.getLeastSignificantBits()) >= 0;
+    }
+
+    /**
+     * Returns the value of the given key.
+     *
+     * @param id the key
+     * @return the value, or <code>null</code> if there is no entry
+     */
+    @SuppressWarnings("unchecked")
+    public V get(NodeId id) {
+        int index = indexOf(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        if (index < 0) {
+            return null;
+        }
+        return (V) values[index];
+    }
+
+    /**
+     * Sets the value of the given key. A new entry is added at the end of
+     * the map; an existing entry keeps its position.
+     *
+     * @param id the key
+     * @param value the value, may be <code>null</code>
+     * @return the previous value, or <code>null</code> if there was no entry
+     */
+    @SuppressWarnings("unchecked")
+    public V put(NodeId id, V value) {
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        int mask = table.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        int free = -1;
+        while (true) {
+            int index = table[slot];
+            if (index == FREE) {
+                break;
+            } else if (index == DELETED) {
+                if (free < 0) {
+                    free = slot;
+                }
+            } else if (keys[2 * index] == msb && keys[2 * index + 1] == lsb) {
+                V previous = (V) values[index];
+                values[index] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (count == values.length) {
+            // out of entries: reclaim removed entries or grow the map
+            rehash(size + 1);
+            put(id, value);
+            return null;
+        }
+        if (free >= 0) {
+            slot = free;
+        }
+        keys[2 * count] = msb;
+        keys[2 * count + 1] = lsb;
+        values[count] = value;
+        table[slot] = count++;
+        size++;
+        return null;
+    }
+
+    /**
+     * Removes the entry of the given key.
+     *
+     * @param id the key
+     * @return the removed value, or <code>null</code> if there was no entry
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(NodeId id) {
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        int slot = slotOf(msb, lsb);
+        if (slot < 0) {
+            return null;
+        }
+        int index = table[slot];
+        V previous = (V) values[index];
+        values[index] = REMOVED;
+        table[slot] = DELETED;
+        size--;
+        if (size == 0) {
+            // nothing left to preserve, start over
+            count = 0;
+            Arrays.fill(table, FREE);
+            Arrays.fill(values, null);
+        }
+        return previous;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        allocate(4);
+    }
+
+    /**
+     * Returns the keys in insertion order. The node ids are created while
+     * iterating.
+     *
+     * @return the keys
+     */
+    public Iterator<NodeId> keyIterator() {
+        return new EntryIterator<NodeId>() {
+            @Override
+            protected NodeId get(int index) {
+                return new NodeId(keys[2 * index], keys[2 * index + 1]);
+            }
+        };
+    }
+
+    /**
+     * Returns a view of the values in insertion order. The view supports
+     * removal through its iterator.
+     *
+     * @return the values
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new EntryIterator<V>() {
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    protected V get(int index) {
+                        return (V) values[index];
+                    }
+                };
+            }
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    //-------------------------------------------< java.lang.Object overrides >
+
+    /**
+     * Returns a copy of this map. The values themselves are not cloned.
+     *
+     * @return a copy of this map
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public NodeIdMap<V> clone() {
+        try {
+            NodeIdMap<V> clone = (NodeIdMap<V>) super.clone();
+            clone.keys = keys.clone();
+            clone.values = values.clone();
+            clone.table = table.clone();
+            return clone;
+        } catch (CloneNotSupportedException e) {
+            // never happens, this class is cloneable
+            throw new InternalError();
+        }
+    }
+
+    /**
+     * Two maps are equal if they have the same keys, and equal values for
+     * each key. The order of the entries is not compared.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof NodeIdMap<?>)) {
+            return false;
+        }
+        NodeIdMap<?> other = (NodeIdMap<?>) obj;
+        if (size != other.size) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (values[i] != REMOVED) {
+                int index = other.indexOf(keys[2 * i], keys[2 * i + 1]);
+                if (index < 0) {
+                    return false;
+                }
+                Object value = values[i];
+                Object otherValue = other.values[index];
+                if (value == null ? otherValue != null : !value.equals(otherValue)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = 0; i < count; i++) {
+            if (values[i] != REMOVED) {
+                long msb = keys[2 * i];
+                long lsb = keys[2 * i + 1];
+                // same as NodeId.hashCode()
+                int h = (int) ((msb >>> 32) ^ msb ^ (lsb >>> 32) ^ lsb);
+                hash += h ^ (values[i] == null ? 0 : values[i].hashCode());
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < count; i++) {
+            if (values[i] != REMOVED) {
+                if (builder.length() > 1) {
+                    builder.append(", ");
+                }
+                builder.append(new NodeId(keys[2 * i], keys[2 * i + 1]));
+                builder.append('=').append(values[i]);
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    //-------------------------------------------------------------< internal >
+
+    /**
+     * Returns the index of the entry with the given key, or -1.
+     */
+    private int indexOf(long msb, long lsb) {
+        int slot = slotOf(msb, lsb);
+        return slot < 0 ? -1 : table[slot];
+    }
+
+    /**
+     * Returns the hash table slot of the entry with the given key, or -1.
+     */
+    private int slotOf(long msb, long lsb) {
+        int mask = table.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (true) {
+            int index = table[slot];
+            if (index == FREE) {
+                return -1;
+            } else if (index >= 0
+                    && keys[2 * index] == msb && keys[2 * index + 1] == lsb) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[2 * capacity];
+        values = new Object[capacity];
+        int length = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        table = new int[length];
+        Arrays.fill(table, FREE);
+        count = 0;
+        size = 0;
+    }
+
+    /**
+     * Rebuilds the map with room for at least the given number of entries,
+     * dropping removed entries.
+     */
+    private void rehash(int required) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        int oldCount = count;
+        allocate(Math.max(required, oldCount < 8 ? 8 : required + required / 2));
+        int mask = table.length - 1;
+        for (int i = 0; i < oldCount; i++) {
+            if (oldValues[i] != REMOVED) {
+                long msb = oldKeys[2 * i];
+                long lsb = oldKeys[2 * i + 1];
+                int slot = hash(msb, lsb) & mask;
+                while (table[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[2 * count] = msb;
+                keys[2 * count + 1] = lsb;
+                values[count] = oldValues[i];
+                table[slot] = count++;
+            }
+        }
+        size = count;
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Iterates over the live entries in insertion order.
+     */
+    private abstract class EntryIterator<T> implements Iterator<T> {
+
+        private int next = advance(0);
+
+        private int last = -1;
+
+        protected abstract T get(int index);
+
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        public T next() {
+            if (next >= count) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = advance(next + 1);
+            return get(last);
+        }
+
+        public void remove() {
+            if (last < 0 || values[last] == REMOVED) {
+                throw new IllegalStateException();
+            }
+            NodeIdMap.this.remove(new NodeId(keys[2 * last], keys[2 * last + 1]));
+            last = -1;
+        }
+
+        private int advance(int index) {
+            while (index < count && values[index] == REMOVED) {
+                index++;
+            }
+            return index;
+        }
+
+    }
+
+}
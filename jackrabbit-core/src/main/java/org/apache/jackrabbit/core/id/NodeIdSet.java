@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.id;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Insertion-ordered set of {@link NodeId}s, backed by a {@link NodeIdMap}.
+ * The node ids are not kept as objects, so the iterator returns new
+ * instances that are equal to the added ones.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class NodeIdSet extends AbstractSet<NodeId> {
+
+    private final NodeIdMap<Boolean> map;
+
+    /**
+     * Creates an empty set.
+     */
+    public NodeIdSet() {
+        map = new NodeIdMap<Boolean>();
+    }
+
+    /**
+     * Creates a set that contains the given node ids.
+     *
+     * @param ids the node ids
+     */
+    public NodeIdSet(Collection<NodeId> ids) {
+        map = new NodeIdMap<Boolean>(ids.size());
+        addAll(ids);
+    }
+
+    @Override
+    public boolean add(NodeId id) {
+        return map.put(id, Boolean.TRUE) == null;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof NodeId && map.containsKey((NodeId) o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof NodeId && map.remove((NodeId) o) != null;
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public Iterator<NodeId> iterator() {
+        return map.keyIterator();
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+}
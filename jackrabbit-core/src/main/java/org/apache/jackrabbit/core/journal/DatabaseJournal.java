@@ -68,6 +68,8 @@ import javax.sql.DataSource;
  * thread initiates its first run (default = <code>3</code> which means 3:00 at night)</li>
  * <li><code>schemaCheckEnabled</code>:  whether the schema check during initialization is enabled
  * (default = <code>true</code>)</li>
+ * <li><code>cacheStatements</code>: whether prepared statements are reused within the
+ * transaction of a journal operation (default = <code>false</code>)</li>
  * </ul>
  * <p>
  * JNDI can be used to get the connection. In this case, use the javax.naming.InitialContext as the driver,
@@ -173,6 +175,11 @@ public class DatabaseJournal extends AbstractJournal implements DatabaseAware {
      */
     private boolean schemaCheckEnabled = true;
 
+    /**
+     * Whether prepared statements are reused within a batch.
+     */
+    private boolean cacheStatements;
+
     /**
      * The instance that manages the local revision.
      */
@@ -257,6 +264,7 @@ public class DatabaseJournal extends AbstractJournal implements DatabaseAware {
 
         try {
             conHelper = createConnectionHelper(getDataSource());
+            conHelper.setCacheStatements(cacheStatements);
 
             // make sure schemaObjectPrefix consists of legal name characters only
             schemaObjectPrefix = conHelper.prepareDbIdentifier(schemaObjectPrefix);
@@ -763,6 +771,21 @@ public class DatabaseJournal extends AbstractJournal implements DatabaseAware {
         schemaCheckEnabled = enabled;
     }
 
+    /**
+     * @return whether prepared statements are reused within a batch
+     */
+    public final boolean isCacheStatements() {
+        return cacheStatements;
+    }
+
+    /**
+     * @param cacheStatements set whether prepared statements are reused within a batch,
+     *            see {@link ConnectionHelper#setCacheStatements(boolean)}
+     */
+    public final void setCacheStatements(boolean cacheStatements) {
+        this.cacheStatements = cacheStatements;
+    }
+
     /**
      * This class manages the local revision of the cluster node. It
      * persists the local revision in the LOCAL_REVISIONS table in the
@@ -0,0 +1,31 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence;
+
+import org.apache.jackrabbit.core.state.ChangeLog;
+
+/**
+ * Marker interface for persistence managers whose
+ * {@link PersistenceManager#store(ChangeLog)} method either stores all
+ * changes of the given change log or none of them. The shared item state
+ * manager only stores the change logs of concurrent updates as one group
+ * if the persistence manager implements this interface, as a group that
+ * fails must leave no partial changes behind before its change logs are
+ * stored again one by one.
+ */
+public interface AtomicPersistenceManager extends PersistenceManager {
+}
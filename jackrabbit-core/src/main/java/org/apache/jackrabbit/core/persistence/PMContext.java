@@ -22,6 +22,7 @@ import javax.jcr.NamespaceRegistry;
 
 import org.apache.jackrabbit.core.data.DataStore;
 import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.gc.BinaryReferenceTracker;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.nodetype.NodeTypeRegistry;
 import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
@@ -67,6 +68,11 @@ public class PMContext {
     /** Repository statistics collector. */
     private final RepositoryStatisticsImpl stats;
 
+    /**
+     * Tracker of the data store references, or <code>null</code>.
+     */
+    private final BinaryReferenceTracker referenceTracker;
+
     /**
      * Creates a new <code>PMContext</code>.
      *
@@ -83,6 +89,31 @@ public class PMContext {
             NodeTypeRegistry ntReg,
             DataStore dataStore,
             RepositoryStatisticsImpl stats) {
+        this(homeDir, fs, rootNodeId, nsReg, ntReg, dataStore, stats, null);
+    }
+
+    /**
+     * Creates a new <code>PMContext</code> with a tracker of the data store
+     * references.
+     *
+     * @param homeDir the physical home directory
+     * @param fs the virtual jackrabbit filesystem
+     * @param rootNodeId id of the root node
+     * @param nsReg        namespace registry
+     * @param ntReg        node type registry
+     * @param dataStore    data store, or <code>null</code>
+     * @param stats        repository statistics
+     * @param referenceTracker tracker of the data store references, or
+     *                         <code>null</code>
+     */
+    public PMContext(File homeDir,
+            FileSystem fs,
+            NodeId rootNodeId,
+            NamespaceRegistry nsReg,
+            NodeTypeRegistry ntReg,
+            DataStore dataStore,
+            RepositoryStatisticsImpl stats,
+            BinaryReferenceTracker referenceTracker) {
         this.physicalHomeDir = homeDir;
         this.fs = fs;
         this.rootNodeId = rootNodeId;
@@ -90,6 +121,7 @@ public class PMContext {
         this.ntReg = ntReg;
         this.dataStore = dataStore;
         this.stats = stats;
+        this.referenceTracker = referenceTracker;
     }
 
 
@@ -154,4 +186,14 @@ public class PMContext {
         return stats;
     }
 
+    /**
+     * Returns the tracker to which the persistence manager reports the data
+     * store records that it adds and removes references to.
+     *
+     * @return the tracker, or <code>null</code> if references are not tracked
+     */
+    public BinaryReferenceTracker getBinaryReferenceTracker() {
+        return referenceTracker;
+    }
+
 }
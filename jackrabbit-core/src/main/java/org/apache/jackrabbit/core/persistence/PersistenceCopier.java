@@ -16,14 +16,26 @@
  */
 package org.apache.jackrabbit.core.persistence;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.jackrabbit.core.data.DataStore;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
@@ -35,6 +47,8 @@ import org.apache.jackrabbit.core.state.NodeState;
 import org.apache.jackrabbit.core.state.PropertyState;
 import org.apache.jackrabbit.core.value.InternalValue;
 import org.apache.jackrabbit.spi.Name;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Tool for copying item states from one persistence manager to another.
@@ -44,6 +58,17 @@ import org.apache.jackrabbit.spi.Name;
  */
 public class PersistenceCopier {
 
+    /**
+     * Logger instance
+     */
+    private static final Logger log =
+        LoggerFactory.getLogger(PersistenceCopier.class);
+
+    /**
+     * The default number of nodes copied in one batch by {@link #copyAll()}.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
     /**
      * Source persistence manager.
      */
@@ -67,6 +92,43 @@ public class PersistenceCopier {
      */
     private final Set<NodeId> exclude = new HashSet<NodeId>();
 
+    /**
+     * Identifiers of the nodes that were explicitly excluded with
+     * {@link #excludeNode(NodeId)}. Their descendants are skipped by
+     * {@link #copyAll()}.
+     */
+    private final Set<NodeId> excludedNodes = new HashSet<NodeId>();
+
+    /**
+     * Recently seen parent nodes of the nodes copied by {@link #copyAll()},
+     * mapped to whether they are excluded or descendants of an excluded
+     * node. Bounded, as the nodes are not listed in hierarchical order.
+     */
+    private final Map<NodeId, Boolean> excludedParents =
+        new LinkedHashMap<NodeId, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<NodeId, Boolean> eldest) {
+                return size() > DEFAULT_BATCH_SIZE * 10;
+            }
+        };
+
+    /**
+     * Number of threads used by {@link #copyAll()}.
+     */
+    private int threads = 1;
+
+    /**
+     * Number of nodes copied in one batch by {@link #copyAll()}.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * File in which {@link #copyAll()} records its progress, or
+     * <code>null</code> if the progress is not recorded.
+     */
+    private File checkpoint;
+
     /**
      * Creates a tool for copying content from one persistence manager
      * to another.
@@ -91,6 +153,49 @@ public class PersistenceCopier {
      */
     public void excludeNode(NodeId id) {
         exclude.add(id);
+        excludedNodes.add(id);
+    }
+
+    /**
+     * Sets the number of threads that copy nodes in {@link #copyAll()}.
+     * The default is one thread.
+     *
+     * @param threads number of threads, at least one
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid number of threads: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the number of nodes that {@link #copyAll()} reads from the
+     * source and stores in the target persistence manager as one change
+     * log. The default is {@link #DEFAULT_BATCH_SIZE}.
+     *
+     * @param batchSize number of nodes per batch, at least one
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid batch size: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the file in which {@link #copyAll()} records the identifier of
+     * the last node up to which all nodes have been copied. If the file
+     * exists when the copy starts, the nodes up to and including that
+     * node are not copied again, so that an interrupted copy can be resumed.
+     *
+     * @param checkpoint checkpoint file, or <code>null</code> (the default)
+     *                   to always copy all nodes
+     */
+    public void setCheckpoint(File checkpoint) {
+        this.checkpoint = checkpoint;
     }
 
     /**
@@ -118,6 +223,203 @@ public class PersistenceCopier {
         }
     }
 
+    /**
+     * Copies all nodes of the source persistence manager, in the order of
+     * {@link IterablePersistenceManager#getAllNodeIds(NodeId, int)}. The
+     * node identifiers are read in batches, and each batch is copied by
+     * one of the configured threads and stored in the target persistence
+     * manager as a single change log. Binary values are added to the
+     * target data store by the same threads, so that several records are
+     * copied concurrently.
+     * <p>
+     * Unlike {@link #copy(NodeId)}, this method also copies nodes that are
+     * not reachable from any root node. Explicitly excluded nodes are
+     * skipped together with all the nodes below them. If a
+     * {@link #setCheckpoint(File) checkpoint} file is set, the progress is
+     * recorded there after each batch and a later call continues after the
+     * recorded node. Nodes that are copied again are overwritten.
+     *
+     * @throws RepositoryException if the source persistence manager can
+     *                             not list its nodes, or the copy fails
+     */
+    public void copyAll() throws RepositoryException {
+        if (!(source instanceof IterablePersistenceManager)) {
+            throw new RepositoryException(
+                    "Unable to list the nodes of " + source);
+        }
+        IterablePersistenceManager iterable =
+            (IterablePersistenceManager) source;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<Long> completion =
+            new ExecutorCompletionService<Long>(executor);
+        // the last node of the batches that are being copied
+        Map<Long, NodeId> running = new HashMap<Long, NodeId>();
+        // the last node of the batches that are done, waiting for the
+        // preceding batches to complete before the checkpoint can move
+        Map<Long, NodeId> done = new HashMap<Long, NodeId>();
+        long submitted = 0;
+        long completed = 0;
+        long count = 0;
+        try {
+            NodeId after = readCheckpoint();
+            if (after != null) {
+                log.info("Resuming the copy after node {}", after);
+            }
+            List<NodeId> ids = iterable.getAllNodeIds(after, batchSize);
+            while (!ids.isEmpty() || !running.isEmpty()) {
+                // keep a few batches queued, but not the whole repository
+                if (!ids.isEmpty() && running.size() < threads * 2) {
+                    final List<NodeId> batch = ids;
+                    final long sequence = submitted++;
+                    after = batch.get(batch.size() - 1);
+                    running.put(sequence, after);
+                    completion.submit(new Callable<Long>() {
+                        public Long call() throws RepositoryException {
+                            copyBatch(batch);
+                            return sequence;
+                        }
+                    });
+                    count += batch.size();
+                    ids = iterable.getAllNodeIds(after, batchSize);
+                } else {
+                    Long sequence = completion.take().get();
+                    done.put(sequence, running.remove(sequence));
+                    NodeId last = null;
+                    while (done.containsKey(completed)) {
+                        last = done.remove(completed++);
+                    }
+                    if (last != null) {
+                        writeCheckpoint(last);
+                    }
+                }
+            }
+            log.info("Copied {} nodes", count);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RepositoryException) {
+                throw (RepositoryException) e.getCause();
+            }
+            throw new RepositoryException("Unable to copy nodes", e.getCause());
+        } catch (InterruptedException e) {
+            throw new RepositoryException("Interrupted while copying nodes", e);
+        } catch (IOException e) {
+            throw new RepositoryException(
+                    "Unable to access the checkpoint " + checkpoint, e);
+        } catch (ItemStateException e) {
+            throw new RepositoryException("Unable to list the nodes", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Copies the identified nodes and stores them in the target persistence
+     * manager as a single change log. Excluded nodes and their descendants
+     * are skipped.
+     *
+     * @param ids identifiers of the nodes to be copied
+     * @throws RepositoryException if the copy operation fails
+     */
+    private void copyBatch(List<NodeId> ids) throws RepositoryException {
+        ChangeLog changes = new ChangeLog();
+        for (NodeId id : ids) {
+            if (!exclude.contains(id)) {
+                try {
+                    NodeState node = source.load(id);
+                    if (!isExcluded(node.getParentId())) {
+                        copy(node, changes);
+                    }
+                } catch (ItemStateException e) {
+                    throw new RepositoryException("Unable to copy " + id, e);
+                }
+            }
+        }
+        if (!changes.hasUpdates()) {
+            return;
+        }
+        try {
+            target.store(changes);
+        } catch (ItemStateException e) {
+            throw new RepositoryException(
+                    "Unable to store the copies of " + ids.size() + " nodes", e);
+        }
+    }
+
+    /**
+     * Checks whether the identified node is excluded or a descendant of an
+     * excluded node. The check walks up the parent chain in the source
+     * persistence manager and stops at a node that does not exist there,
+     * like the virtual "/jcr:system" node in a workspace.
+     *
+     * @param id node identifier, or <code>null</code> for the parent of a root
+     * @return <code>true</code> if the node is excluded,
+     *         <code>false</code> otherwise
+     * @throws ItemStateException if a parent node can not be loaded
+     */
+    private boolean isExcluded(NodeId id) throws ItemStateException {
+        if (id == null || excludedNodes.isEmpty()) {
+            return false;
+        } else if (excludedNodes.contains(id)) {
+            return true;
+        }
+        Boolean excluded;
+        synchronized (excludedParents) {
+            excluded = excludedParents.get(id);
+        }
+        if (excluded == null) {
+            excluded = source.exists(id)
+                && isExcluded(source.load(id).getParentId());
+            synchronized (excludedParents) {
+                excludedParents.put(id, excluded);
+            }
+        }
+        return excluded;
+    }
+
+    /**
+     * Returns the node up to which a previous call to {@link #copyAll()}
+     * has copied all nodes.
+     *
+     * @return node identifier, or <code>null</code> if there is no checkpoint
+     * @throws IOException if the checkpoint can not be read
+     */
+    private NodeId readCheckpoint() throws IOException {
+        if (checkpoint == null || !checkpoint.exists()) {
+            return null;
+        }
+        String id = FileUtils.readFileToString(checkpoint, "UTF-8").trim();
+        try {
+            return NodeId.valueOf(id);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid checkpoint: " + id, e);
+        }
+    }
+
+    /**
+     * Records that all nodes up to and including the given node have been
+     * copied. The checkpoint is written to a temporary file first, so that
+     * an interrupted write does not leave a corrupt checkpoint behind.
+     *
+     * @param id node identifier
+     * @throws IOException if the checkpoint can not be written
+     */
+    private void writeCheckpoint(NodeId id) throws IOException {
+        if (checkpoint != null) {
+            File temp = new File(
+                    checkpoint.getParentFile(), checkpoint.getName() + ".tmp");
+            FileUtils.writeStringToFile(temp, id.toString(), "UTF-8");
+            if (!temp.renameTo(checkpoint)) {
+                // renameTo does not replace existing files on all platforms
+                FileUtils.forceDelete(checkpoint);
+                if (!temp.renameTo(checkpoint)) {
+                    throw new IOException(
+                            "Unable to rename " + temp + " to " + checkpoint);
+                }
+            }
+            log.debug("Copied all nodes up to {}", id);
+        }
+    }
+
     /**
      * Copies the given node state and all associated property states
      * to the target persistence manager.
@@ -126,9 +428,26 @@ public class PersistenceCopier {
      * @throws RepositoryException if the copy operation fails
      */
     private void copy(NodeState sourceNode) throws RepositoryException {
+        ChangeLog changes = new ChangeLog();
+        copy(sourceNode, changes);
         try {
-            ChangeLog changes = new ChangeLog();
+            target.store(changes);
+        } catch (ItemStateException e) {
+            throw new RepositoryException("Unable to copy " + sourceNode, e);
+        }
+    }
 
+    /**
+     * Adds copies of the given node state and all associated property
+     * states and references to the given change log.
+     *
+     * @param sourceNode source node state
+     * @param changes change log to be stored in the target
+     * @throws RepositoryException if the copy operation fails
+     */
+    private void copy(NodeState sourceNode, ChangeLog changes)
+            throws RepositoryException {
+        try {
             // Copy the node state
             NodeState targetNode = target.createNew(sourceNode.getNodeId());
             targetNode.setParentId(sourceNode.getParentId());
@@ -180,9 +499,6 @@ public class PersistenceCopier {
                 references.clearAllReferences();
                 changes.modified(references);
             }
-
-            // Persist the copied states
-            target.store(changes);
         } catch (IOException e) {
             throw new RepositoryException(
                     "Unable to copy binary values of " + sourceNode, e);
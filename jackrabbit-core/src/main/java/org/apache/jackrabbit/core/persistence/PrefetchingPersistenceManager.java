@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence;
+
+import java.util.Collection;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.state.ItemStateException;
+
+/**
+ * Interface that is used by the shared item state manager to announce that
+ * a number of node states are about to be accessed. A persistence manager
+ * implementing this interface can load the respective states in a single
+ * batch, instead of one at a time when they are requested.
+ */
+public interface PrefetchingPersistenceManager {
+
+    /**
+     * Loads the given node states into the cache of this persistence
+     * manager. Identifiers of nodes that do not exist or that are already
+     * cached are silently ignored.
+     *
+     * @param ids the identifiers of the nodes to prefetch
+     * @throws ItemStateException if an error occurs while loading the states
+     */
+    void prefetch(Collection<NodeId> ids) throws ItemStateException;
+
+}
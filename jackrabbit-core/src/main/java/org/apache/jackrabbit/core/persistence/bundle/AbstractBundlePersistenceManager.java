@@ -20,12 +20,20 @@ import static org.apache.jackrabbit.spi.commons.name.NameConstants.JCR_MIXINTYPE
 import static org.apache.jackrabbit.spi.commons.name.NameConstants.JCR_PRIMARYTYPE;
 import static org.apache.jackrabbit.spi.commons.name.NameConstants.JCR_UUID;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
@@ -34,9 +42,12 @@ import org.apache.jackrabbit.api.stats.RepositoryStatistics;
 import org.apache.jackrabbit.core.cache.Cache;
 import org.apache.jackrabbit.core.cache.CacheAccessListener;
 import org.apache.jackrabbit.core.cache.ConcurrentCache;
+import org.apache.jackrabbit.core.cache.EntryCache;
+import org.apache.jackrabbit.core.cache.TinyLFUCache;
 import org.apache.jackrabbit.core.cluster.UpdateEventChannel;
 import org.apache.jackrabbit.core.fs.FileSystem;
 import org.apache.jackrabbit.core.fs.FileSystemResource;
+import org.apache.jackrabbit.core.gc.BinaryReferenceTracker;
 import org.apache.jackrabbit.core.id.ItemId;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
@@ -44,14 +55,17 @@ import org.apache.jackrabbit.core.persistence.CachingPersistenceManager;
 import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
 import org.apache.jackrabbit.core.persistence.PMContext;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.persistence.PrefetchingPersistenceManager;
 import org.apache.jackrabbit.core.persistence.check.ConsistencyCheckListener;
 import org.apache.jackrabbit.core.persistence.check.ConsistencyChecker;
 import org.apache.jackrabbit.core.persistence.check.ConsistencyReport;
 import org.apache.jackrabbit.core.persistence.util.BLOBStore;
+import org.apache.jackrabbit.core.persistence.util.BundleBinding;
 import org.apache.jackrabbit.core.persistence.util.FileBasedIndex;
 import org.apache.jackrabbit.core.persistence.util.NodeInfo;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+import org.apache.jackrabbit.core.persistence.util.OffHeapBundleCache;
 import org.apache.jackrabbit.core.state.ChangeLog;
 import org.apache.jackrabbit.core.state.ItemState;
 import org.apache.jackrabbit.core.state.ItemStateException;
@@ -89,13 +103,25 @@ import org.slf4j.LoggerFactory;
  * because a lot of {@link #exists(NodeId)} calls are issued that would result
  * in a useless persistence lookup if the desired bundle does not exist.
  * <p>
+ * Optionally, a second level bundle cache can be enabled that keeps bundles
+ * in their serialized form outside of the Java heap. Bundles that are evicted
+ * from the bundle cache are serialized to it, and can then be restored
+ * without accessing the underlying persistence layer, at the cost of
+ * deserializing them again.
+ * <p>
  * Configuration:<br>
  * <ul>
  * <li>&lt;param name="{@link #setBundleCacheSize(String) bundleCacheSize}" value="8"/&gt;
+ * <li>&lt;param name="{@link #setBundleCachePolicy(String) bundleCachePolicy}" value="lru"/&gt;
+ * <li>&lt;param name="{@link #setOffHeapBundleCacheSize(String) offHeapBundleCacheSize}" value="0"/&gt;
+ * <li>&lt;param name="{@link #setBundleCompression(String) bundleCompression}" value="none"/&gt;
+ * <li>&lt;param name="{@link #setConsistencyCheckThreads(String) consistencyCheckThreads}" value="1"/&gt;
+ * <li>&lt;param name="{@link #setConsistencyCheckThrottle(String) consistencyCheckThrottle}" value="false"/&gt;
  * </ul>
  */
 public abstract class AbstractBundlePersistenceManager implements
-    PersistenceManager, CachingPersistenceManager, IterablePersistenceManager, CacheAccessListener, ConsistencyChecker {
+    PersistenceManager, CachingPersistenceManager, IterablePersistenceManager,
+    PrefetchingPersistenceManager, CacheAccessListener, ConsistencyChecker {
 
     /** the audit logger */
     private static Logger auditLogger = LoggerFactory.getLogger("org.apache.jackrabbit.core.audit");
@@ -115,6 +141,17 @@ public abstract class AbstractBundlePersistenceManager implements
     /** the name of the namespace-index resource */
     protected static final String RES_NS_INDEX = "/namespaces.properties";
 
+    /**
+     * The order of {@link NodeId#compareTo(NodeId)}, for persistence managers
+     * that list their node ids in that order (see {@link #getNodeIdOrder()}).
+     */
+    protected static final Comparator<NodeId> NODE_ID_ORDER =
+        new Comparator<NodeId>() {
+            public int compare(NodeId a, NodeId b) {
+                return a.compareTo(b);
+            }
+        };
+
     /** Sentinel instance used to mark a non-existent bundle in the cache */
     private static final NodePropBundle MISSING =
         new NodePropBundle(NodeId.randomId());
@@ -127,6 +164,17 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     private static final long MISSING_SIZE_ESTIMATE = 128;
 
+    /**
+     * Bundle cache policy that evicts the least recently used bundles.
+     */
+    public static final String BUNDLE_CACHE_LRU = "lru";
+
+    /**
+     * Bundle cache policy that keeps the frequently used bundles, see
+     * {@link TinyLFUCache}.
+     */
+    public static final String BUNDLE_CACHE_TINYLFU = "tinylfu";
+
     /** the index for namespaces */
     private StringIndex nsIndex;
 
@@ -134,11 +182,28 @@ public abstract class AbstractBundlePersistenceManager implements
     private StringIndex nameIndex;
 
     /** the cache of loaded bundles */
-    private ConcurrentCache<NodeId, NodePropBundle> bundles;
+    private EntryCache<NodeId, NodePropBundle> bundles;
+
+    /**
+     * the second level cache of serialized bundles, or <code>null</code> if
+     * the second level cache is disabled
+     */
+    private OffHeapBundleCache offHeapBundles;
+
+    /**
+     * Held for writing while bundles are stored, and for reading while an
+     * evicted bundle is put to the off-heap bundle cache, so that a bundle
+     * that is outdated by a concurrent store is not put there.
+     */
+    private final ReentrantReadWriteLock offHeapLock =
+        new ReentrantReadWriteLock();
 
     /** The default minimum stats logging interval (in ms). */
     private static final int DEFAULT_LOG_STATS_INTERVAL = 60 * 1000;
 
+    /** The number of nodes scanned at once for the data store references. */
+    private static final int SCAN_BATCH_SIZE = 1000;
+
     /** The minimum interval time between stats are logged */
     private long minLogStatsInterval = Long.getLong(
             "org.apache.jackrabbit.cacheLogStatsInterval",
@@ -154,6 +219,21 @@ public abstract class AbstractBundlePersistenceManager implements
     /** default size of the bundle cache */
     private long bundleCacheSize = 8 * 1024 * 1024;
 
+    /** the eviction policy of the bundle cache */
+    private String bundleCachePolicy = BUNDLE_CACHE_LRU;
+
+    /** default size of the off-heap bundle cache, 0 to disable it */
+    private long offHeapBundleCacheSize = 0;
+
+    /** the compression of written bundles */
+    private String bundleCompression = BundleBinding.COMPRESSION_NONE;
+
+    /** the number of threads used by the consistency checker */
+    private int consistencyCheckThreads = 1;
+
+    /** whether the consistency checker adapts its speed to the load */
+    private boolean consistencyCheckThrottle = false;
+
     /** Counter of read operations. */
     private AtomicLong readCounter;
 
@@ -175,6 +255,21 @@ public abstract class AbstractBundlePersistenceManager implements
     /** Counter of bundle cache size. */
     private AtomicLong cacheSizeCounter;
 
+    /**
+     * Number of completed store operations and external updates. Used by
+     * {@link #prefetch(Collection)} to detect whether the prefetched bundles
+     * may have become stale while they were being loaded. Guarded by the
+     * monitor of this persistence manager.
+     */
+    private long modificationCount;
+
+    /**
+     * The changed references to data store records of the change log that
+     * has been stored but not yet committed, or <code>null</code>. Guarded
+     * by the monitor of this persistence manager.
+     */
+    private BinaryReferenceTracker.Changes uncommittedReferences;
+
     /** The update event channel to use by the consistency checker when fixing inconsistencies */
     private UpdateEventChannel eventChannel;
 
@@ -196,6 +291,120 @@ public abstract class AbstractBundlePersistenceManager implements
         this.bundleCacheSize = Long.parseLong(bundleCacheSize) * 1024 * 1024;
     }
 
+    /**
+     * Returns the eviction policy of the bundle cache.
+     * @return "lru" or "tinylfu".
+     */
+    public String getBundleCachePolicy() {
+        return bundleCachePolicy;
+    }
+
+    /**
+     * Sets the eviction policy of the bundle cache: "lru" evicts the least
+     * recently used bundles, "tinylfu" only replaces cached bundles with
+     * bundles that are accessed more frequently, so that a traversal of a
+     * large part of the repository does not flush the frequently used
+     * bundles from the cache. The default is "lru".
+     *
+     * @param bundleCachePolicy the bundle cache policy.
+     */
+    public void setBundleCachePolicy(String bundleCachePolicy) {
+        if (!BUNDLE_CACHE_LRU.equals(bundleCachePolicy)
+                && !BUNDLE_CACHE_TINYLFU.equals(bundleCachePolicy)) {
+            throw new IllegalArgumentException(
+                    "Unknown bundle cache policy: " + bundleCachePolicy);
+        }
+        this.bundleCachePolicy = bundleCachePolicy;
+    }
+
+    /**
+     * Returns the size of the off-heap bundle cache in megabytes.
+     * @return the size of the off-heap bundle cache in megabytes.
+     */
+    public String getOffHeapBundleCacheSize() {
+        return String.valueOf(offHeapBundleCacheSize / (1024 * 1024));
+    }
+
+    /**
+     * Sets the size of the off-heap bundle cache in megabytes. The off-heap
+     * cache keeps serialized bundles in direct memory, which does not count
+     * against the Java heap but against the maximum direct memory size of the
+     * JVM. The default is 0, which disables the off-heap cache. Only
+     * persistence managers that provide a {@link #getBundleBinding() binding}
+     * support the off-heap cache.
+     *
+     * @param offHeapBundleCacheSize the off-heap bundle cache size in megabytes.
+     */
+    public void setOffHeapBundleCacheSize(String offHeapBundleCacheSize) {
+        this.offHeapBundleCacheSize =
+            Long.parseLong(offHeapBundleCacheSize) * 1024 * 1024;
+    }
+
+    /**
+     * Returns the compression of written bundles.
+     * @return the bundle compression.
+     */
+    public String getBundleCompression() {
+        return bundleCompression;
+    }
+
+    /**
+     * Sets the compression of the bundles written by this persistence
+     * manager: "none" or "deflate", optionally followed by the compression
+     * level, for example "deflate:6" (see
+     * {@link BundleBinding#setCompression(String)}). Compressed bundles take
+     * less space in the underlying storage, but need more CPU time to read
+     * and write. Bundles are read whether they are compressed or not, so the
+     * setting can be changed at any time. The default is "none". Only
+     * persistence managers that use a {@link #getBundleBinding() binding}
+     * support compression.
+     *
+     * @param bundleCompression the bundle compression.
+     */
+    public void setBundleCompression(String bundleCompression) {
+        this.bundleCompression = bundleCompression;
+    }
+
+    /**
+     * Returns the number of threads used by the consistency checker.
+     * @return the number of consistency check threads.
+     */
+    public String getConsistencyCheckThreads() {
+        return String.valueOf(consistencyCheckThreads);
+    }
+
+    /**
+     * Sets the number of threads that load and check the nodes when all
+     * nodes are checked for consistency. Several threads are only used if
+     * the persistence manager lists its nodes in a known
+     * {@link #getNodeIdOrder() order}, so that the node ids can be split
+     * into ranges. The default is 1.
+     *
+     * @param consistencyCheckThreads the number of consistency check threads.
+     */
+    public void setConsistencyCheckThreads(String consistencyCheckThreads) {
+        this.consistencyCheckThreads = Integer.parseInt(consistencyCheckThreads);
+    }
+
+    /**
+     * Returns whether the consistency checker adapts its speed to the load.
+     * @return "true" if the consistency checker is throttled.
+     */
+    public String getConsistencyCheckThrottle() {
+        return String.valueOf(consistencyCheckThrottle);
+    }
+
+    /**
+     * Sets whether the consistency checker slows down when loading nodes
+     * takes longer than it did at the start of the check, so that it can run
+     * alongside the regular load. The default is false.
+     *
+     * @param consistencyCheckThrottle "true" to throttle the consistency check.
+     */
+    public void setConsistencyCheckThrottle(String consistencyCheckThrottle) {
+        this.consistencyCheckThrottle = Boolean.parseBoolean(consistencyCheckThrottle);
+    }
+
     /**
      * Creates the folder path for the given node id that is suitable for
      * storing states in a filesystem.
@@ -350,15 +559,16 @@ public abstract class AbstractBundlePersistenceManager implements
      * {@inheritDoc}
      */
     public synchronized void onExternalUpdate(ChangeLog changes) {
+        modificationCount++;
         for (ItemState state : changes.modifiedStates()) {
-            bundles.remove(getBundleId(state));
+            evictBundle(getBundleId(state));
         }
         for (ItemState state : changes.deletedStates()) {
-            bundles.remove(getBundleId(state));
+            evictBundle(getBundleId(state));
         }
         for (ItemState state : changes.addedStates()) {
             // There may have been a cache miss entry
-            bundles.remove(getBundleId(state));
+            evictBundle(getBundleId(state));
         }
     }
 
@@ -382,6 +592,74 @@ public abstract class AbstractBundlePersistenceManager implements
         return infos;
     }
 
+    /**
+     * Returns the order in which {@link #getAllNodeIds(NodeId, int)} and
+     * {@link #getAllNodeInfos(NodeId, int)} return the node ids, if the nodes
+     * after any given id, existing or not, are exactly the nodes that are
+     * greater in this order. The consistency checker uses it to split the
+     * node ids into ranges that are loaded concurrently.
+     * <p>
+     * The default implementation returns <code>null</code>, which means that
+     * the order is not known.
+     *
+     * @return the order of the node ids, or <code>null</code>
+     */
+    protected Comparator<NodeId> getNodeIdOrder() {
+        return null;
+    }
+
+    //---------------------------------------< PrefetchingPersistenceManager >--
+
+    /**
+     * {@inheritDoc}
+     *
+     * Loads the bundles that are not yet cached through
+     * {@link #loadBundles(Collection)} and puts them into the bundle cache.
+     * The loaded bundles are discarded if a store operation or an external
+     * update happened while they were being loaded.
+     */
+    public void prefetch(Collection<NodeId> ids) throws ItemStateException {
+        List<NodeId> missing = new ArrayList<NodeId>(ids.size());
+        for (NodeId id : ids) {
+            if (!bundles.containsKey(id)) {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        long count;
+        synchronized (this) {
+            count = modificationCount;
+        }
+        long time = System.nanoTime();
+        Map<NodeId, NodePropBundle> loaded = loadBundles(missing);
+        time = System.nanoTime() - time;
+        cacheMissDuration.addAndGet(time);
+        bundles.recordMissDuration(time);
+        cacheMissCounter.addAndGet(missing.size());
+        log.debug("Loaded {} bundles in {}ms", missing.size(), time / 1000000);
+
+        synchronized (this) {
+            if (count != modificationCount) {
+                return;
+            }
+            for (NodeId id : missing) {
+                if (bundles.containsKey(id)) {
+                    continue;
+                }
+                NodePropBundle bundle = loaded.get(id);
+                if (bundle != null) {
+                    bundle.markOld();
+                    bundles.put(id, bundle, bundle.getSize());
+                } else {
+                    bundles.put(id, MISSING, MISSING_SIZE_ESTIMATE);
+                }
+            }
+        }
+    }
+
     //----------------------------------------------------------------< spi >---
 
     /**
@@ -395,6 +673,30 @@ public abstract class AbstractBundlePersistenceManager implements
     protected abstract NodePropBundle loadBundle(NodeId id)
             throws ItemStateException;
 
+    /**
+     * Loads a number of bundles from the underlying system. The default
+     * implementation calls {@link #loadBundle(NodeId)} for each of the given
+     * identifiers. Subclasses should override this method if the underlying
+     * system can load several bundles more efficiently in one go.
+     *
+     * @param ids the node ids of the bundles
+     * @return the loaded bundles, keyed by node id. Bundles that do not exist
+     *         are not contained in the returned map.
+     * @throws ItemStateException if an error while loading occurs.
+     */
+    protected Map<NodeId, NodePropBundle> loadBundles(Collection<NodeId> ids)
+            throws ItemStateException {
+        Map<NodeId, NodePropBundle> result =
+            new HashMap<NodeId, NodePropBundle>(ids.size());
+        for (NodeId id : ids) {
+            NodePropBundle bundle = loadBundle(id);
+            if (bundle != null) {
+                result.put(id, bundle);
+            }
+        }
+        return result;
+    }
+
     /**
      * Stores a bundle to the underlying system.
      *
@@ -414,6 +716,39 @@ public abstract class AbstractBundlePersistenceManager implements
     protected abstract void destroyBundle(NodePropBundle bundle)
             throws ItemStateException;
 
+    /**
+     * Stores a number of bundles to the underlying system. The default
+     * implementation calls {@link #storeBundle(NodePropBundle)} for each of
+     * the given bundles. Subclasses should override this method if the
+     * underlying system can store several bundles more efficiently in one go.
+     *
+     * @param bundles the bundles to store
+     * @throws ItemStateException if an error while storing occurs.
+     */
+    protected void storeBundles(Collection<NodePropBundle> bundles)
+            throws ItemStateException {
+        for (NodePropBundle bundle : bundles) {
+            storeBundle(bundle);
+        }
+    }
+
+    /**
+     * Deletes a number of bundles from the underlying system. The default
+     * implementation calls {@link #destroyBundle(NodePropBundle)} for each of
+     * the given bundles. Subclasses should override this method if the
+     * underlying system can delete several bundles more efficiently in one
+     * go.
+     *
+     * @param bundles the bundles to destroy
+     * @throws ItemStateException if an error while destroying occurs.
+     */
+    protected void destroyBundles(Collection<NodePropBundle> bundles)
+            throws ItemStateException {
+        for (NodePropBundle bundle : bundles) {
+            destroyBundle(bundle);
+        }
+    }
+
     /**
      * Deletes the node references from the underlying system.
      *
@@ -439,6 +774,17 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     protected abstract BLOBStore getBlobStore();
 
+    /**
+     * Returns the binding used to serialize bundles for the off-heap bundle
+     * cache. The default implementation returns <code>null</code>, which
+     * disables the off-heap bundle cache.
+     *
+     * @return bundle binding, or <code>null</code>
+     */
+    protected BundleBinding getBundleBinding() {
+        return null;
+    }
+
     //-------------------------------------------------< PersistenceManager >---
 
     /**
@@ -449,7 +795,22 @@ public abstract class AbstractBundlePersistenceManager implements
     public void init(PMContext context) throws Exception {
         this.context = context;
         // init bundle cache
-        bundles = new ConcurrentCache<NodeId, NodePropBundle>(context.getHomeDir().getName() + "BundleCache");
+        String name = context.getHomeDir().getName() + "BundleCache";
+        if (BUNDLE_CACHE_TINYLFU.equals(bundleCachePolicy)) {
+            bundles = new TinyLFUCache<NodeId, NodePropBundle>(name) {
+                @Override
+                protected void evicted(NodeId id, NodePropBundle bundle) {
+                    demoteBundle(bundle);
+                }
+            };
+        } else {
+            bundles = new ConcurrentCache<NodeId, NodePropBundle>(name) {
+                @Override
+                protected void evicted(NodeId id, NodePropBundle bundle) {
+                    demoteBundle(bundle);
+                }
+            };
+        }
         bundles.setMaxMemorySize(bundleCacheSize);
         bundles.setAccessListener(this);
 
@@ -469,6 +830,15 @@ public abstract class AbstractBundlePersistenceManager implements
                 RepositoryStatistics.Type.BUNDLE_CACHE_MISS_COUNTER);
         cacheMissDuration = stats.getCounter(
                 RepositoryStatistics.Type.BUNDLE_CACHE_MISS_DURATION);
+
+        if (offHeapBundleCacheSize > 0) {
+            offHeapBundles = new OffHeapBundleCache(
+                    offHeapBundleCacheSize,
+                    stats.getCounter("BUNDLE_OFFHEAP_CACHE_HIT_COUNTER", true),
+                    stats.getCounter("BUNDLE_OFFHEAP_CACHE_MISS_COUNTER", true),
+                    stats.getCounter("BUNDLE_OFFHEAP_CACHE_EVICTION_COUNTER", true),
+                    stats.getCounter("BUNDLE_OFFHEAP_CACHE_SIZE_COUNTER", false));
+        }
     }
 
     /**
@@ -479,6 +849,10 @@ public abstract class AbstractBundlePersistenceManager implements
     public void close() throws Exception {
         // clear caches
         bundles.clear();
+        if (offHeapBundles != null) {
+            offHeapBundles.clear();
+            offHeapBundles = null;
+        }
     }
 
     /**
@@ -588,37 +962,95 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     public synchronized void store(ChangeLog changeLog)
             throws ItemStateException {
+        storeUncommitted(changeLog);
+        commitBinaryReferences();
+    }
+
+    /**
+     * Stores the given changelog without reporting the changed references
+     * to data store records. Persistence managers that commit the changes
+     * after this method returns call {@link #commitBinaryReferences()} once
+     * the commit succeeded, and {@link #discardBinaryReferences()} if it
+     * failed, so that the references are reported exactly once.
+     *
+     * @param changeLog the changelog to store
+     * @throws ItemStateException on failure
+     */
+    protected synchronized void storeUncommitted(ChangeLog changeLog)
+            throws ItemStateException {
+        uncommittedReferences = null;
         boolean success = false;
+        offHeapLock.writeLock().lock();
         try {
-            storeInternal(changeLog);
+            uncommittedReferences = storeInternal(changeLog);
             success = true;
         } finally {
+            offHeapLock.writeLock().unlock();
+            modificationCount++;
             if (!success) {
                 bundles.clear();
+                if (offHeapBundles != null) {
+                    offHeapBundles.clear();
+                }
             }
         }
     }
 
+    /**
+     * Reports the changed references to data store records of the last
+     * change log stored with {@link #storeUncommitted(ChangeLog)} to the
+     * reference tracker.
+     */
+    protected synchronized void commitBinaryReferences() {
+        BinaryReferenceTracker tracker = getBinaryReferenceTracker();
+        if (tracker != null && uncommittedReferences != null
+                && !uncommittedReferences.isEmpty()) {
+            tracker.update(this, uncommittedReferences);
+        }
+        uncommittedReferences = null;
+    }
+
+    /**
+     * Forgets the changed references to data store records of the last
+     * change log stored with {@link #storeUncommitted(ChangeLog)}, because
+     * the change log was not committed.
+     */
+    protected synchronized void discardBinaryReferences() {
+        uncommittedReferences = null;
+    }
+
     /**
      * Stores the given changelog and updates the bundle cache.
      *
      * @param changeLog the changelog to store
+     * @return the changed references to data store records, or
+     *         <code>null</code> if the references are not tracked
      * @throws ItemStateException on failure
      */
-    private void storeInternal(ChangeLog changeLog)
+    private BinaryReferenceTracker.Changes storeInternal(ChangeLog changeLog)
             throws ItemStateException {
+        BinaryReferenceTracker tracker = getBinaryReferenceTracker();
+        BinaryReferenceTracker.Changes references =
+            new BinaryReferenceTracker.Changes();
         // delete bundles
         HashSet<ItemId> deleted = new HashSet<ItemId>();
+        List<NodePropBundle> deletedBundles = new ArrayList<NodePropBundle>();
         for (ItemState state : changeLog.deletedStates()) {
             if (state.isNode()) {
                 NodePropBundle bundle = getBundle((NodeId) state.getId());
                 if (bundle == null) {
                     throw new NoSuchItemStateException(state.getId().toString());
                 }
-                deleteBundle(bundle);
+                if (tracker != null) {
+                    for (PropertyEntry entry : bundle.getPropertyEntries()) {
+                        references.removed(bundle.getId(), entry.getValues());
+                    }
+                }
+                deletedBundles.add(bundle);
                 deleted.add(state.getId());
             }
         }
+        deleteBundles(deletedBundles);
         // gather added node states
         HashMap<ItemId, NodePropBundle> modified = new HashMap<ItemId, NodePropBundle>();
         for (ItemState state : changeLog.addedStates()) {
@@ -656,6 +1088,9 @@ public abstract class AbstractBundlePersistenceManager implements
                     }
                     modified.put(nodeId, bundle);
                 }
+                if (tracker != null) {
+                    trackReferences(references, bundle, (PropertyState) state);
+                }
                 bundle.addProperty((PropertyState) state, getBlobStore());
             }
         }
@@ -681,6 +1116,9 @@ public abstract class AbstractBundlePersistenceManager implements
                         }
                         modified.put(nodeId, bundle);
                     }
+                    if (tracker != null) {
+                        trackReferences(references, bundle, id, null);
+                    }
                     bundle.removeProperty(id.getName(), getBlobStore());
                 }
             }
@@ -705,17 +1143,19 @@ public abstract class AbstractBundlePersistenceManager implements
                     }
                     modified.put(nodeId, bundle);
                 }
+                if (tracker != null) {
+                    trackReferences(references, bundle, (PropertyState) state);
+                }
                 bundle.addProperty((PropertyState) state, getBlobStore());
             }
         }
 
         // now store all modified bundles
-        long updateSize = 0;
+        putBundles(modified.values());
+        changeLog.setUpdateSize(0);
         for (NodePropBundle bundle : modified.values()) {
-            putBundle(bundle);
-            updateSize += bundle.getSize();
+            changeLog.addUpdateSize(bundle.getId(), bundle.getSize());
         }
-        changeLog.setUpdateSize(updateSize);
 
         // store the refs
         for (NodeReferences refs : changeLog.modifiedRefs()) {
@@ -725,6 +1165,118 @@ public abstract class AbstractBundlePersistenceManager implements
                 destroy(refs);
             }
         }
+
+        return tracker != null ? references : null;
+    }
+
+    /**
+     * Records that the values of the given property replace the values
+     * that the bundle currently contains for it.
+     *
+     * @param references the changed references
+     * @param bundle the bundle of the parent node
+     * @param state the new property state
+     */
+    private static void trackReferences(
+            BinaryReferenceTracker.Changes references,
+            NodePropBundle bundle, PropertyState state) {
+        trackReferences(
+                references, bundle, state.getPropertyId(), state.getValues());
+    }
+
+    /**
+     * Records that the given values replace the values that the bundle
+     * currently contains for a property.
+     *
+     * @param references the changed references
+     * @param bundle the bundle of the parent node
+     * @param id the property id
+     * @param values the new values, or <code>null</code> if the property is
+     *               removed
+     */
+    private static void trackReferences(
+            BinaryReferenceTracker.Changes references,
+            NodePropBundle bundle, PropertyId id, InternalValue[] values) {
+        PropertyEntry entry = bundle.getPropertyEntry(id.getName());
+        if (entry != null) {
+            references.removed(bundle.getId(), entry.getValues());
+        }
+        references.added(bundle.getId(), values);
+    }
+
+    /**
+     * Returns the tracker of the references to data store records, or
+     * <code>null</code> if the references are not tracked.
+     *
+     * @return reference tracker, or <code>null</code>
+     */
+    private BinaryReferenceTracker getBinaryReferenceTracker() {
+        return context != null ? context.getBinaryReferenceTracker() : null;
+    }
+
+    /**
+     * Marks the tracked references to data store records as incomplete.
+     * Must be called before a bundle is stored without
+     * {@link #store(ChangeLog)}, as the changed references of such a bundle
+     * are not reported.
+     */
+    protected void invalidateBinaryReferences() {
+        BinaryReferenceTracker tracker = getBinaryReferenceTracker();
+        if (tracker != null) {
+            tracker.invalidate(this);
+        }
+    }
+
+    /**
+     * Reports the references to data store records of all nodes to the
+     * given tracker, while the tracker is rebuilt. The nodes are scanned in
+     * batches while no changes are stored, so that every change is either
+     * seen by the scan or reported to the tracker afterwards. If the order
+     * of the node ids is not known, no changes are stored until all nodes
+     * have been scanned.
+     *
+     * @param tracker the tracker that is rebuilt
+     * @throws ItemStateException if a bundle can not be loaded
+     * @throws RepositoryException if the node ids can not be listed
+     */
+    public void scanBinaryReferences(BinaryReferenceTracker tracker)
+            throws ItemStateException, RepositoryException {
+        Comparator<NodeId> order = getNodeIdOrder();
+        if (order == null) {
+            synchronized (this) {
+                scanBinaryReferences(tracker, null);
+            }
+        } else {
+            scanBinaryReferences(tracker, order);
+        }
+    }
+
+    private void scanBinaryReferences(
+            BinaryReferenceTracker tracker, Comparator<NodeId> order)
+            throws ItemStateException, RepositoryException {
+        NodeId after = null;
+        while (true) {
+            // hold the monitor of store(ChangeLog) for each batch
+            synchronized (this) {
+                List<NodeId> ids = getAllNodeIds(after, SCAN_BATCH_SIZE);
+                BinaryReferenceTracker.Changes references =
+                    new BinaryReferenceTracker.Changes();
+                for (NodeId id : ids) {
+                    NodePropBundle bundle = loadBundle(id);
+                    if (bundle != null) {
+                        for (PropertyEntry entry : bundle.getPropertyEntries()) {
+                            references.added(id, entry.getValues());
+                        }
+                    }
+                }
+                if (ids.size() < SCAN_BATCH_SIZE) {
+                    tracker.scanned(this, order, null, references);
+                    return;
+                }
+                after = ids.get(ids.size() - 1);
+                tracker.scanned(this, order, after, references);
+            }
+        }
     }
 
     /**
@@ -762,13 +1314,17 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     private NodePropBundle getBundleCacheMiss(NodeId id)
             throws ItemStateException {
-        long time = System.nanoTime();
-        NodePropBundle bundle = loadBundle(id);
-        time = System.nanoTime() - time;
-        cacheMissDuration.addAndGet(time);
-        final long timeMs = time / 1000000;
-        log.debug("Loaded bundle {} in {}ms", id, timeMs);
-        cacheMissCounter.incrementAndGet();
+        NodePropBundle bundle = getOffHeapBundle(id);
+        if (bundle == null) {
+            long time = System.nanoTime();
+            bundle = loadBundle(id);
+            time = System.nanoTime() - time;
+            cacheMissDuration.addAndGet(time);
+            bundles.recordMissDuration(time);
+            final long timeMs = time / 1000000;
+            log.debug("Loaded bundle {} in {}ms", id, timeMs);
+            cacheMissCounter.incrementAndGet();
+        }
         if (bundle != null) {
             bundle.markOld();
             bundles.put(id, bundle, bundle.getSize());
@@ -779,41 +1335,118 @@ public abstract class AbstractBundlePersistenceManager implements
     }
 
     /**
-     * Deletes the bundle
+     * Restores the bundle with the given id from the off-heap bundle cache.
+     *
+     * @param id the id of the bundle
+     * @return the bundle, or <code>null</code> if the off-heap cache is
+     *         disabled or does not contain the bundle
+     */
+    private NodePropBundle getOffHeapBundle(NodeId id) {
+        if (offHeapBundles == null) {
+            return null;
+        }
+        byte[] data = offHeapBundles.get(id);
+        if (data == null) {
+            return null;
+        }
+        try {
+            return getBundleBinding().readBundle(
+                    new ByteArrayInputStream(data), id);
+        } catch (IOException e) {
+            log.warn("Failed to restore bundle " + id
+                    + " from the off-heap cache", e);
+            offHeapBundles.remove(id);
+            return null;
+        }
+    }
+
+    /**
+     * Puts the serialized form of a bundle that was evicted from the bundle
+     * cache to the off-heap bundle cache. The bundle is serialized without
+     * side effects, as other threads may still use it. Bundles are not
+     * demoted while bundles are being stored, as the evicted bundle may be
+     * outdated by the store.
+     *
+     * @param bundle the evicted bundle
+     */
+    private void demoteBundle(NodePropBundle bundle) {
+        OffHeapBundleCache cache = offHeapBundles;
+        BundleBinding binding = getBundleBinding();
+        if (cache == null || binding == null || bundle == MISSING
+                || offHeapLock.isWriteLockedByCurrentThread()
+                || !offHeapLock.readLock().tryLock()) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+            binding.writeBundleCopy(out, bundle);
+            cache.put(bundle.getId(), out.toByteArray());
+        } catch (IOException e) {
+            log.debug("Bundle {} not put to the off-heap cache: {}",
+                    bundle.getId(), e.getMessage());
+            cache.remove(bundle.getId());
+        } finally {
+            offHeapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the bundles
      *
-     * @param bundle the bundle to delete
+     * @param deletedBundles the bundles to delete
      * @throws ItemStateException if an error occurs
      */
-    private void deleteBundle(NodePropBundle bundle) throws ItemStateException {
-        destroyBundle(bundle);
-        bundle.removeAllProperties(getBlobStore());
-        bundles.put(bundle.getId(), MISSING, MISSING_SIZE_ESTIMATE);
+    private void deleteBundles(Collection<NodePropBundle> deletedBundles)
+            throws ItemStateException {
+        if (deletedBundles.isEmpty()) {
+            return;
+        }
+        destroyBundles(deletedBundles);
+        for (NodePropBundle bundle : deletedBundles) {
+            bundle.removeAllProperties(getBlobStore());
+            bundles.put(bundle.getId(), MISSING, MISSING_SIZE_ESTIMATE);
+            if (offHeapBundles != null) {
+                offHeapBundles.remove(bundle.getId());
+            }
+        }
     }
 
     /**
-     * Stores the bundle and puts it to the cache.
+     * Stores the bundles and puts them to the cache.
      *
-     * @param bundle the bundle to store
+     * @param modifiedBundles the bundles to store
      * @throws ItemStateException if an error occurs
      */
-    private void putBundle(NodePropBundle bundle) throws ItemStateException {
+    private void putBundles(Collection<NodePropBundle> modifiedBundles)
+            throws ItemStateException {
+        if (modifiedBundles.isEmpty()) {
+            return;
+        }
         long time = System.nanoTime();
-        storeBundle(bundle);
+        storeBundles(modifiedBundles);
         time = System.nanoTime() - time;
-        if (auditLogger.isDebugEnabled()) {
-            auditLogger.debug("{} ({})", bundle.getId(), bundle.getSize());
-        }
         writeDuration.addAndGet(time);
         final long timeMs = time / 1000000;
-        log.debug("Stored bundle {} in {}ms", bundle.getId(), timeMs);
-        writeCounter.incrementAndGet();
+        log.debug("Stored {} bundles in {}ms", modifiedBundles.size(), timeMs);
+        writeCounter.addAndGet(modifiedBundles.size());
 
-        bundle.markOld();
+        for (NodePropBundle bundle : modifiedBundles) {
+            if (auditLogger.isDebugEnabled()) {
+                auditLogger.debug("{} ({})", bundle.getId(), bundle.getSize());
+            }
+
+            bundle.markOld();
 
-        // only put to cache if already exists. this is to ensure proper
-        // overwrite and not creating big contention during bulk loads
-        if (bundles.containsKey(bundle.getId())) {
-            bundles.put(bundle.getId(), bundle, bundle.getSize());
+            // the serialized form of the previous revision is outdated
+            if (offHeapBundles != null) {
+                offHeapBundles.remove(bundle.getId());
+            }
+
+            // only put to cache if already exists. this is to ensure proper
+            // overwrite and not creating big contention during bulk loads
+            if (bundles.containsKey(bundle.getId())) {
+                bundles.put(bundle.getId(), bundle, bundle.getSize());
+            }
         }
     }
 
@@ -823,6 +1456,8 @@ public abstract class AbstractBundlePersistenceManager implements
     public void checkConsistency(String[] uuids, boolean recursive, boolean fix) {
         try {
             ConsistencyCheckerImpl checker = new ConsistencyCheckerImpl(this, null, null, eventChannel);
+            checker.setThreads(consistencyCheckThreads);
+            checker.setThrottle(consistencyCheckThrottle);
             checker.check(uuids, recursive);
             checker.doubleCheckErrors();
             if (fix) {
@@ -844,6 +1479,8 @@ public abstract class AbstractBundlePersistenceManager implements
             boolean fix, String lostNFoundId, ConsistencyCheckListener listener)
             throws RepositoryException {
         ConsistencyCheckerImpl checker = new ConsistencyCheckerImpl(this, listener, lostNFoundId, eventChannel);
+        checker.setThreads(consistencyCheckThreads);
+        checker.setThrottle(consistencyCheckThrottle);
         checker.check(uuids, recursive);
         checker.doubleCheckErrors();
         if (fix) {
@@ -858,7 +1495,15 @@ public abstract class AbstractBundlePersistenceManager implements
      * @param id the id of the bundle.
      */
     protected void evictBundle(NodeId id) {
-        bundles.remove(id);
+        offHeapLock.writeLock().lock();
+        try {
+            bundles.remove(id);
+            if (offHeapBundles != null) {
+                offHeapBundles.remove(id);
+            }
+        } finally {
+            offHeapLock.writeLock().unlock();
+        }
     }
 
     public void cacheAccessed(long accessCount) {
@@ -874,6 +1519,9 @@ public abstract class AbstractBundlePersistenceManager implements
                 return;
             }
             log.info(bundles.getCacheInfoAsString());
+            if (offHeapBundles != null) {
+                log.info(offHeapBundles.getCacheInfoAsString());
+            }
             nextLogStats = now + minLogStatsInterval;
         }
     }
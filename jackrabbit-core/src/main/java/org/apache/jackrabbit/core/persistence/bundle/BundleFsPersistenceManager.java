@@ -42,7 +42,15 @@ import java.io.OutputStream;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This is a generic persistence manager that stores the {@link NodePropBundle}s
@@ -53,6 +61,7 @@ import java.util.List;
  * <li>&lt;param name="{@link #setBlobFSBlockSize(String) blobFSBlockSize}" value="0"/&gt;
  * <li>&lt;param name="{@link #setMinBlobSize(String) minBlobSize}" value="4096"/&gt;
  * <li>&lt;param name="{@link #setErrorHandling(String) errorHandling}" value=""/&gt;
+ * <li>&lt;param name="{@link #setLoadBundlesThreads(String) loadBundlesThreads}" value="0"/&gt;
  * </ul>
  */
 public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager {
@@ -98,6 +107,18 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
      */
     private String name = super.toString();
 
+    /**
+     * number of threads used to load several bundles in parallel
+     * @see #setLoadBundlesThreads(String)
+     */
+    private int loadBundlesThreads;
+
+    /**
+     * the executor used to load several bundles in parallel, or
+     * <code>null</code> if bundles are loaded sequentially
+     */
+    private ExecutorService loadBundlesExecutor;
+
 
     /**
      * Returns the configured block size of the blob cqfs
@@ -169,6 +190,26 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         return errorHandling.toString();
     }
 
+    /**
+     * Returns the number of threads used to load several bundles in parallel.
+     * @return the number of threads.
+     */
+    public String getLoadBundlesThreads() {
+        return String.valueOf(loadBundlesThreads);
+    }
+
+    /**
+     * Sets the number of threads used to load several bundles in parallel
+     * when the bundles of many nodes are prefetched at once, for example
+     * while iterating over the child nodes of a node. If the value is 0,
+     * the bundles are loaded sequentially. The default is 0.
+     *
+     * @param loadBundlesThreads the number of threads
+     */
+    public void setLoadBundlesThreads(String loadBundlesThreads) {
+        this.loadBundlesThreads = Integer.decode(loadBundlesThreads).intValue();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -196,6 +237,11 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         // load namespaces
         binding = new BundleBinding(errorHandling, blobStore, getNsIndex(), getNameIndex(), context.getDataStore());
         binding.setMinBlobSize(minBlobSize);
+        binding.setCompression(getBundleCompression());
+
+        if (loadBundlesThreads > 0) {
+            loadBundlesExecutor = Executors.newFixedThreadPool(loadBundlesThreads);
+        }
 
         initialized = true;
     }
@@ -208,6 +254,14 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         return blobStore;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BundleBinding getBundleBinding() {
+        return binding;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -217,6 +271,10 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         }
 
         try {
+            if (loadBundlesExecutor != null) {
+                loadBundlesExecutor.shutdown();
+                loadBundlesExecutor = null;
+            }
             // close blob store
             blobStore.close();
             blobStore = null;
@@ -250,6 +308,55 @@ public class BundleFsPersistenceManager extends AbstractBundlePersistenceManager
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Reads the bundle files in parallel if
+     * {@link #setLoadBundlesThreads(String) loadBundlesThreads} is set.
+     */
+    @Override
+    protected Map<NodeId, NodePropBundle> loadBundles(Collection<NodeId> ids)
+            throws ItemStateException {
+        ExecutorService executor = loadBundlesExecutor;
+        if (executor == null || ids.size() < 2) {
+            return super.loadBundles(ids);
+        }
+
+        Map<NodeId, Future<NodePropBundle>> futures =
+            new HashMap<NodeId, Future<NodePropBundle>>(ids.size());
+        for (final NodeId id : ids) {
+            futures.put(id, executor.submit(new Callable<NodePropBundle>() {
+                public NodePropBundle call() throws ItemStateException {
+                    return loadBundle(id);
+                }
+            }));
+        }
+
+        Map<NodeId, NodePropBundle> result =
+            new HashMap<NodeId, NodePropBundle>(ids.size());
+        try {
+            for (Map.Entry<NodeId, Future<NodePropBundle>> entry : futures.entrySet()) {
+                NodePropBundle bundle = entry.getValue().get();
+                if (bundle != null) {
+                    result.put(entry.getKey(), bundle);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ItemStateException("Interrupted while loading bundles", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ItemStateException) {
+                throw (ItemStateException) e.getCause();
+            }
+            throw new ItemStateException("Failed to load bundles", e.getCause());
+        } finally {
+            for (Future<NodePropBundle> future : futures.values()) {
+                future.cancel(false);
+            }
+        }
+        return result;
+    }
+
     /**
      * Creates the file path for the given node id that is
      * suitable for storing node states in a filesystem.
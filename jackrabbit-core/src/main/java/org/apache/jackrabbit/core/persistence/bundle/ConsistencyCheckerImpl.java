@@ -17,14 +17,24 @@
 package org.apache.jackrabbit.core.persistence.bundle;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
 
@@ -60,6 +70,17 @@ public class ConsistencyCheckerImpl {
      */
     private static final int NODESATONCE = Integer.getInteger("org.apache.jackrabbit.checker.nodesatonce", 1024 * 8);
 
+    /**
+     * The number of key ranges per thread when checking all nodes with several threads.
+     * More ranges than threads keep all threads busy if the nodes are not evenly distributed.
+     */
+    private static final int RANGES_PER_THREAD = 4;
+
+    /**
+     * The maximum delay of a throttled thread, relative to the time it took to load the last batch.
+     */
+    private static final int MAX_THROTTLE_FACTOR = 10;
+
     /**
      * Attribute name used to store the size of the update.
      */
@@ -73,6 +94,13 @@ public class ConsistencyCheckerImpl {
     private List<ConsistencyCheckerError> errors;
     private int nodeCount;
     private long elapsedTime;
+    private int threads = 1;
+    private boolean throttle;
+
+    /**
+     * The shortest time it took to load a node, in nanoseconds, used as the base line when throttling.
+     */
+    private double minLoadTime = Double.MAX_VALUE;
 
     public ConsistencyCheckerImpl(AbstractBundlePersistenceManager pm, ConsistencyCheckListener listener,
                                   String lostNFoundId, final UpdateEventChannel eventChannel) {
@@ -87,7 +115,30 @@ public class ConsistencyCheckerImpl {
     }
 
     /**
-     * Check the database for inconsistencies.
+     * Sets the number of threads used to check all nodes. The node ids are split into ranges
+     * that are loaded and checked concurrently, if the persistence manager lists its nodes in a
+     * known {@link AbstractBundlePersistenceManager#getNodeIdOrder() order}. The default is 1.
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Sets whether loading the nodes is slowed down when it takes longer than the fastest batch
+     * loaded so far, which indicates that the persistence layer is busy with other work.
+     * Each thread then pauses in proportion to the increase of the latency. The default is false.
+     *
+     * @param throttle whether to throttle the check
+     */
+    public void setThrottle(boolean throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Check the database for inconsistencies. The errors are reported to the listener as soon
+     * as they are found, the complete report is available from {@link #getReport()}.
      *
      * @param uuids a list of node identifiers to check or {@code null} in order to check all nodes
      * @param recursive  whether to recursively check the subtrees below the nodes identified by the provided uuids
@@ -222,38 +273,7 @@ public class ConsistencyCheckerImpl {
         if (uuids == null) {
             // check all nodes
             try {
-                Map<NodeId, NodeInfo> batch = pm.getAllNodeInfos(null, NODESATONCE);
-                Map<NodeId, NodeInfo> allInfos = batch;
-
-                NodeId lastId = null;
-                while (!batch.isEmpty()) {
-
-                    for (Map.Entry<NodeId, NodeInfo> entry : batch.entrySet()) {
-                        lastId = entry.getKey();
-
-                        count++;
-                        if (count % 1000 == 0) {
-                            log.info(pm + ": loaded " + count + " infos...");
-                        }
-
-                    }
-
-                    batch = pm.getAllNodeInfos(lastId, NODESATONCE);
-
-                    allInfos.putAll(batch);
-                }
-
-                if (lastId == null) {
-                    log.info("No nodes exists, skipping");
-                } else if (pm.exists(lastId)) {
-                    for (Map.Entry<NodeId, NodeInfo> entry : allInfos.entrySet()) {
-                        checkBundleConsistency(entry.getKey(), entry.getValue(), allInfos);
-                    }
-                } else {
-                    log.info("Failed to read all nodes, starting over");
-                    internalCheckConsistency(uuids, recursive);
-                }
-
+                count = checkAllNodes();
             } catch (ItemStateException e) {
                 throw new RepositoryException("Error loading nodes", e);
             } finally {
@@ -304,6 +324,255 @@ public class ConsistencyCheckerImpl {
         return count;
     }
 
+    /**
+     * Loads the {@link NodeInfo}s of all nodes and checks them, with several threads if possible.
+     *
+     * @return the number of loaded nodes
+     */
+    private int checkAllNodes() throws ItemStateException, RepositoryException {
+        Comparator<NodeId> order = pm.getNodeIdOrder();
+        List<NodeRange> ranges = null;
+        if (threads > 1 && order != null) {
+            ranges = loadRanges(order);
+        }
+        if (ranges == null) {
+            NodeRange range = new NodeRange(null, null, null);
+            range.load(new AtomicInteger());
+            ranges = Collections.singletonList(range);
+        }
+
+        Map<NodeId, NodeInfo> allInfos;
+        if (ranges.size() == 1) {
+            allInfos = ranges.get(0).infos;
+        } else {
+            int size = 0;
+            for (NodeRange range : ranges) {
+                size += range.infos.size();
+            }
+            allInfos = new HashMap<NodeId, NodeInfo>(size * 4 / 3 + 1);
+            for (NodeRange range : ranges) {
+                allInfos.putAll(range.infos);
+            }
+        }
+
+        if (allInfos.isEmpty()) {
+            log.info("No nodes exists, skipping");
+            return 0;
+        }
+        for (NodeRange range : ranges) {
+            if (range.lastId != null && !pm.exists(range.lastId)) {
+                log.info("Failed to read all nodes, starting over");
+                // release the loaded nodes before loading them again
+                ranges = null;
+                allInfos = null;
+                return checkAllNodes();
+            }
+        }
+
+        if (ranges.size() == 1) {
+            for (Map.Entry<NodeId, NodeInfo> entry : allInfos.entrySet()) {
+                checkBundleConsistency(entry.getKey(), entry.getValue(), allInfos);
+            }
+        } else {
+            checkConcurrently(allInfos);
+        }
+        return allInfos.size();
+    }
+
+    /**
+     * Splits the node ids into ranges and loads them with several threads.
+     *
+     * @param order the order of the node ids in the persistence manager
+     * @return the loaded ranges, or <code>null</code> if the persistence manager
+     *         did not list the nodes in the expected order
+     */
+    private List<NodeRange> loadRanges(Comparator<NodeId> order) throws ItemStateException, RepositoryException {
+        // boundaries evenly spread over the unsigned range of the most significant bits,
+        // sorted in the order of the persistence manager
+        int count = threads * RANGES_PER_THREAD;
+        NodeId[] bounds = new NodeId[count - 1];
+        long step = Long.divideUnsigned(-1L, count);
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = new NodeId(step * (i + 1), 0);
+        }
+        Arrays.sort(bounds, order);
+
+        final List<NodeRange> ranges = new ArrayList<NodeRange>(count);
+        for (int i = 0; i < count; i++) {
+            NodeId after = i == 0 ? null : bounds[i - 1];
+            NodeId last = i == count - 1 ? null : bounds[i];
+            ranges.add(new NodeRange(after, last, order));
+        }
+
+        final AtomicInteger loaded = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(count);
+            for (final NodeRange range : ranges) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return range.load(loaded);
+                    }
+                }));
+            }
+            boolean ordered = true;
+            for (Future<Boolean> future : futures) {
+                ordered &= future.get();
+            }
+            if (!ordered) {
+                log.warn(pm + ": nodes are not listed in the expected order, loading them with a single thread");
+                return null;
+            }
+            return ranges;
+        } catch (InterruptedException e) {
+            throw new RepositoryException("Interrupted while loading nodes", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ItemStateException) {
+                throw (ItemStateException) e.getCause();
+            }
+            throw new RepositoryException("Error loading nodes", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks the given nodes with several threads.
+     *
+     * @param allInfos the {@link NodeInfo}s of all nodes
+     */
+    private void checkConcurrently(final Map<NodeId, NodeInfo> allInfos) throws RepositoryException {
+        final List<Map.Entry<NodeId, NodeInfo>> entries =
+            new ArrayList<Map.Entry<NodeId, NodeInfo>>(allInfos.entrySet());
+        int chunk = (entries.size() + threads - 1) / threads;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+            for (int i = 0; i < entries.size(); i += chunk) {
+                final List<Map.Entry<NodeId, NodeInfo>> part =
+                    entries.subList(i, Math.min(i + chunk, entries.size()));
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        for (Map.Entry<NodeId, NodeInfo> entry : part) {
+                            checkBundleConsistency(entry.getKey(), entry.getValue(), allInfos);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RepositoryException("Interrupted while checking nodes", e);
+        } catch (ExecutionException e) {
+            throw new RepositoryException("Error checking nodes", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Pauses the current thread if loading the last batch took longer per node than the fastest
+     * batch so far, by the time it took multiplied with the relative increase of the latency.
+     *
+     * @param nanos the time it took to load the batch
+     * @param count the number of nodes in the batch
+     */
+    private void pause(long nanos, int count) throws RepositoryException {
+        if (!throttle || count == 0) {
+            return;
+        }
+        double latency = (double) nanos / count;
+        double base;
+        synchronized (this) {
+            minLoadTime = Math.min(minLoadTime, latency);
+            base = minLoadTime;
+        }
+        double factor = Math.min(latency / base - 1, MAX_THROTTLE_FACTOR);
+        long delay = TimeUnit.NANOSECONDS.toMillis((long) (nanos * factor));
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new RepositoryException("Interrupted while loading nodes", e);
+            }
+        }
+    }
+
+    /**
+     * A range of node ids, loaded in batches with {@link AbstractBundlePersistenceManager#getAllNodeInfos}.
+     */
+    private class NodeRange {
+
+        /**
+         * The id after which the range starts, or <code>null</code> for the first range.
+         */
+        private final NodeId after;
+
+        /**
+         * The last id of the range (which need not exist), or <code>null</code> for the last range.
+         */
+        private final NodeId last;
+
+        /**
+         * The order of the node ids, or <code>null</code> if there is only one range.
+         */
+        private final Comparator<NodeId> order;
+
+        /**
+         * The loaded nodes.
+         */
+        private final Map<NodeId, NodeInfo> infos = new LinkedHashMap<NodeId, NodeInfo>();
+
+        /**
+         * The last loaded node id.
+         */
+        private NodeId lastId;
+
+        private NodeRange(NodeId after, NodeId last, Comparator<NodeId> order) {
+            this.after = after;
+            this.last = last;
+            this.order = order;
+        }
+
+        /**
+         * Loads the nodes of this range.
+         *
+         * @param loaded the number of nodes loaded by all ranges, for progress logging
+         * @return <code>false</code> if the nodes were not listed in the expected order
+         */
+        private boolean load(AtomicInteger loaded) throws ItemStateException, RepositoryException {
+            NodeId from = after;
+            while (true) {
+                long start = System.nanoTime();
+                Map<NodeId, NodeInfo> batch = pm.getAllNodeInfos(from, NODESATONCE);
+                pause(System.nanoTime() - start, batch.size());
+                if (batch.isEmpty()) {
+                    return true;
+                }
+                for (Map.Entry<NodeId, NodeInfo> entry : batch.entrySet()) {
+                    NodeId id = entry.getKey();
+                    if (order != null) {
+                        if (from != null && order.compare(id, from) <= 0) {
+                            return false;
+                        }
+                        if (last != null && order.compare(id, last) > 0) {
+                            return true;
+                        }
+                    }
+                    from = id;
+                    lastId = id;
+                    infos.put(id, entry.getValue());
+
+                    if (loaded.incrementAndGet() % 1000 == 0) {
+                        log.info(pm + ": loaded " + loaded + " infos...");
+                    }
+                }
+            }
+        }
+
+    }
+
     /**
      * Checks a single bundle for inconsistencies, ie. inexistent child nodes, inexistent parents, and other
      * structural inconsistencies.
@@ -320,7 +589,7 @@ public class ConsistencyCheckerImpl {
         }
 
         if (listener != null) {
-            listener.startCheck(nodeId.toString());
+            startCheck(nodeId);
         }
 
         // check the children
@@ -376,7 +645,11 @@ public class ConsistencyCheckerImpl {
         return "cafebabe-cafe-babe-cafe-babecafebabe".equals(nodeId.toString());
     }
 
-    private void addError(ConsistencyCheckerError error) {
+    private synchronized void startCheck(NodeId nodeId) {
+        listener.startCheck(nodeId.toString());
+    }
+
+    private synchronized void addError(ConsistencyCheckerError error) {
         if (listener != null) {
             listener.report(error.getReportItem());
         }
@@ -413,6 +686,8 @@ public class ConsistencyCheckerImpl {
         try {
             bundle.markOld();
             bundle.setModCount((short) (bundle.getModCount()+1));
+            // the fix is not a change log, so its references are not tracked
+            pm.invalidateBinaryReferences();
             pm.storeBundle(bundle);
             pm.evictBundle(bundle.getId());
         } catch (ItemStateException e) {
@@ -0,0 +1,763 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.bundle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jackrabbit.core.data.util.NamedThreadFactory;
+import org.apache.jackrabbit.core.fs.FileSystemResource;
+import org.apache.jackrabbit.core.fs.local.LocalFileSystem;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.AtomicPersistenceManager;
+import org.apache.jackrabbit.core.persistence.PMContext;
+import org.apache.jackrabbit.core.persistence.util.BLOBStore;
+import org.apache.jackrabbit.core.persistence.util.BundleBinding;
+import org.apache.jackrabbit.core.persistence.util.ErrorHandling;
+import org.apache.jackrabbit.core.persistence.util.FileSystemBLOBStore;
+import org.apache.jackrabbit.core.persistence.util.MappedBundleLog;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.persistence.util.ResourceBasedBLOBStore;
+import org.apache.jackrabbit.core.persistence.util.Serializer;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NoSuchItemStateException;
+import org.apache.jackrabbit.core.state.NodeReferences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistence manager that appends the {@link NodePropBundle}s to a log of
+ * large, memory mapped segment files in the local file system (see
+ * {@link MappedBundleLog}). Unlike the {@link BundleFsPersistenceManager},
+ * which uses one file per bundle, the number of files does not grow with
+ * the number of nodes, and each change log is written sequentially and
+ * forced to disk once. The location of each bundle is kept in memory, so
+ * the heap needs to be sized for the number of nodes of the workspace.
+ * <p>
+ * The changes of a change log are either written completely or not at all:
+ * after a crash, changes without a commit record at the end of the log are
+ * discarded when the log is opened. Segments in which most of the records
+ * were replaced are compacted in the background.
+ * <p>
+ * When only a few properties or child nodes of a large bundle change, only
+ * a delta with the changes is appended to the log (see
+ * {@link BundleBinding#writeBundleDelta(java.io.OutputStream, NodePropBundle)}).
+ * Loading a bundle applies the deltas to its latest complete record. The
+ * complete bundle is written again when the delta is not much smaller than
+ * the bundle, or when the bundle already has the
+ * {@link #setMaxBundleDeltas(String) maximum number of deltas}.
+ * <p>
+ * This persistence manager is meant for single node deployments without
+ * a database. Binary properties larger than the minimum blob size are
+ * stored in the local file system. Like the bundles, they are only replaced
+ * or deleted once the change log is committed. The files written by a change
+ * log that can not be committed are deleted when the persistence manager is
+ * closed, as the values of the failed change log may still read them until
+ * then.
+ * <p>
+ * Configuration:<br>
+ * <ul>
+ * <li>&lt;param name="{@link #setBundleCacheSize(String) bundleCacheSize}" value="8"/&gt;
+ * <li>&lt;param name="{@link #setMinBlobSize(String) minBlobSize}" value="4096"/&gt;
+ * <li>&lt;param name="{@link #setErrorHandling(String) errorHandling}" value=""/&gt;
+ * <li>&lt;param name="{@link #setSegmentSize(String) segmentSize}" value="64"/&gt;
+ * <li>&lt;param name="{@link #setSyncOnCommit(String) syncOnCommit}" value="true"/&gt;
+ * <li>&lt;param name="{@link #setCompactionThreshold(String) compactionThreshold}" value="50"/&gt;
+ * <li>&lt;param name="{@link #setCompactionInterval(String) compactionInterval}" value="60"/&gt;
+ * <li>&lt;param name="{@link #setMaxBundleDeltas(String) maxBundleDeltas}" value="8"/&gt;
+ * </ul>
+ */
+public class MappedBundlePersistenceManager
+        extends AbstractBundlePersistenceManager
+        implements AtomicPersistenceManager {
+
+    /** the default logger */
+    private static Logger log = LoggerFactory.getLogger(MappedBundlePersistenceManager.class);
+
+    /** initial size of buffer used to serialize objects */
+    protected static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /** flag indicating if this manager was initialized */
+    protected boolean initialized;
+
+    /**
+     * the minimum size of a property until it gets written to the blob store
+     * @see #setMinBlobSize(String)
+     */
+    private int minBlobSize = 0x1000;
+
+    /**
+     * the size of new segments in megabytes
+     * @see #setSegmentSize(String)
+     */
+    private int segmentSize = 64;
+
+    /**
+     * whether the log is forced to disk on every commit
+     * @see #setSyncOnCommit(String)
+     */
+    private boolean syncOnCommit = true;
+
+    /**
+     * the percentage of live data below which a segment is compacted
+     * @see #setCompactionThreshold(String)
+     */
+    private int compactionThreshold = 50;
+
+    /**
+     * the number of seconds between two compaction runs
+     * @see #setCompactionInterval(String)
+     */
+    private int compactionInterval = 60;
+
+    /**
+     * the maximum number of deltas appended to a bundle
+     * @see #setMaxBundleDeltas(String)
+     */
+    private int maxBundleDeltas = 8;
+
+    /**
+     * flag for error handling
+     */
+    protected ErrorHandling errorHandling = new ErrorHandling();
+
+    /**
+     * the bundle binding
+     */
+    protected BundleBinding binding;
+
+    /**
+     * the log of bundles and references
+     */
+    private MappedBundleLog bundleLog;
+
+    /**
+     * the file system where BLOB data is stored
+     */
+    private LocalFileSystem blobFS;
+
+    /**
+     * the BLOB store
+     */
+    private TransactionalBLOBStore blobStore;
+
+    /**
+     * whether a change log is being stored, see {@link #storeBundle(NodePropBundle)}
+     */
+    private boolean storing;
+
+    /**
+     * the executor of the background compaction, or <code>null</code> if
+     * disabled
+     */
+    private ScheduledExecutorService compactionExecutor;
+
+    /**
+     * the name of this persistence manager
+     */
+    private String name = super.toString();
+
+    /**
+     * Returns the mininum blob size.
+     * @return the mininum blob size.
+     */
+    public String getMinBlobSize() {
+        return String.valueOf(minBlobSize);
+    }
+
+    /**
+     * Sets the minimum blob size. This size defines the threshold of which
+     * size a property is included in the bundle or is stored in the blob store.
+     * Very high values decrease the performance.
+     *
+     * @param minBlobSize
+     */
+    public void setMinBlobSize(String minBlobSize) {
+        this.minBlobSize = Integer.decode(minBlobSize).intValue();
+    }
+
+    /**
+     * Sets the error handling behaviour of this manager. See {@link ErrorHandling}
+     * for details about the flags.
+     *
+     * @param errorHandling
+     */
+    public void setErrorHandling(String errorHandling) {
+        this.errorHandling = new ErrorHandling(errorHandling);
+    }
+
+    /**
+     * Returns the error handling configuration of this manager
+     * @return the error handling configuration of this manager
+     */
+    public String getErrorHandling() {
+        return errorHandling.toString();
+    }
+
+    /**
+     * Returns the size of new segment files in megabytes.
+     * @return the segment size.
+     */
+    public String getSegmentSize() {
+        return String.valueOf(segmentSize);
+    }
+
+    /**
+     * Sets the size of new segment files in megabytes. Bundles that are
+     * larger than this size get a segment of their own. The default is 64,
+     * the maximum is 2047, as a segment is mapped to a single buffer.
+     *
+     * @param segmentSize the segment size in megabytes
+     */
+    public void setSegmentSize(String segmentSize) {
+        int size = Integer.decode(segmentSize).intValue();
+        if (size < 1 || size * 1024L * 1024L > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Segment size must be between 1 and 2047 MB: " + segmentSize);
+        }
+        this.segmentSize = size;
+    }
+
+    /**
+     * Returns whether the log is forced to disk on every commit.
+     * @return <code>true</code> if the log is forced to disk on commit.
+     */
+    public String getSyncOnCommit() {
+        return Boolean.toString(syncOnCommit);
+    }
+
+    /**
+     * Defines whether the modified segments are forced to disk when a
+     * change log is stored. If disabled, the operating system decides when
+     * to write the changes, and the latest changes may be lost if the
+     * machine crashes. The log is still consistent in that case, as
+     * incomplete changes are discarded on startup. The default is
+     * <code>true</code>.
+     *
+     * @param syncOnCommit the sync on commit flag
+     */
+    public void setSyncOnCommit(String syncOnCommit) {
+        this.syncOnCommit = Boolean.valueOf(syncOnCommit).booleanValue();
+    }
+
+    /**
+     * Returns the compaction threshold in percent.
+     * @return the compaction threshold.
+     */
+    public String getCompactionThreshold() {
+        return String.valueOf(compactionThreshold);
+    }
+
+    /**
+     * Sets the percentage of live data below which a segment is compacted.
+     * The default is 50.
+     *
+     * @param compactionThreshold the compaction threshold in percent
+     */
+    public void setCompactionThreshold(String compactionThreshold) {
+        this.compactionThreshold = Integer.decode(compactionThreshold).intValue();
+    }
+
+    /**
+     * Returns the interval between two compaction runs in seconds.
+     * @return the compaction interval.
+     */
+    public String getCompactionInterval() {
+        return String.valueOf(compactionInterval);
+    }
+
+    /**
+     * Sets the interval between two background compaction runs in seconds.
+     * Each run compacts all segments that are below the
+     * {@link #setCompactionThreshold(String) compaction threshold}. If the
+     * value is 0, segments are not compacted in the background. The default
+     * is 60.
+     *
+     * @param compactionInterval the compaction interval in seconds
+     */
+    public void setCompactionInterval(String compactionInterval) {
+        this.compactionInterval = Integer.decode(compactionInterval).intValue();
+    }
+
+    /**
+     * Returns the maximum number of deltas appended to a bundle.
+     * @return the maximum number of deltas.
+     */
+    public String getMaxBundleDeltas() {
+        return String.valueOf(maxBundleDeltas);
+    }
+
+    /**
+     * Sets the maximum number of deltas that are appended to a bundle
+     * before the complete bundle is written again. Higher values reduce the
+     * amount of data written for frequently modified large bundles, but
+     * make loading them slower. If the value is 0, bundles are always
+     * written completely. The default is 8.
+     *
+     * @param maxBundleDeltas the maximum number of deltas
+     */
+    public void setMaxBundleDeltas(String maxBundleDeltas) {
+        this.maxBundleDeltas = Integer.decode(maxBundleDeltas).intValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(PMContext context) throws Exception {
+        if (initialized) {
+            throw new IllegalStateException("already initialized");
+        }
+        super.init(context);
+
+        this.name = context.getHomeDir().getName();
+
+        blobFS = new LocalFileSystem();
+        blobFS.setRoot(new File(context.getHomeDir(), "blobs"));
+        blobFS.init();
+        blobStore = new TransactionalBLOBStore(new FileSystemBLOBStore(blobFS));
+
+        binding = new BundleBinding(errorHandling, blobStore, getNsIndex(), getNameIndex(), context.getDataStore());
+        binding.setMinBlobSize(minBlobSize);
+        binding.setCompression(getBundleCompression());
+
+        long start = System.currentTimeMillis();
+        bundleLog = new MappedBundleLog(
+                new File(context.getHomeDir(), "bundles"),
+                (int) (segmentSize * 1024L * 1024L), syncOnCommit);
+        bundleLog.open();
+        log.info("{}: opened bundle log in {}ms, {} segments, {} MB live data",
+                new Object[] { name, System.currentTimeMillis() - start,
+                bundleLog.getSegmentCount(), bundleLog.getLiveSize() / 1024 / 1024 });
+
+        if (compactionInterval > 0) {
+            compactionExecutor = new ScheduledThreadPoolExecutor(
+                    1, new NamedThreadFactory("jackrabbit-bundle-log-compaction"));
+            compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (ItemStateException e) {
+                        log.warn("Failed to compact the bundle log of " + name, e);
+                    }
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+        }
+
+        initialized = true;
+    }
+
+    /**
+     * Compacts all segments of the bundle log that are below the
+     * {@link #setCompactionThreshold(String) compaction threshold}.
+     *
+     * @return the number of compacted segments
+     * @throws ItemStateException if compacting fails
+     */
+    public synchronized int compact() throws ItemStateException {
+        if (!initialized) {
+            return 0;
+        }
+        int count = 0;
+        try {
+            while (bundleLog.compact(compactionThreshold)) {
+                count++;
+            }
+        } catch (IOException e) {
+            throw new ItemStateException("Failed to compact the bundle log", e);
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BLOBStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BundleBinding getBundleBinding() {
+        return binding;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void close() throws Exception {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+
+        try {
+            if (compactionExecutor != null) {
+                compactionExecutor.shutdown();
+                compactionExecutor = null;
+            }
+            bundleLog.close();
+            bundleLog = null;
+            blobStore.close();
+            blobFS.close();
+            blobFS = null;
+            super.close();
+        } finally {
+            initialized = false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Commits the records of the change log to the bundle log, or reverts
+     * them if storing the change log fails. The changed references to data
+     * store records are only reported once the records are committed, and
+     * the replaced blob store files are only deleted then.
+     */
+    @Override
+    public synchronized void store(ChangeLog changeLog) throws ItemStateException {
+        boolean success = false;
+        storing = true;
+        try {
+            storeUncommitted(changeLog);
+            bundleLog.commit();
+            blobStore.commit();
+            commitBinaryReferences();
+            success = true;
+        } catch (IOException e) {
+            String msg = "failed to commit the bundle log";
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        } finally {
+            storing = false;
+            if (!success) {
+                discardBinaryReferences();
+                bundleLog.rollback();
+                blobStore.rollback();
+                // the cached bundles may contain the reverted changes
+                onExternalUpdate(changeLog);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected NodePropBundle loadBundle(NodeId id) throws ItemStateException {
+        List<byte[]> records = bundleLog.getBundleRecords(id);
+        if (records == null) {
+            return null;
+        }
+        try {
+            NodePropBundle bundle =
+                binding.readBundle(new ByteArrayInputStream(records.get(0)), id);
+            for (int i = 1; i < records.size(); i++) {
+                binding.readBundleDelta(
+                        new ByteArrayInputStream(records.get(i)), bundle);
+            }
+            if (maxBundleDeltas > 0) {
+                bundle.markStored();
+            }
+            return bundle;
+        } catch (Exception e) {
+            String msg = "failed to read bundle: " + id + ": " + e;
+            log.error(msg);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Appends a delta if the bundle was loaded or stored before, and the
+     * delta is less than half the size of the complete bundle. A bundle
+     * that is not stored as part of a change log, like a bundle fixed by
+     * the consistency checker, is committed right away.
+     */
+    protected synchronized void storeBundle(NodePropBundle bundle) throws ItemStateException {
+        if (storing) {
+            writeBundle(bundle);
+            return;
+        }
+        boolean success = false;
+        try {
+            writeBundle(bundle);
+            bundleLog.commit();
+            blobStore.commit();
+            success = true;
+        } catch (IOException e) {
+            String msg = "failed to commit the bundle log";
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        } finally {
+            if (!success) {
+                bundleLog.rollback();
+                blobStore.rollback();
+            }
+        }
+    }
+
+    /**
+     * Appends the bundle or a delta to the bundle log.
+     */
+    private void writeBundle(NodePropBundle bundle) throws ItemStateException {
+        try {
+            NodeId id = bundle.getId();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+            if (bundleLog.getDeltaCount(id) < maxBundleDeltas
+                    && binding.writeBundleDelta(out, bundle)
+                    && out.size() * 2 < bundle.getStoredSize()) {
+                bundleLog.putBundleDelta(id, out.toByteArray());
+            } else {
+                out.reset();
+                binding.writeBundle(out, bundle);
+                bundleLog.putBundle(id, out.toByteArray());
+            }
+            if (maxBundleDeltas > 0) {
+                bundle.markStored();
+            }
+        } catch (Exception e) {
+            String msg = "failed to write bundle: " + bundle.getId();
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected synchronized void destroyBundle(NodePropBundle bundle) throws ItemStateException {
+        try {
+            bundleLog.removeBundle(bundle.getId());
+        } catch (Exception e) {
+            String msg = "failed to delete bundle: " + bundle.getId();
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public NodeReferences loadReferencesTo(NodeId targetId)
+            throws NoSuchItemStateException, ItemStateException {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        byte[] data = bundleLog.getReferences(targetId);
+        if (data == null) {
+            throw new NoSuchItemStateException(targetId.toString());
+        }
+        try {
+            NodeReferences refs = new NodeReferences(targetId);
+            Serializer.deserialize(refs, new ByteArrayInputStream(data));
+            return refs;
+        } catch (Exception e) {
+            String msg = "failed to read references: " + targetId;
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected synchronized void store(NodeReferences refs) throws ItemStateException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+            Serializer.serialize(refs, out);
+            bundleLog.putReferences(refs.getTargetId(), out.toByteArray());
+        } catch (Exception e) {
+            String msg = "failed to write " + refs;
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected synchronized void destroy(NodeReferences refs) throws ItemStateException {
+        try {
+            bundleLog.removeReferences(refs.getTargetId());
+        } catch (Exception e) {
+            String msg = "failed to delete " + refs;
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean existsReferencesTo(NodeId targetId) throws ItemStateException {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        return bundleLog.hasReferences(targetId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<NodeId> getAllNodeIds(NodeId after, int maxCount)
+            throws ItemStateException {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        return bundleLog.getBundleIds(after, maxCount);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The bundle log keeps the node ids sorted by {@link NodeId#compareTo}.
+     */
+    @Override
+    protected Comparator<NodeId> getNodeIdOrder() {
+        return NODE_ID_ORDER;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * BLOB store that defers the deletion of BLOBs until the change log that
+     * removed them is committed. New BLOBs get an id of their own, so that
+     * they never replace a BLOB of a committed bundle. The BLOBs written by
+     * a change log that is rolled back are deleted on {@link #close()}, as
+     * the serializer replaces the written values of the change log with
+     * values that are backed by the BLOBs. Only used while holding the lock
+     * of the persistence manager.
+     */
+    private static class TransactionalBLOBStore implements ResourceBasedBLOBStore {
+
+        private final ResourceBasedBLOBStore store;
+
+        /** suffix of the ids of new BLOBs, to make them unique */
+        private final AtomicLong counter = new AtomicLong(System.currentTimeMillis());
+
+        /** the BLOBs written since the last commit or rollback */
+        private final List<String> added = new ArrayList<String>();
+
+        /** the BLOBs removed since the last commit or rollback */
+        private final List<String> removed = new ArrayList<String>();
+
+        /** the BLOBs written by changes that were rolled back */
+        private final List<String> orphans = new ArrayList<String>();
+
+        TransactionalBLOBStore(ResourceBasedBLOBStore store) {
+            this.store = store;
+        }
+
+        public String createId(PropertyId id, int index) {
+            String prefix = store.createId(id, index);
+            if (prefix.endsWith(".bin")) {
+                prefix = prefix.substring(0, prefix.length() - 4);
+            }
+            try {
+                while (true) {
+                    String blobId = prefix + "."
+                        + Long.toString(counter.incrementAndGet(), 36) + ".bin";
+                    if (!store.getResource(blobId).exists()) {
+                        return blobId;
+                    }
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to create a blob id", e);
+            }
+        }
+
+        public void put(String blobId, InputStream in, long size) throws Exception {
+            added.add(blobId);
+            store.put(blobId, in, size);
+        }
+
+        public InputStream get(String blobId) throws Exception {
+            return store.get(blobId);
+        }
+
+        public FileSystemResource getResource(String blobId) throws Exception {
+            return store.getResource(blobId);
+        }
+
+        public boolean remove(String blobId) throws Exception {
+            if (!store.getResource(blobId).exists()) {
+                return false;
+            }
+            removed.add(blobId);
+            return true;
+        }
+
+        /**
+         * Deletes the BLOBs that were removed since the last commit.
+         */
+        void commit() {
+            removeAll(removed);
+            added.clear();
+        }
+
+        /**
+         * Keeps the BLOBs that were removed since the last commit, and marks
+         * the BLOBs that were written since for deletion on close.
+         */
+        void rollback() {
+            orphans.addAll(added);
+            added.clear();
+            removed.clear();
+        }
+
+        /**
+         * Deletes the BLOBs that were written by changes that were rolled
+         * back.
+         */
+        void close() {
+            removeAll(orphans);
+        }
+
+        private void removeAll(List<String> blobIds) {
+            for (String blobId : blobIds) {
+                try {
+                    store.remove(blobId);
+                } catch (Exception e) {
+                    log.warn("Failed to delete blob " + blobId, e);
+                }
+            }
+            blobIds.clear();
+        }
+
+    }
+
+}
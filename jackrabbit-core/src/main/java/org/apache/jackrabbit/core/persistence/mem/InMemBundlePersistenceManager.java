@@ -402,6 +402,7 @@ public class InMemBundlePersistenceManager extends AbstractBundlePersistenceMana
         // load namespaces
         binding = new BundleBinding(errorHandling, blobStore, getNsIndex(), getNameIndex(), context.getDataStore());
         binding.setMinBlobSize(minBlobSize);
+        binding.setCompression(getBundleCompression());
 
         if (persistent) {
             // deserialize contents of the stores
@@ -26,6 +26,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,6 +42,7 @@ import org.apache.jackrabbit.core.fs.FileSystemResource;
 import org.apache.jackrabbit.core.fs.local.LocalFileSystem;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.AtomicPersistenceManager;
 import org.apache.jackrabbit.core.persistence.PMContext;
 import org.apache.jackrabbit.core.persistence.bundle.AbstractBundlePersistenceManager;
 import org.apache.jackrabbit.core.persistence.util.BLOBStore;
@@ -81,10 +85,14 @@ import org.slf4j.LoggerFactory;
  * <li>&lt;param name="{@link #setErrorHandling(String) errorHandling}" value=""/&gt;
  * <li>&lt;param name="{@link #setBlockOnConnectionLoss(String) blockOnConnectionLoss}" value="false"/&gt;
  * <li>&lt;param name="{@link #setSchemaCheckEnabled(boolean) schemaCheckEnabled}" value="true"/&gt;
+ * <li>&lt;param name="{@link #setConcurrentReads(String) concurrentReads}" value="false"/&gt;
+ * <li>&lt;param name="{@link #setCacheStatements(boolean) cacheStatements}" value="false"/&gt;
+ * <li>&lt;param name="{@link #setBundleBatchSize(String) bundleBatchSize}" value="0"/&gt;
  * </ul>
  */
 public class BundleDbPersistenceManager
-        extends AbstractBundlePersistenceManager implements DatabaseAware {
+        extends AbstractBundlePersistenceManager
+        implements AtomicPersistenceManager, DatabaseAware {
 
     /** the default logger */
     private static Logger log = LoggerFactory.getLogger(BundleDbPersistenceManager.class);
@@ -95,6 +103,21 @@ public class BundleDbPersistenceManager
     /** storage model modifier: longlong keys */
     public static final int SM_LONGLONG_KEYS = 2;
 
+    /** the order of binary keys, which are compared as unsigned bytes */
+    private static final Comparator<NodeId> UNSIGNED_NODE_ID_ORDER =
+        new Comparator<NodeId>() {
+            public int compare(NodeId a, NodeId b) {
+                int result = Long.compareUnsigned(
+                        a.getMostSignificantBits(), b.getMostSignificantBits());
+                if (result == 0) {
+                    result = Long.compareUnsigned(
+                            a.getLeastSignificantBits(),
+                            b.getLeastSignificantBits());
+                }
+                return result;
+            }
+        };
+
     /** flag indicating if this manager was initialized */
     protected boolean initialized;
 
@@ -128,6 +151,9 @@ public class BundleDbPersistenceManager
     /** flag indicating if the consistency check should attempt to fix issues */
     protected boolean consistencyFix;
 
+    /** maximum number of bundles that are selected with a single statement */
+    protected static final int MAX_BUNDLES_PER_SELECT = 100;
+
     /** initial size of buffer used to serialize objects */
     protected static final int INITIAL_BUFFER_SIZE = 1024;
 
@@ -137,6 +163,21 @@ public class BundleDbPersistenceManager
     /** indicates whether to block if the database connection is lost */
     protected boolean blockOnConnectionLoss;
 
+    /**
+     * indicates whether read operations may run concurrently to each other
+     * and to a running store operation
+     */
+    protected boolean concurrentReads;
+
+    /** flag indicating if prepared statements are reused within a store operation */
+    protected boolean cacheStatements;
+
+    /**
+     * maximum number of bundles that are written with a single statement or
+     * JDBC batch; batching is disabled if less than two
+     */
+    protected int bundleBatchSize;
+
     // SQL statements for bundle management
     protected String bundleInsertSQL;
     protected String bundleUpdateSQL;
@@ -435,6 +476,78 @@ public class BundleDbPersistenceManager
         return Boolean.toString(blockOnConnectionLoss);
     }
 
+    /**
+     * Defines whether read operations ({@link #getAllNodeIds(NodeId, int)},
+     * {@link #getAllNodeInfos(NodeId, int)}, {@link #loadReferencesTo(NodeId)}
+     * and {@link #existsReferencesTo(NodeId)}) may run without acquiring the
+     * monitor of this persistence manager. If enabled, reads are executed
+     * on their own pooled connections and only write operations are
+     * serialized. Reads then only see changes of a store operation once the
+     * JDBC transaction of that store operation has been committed.
+     * The default is <code>false</code>.
+     *
+     * @param concurrentReads the concurrent reads flag.
+     */
+    public void setConcurrentReads(String concurrentReads) {
+        this.concurrentReads = Boolean.valueOf(concurrentReads).booleanValue();
+    }
+
+    /**
+     * Checks if concurrent reads are enabled.
+     * @return <code>true</code> if concurrent reads are enabled.
+     */
+    public String getConcurrentReads() {
+        return Boolean.toString(concurrentReads);
+    }
+
+    /**
+     * Defines whether the prepared statements used to write the bundles and
+     * references of a change log are reused within the JDBC transaction of
+     * the store operation, instead of being prepared for every item. See
+     * {@link ConnectionHelper#setCacheStatements(boolean)}.
+     * The default is <code>false</code>.
+     *
+     * @param cacheStatements the statement caching flag.
+     */
+    public void setCacheStatements(boolean cacheStatements) {
+        this.cacheStatements = cacheStatements;
+    }
+
+    /**
+     * Checks if statement caching is enabled.
+     * @return <code>true</code> if statement caching is enabled.
+     */
+    public boolean isCacheStatements() {
+        return cacheStatements;
+    }
+
+    /**
+     * Sets the maximum number of bundles of a change log that are written
+     * with a single statement or JDBC batch. New bundles are inserted with
+     * multi-row statements if the database specific subclass supports them
+     * (see {@link #buildBundleInsertMultipleSQL(int)}), and with JDBC batches
+     * of single-row statements otherwise. Modified bundles are updated and
+     * deleted bundles are removed with JDBC batches. The default is
+     * <code>0</code>, which writes each bundle with its own statement.
+     * <p>
+     * Note that all serialized bundles of a batch are sent to the database
+     * at once, so the batch size should take the maximum packet size of the
+     * database into account.
+     *
+     * @param bundleBatchSize the maximum number of bundles per batch
+     */
+    public void setBundleBatchSize(String bundleBatchSize) {
+        this.bundleBatchSize = Integer.parseInt(bundleBatchSize);
+    }
+
+    /**
+     * Returns the maximum number of bundles per batch.
+     * @return the maximum number of bundles per batch
+     */
+    public String getBundleBatchSize() {
+        return String.valueOf(bundleBatchSize);
+    }
+
     /**
      * Returns <code>true</code> if the blobs are stored in the DB.
      * @return <code>true</code> if the blobs are stored in the DB.
@@ -468,7 +581,9 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      *
-     * Basically wraps a JDBC transaction around super.store().
+     * Basically wraps a JDBC transaction around super.store(). The changed
+     * references to data store records are only reported once the
+     * transaction is committed.
      * 
      * FIXME: the retry logic is almost a duplicate of {@code ConnectionHelper.RetryManager}.
      */
@@ -479,15 +594,20 @@ public class BundleDbPersistenceManager
         while (!sleepInterrupted && (blockOnConnectionLoss || failures <= 1)) {
             try {
                 conHelper.startBatch();
-                super.store(changeLog);
+                storeUncommitted(changeLog);
                 conHelper.endBatch(true);
+                commitBinaryReferences();
                 return;
             } catch (SQLException e) {
                 // Either startBatch or stopBatch threw it: either way the
-                // transaction was not persisted and no action needs to be taken.
+                // transaction was not persisted and no action needs to be taken,
+                // apart from evicting the bundles cached by the store call.
+                discardBinaryReferences();
+                onExternalUpdate(changeLog);
                 lastException = new ItemStateException(e.getMessage(), e);
             } catch (ItemStateException e) {
                 // store call threw it: we need to cancel the transaction
+                discardBinaryReferences();
                 lastException = e;
                 try {
                     conHelper.endBatch(false);
@@ -535,6 +655,7 @@ public class BundleDbPersistenceManager
         super.init(context);
 
         conHelper = createConnectionHelper(getDataSource());
+        conHelper.setCacheStatements(cacheStatements);
         
         this.name = context.getHomeDir().getName();        
 
@@ -554,6 +675,7 @@ public class BundleDbPersistenceManager
         // load namespaces
         binding = new BundleBinding(errorHandling, blobStore, getNsIndex(), getNameIndex(), context.getDataStore());
         binding.setMinBlobSize(minBlobSize);
+        binding.setCompression(getBundleCompression());
 
         initialized = true;
 
@@ -612,6 +734,14 @@ public class BundleDbPersistenceManager
         return blobStore;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BundleBinding getBundleBinding() {
+        return binding;
+    }
+
     /**
      * Creates a suitable blobstore
      * @return a blobstore
@@ -774,8 +904,18 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    public synchronized List<NodeId> getAllNodeIds(NodeId bigger, int maxCount)
+    public List<NodeId> getAllNodeIds(NodeId bigger, int maxCount)
             throws ItemStateException, RepositoryException {
+        if (concurrentReads) {
+            return internalGetAllNodeIds(bigger, maxCount);
+        }
+        synchronized (this) {
+            return internalGetAllNodeIds(bigger, maxCount);
+        }
+    }
+
+    private List<NodeId> internalGetAllNodeIds(NodeId bigger, int maxCount)
+            throws ItemStateException {
         ResultSet rs = null;
         try {
             String sql = bundleSelectAllIdsSQL;
@@ -827,7 +967,17 @@ public class BundleDbPersistenceManager
      * {@inheritDoc}
      */
     @Override
-    public synchronized Map<NodeId, NodeInfo> getAllNodeInfos(NodeId bigger, int maxCount) throws ItemStateException {
+    public Map<NodeId, NodeInfo> getAllNodeInfos(NodeId bigger, int maxCount) throws ItemStateException {
+        if (concurrentReads) {
+            return internalGetAllNodeInfos(bigger, maxCount);
+        }
+        synchronized (this) {
+            return internalGetAllNodeInfos(bigger, maxCount);
+        }
+    }
+
+    private Map<NodeId, NodeInfo> internalGetAllNodeInfos(NodeId bigger, int maxCount)
+            throws ItemStateException {
         ResultSet rs = null;
         try {
             String sql = bundleSelectAllBundlesSQL;
@@ -876,6 +1026,22 @@ public class BundleDbPersistenceManager
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Binary keys are sorted by the database as unsigned bytes, while the
+     * two columns of long keys are sorted as signed numbers, like
+     * {@link NodeId#compareTo(NodeId)}.
+     */
+    @Override
+    protected Comparator<NodeId> getNodeIdOrder() {
+        if (getStorageModel() == SM_BINARY_KEYS) {
+            return UNSIGNED_NODE_ID_ORDER;
+        } else {
+            return NODE_ID_ORDER;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -903,6 +1069,109 @@ public class BundleDbPersistenceManager
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Selects up to {@link #MAX_BUNDLES_PER_SELECT} bundles per statement.
+     */
+    @Override
+    protected Map<NodeId, NodePropBundle> loadBundles(Collection<NodeId> ids)
+            throws ItemStateException {
+        Map<NodeId, NodePropBundle> result =
+            new HashMap<NodeId, NodePropBundle>(ids.size());
+        List<NodeId> chunk = new ArrayList<NodeId>(MAX_BUNDLES_PER_SELECT);
+        for (NodeId id : ids) {
+            chunk.add(id);
+            if (chunk.size() == MAX_BUNDLES_PER_SELECT) {
+                loadBundles(chunk, result);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            loadBundles(chunk, result);
+        }
+        return result;
+    }
+
+    /**
+     * Selects the bundles with the given identifiers in a single statement
+     * and adds them to the given map.
+     *
+     * @param ids the node ids of the bundles
+     * @param result map to which the loaded bundles are added
+     * @throws ItemStateException if an error while loading occurs.
+     */
+    private void loadBundles(List<NodeId> ids, Map<NodeId, NodePropBundle> result)
+            throws ItemStateException {
+        if (ids.size() == 1) {
+            NodePropBundle bundle = loadBundle(ids.get(0));
+            if (bundle != null) {
+                result.put(ids.get(0), bundle);
+            }
+            return;
+        }
+
+        List<Object> params = new ArrayList<Object>();
+        for (NodeId id : ids) {
+            for (Object key : getKey(id)) {
+                params.add(key);
+            }
+        }
+        try {
+            ResultSet rs = conHelper.exec(
+                    buildBundleSelectMultipleSQL(ids.size()),
+                    params.toArray(), false, 0);
+            try {
+                while (rs != null && rs.next()) {
+                    NodeId current;
+                    if (getStorageModel() == SM_BINARY_KEYS) {
+                        current = new NodeId(rs.getBytes(1));
+                    } else {
+                        current = new NodeId(rs.getLong(1), rs.getLong(2));
+                    }
+                    result.put(current, readBundle(current, rs,
+                            getStorageModel() == SM_LONGLONG_KEYS ? 3 : 2));
+                }
+            } finally {
+                DbUtility.close(rs);
+            }
+        } catch (SQLException e) {
+            String msg = "failed to read bundles (stacktrace on DEBUG log level): " + ids + ": " + e;
+            log.error(msg);
+            log.debug("failed to read bundles: " + ids, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * Creates the SQL statement that selects <code>count</code> bundles by
+     * their node ids, together with the node id of each bundle.
+     *
+     * @param count the number of bundles to select
+     * @return the SQL statement
+     */
+    protected String buildBundleSelectMultipleSQL(int count) {
+        StringBuilder sql = new StringBuilder();
+        if (getStorageModel() == SM_BINARY_KEYS) {
+            sql.append("select NODE_ID, BUNDLE_DATA from ");
+            sql.append(schemaObjectPrefix).append("BUNDLE where NODE_ID in (");
+            for (int i = 0; i < count; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+        } else {
+            sql.append("select NODE_ID_HI, NODE_ID_LO, BUNDLE_DATA from ");
+            sql.append(schemaObjectPrefix).append("BUNDLE where ");
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    sql.append(" or ");
+                }
+                sql.append("(NODE_ID_HI = ? and NODE_ID_LO = ?)");
+            }
+        }
+        return sql.toString();
+    }
+
     /**
      * Reads and parses a bundle from the BLOB in the given column of the
      * current row of the given result set. This is a helper method to
@@ -965,6 +1234,173 @@ public class BundleDbPersistenceManager
         }
    }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Writes the bundles in batches of at most {@link #bundleBatchSize}
+     * bundles, if enabled. Modified bundles are only updated if they still
+     * exist, so that a bundle that has been deleted in the meantime, for
+     * example by another cluster node, is not written again. The change log
+     * fails in that case.
+     */
+    @Override
+    protected synchronized void storeBundles(Collection<NodePropBundle> bundles)
+            throws ItemStateException {
+        if (bundleBatchSize < 2 || bundles.size() < 2) {
+            super.storeBundles(bundles);
+            return;
+        }
+        List<Object[]> inserts = new ArrayList<Object[]>();
+        List<Object[]> updates = new ArrayList<Object[]>();
+        List<NodeId> updated = new ArrayList<NodeId>();
+        NodeId missing = null;
+        try {
+            for (NodePropBundle bundle : bundles) {
+                ByteArrayOutputStream out =
+                    new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+                binding.writeBundle(out, bundle);
+                Object[] params = createParams(bundle.getId(), out.toByteArray(), true);
+                if (bundle.isNew()) {
+                    inserts.add(params);
+                } else {
+                    updates.add(params);
+                    updated.add(bundle.getId());
+                }
+            }
+            for (int i = 0; i < inserts.size(); i += bundleBatchSize) {
+                List<Object[]> rows = inserts.subList(
+                        i, Math.min(inserts.size(), i + bundleBatchSize));
+                insertBundles(rows);
+            }
+            for (int i = 0; i < updates.size() && missing == null; i += bundleBatchSize) {
+                List<Object[]> rows = updates.subList(
+                        i, Math.min(updates.size(), i + bundleBatchSize));
+                int[] counts = conHelper.updateBatch(bundleUpdateSQL, rows);
+                for (int j = 0; j < counts.length && missing == null; j++) {
+                    // drivers may report SUCCESS_NO_INFO instead of a count
+                    if (counts[j] == 0) {
+                        missing = updated.get(i + j);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            String msg;
+
+            if (isIntegrityConstraintViolation(e)) {
+                // see storeBundle(NodePropBundle)
+                msg = "FATAL error while writing " + bundles.size() + " bundles";
+            } else {
+                msg = "failed to write " + bundles.size() + " bundles";
+            }
+
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+        if (missing != null) {
+            String msg = "failed to write bundle " + missing
+                + ", it has been deleted in the meantime";
+            log.error(msg);
+            throw new NoSuchItemStateException(msg);
+        }
+    }
+
+    /**
+     * Inserts a batch of serialized new bundles, either with the multi-row
+     * statement of the database specific subclass, or with a JDBC batch of
+     * {@link #bundleInsertSQL} statements if there is none.
+     *
+     * @param rows the parameters of each bundle
+     * @throws SQLException if writing fails
+     */
+    private void insertBundles(List<Object[]> rows) throws SQLException {
+        String sql = buildBundleInsertMultipleSQL(rows.size());
+        if (sql == null) {
+            conHelper.updateBatch(bundleInsertSQL, rows);
+        } else {
+            List<Object> params = new ArrayList<Object>();
+            for (Object[] row : rows) {
+                for (Object param : row) {
+                    params.add(param);
+                }
+            }
+            conHelper.update(sql, params.toArray());
+        }
+    }
+
+    /**
+     * Creates a statement that inserts <code>count</code> new bundles. The
+     * parameters of the statement are the parameters of
+     * {@link #bundleInsertSQL} for each bundle, one after the other. The
+     * default implementation returns <code>null</code>, in which case the
+     * bundles are inserted with a JDBC batch of {@link #bundleInsertSQL}
+     * statements.
+     *
+     * @param count the number of bundles
+     * @return the SQL statement, or <code>null</code>
+     */
+    protected String buildBundleInsertMultipleSQL(int count) {
+        return null;
+    }
+
+    /**
+     * Creates the start of a multi-row insert into the bundle table, up to
+     * and including the row values of <code>count</code> bundles, with the
+     * columns in the order of {@link #bundleInsertSQL}. Used by the database
+     * specific implementations of {@link #buildBundleInsertMultipleSQL(int)}.
+     *
+     * @param statement the statement, for example <code>"insert into"</code>
+     * @param count the number of bundles
+     * @return the SQL statement
+     */
+    protected StringBuilder buildBundleValuesSQL(String statement, int count) {
+        StringBuilder sql = new StringBuilder(statement);
+        sql.append(" ").append(schemaObjectPrefix).append("BUNDLE ");
+        String row;
+        if (getStorageModel() == SM_BINARY_KEYS) {
+            sql.append("(BUNDLE_DATA, NODE_ID) values ");
+            row = "(?, ?)";
+        } else {
+            sql.append("(BUNDLE_DATA, NODE_ID_HI, NODE_ID_LO) values ");
+            row = "(?, ?, ?)";
+        }
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(row);
+        }
+        return sql;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Deletes the bundles with JDBC batches of at most
+     * {@link #bundleBatchSize} statements, if enabled.
+     */
+    @Override
+    protected synchronized void destroyBundles(Collection<NodePropBundle> bundles)
+            throws ItemStateException {
+        if (bundleBatchSize < 2 || bundles.size() < 2) {
+            super.destroyBundles(bundles);
+            return;
+        }
+        List<Object[]> keys = new ArrayList<Object[]>();
+        for (NodePropBundle bundle : bundles) {
+            keys.add(getKey(bundle.getId()));
+        }
+        try {
+            for (int i = 0; i < keys.size(); i += bundleBatchSize) {
+                conHelper.updateBatch(bundleDeleteSQL,
+                        keys.subList(i, Math.min(keys.size(), i + bundleBatchSize)));
+            }
+        } catch (Exception e) {
+            String msg = "failed to delete " + bundles.size() + " bundles";
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -984,12 +1420,22 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    public synchronized NodeReferences loadReferencesTo(NodeId targetId)
+    public NodeReferences loadReferencesTo(NodeId targetId)
             throws NoSuchItemStateException, ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
 
+        if (concurrentReads) {
+            return internalLoadReferencesTo(targetId);
+        }
+        synchronized (this) {
+            return internalLoadReferencesTo(targetId);
+        }
+    }
+
+    private NodeReferences internalLoadReferencesTo(NodeId targetId)
+            throws NoSuchItemStateException, ItemStateException {
         ResultSet rs = null;
         InputStream in = null;
         try {
@@ -1075,11 +1521,20 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    public synchronized boolean existsReferencesTo(NodeId targetId) throws ItemStateException {
+    public boolean existsReferencesTo(NodeId targetId) throws ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
 
+        if (concurrentReads) {
+            return internalExistsReferencesTo(targetId);
+        }
+        synchronized (this) {
+            return internalExistsReferencesTo(targetId);
+        }
+    }
+
+    private boolean internalExistsReferencesTo(NodeId targetId) throws ItemStateException {
         ResultSet rs = null;
         try {
             rs = conHelper.exec(nodeReferenceSelectSQL, getKey(targetId), false, 0);
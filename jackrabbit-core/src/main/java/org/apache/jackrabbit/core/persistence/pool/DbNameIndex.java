@@ -18,7 +18,8 @@ package org.apache.jackrabbit.core.persistence.pool;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.jackrabbit.core.util.StringIndex;
 import org.apache.jackrabbit.core.util.db.ConnectionHelper;
@@ -29,7 +30,8 @@ import org.apache.jackrabbit.core.util.db.DbUtility;
  * table in a database.
  * <p>
  * Note that this class is not threadsafe by itself. it needs to be synchronized
- * by the using application.
+ * by the using application. Only the lookup of already known indexes through
+ * {@link #indexToString(int)} may happen concurrently.
  * <p>
  * Due to a bug with oracle that treats empty strings a null values
  * (see JCR-815), all empty strings are replaced by a ' '. since names never
@@ -45,8 +47,8 @@ public class DbNameIndex implements StringIndex {
     protected String nameInsertSQL;
 
     // caches
-    private final HashMap<String, Integer> string2Index = new HashMap<String, Integer>();
-    private final HashMap<Integer, String> index2String = new HashMap<Integer, String>();
+    private final Map<String, Integer> string2Index = new ConcurrentHashMap<String, Integer>();
+    private final Map<Integer, String> index2String = new ConcurrentHashMap<Integer, String>();
 
     /**
      * Creates a new index that is stored in a db.
@@ -35,6 +35,7 @@ import org.apache.jackrabbit.core.persistence.PMContext;
  *     &lt;param name="{@link #setSchemaObjectPrefix(String) schemaObjectPrefix}" value=""/&gt;
  *     &lt;param name="{@link #setErrorHandling(String) errorHandling}" value=""/&gt;
  *     &lt;param name="{@link #setLockTimeout(String) lockTimeout}" value="10000"/&gt;
+ *     &lt;param name="{@link #setBundleBatchSize(String) bundleBatchSize}" value="0"/&gt;
  * &lt;/PersistenceManager&gt;
  * </pre>
  */
@@ -82,4 +83,12 @@ public class H2PersistenceManager extends BundleDbPersistenceManager {
         conHelper.exec("SET LOCK_TIMEOUT " + lockTimeout);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String buildBundleInsertMultipleSQL(int count) {
+        return buildBundleValuesSQL("insert into", count).toString();
+    }
+
 }
@@ -33,6 +33,7 @@ import org.apache.jackrabbit.core.persistence.PMContext;
  * <li>&lt;param name="{@link #setSchema(String) schema}" value="mysql"/&gt;
  * <li>&lt;param name="{@link #setSchemaObjectPrefix(String) schemaObjectPrefix}" value=""/&gt;
  * <li>&lt;param name="{@link #setErrorHandling(String) errorHandling}" value=""/&gt;
+ * <li>&lt;param name="{@link #setBundleBatchSize(String) bundleBatchSize}" value="0"/&gt;
  * </ul>
  */
 public class MySqlPersistenceManager extends BundleDbPersistenceManager {
@@ -51,4 +52,12 @@ public class MySqlPersistenceManager extends BundleDbPersistenceManager {
         super.init(context);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String buildBundleInsertMultipleSQL(int count) {
+        return buildBundleValuesSQL("insert into", count).toString();
+    }
+
 }
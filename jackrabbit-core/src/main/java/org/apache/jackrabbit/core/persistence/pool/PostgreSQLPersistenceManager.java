@@ -39,6 +39,7 @@ import org.apache.jackrabbit.core.util.db.PostgreSQLConnectionHelper;
  * <li>&lt;param name="{@link #setSchema(String) schema}" value="postgresql"/&gt;
  * <li>&lt;param name="{@link #setSchemaObjectPrefix(String) schemaObjectPrefix}" value=""/&gt;
  * <li>&lt;param name="{@link #setErrorHandling(String) errorHandling}" value=""/&gt;
+ * <li>&lt;param name="{@link #setBundleBatchSize(String) bundleBatchSize}" value="0"/&gt;
  * </ul>
  */
 public class PostgreSQLPersistenceManager extends BundleDbPersistenceManager {
@@ -74,6 +75,14 @@ public class PostgreSQLPersistenceManager extends BundleDbPersistenceManager {
     	return new PostgreSQLConnectionHelper(dataSrc, blockOnConnectionLoss);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String buildBundleInsertMultipleSQL(int count) {
+        return buildBundleValuesSQL("insert into", count).toString();
+    }
+
     /**
      * returns the storage model
      * @return the storage model
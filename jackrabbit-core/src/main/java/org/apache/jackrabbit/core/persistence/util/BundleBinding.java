@@ -16,9 +16,12 @@
  */
 package org.apache.jackrabbit.core.persistence.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
 
 import org.apache.jackrabbit.core.data.DataStore;
 import org.apache.jackrabbit.core.id.NodeId;
@@ -57,10 +60,54 @@ public class BundleBinding {
      */
     static final int VERSION_3 = 3;
 
+    /**
+     * serialization version 4: large lists of child node entries are
+     * written in pages, see {@link #CHILD_NODE_PAGE_THRESHOLD}
+     */
+    static final int VERSION_4 = 4;
+
     /**
      * current version
      */
-    static final int VERSION_CURRENT = VERSION_3;
+    static final int VERSION_CURRENT = VERSION_4;
+
+    /**
+     * Flag in the version byte of a delta record, which contains the
+     * changes of a bundle relative to its previous revision instead of the
+     * complete bundle. See {@link #writeBundleDelta(OutputStream, NodePropBundle)}.
+     */
+    static final int DELTA = 0x80;
+
+    /**
+     * Flag in the version byte of a compressed bundle, whose remaining bytes
+     * are compressed with Deflate. See {@link #setCompression(String)}.
+     */
+    static final int COMPRESSED = 0x40;
+
+    /**
+     * Serialized bundles smaller than this are never compressed.
+     */
+    static final int MIN_COMPRESSED_SIZE = 256;
+
+    /**
+     * Bundles are not compressed.
+     */
+    public static final String COMPRESSION_NONE = "none";
+
+    /**
+     * Bundles are compressed with Deflate.
+     */
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    /**
+     * Since version 4, lists of more child node entries than this are
+     * written as a sequence of pages. Each page is prefixed with its length
+     * in bytes and is serialized independently of the rest of the bundle,
+     * so that pages that have not changed can be copied as they are when
+     * the bundle is written again. This value is part of the serialization
+     * format and must not be changed.
+     */
+    static final int CHILD_NODE_PAGE_THRESHOLD = 1024;
 
     /**
      * the namespace index
@@ -92,6 +139,16 @@ public class BundleBinding {
      */
     protected final DataStore dataStore;
 
+    /**
+     * the compression of written bundles
+     */
+    protected String compression = COMPRESSION_NONE;
+
+    /**
+     * the Deflate level of written bundles, or -1 if they are not compressed
+     */
+    protected int compressionLevel = -1;
+
     /**
      * Creates a new bundle binding
      *
@@ -131,6 +188,54 @@ public class BundleBinding {
         this.minBlobSize = minBlobSize;
     }
 
+    /**
+     * Returns the compression of written bundles.
+     * @see #setCompression(String) for details.
+     * @return the compression
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets the compression of written bundles: either
+     * {@link #COMPRESSION_NONE "none"}, the default, or
+     * {@link #COMPRESSION_DEFLATE "deflate"}, optionally followed by a colon
+     * and the compression level from 1 (fastest, the default) to 9
+     * (smallest), for example "deflate:6". A bundle is only stored
+     * compressed if it is at least {@link #MIN_COMPRESSED_SIZE} bytes long
+     * and gets smaller. Compressed bundles are read regardless of this
+     * setting.
+     *
+     * @param compression the compression
+     * @throws IllegalArgumentException if the compression is not supported
+     */
+    public void setCompression(String compression) {
+        int level;
+        if (compression == null || COMPRESSION_NONE.equals(compression)) {
+            compression = COMPRESSION_NONE;
+            level = -1;
+        } else if (COMPRESSION_DEFLATE.equals(compression)) {
+            level = Deflater.BEST_SPEED;
+        } else if (compression.startsWith(COMPRESSION_DEFLATE + ":")) {
+            try {
+                level = Integer.parseInt(compression.substring(
+                        COMPRESSION_DEFLATE.length() + 1));
+            } catch (NumberFormatException e) {
+                level = 0;
+            }
+            if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException(
+                        "Invalid bundle compression level: " + compression);
+            }
+        } else {
+            throw new IllegalArgumentException(
+                    "Unsupported bundle compression: " + compression);
+        }
+        this.compression = compression;
+        this.compressionLevel = level;
+    }
+
     /**
      * Returns the blob store that is associated with this binding.
      * @return the blob store
@@ -161,7 +266,74 @@ public class BundleBinding {
      */
     public void writeBundle(OutputStream out, NodePropBundle bundle)
             throws IOException {
-        new BundleWriter(this, out).writeBundle(bundle);
+        if (compressionLevel < 0) {
+            new BundleWriter(this, out).writeBundle(bundle);
+        } else {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            new BundleWriter(this, buffer).writeBundle(bundle);
+            BundleWriter.writeCompressed(
+                    buffer.toByteArray(), out, compressionLevel);
+        }
+    }
+
+    /**
+     * Serializes a <code>NodePropBundle</code> to a data output stream
+     * without any side effects. Unlike
+     * {@link #writeBundle(OutputStream, NodePropBundle)}, this method does not
+     * modify the bundle and its values, so it can be used for bundles that
+     * are visible to other threads. Binary values that would need to be
+     * written to the blob store first make the serialization fail.
+     *
+     * @param out the output stream
+     * @param bundle the bundle to serialize
+     * @throws IOException if the bundle contains a binary value that is not
+     *                     yet in the blob store, or an I/O error occurs.
+     */
+    public void writeBundleCopy(OutputStream out, NodePropBundle bundle)
+            throws IOException {
+        BundleWriter writer = new BundleWriter(this, out);
+        writer.setCopy(true);
+        writer.writeBundle(bundle);
+    }
+
+    /**
+     * Serializes the changes of a <code>NodePropBundle</code> since it was
+     * last {@link NodePropBundle#markStored() marked as stored} to a data
+     * output stream. The delta contains the node type, parent, mixins and
+     * shared set of the bundle, and only the added, modified and removed
+     * properties and child node entries.
+     * <p>
+     * No delta can be written if the bundle was never marked as stored, or
+     * if a replaced or removed property had values in the blob store, as
+     * these values are already deleted and the previous revision of the
+     * bundle can no longer be read. Nothing is written in this case, and
+     * the bundle needs to be written completely.
+     *
+     * @param out the output stream
+     * @param bundle the bundle
+     * @return <code>true</code> if the delta was written,
+     *         <code>false</code> if the complete bundle needs to be written
+     * @throws IOException if an I/O error occurs.
+     */
+    public boolean writeBundleDelta(OutputStream out, NodePropBundle bundle)
+            throws IOException {
+        return new BundleWriter(this, new DataOutputStream(out))
+                .writeBundleDelta(bundle);
+    }
+
+    /**
+     * Applies a delta that was written by
+     * {@link #writeBundleDelta(OutputStream, NodePropBundle)} to the
+     * previous revision of a bundle.
+     *
+     * @param in the input stream of the delta
+     * @param bundle the previous revision of the bundle, which is updated
+     * @throws IOException if an I/O error occurs, or the stream does not
+     *                     contain a delta
+     */
+    public void readBundleDelta(InputStream in, NodePropBundle bundle)
+            throws IOException {
+        new BundleReader(this, in).readBundleDelta(bundle);
     }
 
 }
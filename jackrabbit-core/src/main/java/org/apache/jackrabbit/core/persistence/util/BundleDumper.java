@@ -22,10 +22,12 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.zip.InflaterInputStream;
 
 /**
  * This utility class can dump the contents of a node bundle. This class is
@@ -39,6 +41,13 @@ public class BundleDumper {
     private static final int VERSION_1 = 1;
     private static final int VERSION_2 = 2;
     private static final int VERSION_3 = 3;
+    private static final int VERSION_4 = 4;
+
+    private static final int DELTA = 0x80;
+
+    private static final int COMPRESSED = 0x40;
+
+    private static final int CHILD_NODE_PAGE_THRESHOLD = 1024;
 
     private static final int BINARY_IN_BLOB_STORE = -1;
     private static final int BINARY_IN_DATA_STORE = -2;
@@ -127,9 +136,18 @@ public class BundleDumper {
         try {
             ByteArrayInputStream bin = new ByteArrayInputStream(bundle);
             this.in = new DataInputStream(bin);
-            version = in.readUnsignedByte();
+            int b = in.readUnsignedByte();
+            version = b & ~(DELTA | COMPRESSED);
             buffer.append("version: ").append(version).append("\n");
-            if (version >= VERSION_3) {
+            if ((b & COMPRESSED) != 0) {
+                buffer.append("compressed, uncompressed size: ").
+                        append(in.readInt() + 1).append("\n");
+                in = new DataInputStream(new InflaterInputStream(bin));
+            }
+            if ((b & DELTA) != 0) {
+                buffer.append("delta\n");
+                readBundleDelta();
+            } else if (version >= VERSION_3) {
                 readBundleNew();
             } else {
                 readBundleOld();
@@ -179,9 +197,24 @@ public class BundleDumper {
 
         // child nodes (list of name/uuid pairs)
         int nn = readVarInt((b >> 2) & 3, 3);
-        for (int i = 0; i < nn; i++) {
-            buffer.append("child node: ").append(readQName()).
-                    append(" id: ").append(readNodeId()).append("\n");
+        if (version >= VERSION_4 && nn > CHILD_NODE_PAGE_THRESHOLD) {
+            while (nn > 0) {
+                buffer.append("child node page: ").append(readVarInt()).
+                        append(" bytes\n");
+                // each page is written with its own namespaces
+                Arrays.fill(namespaces, 1, namespaces.length, null);
+                int count = readVarInt();
+                for (int i = 0; i < count; i++) {
+                    buffer.append("child node: ").append(readQName()).
+                            append(" id: ").append(readNodeId()).append("\n");
+                }
+                nn -= count;
+            }
+        } else {
+            for (int i = 0; i < nn; i++) {
+                buffer.append("child node: ").append(readQName()).
+                        append(" id: ").append(readNodeId()).append("\n");
+            }
         }
 
         // read shared set
@@ -196,6 +229,39 @@ public class BundleDumper {
         }
     }
 
+    private void readBundleDelta() throws IOException {
+        buffer.append("nodeTypeName: ").append(readName()).append("\n");
+        buffer.append("parentId: ").append(readNodeId()).append("\n");
+        buffer.append("modCount: ").append((short) readVarInt()).append("\n");
+        buffer.append("referenceable: ").append((in.readUnsignedByte() & 1) != 0).append("\n");
+        int n = readVarInt();
+        for (int i = 0; i < n; i++) {
+            buffer.append("mixing type:").append(readName()).append("\n");
+        }
+        n = readVarInt();
+        for (int i = 0; i < n; i++) {
+            buffer.append("shared set:").append(readNodeId()).append("\n");
+        }
+        n = readVarInt();
+        for (int i = 0; i < n; i++) {
+            buffer.append("removed property: ").append(readName()).append("\n");
+        }
+        n = readVarInt();
+        for (int i = 0; i < n; i++) {
+            buffer.append("property: ").append(readName()).append("\n");
+            readPropertyEntry();
+        }
+        n = readVarInt();
+        for (int i = 0; i < n; i++) {
+            buffer.append("removed child node: ").append(readNodeId()).append("\n");
+        }
+        n = readVarInt();
+        for (int i = 0; i < n; i++) {
+            buffer.append("child node: ").append(readQName()).
+                    append(" id: ").append(readNodeId()).append("\n");
+        }
+    }
+
     private void readBundleOld() throws IOException {
         // read primary type...special handling
         int a = in.readUnsignedByte();
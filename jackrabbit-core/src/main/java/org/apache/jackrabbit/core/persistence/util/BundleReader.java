@@ -19,24 +19,33 @@ package org.apache.jackrabbit.core.persistence.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.io.IOExceptionWithCause;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.CountingInputStream;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle.ChildNodeEntry;
 import org.apache.jackrabbit.core.value.InternalValue;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
 import org.apache.jackrabbit.spi.commons.name.NameConstants;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.math.BigDecimal;
 
 import javax.jcr.PropertyType;
@@ -109,6 +118,11 @@ class BundleReader {
 
     private final int version;
 
+    /**
+     * Whether the stream contains a delta instead of a complete bundle.
+     */
+    private final boolean delta;
+
     /**
      * The default namespace and the first six other namespaces used in this
      * bundle. Used by the {@link #readName()} method to keep track of
@@ -128,9 +142,71 @@ class BundleReader {
     public BundleReader(BundleBinding binding, InputStream stream)
             throws IOException {
         this.binding = binding;
+        int b = stream.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        if ((b & BundleBinding.COMPRESSED) != 0) {
+            stream = new ByteArrayInputStream(decompress(stream));
+        }
         this.cin = new CountingInputStream(stream);
         this.in = new DataInputStream(cin);
-        this.version = in.readUnsignedByte();
+        this.version = b & ~(BundleBinding.DELTA | BundleBinding.COMPRESSED);
+        this.delta = (b & BundleBinding.DELTA) != 0;
+        if (version > BundleBinding.VERSION_CURRENT) {
+            throw new IOException("Unsupported bundle version: " + version);
+        }
+    }
+
+    /**
+     * Creates a deserializer for a part of a bundle that was written
+     * independently of the rest of the bundle, with its own namespaces.
+     *
+     * @param binding bundle binding
+     * @param data the serialized part
+     * @param version serialization version of the bundle
+     */
+    private BundleReader(BundleBinding binding, byte[] data, int version) {
+        this.binding = binding;
+        this.cin = new CountingInputStream(new ByteArrayInputStream(data));
+        this.in = new DataInputStream(cin);
+        this.version = version;
+        this.delta = false;
+    }
+
+    /**
+     * Decompresses the remaining part of a compressed bundle. See
+     * {@link BundleWriter#writeCompressed(byte[], java.io.OutputStream, int)}
+     * for the format.
+     *
+     * @param stream the stream, positioned after the version byte
+     * @return the uncompressed remaining part of the bundle
+     * @throws IOException if an I/O error occurs, or the data is corrupt
+     */
+    private static byte[] decompress(InputStream stream) throws IOException {
+        int length = new DataInputStream(stream).readInt();
+        if (length < 0) {
+            throw new IOException("Invalid compressed bundle length: " + length);
+        }
+        byte[] data = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(IOUtils.toByteArray(stream));
+            int n = 0;
+            while (n < length) {
+                int count = inflater.inflate(data, n, length - n);
+                if (count == 0
+                        && (inflater.finished() || inflater.needsInput())) {
+                    throw new EOFException("Truncated compressed bundle");
+                }
+                n += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOExceptionWithCause("Corrupt compressed bundle", e);
+        } finally {
+            inflater.end();
+        }
+        return data;
     }
 
     /**
@@ -141,6 +217,9 @@ class BundleReader {
      * @throws IOException if an I/O error occurs.
      */
     public NodePropBundle readBundle(NodeId id) throws IOException {
+        if (delta) {
+            throw new IOException("Expected a bundle, found a delta: " + id);
+        }
         long start = cin.getByteCount();
         NodePropBundle bundle = new NodePropBundle(id);
         if (version >= BundleBinding.VERSION_3) {
@@ -170,18 +249,7 @@ class BundleReader {
         bundle.setReferenceable((b & 1) != 0);
 
         // mixin types
-        int mn = readVarInt((b >> 7) & 1, 1);
-        if (mn == 0) {
-            bundle.setMixinTypeNames(Collections.<Name>emptySet());
-        } else if (mn == 1) {
-            bundle.setMixinTypeNames(Collections.singleton(readName()));
-        } else {
-            Set<Name> mixins = new HashSet<Name>(mn * 2);
-            for (int i = 0; i < mn; i++) {
-                mixins.add(readName());
-            }
-            bundle.setMixinTypeNames(mixins);
-        }
+        bundle.setMixinTypeNames(readMixinTypeNames(readVarInt((b >> 7) & 1, 1)));
 
         // properties
         int pn = readVarInt((b >> 4) & 7, 7);
@@ -192,25 +260,139 @@ class BundleReader {
 
         // child nodes (list of name/uuid pairs)
         int nn = readVarInt((b >> 2) & 3, 3);
-        for (int i = 0; i < nn; i++) {
-            Name name = readQName();
-            NodeId id = readNodeId();
-            bundle.addChildNodeEntry(name, id);
+        if (version >= BundleBinding.VERSION_4
+                && nn > BundleBinding.CHILD_NODE_PAGE_THRESHOLD) {
+            readChildNodePages(bundle, nn);
+        } else {
+            for (int i = 0; i < nn; i++) {
+                Name name = readQName();
+                NodeId id = readNodeId();
+                bundle.addChildNodeEntry(name, id);
+            }
         }
 
         // read shared set
-        int sn = readVarInt((b >> 1) & 1, 1);
-        if (sn == 0) {
-            bundle.setSharedSet(Collections.<NodeId>emptySet());
-        } else if (sn == 1) {
-            bundle.setSharedSet(Collections.singleton(readNodeId()));
+        bundle.setSharedSet(readSharedSet(readVarInt((b >> 1) & 1, 1)));
+    }
+
+    /**
+     * Applies a delta to the previous revision of a bundle. See
+     * {@link BundleWriter#writeBundleDelta(NodePropBundle)} for the format.
+     * The data size of the bundle stays that of the previous revision.
+     *
+     * @param bundle the previous revision of the bundle
+     * @throws IOException if an I/O error occurs, or the stream does not
+     *                     contain a delta
+     */
+    public void readBundleDelta(NodePropBundle bundle) throws IOException {
+        if (!delta) {
+            throw new IOException(
+                    "Expected a delta, found a bundle: " + bundle.getId());
+        }
+
+        bundle.setNodeTypeName(readName());
+        NodeId parentId = readNodeId();
+        if (BundleBinding.NULL_PARENT_ID.equals(parentId)) {
+            parentId = null;
+        }
+        bundle.setParentId(parentId);
+        bundle.setModCount((short) readVarInt());
+        bundle.setReferenceable((in.readUnsignedByte() & 1) != 0);
+        bundle.setMixinTypeNames(readMixinTypeNames(readVarInt()));
+        bundle.setSharedSet(readSharedSet(readVarInt()));
+
+        // removed, then added and modified properties
+        int n = readVarInt();
+        for (int i = 0; i < n; i++) {
+            bundle.removePropertyEntry(readName());
+        }
+        n = readVarInt();
+        for (int i = 0; i < n; i++) {
+            PropertyId id = new PropertyId(bundle.getId(), readName());
+            bundle.addProperty(readPropertyEntry(id));
+        }
+
+        // removed, then appended child node entries
+        n = readVarInt();
+        if (n > 0) {
+            Set<NodeId> removed = new HashSet<NodeId>(n * 2);
+            for (int i = 0; i < n; i++) {
+                removed.add(readNodeId());
+            }
+            Iterator<ChildNodeEntry> iterator =
+                bundle.getChildNodeEntries().iterator();
+            while (iterator.hasNext()) {
+                if (removed.contains(iterator.next().getId())) {
+                    iterator.remove();
+                }
+            }
+        }
+        n = readVarInt();
+        for (int i = 0; i < n; i++) {
+            Name name = readName();
+            bundle.addChildNodeEntry(name, readNodeId());
+        }
+    }
+
+    private Set<Name> readMixinTypeNames(int count) throws IOException {
+        if (count == 0) {
+            return Collections.emptySet();
+        } else if (count == 1) {
+            return Collections.singleton(readName());
+        } else {
+            Set<Name> mixins = new HashSet<Name>(count * 2);
+            for (int i = 0; i < count; i++) {
+                mixins.add(readName());
+            }
+            return mixins;
+        }
+    }
+
+    private Set<NodeId> readSharedSet(int count) throws IOException {
+        if (count == 0) {
+            return Collections.emptySet();
+        } else if (count == 1) {
+            return Collections.singleton(readNodeId());
         } else {
             Set<NodeId> shared = new HashSet<NodeId>();
-            for (int i = 0; i < sn; i++) {
+            for (int i = 0; i < count; i++) {
                 shared.add(readNodeId());
             }
-            bundle.setSharedSet(shared);
+            return shared;
+        }
+    }
+
+    /**
+     * Reads the given number of child node entries written as a sequence of
+     * pages, and keeps the pages with the bundle.
+     *
+     * @param bundle the bundle
+     * @param count the number of child node entries
+     * @throws IOException if an I/O error occurs.
+     * @see BundleWriter
+     */
+    private void readChildNodePages(NodePropBundle bundle, int count)
+            throws IOException {
+        List<ChildNodePage> pages = new ArrayList<ChildNodePage>();
+        while (count > 0) {
+            byte[] data = new byte[readVarInt()];
+            in.readFully(data);
+
+            BundleReader reader = new BundleReader(binding, data, version);
+            ChildNodeEntry[] entries = new ChildNodeEntry[reader.readVarInt()];
+            if (entries.length == 0 || entries.length > count) {
+                throw new IOException(
+                        "Invalid child node page size: " + entries.length);
+            }
+            for (int i = 0; i < entries.length; i++) {
+                Name name = reader.readName();
+                entries[i] = new ChildNodeEntry(name, reader.readNodeId());
+                bundle.getChildNodeEntries().add(entries[i]);
+            }
+            pages.add(new ChildNodePage(entries, data));
+            count -= entries.length;
         }
+        bundle.setChildNodePages(pages);
     }
 
     private void readBundleOld(NodePropBundle bundle) throws IOException {
@@ -16,6 +16,7 @@
  */
 package org.apache.jackrabbit.core.persistence.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -23,9 +24,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
@@ -50,10 +57,34 @@ class BundleWriter {
     /** Logger instance */
     private static Logger log = LoggerFactory.getLogger(BundleWriter.class);
 
+    /**
+     * Minimum number of child node entries per page, unless it is the
+     * last page.
+     */
+    private static final int MIN_PAGE_SIZE = 256;
+
+    /**
+     * Maximum number of child node entries per page.
+     */
+    private static final int MAX_PAGE_SIZE = 4096;
+
+    /**
+     * A page of child node entries ends after an entry whose node id hash
+     * has none of these bits set, which gives pages of 1280 entries on
+     * average.
+     */
+    private static final int PAGE_BOUNDARY_MASK = 0x3ff;
+
     private final BundleBinding binding;
 
     private final DataOutputStream out;
 
+    /**
+     * Whether the bundle is serialized without any side effects, see
+     * {@link BundleBinding#writeBundleCopy(OutputStream, NodePropBundle)}.
+     */
+    private boolean copy;
+
     /**
      * The default namespace and the first six other namespaces used in this
      * bundle. Used by the {@link #writeName(Name)} method to keep track of
@@ -72,10 +103,33 @@ class BundleWriter {
      */
     public BundleWriter(BundleBinding binding, OutputStream stream)
             throws IOException {
+        this(binding, new DataOutputStream(stream));
+        this.out.writeByte(BundleBinding.VERSION_CURRENT);
+    }
+
+    /**
+     * Creates a serializer that does not write a version byte. Used for a
+     * part of a bundle that is written independently of the rest of the
+     * bundle, with its own namespaces, and for a bundle delta, which starts
+     * with its own version byte.
+     *
+     * @param binding bundle binding
+     * @param out stream to which the part or delta will be written
+     */
+    BundleWriter(BundleBinding binding, DataOutputStream out) {
         assert namespaces.length == 7;
         this.binding = binding;
-        this.out = new DataOutputStream(stream);
-        this.out.writeByte(BundleBinding.VERSION_CURRENT);
+        this.out = out;
+    }
+
+    /**
+     * Makes this serializer fail instead of writing binary values to the
+     * blob store, and keeps it from modifying the serialized bundle.
+     *
+     * @param copy <code>true</code> to serialize without side effects
+     */
+    void setCopy(boolean copy) {
+        this.copy = copy;
     }
 
     /**
@@ -135,9 +189,16 @@ class BundleWriter {
 
         // child nodes (list of name/uuid pairs)
         writeVarInt(nn, 3);
-        for (ChildNodeEntry child : nodes) {
-            writeName(child.getName());   // name
-            writeNodeId(child.getId());   // uuid
+        if (nn > BundleBinding.CHILD_NODE_PAGE_THRESHOLD) {
+            writeChildNodePages(bundle);
+        } else {
+            for (ChildNodeEntry child : nodes) {
+                writeName(child.getName());   // name
+                writeNodeId(child.getId());   // uuid
+            }
+            if (!copy) {
+                bundle.setChildNodePages(null);
+            }
         }
 
         // write shared set
@@ -147,7 +208,225 @@ class BundleWriter {
         }
 
         // set size of bundle
-        bundle.setSize(out.size() - size);
+        if (!copy) {
+            bundle.setSize(out.size() - size);
+        }
+    }
+
+    /**
+     * Writes a serialized bundle, compressed if it is at least
+     * {@link BundleBinding#MIN_COMPRESSED_SIZE} bytes long and compression
+     * makes it smaller. A compressed bundle starts with the version byte with
+     * the {@link BundleBinding#COMPRESSED} flag set, followed by the length
+     * of the remaining uncompressed bundle as a four byte integer and the
+     * Deflate stream of the remaining bundle, which extends to the end of
+     * the serialized form.
+     *
+     * @param data the serialized bundle
+     * @param out the stream to write to
+     * @param level the Deflate compression level
+     * @throws IOException if an I/O error occurs.
+     */
+    static void writeCompressed(byte[] data, OutputStream out, int level)
+            throws IOException {
+        if (data.length >= BundleBinding.MIN_COMPRESSED_SIZE) {
+            Deflater deflater = new Deflater(level);
+            try {
+                deflater.setInput(data, 1, data.length - 1);
+                deflater.finish();
+                // give up once the compressed form gets as large as the
+                // uncompressed bundle
+                byte[] buffer = new byte[data.length - 5];
+                int length = 0;
+                while (!deflater.finished() && length < buffer.length) {
+                    length += deflater.deflate(
+                            buffer, length, buffer.length - length);
+                }
+                if (deflater.finished()) {
+                    DataOutputStream dout = new DataOutputStream(out);
+                    dout.writeByte(data[0] | BundleBinding.COMPRESSED);
+                    dout.writeInt(data.length - 1);
+                    dout.write(buffer, 0, length);
+                    dout.flush();
+                    return;
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        out.write(data);
+    }
+
+    /**
+     * Serializes the changes of a bundle since it was last
+     * {@link NodePropBundle#markStored() marked as stored}. A delta starts
+     * with the current version byte with the {@link BundleBinding#DELTA}
+     * flag set, followed by the node type name, the parent id, the mod count
+     * and a byte with the referenceable flag. Then follow the mixin type
+     * names, the shared set, the names of the removed properties, the added
+     * and modified properties, the ids of the removed child node entries and
+     * the appended child node entries, each prefixed with their number as a
+     * variable-length integer.
+     * <p>
+     * The child node entries are matched in order against the stored
+     * entries, and the stored entries that do not match are removed. The
+     * remaining entries are appended. Adding and removing child nodes thus
+     * gives small deltas, while reordering them removes and appends all
+     * entries after the first reordered one.
+     *
+     * @param bundle the bundle
+     * @return <code>true</code> if the delta was written,
+     *         <code>false</code> if nothing was written because the bundle
+     *         needs to be written completely
+     * @throws IOException if an I/O error occurs.
+     * @see BundleBinding#writeBundleDelta(OutputStream, NodePropBundle)
+     */
+    public boolean writeBundleDelta(NodePropBundle bundle)
+            throws IOException {
+        Map<Name, PropertyEntry> stored = bundle.getStoredProperties();
+        if (stored == null) {
+            return false;
+        }
+
+        List<Name> removedProperties = new ArrayList<Name>();
+        for (Map.Entry<Name, PropertyEntry> entry : stored.entrySet()) {
+            PropertyEntry property = bundle.getPropertyEntry(entry.getKey());
+            if (property != entry.getValue()) {
+                if (entry.getValue().hasBlobIds()) {
+                    // the blobs of the stored revision are already deleted
+                    return false;
+                }
+                if (property == null) {
+                    removedProperties.add(entry.getKey());
+                }
+            }
+        }
+        List<PropertyEntry> properties = new ArrayList<PropertyEntry>();
+        for (PropertyEntry property : bundle.getPropertyEntries()) {
+            if (stored.get(property.getName()) != property) {
+                properties.add(property);
+            }
+        }
+
+        List<ChildNodeEntry> nodes = bundle.getChildNodeEntries();
+        List<NodeId> removedNodes = new ArrayList<NodeId>();
+        Iterator<ChildNodeEntry> iterator = nodes.iterator();
+        ChildNodeEntry next = iterator.hasNext() ? iterator.next() : null;
+        int matched = 0;
+        for (ChildNodeEntry entry : bundle.getStoredChildNodeEntries()) {
+            if (next != null && entry.equals(next)) {
+                matched++;
+                next = iterator.hasNext() ? iterator.next() : null;
+            } else {
+                removedNodes.add(entry.getId());
+            }
+        }
+
+        out.writeByte(BundleBinding.VERSION_CURRENT | BundleBinding.DELTA);
+
+        writeName(bundle.getNodeTypeName());
+        NodeId parentId = bundle.getParentId();
+        if (parentId == null) {
+            parentId = BundleBinding.NULL_PARENT_ID;
+        }
+        writeNodeId(parentId);
+        writeVarInt(bundle.getModCount());
+        out.writeByte(bundle.isReferenceable() ? 1 : 0);
+
+        Collection<Name> mixins = bundle.getMixinTypeNames();
+        writeVarInt(mixins.size());
+        for (Name name : mixins) {
+            writeName(name);
+        }
+        Collection<NodeId> shared = bundle.getSharedSet();
+        writeVarInt(shared.size());
+        for (NodeId nodeId : shared) {
+            writeNodeId(nodeId);
+        }
+
+        writeVarInt(removedProperties.size());
+        for (Name name : removedProperties) {
+            writeName(name);
+        }
+        writeVarInt(properties.size());
+        for (PropertyEntry property : properties) {
+            writeState(property);
+        }
+
+        writeVarInt(removedNodes.size());
+        for (NodeId nodeId : removedNodes) {
+            writeNodeId(nodeId);
+        }
+        writeVarInt(nodes.size() - matched);
+        for (ChildNodeEntry child : nodes.subList(matched, nodes.size())) {
+            writeName(child.getName());
+            writeNodeId(child.getId());
+        }
+        return true;
+    }
+
+    /**
+     * Writes the child node entries of a bundle as a sequence of pages, each
+     * prefixed with its length in bytes. A page contains the number of
+     * entries followed by the entries, written with a separate namespace
+     * table. Pages end after an entry whose node id hash matches
+     * {@link #PAGE_BOUNDARY_MASK}, so that adding or removing an entry only
+     * changes the page that contains it. The bundle keeps the written pages,
+     * and the pages of a previous read or write that contain the same entries
+     * are copied instead of being serialized again.
+     *
+     * @param bundle the bundle
+     * @throws IOException if an I/O error occurs.
+     */
+    private void writeChildNodePages(NodePropBundle bundle)
+            throws IOException {
+        Map<NodeId, ChildNodePage> previous =
+            new HashMap<NodeId, ChildNodePage>();
+        if (bundle.getChildNodePages() != null) {
+            for (ChildNodePage page : bundle.getChildNodePages()) {
+                previous.put(page.getFirstId(), page);
+            }
+        }
+
+        List<ChildNodeEntry> nodes =
+            new ArrayList<ChildNodeEntry>(bundle.getChildNodeEntries());
+        List<ChildNodePage> pages = new ArrayList<ChildNodePage>();
+        int start = 0;
+        while (start < nodes.size()) {
+            int end = Math.min(start + MIN_PAGE_SIZE, nodes.size());
+            while (end < nodes.size() && end - start < MAX_PAGE_SIZE
+                    && !isPageBoundary(nodes.get(end - 1).getId())) {
+                end++;
+            }
+
+            ChildNodePage page = previous.get(nodes.get(start).getId());
+            if (page == null || !page.matches(nodes, start, end)) {
+                ChildNodeEntry[] entries = nodes.subList(start, end).toArray(
+                        new ChildNodeEntry[end - start]);
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                BundleWriter writer =
+                    new BundleWriter(binding, new DataOutputStream(buffer));
+                writer.writeVarInt(entries.length);
+                for (ChildNodeEntry child : entries) {
+                    writer.writeName(child.getName());
+                    writer.writeNodeId(child.getId());
+                }
+                page = new ChildNodePage(entries, buffer.toByteArray());
+            }
+            writeVarInt(page.getData().length);
+            out.write(page.getData());
+            pages.add(page);
+            start = end;
+        }
+        if (!copy) {
+            bundle.setChildNodePages(pages);
+        }
+    }
+
+    private static boolean isPageBoundary(NodeId id) {
+        long hash = (id.getMostSignificantBits() ^ id.getLeastSignificantBits())
+            * 0x9E3779B97F4A7C15L;
+        return ((int) (hash >>> 32) & PAGE_BOUNDARY_MASK) == 0;
     }
 
     /**
@@ -220,6 +499,11 @@ class BundleWriter {
                             writeString(val.toString());
                         } else if (binding.dataStore != null) {
                             writeSmallBinary(val, state, i);
+                        } else if (copy && (size < 0 || (size > binding.getMinBlobSize()
+                                && state.getBlobId(i) == null))) {
+                            throw new IOException(
+                                    "Binary value is not in the blob store. id="
+                                    + state.getId() + " idx=" + i);
                         } else if (size < 0) {
                             log.warn("Blob has negative size. Potential loss of data. "
                                     + "id={} idx={}", state.getId(), String.valueOf(i));
@@ -265,6 +549,8 @@ class BundleWriter {
                             }
                             // store id of blob as property value
                             writeString(blobId);   // value
+                        } else if (copy) {
+                            writeSmallBinary(val, state, i);
                         } else {
                             // delete evt. blob
                             byte[] data = writeSmallBinary(val, state, i);
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.util.List;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle.ChildNodeEntry;
+
+/**
+ * A serialized page of the child node entries of a bundle. The pages of a
+ * bundle are kept after it has been read or written, so that the
+ * {@link BundleWriter} can copy the pages that have not changed instead of
+ * serializing them again.
+ *
+ * @see BundleBinding#CHILD_NODE_PAGE_THRESHOLD
+ */
+class ChildNodePage {
+
+    /**
+     * The entries of this page.
+     */
+    private final ChildNodeEntry[] entries;
+
+    /**
+     * The serialized page.
+     */
+    private final byte[] data;
+
+    /**
+     * Creates a page.
+     *
+     * @param entries the entries of the page, must not be empty
+     * @param data the serialized page
+     */
+    ChildNodePage(ChildNodeEntry[] entries, byte[] data) {
+        this.entries = entries;
+        this.data = data;
+    }
+
+    /**
+     * Returns the id of the first entry, used to look up the page.
+     *
+     * @return id of the first entry
+     */
+    NodeId getFirstId() {
+        return entries[0].getId();
+    }
+
+    /**
+     * Returns the entries of this page.
+     *
+     * @return the entries
+     */
+    ChildNodeEntry[] getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the serialized page.
+     *
+     * @return the serialized page
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Checks whether this page contains exactly the given range of entries.
+     *
+     * @param list list of entries
+     * @param from index of the first entry, inclusive
+     * @param to index of the last entry, exclusive
+     * @return <code>true</code> if this page contains the same entries
+     */
+    boolean matches(List<ChildNodeEntry> list, int from, int to) {
+        if (entries.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < entries.length; i++) {
+            if (!entries[i].equals(list.get(from + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,1122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of serialized bundles and node references, stored in a
+ * number of memory mapped segment files in a directory.
+ * <p>
+ * Every change appends a record to the current segment: either the new
+ * serialized form of a bundle or of the references to a node, or a marker
+ * that the bundle or references were deleted. The changes are only durable
+ * once {@link #commit()} appended a commit record (and, if enabled, forced
+ * the modified segments to disk). The location of the latest record of each
+ * bundle and of each references entry is kept in an in-memory index, which
+ * is rebuilt by scanning the segments in {@link #open()}. Records that are
+ * not followed by a commit record, for example because of a crash in the
+ * middle of a change, are ignored by the scan and overwritten afterwards.
+ * <p>
+ * Instead of a complete bundle, a delta that only contains the changes
+ * since the previous revision can be appended with
+ * {@link #putBundleDelta(NodeId, byte[])}. The index keeps the location of
+ * the latest complete record of each bundle and of the deltas appended
+ * since, and {@link #getBundleRecords(NodeId)} returns them in order. The
+ * chain of deltas ends when the complete bundle is put again.
+ * <p>
+ * Records that were replaced or deleted remain in their segment until the
+ * segment is compacted by {@link #compact(int)}, which copies the remaining
+ * live records of the oldest sufficiently sparse segment to the end of the
+ * log and then removes the segment. The records of a compacted segment are
+ * cleared before the segment is unmapped and deleted, so that a segment
+ * file that can not be deleted is empty when the log is opened again.
+ * <p>
+ * A segment starts with a header of a magic number and a format version.
+ * Each record consists of the length of the record, the record type, the
+ * node id, the data, and a CRC32 checksum of the type, node id and data.
+ * A length of zero marks the end of the records in a segment.
+ * <p>
+ * This class is thread-safe. Reads may run concurrently to each other, but
+ * wait while there are uncommitted changes, so that they never see changes
+ * that may still be rolled back. The thread that makes a change holds the
+ * write lock from its first write until it commits or rolls back the
+ * change, so the writes of a change are never interleaved with the writes
+ * of another change or with compaction.
+ */
+public class MappedBundleLog {
+
+    /** the default logger */
+    private static Logger log = LoggerFactory.getLogger(MappedBundleLog.class);
+
+    /** Magic number at the start of each segment ("JRBL"). */
+    private static final int MAGIC = 0x4A52424C;
+
+    /** Version of the segment format. */
+    private static final int VERSION = 1;
+
+    /** Size of the segment header: the magic number and the version. */
+    private static final int SEGMENT_HEADER_SIZE = 8;
+
+    /** Size of the record header: length, type and node id. */
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 16;
+
+    /** Size of the record trailer: the checksum. */
+    private static final int RECORD_TRAILER_SIZE = 4;
+
+    /** File name suffix of the segments. */
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte TYPE_BUNDLE = 1;
+
+    private static final byte TYPE_BUNDLE_DELETED = 2;
+
+    private static final byte TYPE_REFERENCES = 3;
+
+    private static final byte TYPE_REFERENCES_DELETED = 4;
+
+    private static final byte TYPE_COMMIT = 5;
+
+    private static final byte TYPE_BUNDLE_DELTA = 6;
+
+    private static final NodeId NO_ID = new NodeId(0, 0);
+
+    /** The directory of the segment files. */
+    private final File directory;
+
+    /** The size of new segments. */
+    private final int segmentSize;
+
+    /** Whether the modified segments are forced to disk on commit. */
+    private final boolean sync;
+
+    /** Location of the latest record of each bundle, sorted by node id. */
+    private final ConcurrentNavigableMap<NodeId, Long> bundles =
+        new ConcurrentSkipListMap<NodeId, Long>();
+
+    /**
+     * Locations of the deltas appended to each bundle since its latest
+     * complete record, in order. Only contains bundles that have deltas.
+     */
+    private final ConcurrentMap<NodeId, long[]> deltas =
+        new ConcurrentHashMap<NodeId, long[]>();
+
+    /** Location of the latest record of each node references entry. */
+    private final ConcurrentMap<NodeId, Long> references =
+        new ConcurrentHashMap<NodeId, Long>();
+
+    /** The segments, by segment number. */
+    private final TreeMap<Integer, Segment> segments =
+        new TreeMap<Integer, Segment>();
+
+    /**
+     * Guards the segments and the index. Reads acquire the read lock, all
+     * modifications acquire the write lock. The write lock is held from the
+     * first uncommitted write until the commit or rollback.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The segment new records are appended to. */
+    private Segment current;
+
+    /** The position in the current segment where the next record goes. */
+    private int position;
+
+    /** The segment of the first uncommitted record, or -1 if none. */
+    private int uncommittedSegment = -1;
+
+    /** The position of the first uncommitted record. */
+    private int uncommittedPosition;
+
+    /**
+     * The previous index entries of the uncommitted changes, in the order
+     * of the changes. Used to roll back the index.
+     */
+    private final List<Undo> undoLog = new ArrayList<Undo>();
+
+    /** The segments that were modified since the last commit. */
+    private final Set<Segment> dirty = new HashSet<Segment>();
+
+    /**
+     * Creates a new log in the given directory. The log needs to be opened
+     * before it can be used.
+     *
+     * @param directory the directory of the segment files
+     * @param segmentSize the size of new segments
+     * @param sync whether to force the modified segments to disk on commit
+     */
+    public MappedBundleLog(File directory, int segmentSize, boolean sync) {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, 64 * 1024);
+        this.sync = sync;
+    }
+
+    /**
+     * Opens the log, and rebuilds the index from the committed records of
+     * the existing segments.
+     *
+     * @throws IOException if the segments can not be read
+     */
+    public void open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Failed to create directory " + directory);
+            }
+            File[] files = directory.listFiles();
+            List<Integer> numbers = new ArrayList<Integer>();
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        numbers.add(Integer.valueOf(name.substring(
+                                0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring unexpected file {}", file);
+                    }
+                }
+            }
+            Integer[] sorted = numbers.toArray(new Integer[numbers.size()]);
+            Arrays.sort(sorted);
+
+            // the records after the last commit record
+            List<Object[]> pending = new ArrayList<Object[]>();
+            boolean end = false;
+            for (Integer number : sorted) {
+                File file = getFile(number);
+                if (end || file.length() < SEGMENT_HEADER_SIZE) {
+                    discard(file);
+                    continue;
+                }
+                Segment segment = openSegment(number, 0);
+                if (segment.buffer.getInt(0) == 0) {
+                    // the header of a new segment was never written
+                    segment.buffer.putInt(0, MAGIC);
+                    segment.buffer.putInt(4, VERSION);
+                }
+                segments.put(number, segment);
+                current = segment;
+                position = recover(segment, pending);
+                end = position < 0;
+                if (end) {
+                    position = -position;
+                }
+            }
+            if (!pending.isEmpty()) {
+                // truncate the log before the first uncommitted record
+                log.warn("Discarding {} uncommitted changes at the end of the log",
+                        pending.size());
+                long first = (Long) pending.get(0)[2];
+                while (current.number > getSegment(first)) {
+                    segments.remove(current.number);
+                    current.close();
+                    discard(current.file);
+                    current = segments.get(segments.lastKey());
+                }
+                position = getOffset(first);
+            }
+            if (current == null) {
+                current = createSegment(1, segmentSize);
+                segments.put(current.number, current);
+                position = SEGMENT_HEADER_SIZE;
+            }
+            terminate(current, position);
+            for (Segment segment : segments.values()) {
+                log.debug("Opened segment {}: {} of {} bytes live",
+                        new Object[] { segment.number, segment.live, segment.size });
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the log. Uncommitted changes are lost.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (uncommittedSegment >= 0) {
+                // the records are discarded when the log is opened again
+                uncommittedSegment = -1;
+                lock.writeLock().unlock();
+            }
+            for (Segment segment : segments.values()) {
+                if (sync) {
+                    segment.buffer.force();
+                }
+                segment.close();
+            }
+            segments.clear();
+            bundles.clear();
+            deltas.clear();
+            references.clear();
+            undoLog.clear();
+            dirty.clear();
+            current = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the latest complete serialized bundle with the given id. The
+     * deltas that were appended since are not included, see
+     * {@link #getBundleRecords(NodeId)}.
+     *
+     * @param id node id
+     * @return serialized bundle, or <code>null</code> if there is none
+     */
+    public byte[] getBundle(NodeId id) {
+        return read(bundles, id);
+    }
+
+    /**
+     * Returns the latest complete serialized bundle with the given id,
+     * followed by the deltas that were appended since.
+     *
+     * @param id node id
+     * @return the serialized bundle and deltas, or <code>null</code> if
+     *         there is no bundle
+     */
+    public List<byte[]> getBundleRecords(NodeId id) {
+        lock.readLock().lock();
+        try {
+            Long location = bundles.get(id);
+            if (location == null) {
+                return null;
+            }
+            long[] chain = deltas.get(id);
+            List<byte[]> records = new ArrayList<byte[]>(
+                    chain == null ? 1 : chain.length + 1);
+            records.add(readRecord(location));
+            for (int i = 0; chain != null && i < chain.length; i++) {
+                records.add(readRecord(chain[i]));
+            }
+            return records;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of deltas that were appended to the bundle with
+     * the given id since its latest complete record.
+     *
+     * @param id node id
+     * @return the number of deltas
+     */
+    public int getDeltaCount(NodeId id) {
+        lock.readLock().lock();
+        try {
+            long[] chain = deltas.get(id);
+            return chain == null ? 0 : chain.length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the serialized references to the node with the given id.
+     *
+     * @param id node id
+     * @return serialized references, or <code>null</code> if there are none
+     */
+    public byte[] getReferences(NodeId id) {
+        return read(references, id);
+    }
+
+    /**
+     * Checks whether there are references to the node with the given id.
+     *
+     * @param id node id
+     * @return <code>true</code> if there are references
+     */
+    public boolean hasReferences(NodeId id) {
+        lock.readLock().lock();
+        try {
+            return references.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of the bundles in ascending order.
+     *
+     * @param after only return ids greater than this id, or
+     *              <code>null</code> to start with the first id
+     * @param maxCount the maximum number of ids, or 0 for no limit
+     * @return the node ids
+     */
+    public List<NodeId> getBundleIds(NodeId after, int maxCount) {
+        lock.readLock().lock();
+        try {
+            Map<NodeId, Long> map =
+                after == null ? bundles : bundles.tailMap(after, false);
+            List<NodeId> ids = new ArrayList<NodeId>();
+            for (NodeId id : map.keySet()) {
+                if (maxCount > 0 && ids.size() >= maxCount) {
+                    break;
+                }
+                ids.add(id);
+            }
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the serialized form of a bundle.
+     *
+     * @param id node id
+     * @param data serialized bundle
+     * @throws IOException if the record can not be written
+     */
+    public void putBundle(NodeId id, byte[] data) throws IOException {
+        write(bundles, TYPE_BUNDLE, id, data);
+    }
+
+    /**
+     * Appends a delta to the bundle with the given id. The bundle must
+     * exist.
+     *
+     * @param id node id
+     * @param data serialized delta
+     * @throws IOException if the record can not be written
+     */
+    public void putBundleDelta(NodeId id, byte[] data) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Long base = bundles.get(id);
+            if (base == null) {
+                throw new IllegalStateException("No bundle " + id);
+            }
+            long location = append(TYPE_BUNDLE_DELTA, id, data);
+            changeLive(location, getLength(location));
+            long[] chain = deltas.get(id);
+            deltas.put(id, addLocation(chain, location));
+            undoLog.add(new Undo(bundles, id, base, chain));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the deletion of a bundle.
+     *
+     * @param id node id
+     * @throws IOException if the record can not be written
+     */
+    public void removeBundle(NodeId id) throws IOException {
+        write(bundles, TYPE_BUNDLE_DELETED, id, null);
+    }
+
+    /**
+     * Appends the serialized form of the references to a node.
+     *
+     * @param id node id
+     * @param data serialized references
+     * @throws IOException if the record can not be written
+     */
+    public void putReferences(NodeId id, byte[] data) throws IOException {
+        write(references, TYPE_REFERENCES, id, data);
+    }
+
+    /**
+     * Appends the deletion of the references to a node.
+     *
+     * @param id node id
+     * @throws IOException if the record can not be written
+     */
+    public void removeReferences(NodeId id) throws IOException {
+        write(references, TYPE_REFERENCES_DELETED, id, null);
+    }
+
+    /**
+     * Commits the changes since the last commit or rollback. Must be called
+     * by the thread that made the changes.
+     *
+     * @throws IOException if the changes can not be written
+     */
+    public void commit() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (uncommittedSegment < 0) {
+                return;
+            }
+            append(TYPE_COMMIT, NO_ID, null);
+            if (sync) {
+                for (Segment segment : dirty) {
+                    segment.buffer.force();
+                }
+            }
+            dirty.clear();
+            undoLog.clear();
+            uncommittedSegment = -1;
+            // acquired by the first uncommitted write
+            lock.writeLock().unlock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reverts the changes since the last commit or rollback. Must be called
+     * by the thread that made the changes.
+     */
+    public void rollback() {
+        lock.writeLock().lock();
+        try {
+            if (uncommittedSegment < 0) {
+                return;
+            }
+            for (int i = undoLog.size() - 1; i >= 0; i--) {
+                Undo undo = undoLog.get(i);
+                Long location = undo.map.get(undo.id);
+                if (location != null) {
+                    changeLive(location, -getLength(location));
+                }
+                if (undo.map == bundles) {
+                    changeLive(deltas.remove(undo.id), false);
+                    if (undo.deltas != null) {
+                        deltas.put(undo.id, undo.deltas);
+                        changeLive(undo.deltas, true);
+                    }
+                }
+                if (undo.location == null) {
+                    undo.map.remove(undo.id);
+                } else {
+                    undo.map.put(undo.id, undo.location);
+                    changeLive(undo.location, getLength(undo.location));
+                }
+            }
+            undoLog.clear();
+            // drop the segments that were started by the reverted changes
+            while (current.number > uncommittedSegment) {
+                segments.remove(current.number);
+                current.close();
+                discard(current.file);
+                current = segments.get(segments.lastKey());
+            }
+            position = uncommittedPosition;
+            terminate(current, position);
+            dirty.clear();
+            uncommittedSegment = -1;
+            // acquired by the first uncommitted write
+            lock.writeLock().unlock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts the oldest segment in which less than the given percentage
+     * of the bytes belong to live records, by appending the live records to
+     * the end of the log and removing the segment. Must not be called while
+     * there are uncommitted changes.
+     *
+     * @param threshold the percentage of live bytes below which a segment
+     *                  is compacted
+     * @return <code>true</code> if a segment was compacted
+     * @throws IOException if compacting fails
+     */
+    public boolean compact(int threshold) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (uncommittedSegment >= 0) {
+                throw new IllegalStateException("Uncommitted changes");
+            }
+            Segment segment = null;
+            for (Segment candidate : segments.values()) {
+                if (candidate != current
+                        && candidate.live * 100 < (long) candidate.size * threshold) {
+                    segment = candidate;
+                    break;
+                }
+            }
+            if (segment == null) {
+                return false;
+            }
+            // deletion records are only needed if older segments may still
+            // contain records of the deleted bundles or references
+            boolean oldest = segment.number == segments.firstKey();
+            long start = System.currentTimeMillis();
+            int copied = 0;
+            boolean success = false;
+            try {
+                ByteBuffer buffer = segment.buffer.duplicate();
+                buffer.position(SEGMENT_HEADER_SIZE);
+                while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                    int offset = buffer.position();
+                    int length = buffer.getInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    byte type = buffer.get();
+                    NodeId id = new NodeId(buffer.getLong(), buffer.getLong());
+                    buffer.position(offset + length);
+
+                    long location = getLocation(segment.number, offset);
+                    Map<NodeId, Long> map =
+                        type == TYPE_BUNDLE || type == TYPE_BUNDLE_DELETED ? bundles : references;
+                    if (type == TYPE_BUNDLE || type == TYPE_BUNDLE_DELTA) {
+                        if (isLiveBundleRecord(id, location)) {
+                            copied += copyBundle(id);
+                        }
+                    } else if (type == TYPE_REFERENCES) {
+                        Long latest = map.get(id);
+                        if (latest != null && latest.longValue() == location) {
+                            write(map, type, id, readRecord(location));
+                            copied++;
+                        }
+                    } else if ((type == TYPE_BUNDLE_DELETED || type == TYPE_REFERENCES_DELETED)
+                            && !oldest && !map.containsKey(id)) {
+                        write(map, type, id, null);
+                        copied++;
+                    }
+                }
+                commit();
+                success = true;
+            } finally {
+                if (!success) {
+                    rollback();
+                }
+            }
+            // clear the records, as the copies would otherwise be preceded
+            // by outdated records if the file survives
+            segments.remove(segment.number);
+            terminate(segment, SEGMENT_HEADER_SIZE);
+            if (sync) {
+                segment.buffer.force();
+            }
+            segment.close();
+            if (!deleteSegment(segment.file)) {
+                log.warn("Failed to delete compacted segment {}", segment.file);
+            }
+            log.info("Compacted segment {} in {}ms: {} records copied",
+                    new Object[] { segment.file.getName(),
+                    System.currentTimeMillis() - start, copied });
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of segments.
+     *
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of all live records.
+     *
+     * @return the number of live bytes
+     */
+    public long getLiveSize() {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for (Segment segment : segments.values()) {
+                size += segment.live;
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of all segments.
+     *
+     * @return the total size of the segments
+     */
+    public long getTotalSize() {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for (Segment segment : segments.values()) {
+                size += segment.size;
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //-------------------------------------------------------< implementation >
+
+    private byte[] read(Map<NodeId, Long> map, NodeId id) {
+        lock.readLock().lock();
+        try {
+            Long location = map.get(id);
+            if (location == null) {
+                return null;
+            }
+            return readRecord(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the data of the record at the given location. Must be called
+     * while holding a lock.
+     */
+    private byte[] readRecord(long location) {
+        ByteBuffer buffer = segments.get(getSegment(location)).buffer.duplicate();
+        buffer.position(getOffset(location));
+        byte[] data = new byte[buffer.getInt() - RECORD_HEADER_SIZE - RECORD_TRAILER_SIZE];
+        buffer.position(buffer.position() + 1 + 16);
+        buffer.get(data);
+        return data;
+    }
+
+    private void write(Map<NodeId, Long> map, byte type, NodeId id, byte[] data)
+            throws IOException {
+        lock.writeLock().lock();
+        try {
+            long location = append(type, id, data);
+            Long previous;
+            if (data != null) {
+                previous = map.put(id, location);
+                changeLive(location, getLength(location));
+            } else {
+                previous = map.remove(id);
+            }
+            if (previous != null) {
+                changeLive(previous, -getLength(previous));
+            }
+            long[] chain = null;
+            if (map == bundles) {
+                // a complete bundle or a deletion ends the chain of deltas
+                chain = deltas.remove(id);
+                changeLive(chain, false);
+            }
+            undoLog.add(new Undo(map, id, previous, chain));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a record to the log. Must be called while holding the write
+     * lock.
+     *
+     * @return the location of the record
+     */
+    private long append(byte type, NodeId id, byte[] data) throws IOException {
+        int length = RECORD_HEADER_SIZE + (data == null ? 0 : data.length)
+            + RECORD_TRAILER_SIZE;
+        if (position + length > current.size) {
+            int size = Math.max(segmentSize, SEGMENT_HEADER_SIZE + length);
+            Segment segment = createSegment(current.number + 1, size);
+            segments.put(segment.number, segment);
+            current = segment;
+            position = SEGMENT_HEADER_SIZE;
+        }
+        if (uncommittedSegment < 0) {
+            // keep readers out until the change is committed or rolled back
+            lock.writeLock().lock();
+            uncommittedSegment = current.number;
+            uncommittedPosition = position;
+        }
+
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = current.buffer.duplicate();
+        buffer.position(position + 4);
+        buffer.put(type);
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+        if (data != null) {
+            buffer.put(data);
+        }
+        crc.update(type);
+        crc.update(id.getRawBytes());
+        if (data != null) {
+            crc.update(data);
+        }
+        buffer.putInt((int) crc.getValue());
+        // write the length last, so that the record only becomes visible
+        // to a scan once it is complete
+        current.buffer.putInt(position, length);
+
+        long location = getLocation(current.number, position);
+        position += length;
+        terminate(current, position);
+        dirty.add(current);
+        return location;
+    }
+
+    /**
+     * Scans the records of a segment and applies the committed changes to
+     * the index. Changes that are not yet committed at the end of the
+     * segment are kept in the pending list, as their commit record may be
+     * in the next segment. The scan stops at the first incomplete or
+     * corrupt record.
+     *
+     * @return the end of the records, negative if the segment ended with
+     *         an incomplete or corrupt record
+     */
+    private int recover(Segment segment, List<Object[]> pending) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(SEGMENT_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int offset = buffer.position();
+            int length = buffer.getInt();
+            if (length == 0) {
+                return offset;
+            }
+            if (length < RECORD_HEADER_SIZE + RECORD_TRAILER_SIZE
+                    || length > segment.size - offset) {
+                return corrupt(segment, offset);
+            }
+            byte type = buffer.get();
+            byte[] id = new byte[16];
+            buffer.get(id);
+            byte[] data = new byte[length - RECORD_HEADER_SIZE - RECORD_TRAILER_SIZE];
+            buffer.get(data);
+            crc.reset();
+            crc.update(type);
+            crc.update(id);
+            crc.update(data);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                return corrupt(segment, offset);
+            }
+
+            if (type == TYPE_COMMIT) {
+                for (Object[] change : pending) {
+                    apply((Byte) change[0], (NodeId) change[1], (Long) change[2]);
+                }
+                pending.clear();
+            } else if (type >= TYPE_BUNDLE && type <= TYPE_REFERENCES_DELETED
+                    || type == TYPE_BUNDLE_DELTA) {
+                pending.add(new Object[] {
+                        type, new NodeId(id), getLocation(segment.number, offset) });
+            } else {
+                return corrupt(segment, offset);
+            }
+        }
+        return buffer.position();
+    }
+
+    private int corrupt(Segment segment, int offset) {
+        log.warn("Incomplete or corrupt record in segment {} at position {},"
+                + " ignoring the rest of the log", segment.file.getName(), offset);
+        return -offset;
+    }
+
+    private void apply(byte type, NodeId id, long location) {
+        if (type == TYPE_BUNDLE_DELTA) {
+            // a delta whose bundle is missing belongs to a chain that was
+            // copied by compaction, and is followed by the copied chain
+            if (bundles.containsKey(id)) {
+                deltas.put(id, addLocation(deltas.get(id), location));
+                changeLive(location, getLength(location));
+            }
+            return;
+        }
+        Map<NodeId, Long> map =
+            type == TYPE_BUNDLE || type == TYPE_BUNDLE_DELETED ? bundles : references;
+        Long previous;
+        if (type == TYPE_BUNDLE || type == TYPE_REFERENCES) {
+            previous = map.put(id, location);
+            changeLive(location, getLength(location));
+        } else {
+            previous = map.remove(id);
+        }
+        if (previous != null) {
+            changeLive(previous, -getLength(previous));
+        }
+        if (map == bundles) {
+            changeLive(deltas.remove(id), false);
+        }
+    }
+
+    /**
+     * Checks whether the record at the given location is the latest complete
+     * record or one of the deltas of the bundle with the given id.
+     */
+    private boolean isLiveBundleRecord(NodeId id, long location) {
+        Long base = bundles.get(id);
+        if (base == null) {
+            return false;
+        } else if (base.longValue() == location) {
+            return true;
+        }
+        long[] chain = deltas.get(id);
+        for (int i = 0; chain != null && i < chain.length; i++) {
+            if (chain[i] == location) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends the latest complete record and the deltas of a bundle again,
+     * so that the deltas still follow the complete record in the log. Must
+     * be called while holding the write lock.
+     *
+     * @return the number of copied records
+     */
+    private int copyBundle(NodeId id) throws IOException {
+        List<byte[]> records = getBundleRecords(id);
+        write(bundles, TYPE_BUNDLE, id, records.get(0));
+        for (int i = 1; i < records.size(); i++) {
+            putBundleDelta(id, records.get(i));
+        }
+        return records.size();
+    }
+
+    private static long[] addLocation(long[] chain, long location) {
+        long[] result;
+        if (chain == null) {
+            result = new long[1];
+        } else {
+            result = Arrays.copyOf(chain, chain.length + 1);
+        }
+        result[result.length - 1] = location;
+        return result;
+    }
+
+    private void changeLive(long[] chain, boolean live) {
+        for (int i = 0; chain != null && i < chain.length; i++) {
+            int length = getLength(chain[i]);
+            changeLive(chain[i], live ? length : -length);
+        }
+    }
+
+    private void changeLive(long location, int delta) {
+        Segment segment = segments.get(getSegment(location));
+        if (segment != null) {
+            segment.live += delta;
+        }
+    }
+
+    private int getLength(long location) {
+        return segments.get(getSegment(location)).buffer.getInt(getOffset(location));
+    }
+
+    /**
+     * Marks the end of the records in the given segment, if there is room
+     * for the marker.
+     */
+    private static void terminate(Segment segment, int position) {
+        if (position + 4 <= segment.size) {
+            segment.buffer.putInt(position, 0);
+        }
+    }
+
+    private File getFile(int number) {
+        StringBuilder name = new StringBuilder(Integer.toString(number));
+        while (name.length() < 8) {
+            name.insert(0, '0');
+        }
+        return new File(directory, name.append(SEGMENT_SUFFIX).toString());
+    }
+
+    private Segment createSegment(int number, int size) throws IOException {
+        File file = getFile(number);
+        if (file.exists()) {
+            discard(file);
+        }
+        Segment segment = openSegment(number, size);
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        terminate(segment, SEGMENT_HEADER_SIZE);
+        return segment;
+    }
+
+    private Segment openSegment(int number, int size) throws IOException {
+        File file = getFile(number);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (size > 0) {
+                raf.setLength(size);
+            } else {
+                size = (int) raf.length();
+            }
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (raf.length() >= SEGMENT_HEADER_SIZE && buffer.getInt(0) != 0
+                    && (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)) {
+                throw new IOException("Unsupported segment file " + file);
+            }
+            return new Segment(number, file, raf, buffer, size);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the file of a compacted segment.
+     *
+     * @return <code>true</code> if the file was deleted
+     */
+    boolean deleteSegment(File file) {
+        return file.delete();
+    }
+
+    /**
+     * Renames a segment file that contains no usable records, so that it is
+     * no longer read but can still be inspected.
+     */
+    private static void discard(File file) {
+        File target = new File(file.getPath() + ".discarded");
+        if (target.exists() && !target.delete() || !file.renameTo(target)) {
+            log.warn("Failed to rename discarded segment {}", file);
+        } else {
+            log.warn("Discarded segment {}", file);
+        }
+    }
+
+    private static long getLocation(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int getSegment(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int getOffset(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Releases the mapping of the given buffer right away, instead of when
+     * the buffer is garbage collected, so that the file can be deleted and
+     * its space is reclaimed. The buffer must not be accessed afterwards.
+     * If the mapping can not be released, it is released on garbage
+     * collection.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            type.getMethod("invokeCleaner", ByteBuffer.class).invoke(
+                    field.get(null), buffer);
+        } catch (Exception e) {
+            log.debug("Unable to release the mapping of a segment", e);
+        }
+    }
+
+    /**
+     * A memory mapped segment file.
+     */
+    private static class Segment {
+
+        private final int number;
+
+        private final File file;
+
+        private final RandomAccessFile raf;
+
+        private final MappedByteBuffer buffer;
+
+        private final int size;
+
+        /** Number of bytes of the live records in this segment. */
+        private long live;
+
+        Segment(int number, File file, RandomAccessFile raf,
+                MappedByteBuffer buffer, int size) {
+            this.number = number;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        /**
+         * Closes the file and releases the mapping. Must be called while
+         * holding the write lock, after the segment was removed from the
+         * segments, as the buffer can no longer be accessed afterwards.
+         */
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.warn("Failed to close segment " + file, e);
+            }
+            unmap(buffer);
+        }
+
+    }
+
+    /**
+     * The previous index entry of an uncommitted change.
+     */
+    private static class Undo {
+
+        private final Map<NodeId, Long> map;
+
+        private final NodeId id;
+
+        private final Long location;
+
+        /** The previous deltas of a bundle, or <code>null</code>. */
+        private final long[] deltas;
+
+        Undo(Map<NodeId, Long> map, NodeId id, Long location, long[] deltas) {
+            this.map = map;
+            this.id = id;
+            this.location = location;
+            this.deltas = deltas;
+        }
+
+    }
+
+}
@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.jcr.PropertyType;
@@ -73,6 +74,12 @@ public class NodePropBundle {
      */
     private LinkedList<NodePropBundle.ChildNodeEntry> childNodeEntries = new LinkedList<NodePropBundle.ChildNodeEntry>();
 
+    /**
+     * the serialized pages of the child node entries, if they were read or
+     * written in pages
+     */
+    private List<ChildNodePage> childNodePages;
+
     /**
      * the properties
      */
@@ -104,6 +111,22 @@ public class NodePropBundle {
      */
     private Set<NodeId> sharedSet;
 
+    /**
+     * The property entries as last loaded or stored, or <code>null</code>
+     * if the bundle was not {@link #markStored() marked as stored}.
+     */
+    private Map<Name, PropertyEntry> storedProperties;
+
+    /**
+     * The child node entries as last loaded or stored.
+     */
+    private ChildNodeEntry[] storedChildNodeEntries;
+
+    /**
+     * The data size as last loaded or stored.
+     */
+    private long storedSize;
+
     /**
      * Creates a "new" bundle with the given id
      *
@@ -192,6 +215,56 @@ public class NodePropBundle {
         isNew = false;
     }
 
+    /**
+     * Remembers the current properties and child node entries as the
+     * stored revision of this bundle, so that only the changes since then
+     * need to be written (see
+     * {@link BundleBinding#writeBundleDelta(java.io.OutputStream, NodePropBundle)}).
+     * Property entries are compared by identity, which works as the
+     * persistence manager replaces the entries of modified properties.
+     * <p>
+     * This keeps a shallow copy of the properties and child node entries,
+     * so it should only be used by persistence managers that write deltas.
+     */
+    public void markStored() {
+        storedProperties = new HashMap<Name, PropertyEntry>(properties);
+        storedChildNodeEntries = childNodeEntries.toArray(
+                new ChildNodeEntry[childNodeEntries.size()]);
+        storedSize = size;
+    }
+
+    /**
+     * Checks whether this bundle was {@link #markStored() marked as stored}.
+     * @return <code>true</code> if the stored revision is known
+     */
+    public boolean hasStoredState() {
+        return storedProperties != null;
+    }
+
+    /**
+     * Returns the data size of this bundle as last loaded or stored.
+     * @return the stored data size, or 0 if not marked as stored
+     */
+    public long getStoredSize() {
+        return storedSize;
+    }
+
+    /**
+     * Returns the property entries as last loaded or stored.
+     * @return the stored property entries, or <code>null</code>
+     */
+    Map<Name, PropertyEntry> getStoredProperties() {
+        return storedProperties;
+    }
+
+    /**
+     * Returns the child node entries as last loaded or stored.
+     * @return the stored child node entries, or <code>null</code>
+     */
+    ChildNodeEntry[] getStoredChildNodeEntries() {
+        return storedChildNodeEntries;
+    }
+
     /**
      * Returns the node id of this bundle
      * @return the node id of this bundle
@@ -300,6 +373,23 @@ public class NodePropBundle {
         childNodeEntries.add(new ChildNodeEntry(name, id));
     }
 
+    /**
+     * Returns the serialized pages of the child node entries as last read
+     * or written, or <code>null</code>.
+     * @return the pages of the child node entries
+     */
+    List<ChildNodePage> getChildNodePages() {
+        return childNodePages;
+    }
+
+    /**
+     * Sets the serialized pages of the child node entries.
+     * @param childNodePages the pages, or <code>null</code>
+     */
+    void setChildNodePages(List<ChildNodePage> childNodePages) {
+        this.childNodePages = childNodePages;
+    }
+
     /**
      * Adds a new property entry
      * @param entry the enrty to add
@@ -383,6 +473,16 @@ public class NodePropBundle {
         }
     }
     
+    /**
+     * Removes the property entry with the given name, without deleting its
+     * values from the blob store.
+     *
+     * @param name the name of the property
+     */
+    void removePropertyEntry(Name name) {
+        properties.remove(name);
+    }
+
     /**
      * Sets the shared set of this bundle.
      * @return the shared set of this bundle.
@@ -696,6 +796,19 @@ public class NodePropBundle {
             blobIds[n] = blobId;
         }
 
+        /**
+         * Checks whether any value of this entry is stored in the blob store.
+         * @return <code>true</code> if there are blob ids
+         */
+        boolean hasBlobIds() {
+            for (int i = 0; blobIds != null && i < blobIds.length; i++) {
+                if (blobIds[i] != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         /**
          * Returns the mod count.
          * @return the mod count.
@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+/**
+ * Cache of serialized bundles that keeps the bundle data outside of the
+ * Java heap. The memory is split into a fixed number of equally sized
+ * segments that are allocated as direct byte buffers. New entries are
+ * appended to the current segment, and when all segments are full the
+ * oldest segment is discarded as a whole. Only the small id-to-location
+ * index is kept on the heap.
+ * <p>
+ * Each entry in a segment consists of the length of the serialized bundle,
+ * the node id and the serialized bundle itself. The node ids are used to
+ * clean up the index when a segment is discarded. A length of zero marks
+ * the end of the entries in a segment.
+ * <p>
+ * This class is thread-safe.
+ */
+public class OffHeapBundleCache {
+
+    /** Maximum size of a single segment. */
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** Minimum size of a single segment. */
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    /** Size of the entry header: length, and the two longs of the node id. */
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+
+    /** The segments, allocated lazily. */
+    private final ByteBuffer[] segments;
+
+    /** The size of each segment. */
+    private final int segmentSize;
+
+    /** Location of the entries, encoded as segment index and offset. */
+    private final Map<NodeId, Long> index = new ConcurrentHashMap<NodeId, Long>();
+
+    /**
+     * Guards the segments. Reads acquire the read lock, all modifications
+     * acquire the write lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Index of the segment new entries are appended to. */
+    private int current;
+
+    /** Number of bytes used in the current segment. */
+    private int position;
+
+    private final AtomicLong hitCounter;
+
+    private final AtomicLong missCounter;
+
+    private final AtomicLong evictionCounter;
+
+    private final AtomicLong sizeCounter;
+
+    /**
+     * Creates a new off-heap cache.
+     *
+     * @param maxMemorySize the maximum amount of off-heap memory to use
+     * @param hitCounter counter of cache hits
+     * @param missCounter counter of cache misses
+     * @param evictionCounter counter of evicted entries
+     * @param sizeCounter counter of the number of bytes in use
+     */
+    public OffHeapBundleCache(
+            long maxMemorySize, AtomicLong hitCounter, AtomicLong missCounter,
+            AtomicLong evictionCounter, AtomicLong sizeCounter) {
+        long size = Math.max(MIN_SEGMENT_SIZE, maxMemorySize / 8);
+        this.segmentSize = (int) Math.min(MAX_SEGMENT_SIZE, size);
+        this.segments = new ByteBuffer[
+                (int) Math.max(2, maxMemorySize / segmentSize)];
+        this.hitCounter = hitCounter;
+        this.missCounter = missCounter;
+        this.evictionCounter = evictionCounter;
+        this.sizeCounter = sizeCounter;
+    }
+
+    /**
+     * Returns a copy of the serialized bundle with the given id.
+     *
+     * @param id node id
+     * @return serialized bundle, or <code>null</code> if not cached
+     */
+    public byte[] get(NodeId id) {
+        lock.readLock().lock();
+        try {
+            Long location = index.get(id);
+            if (location != null) {
+                ByteBuffer buffer = segments[getSegment(location)].duplicate();
+                buffer.position(getOffset(location));
+                byte[] data = new byte[buffer.getInt()];
+                buffer.position(buffer.position() + 16);
+                buffer.get(data);
+                hitCounter.incrementAndGet();
+                return data;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        missCounter.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds the given serialized bundle to the cache, replacing a previous
+     * entry for the same id. Bundles that are larger than a segment are
+     * not cached.
+     *
+     * @param id node id
+     * @param data serialized bundle
+     */
+    public void put(NodeId id, byte[] data) {
+        int length = HEADER_SIZE + data.length;
+        if (length > segmentSize) {
+            remove(id);
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (segments[current] == null) {
+                segments[current] = ByteBuffer.allocateDirect(segmentSize);
+            }
+            if (position + length > segmentSize) {
+                current = (current + 1) % segments.length;
+                position = 0;
+                if (segments[current] == null) {
+                    segments[current] = ByteBuffer.allocateDirect(segmentSize);
+                } else {
+                    evictSegment(current);
+                }
+            }
+
+            ByteBuffer buffer = segments[current].duplicate();
+            buffer.position(position);
+            buffer.putInt(data.length);
+            buffer.putLong(id.getMostSignificantBits());
+            buffer.putLong(id.getLeastSignificantBits());
+            buffer.put(data);
+
+            index.put(id, ((long) current << 32) | position);
+            position += length;
+            sizeCounter.addAndGet(length);
+
+            // terminate the list of entries in this segment
+            if (position + 4 <= segmentSize) {
+                segments[current].putInt(position, 0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the entry with the given id. The space used by the entry is
+     * only reclaimed when its segment is discarded.
+     *
+     * @param id node id
+     */
+    public void remove(NodeId id) {
+        index.remove(id);
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            index.clear();
+            for (ByteBuffer segment : segments) {
+                if (segment != null) {
+                    segment.putInt(0, 0);
+                }
+            }
+            current = 0;
+            position = 0;
+            sizeCounter.set(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of cached bundles.
+     *
+     * @return number of cached bundles
+     */
+    public long getElementCount() {
+        return index.size();
+    }
+
+    /**
+     * Returns information about the cache as a string.
+     *
+     * @return cache information
+     */
+    public String getCacheInfoAsString() {
+        return "offheap bundle cache: elements=" + getElementCount()
+            + ", segments=" + segments.length
+            + ", segmentsizekb=" + segmentSize / 1024
+            + ", usedmemorykb=" + sizeCounter.get() / 1024
+            + ", hit=" + hitCounter.get()
+            + ", miss=" + missCounter.get()
+            + ", evicted=" + evictionCounter.get();
+    }
+
+    /**
+     * Discards all entries in the given segment. Must be called while
+     * holding the write lock.
+     *
+     * @param segment index of the segment to discard
+     */
+    private void evictSegment(int segment) {
+        ByteBuffer buffer = segments[segment].duplicate();
+        buffer.position(0);
+        long freed = 0;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int offset = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0) {
+                // reached the unused tail of the segment
+                break;
+            }
+            NodeId id = new NodeId(buffer.getLong(), buffer.getLong());
+            if (index.remove(id, ((long) segment << 32) | offset)) {
+                evictionCounter.incrementAndGet();
+            }
+            buffer.position(buffer.position() + length);
+            freed += HEADER_SIZE + length;
+        }
+        // mark the segment as empty
+        segments[segment].putInt(0, 0);
+        sizeCounter.addAndGet(-freed);
+    }
+
+    private static int getSegment(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int getOffset(long location) {
+        return (int) location;
+    }
+
+}
@@ -0,0 +1,431 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.ItemStateManager;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.lucene.store.Directory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the index updates of saved changes in the background, so that a
+ * save does not pay for creating the documents of the changed nodes.
+ * <p>
+ * The ids of the changed nodes are appended to a log with the format of the
+ * {@link RedoLog} before the save returns. If the process terminates before
+ * they are applied, the log is replayed when the index is opened again.
+ * Changes that are saved while a batch is applied are combined into the next
+ * batch. The documents are created from the node states when the batch is
+ * applied, so a node that was changed several times is only indexed once.
+ * <p>
+ * Queries may not see the most recent changes. If changes older than the
+ * maximum delay are pending when a node is saved, and no batch is being
+ * applied, the saving thread applies them itself. The saving thread never
+ * waits for the indexer, as it still holds a read lock on the item states.
+ * {@link #waitForIndex(long)} waits until the changes saved before it was
+ * called are part of the index.
+ */
+class AsyncIndexer {
+
+    /**
+     * The logger instance for this class.
+     */
+    private static final Logger log =
+        LoggerFactory.getLogger(AsyncIndexer.class);
+
+    /**
+     * The generations of the two log files, which are used alternately.
+     */
+    private static final long[] GENERATIONS = {1, 2};
+
+    private final SearchIndex handler;
+
+    private final ItemStateManager stateMgr;
+
+    private final Directory directory;
+
+    private final Executor executor;
+
+    /**
+     * The maximum time in milliseconds until a saved change is applied.
+     */
+    private final long maxDelay;
+
+    /**
+     * Held while a batch is applied.
+     */
+    private final ReentrantLock applyLock = new ReentrantLock();
+
+    /**
+     * Applies batches until no more changes are pending.
+     */
+    private final Runnable task = new Runnable() {
+        public void run() {
+            while (true) {
+                applyPending(true);
+                synchronized (AsyncIndexer.this) {
+                    if (removed.isEmpty() && added.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+            }
+        }
+    };
+
+    // the following fields are guarded by this
+
+    /**
+     * The nodes to remove from the index.
+     */
+    private Set<NodeId> removed = new LinkedHashSet<NodeId>();
+
+    /**
+     * The nodes to add to the index.
+     */
+    private Set<NodeId> added = new LinkedHashSet<NodeId>();
+
+    /**
+     * The time of the oldest pending change, or 0 if there is none.
+     */
+    private long pendingSince;
+
+    /**
+     * The time of the oldest change of the batch that is applied, or 0 if
+     * no batch is applied.
+     */
+    private long applyingSince;
+
+    /**
+     * The number of saves enqueued so far.
+     */
+    private long enqueued;
+
+    /**
+     * The number of saves applied so far.
+     */
+    private long applied;
+
+    /**
+     * The index in {@link #GENERATIONS} of the current log file.
+     */
+    private int current;
+
+    /**
+     * The current log, or <code>null</code> if it is not open.
+     */
+    private RedoLog redoLog;
+
+    /**
+     * Whether the {@link #task} is scheduled or running.
+     */
+    private boolean scheduled;
+
+    /**
+     * Creates the indexer and applies the changes that were logged but not
+     * applied before the index was closed.
+     *
+     * @param handler   the search index.
+     * @param stateMgr  the item state manager to read the nodes from.
+     * @param directory the directory for the log files.
+     * @param executor  the executor that runs the indexer.
+     * @param maxDelay  the maximum time in milliseconds until a saved
+     *                  change is applied.
+     * @throws IOException if the logged changes cannot be applied.
+     */
+    AsyncIndexer(SearchIndex handler, ItemStateManager stateMgr,
+                 Directory directory, Executor executor, long maxDelay)
+            throws IOException {
+        this.handler = handler;
+        this.stateMgr = stateMgr;
+        this.directory = directory;
+        this.executor = executor;
+        this.maxDelay = maxDelay;
+        for (long generation : GENERATIONS) {
+            RedoLog pending = DefaultRedoLog.create(directory, generation);
+            for (MultiIndex.Action action : pending.getActions()) {
+                NodeId id = MultiIndex.getNodeId(action);
+                if (action.getType() == MultiIndex.Action.TYPE_DELETE_NODE) {
+                    removed.add(id);
+                } else if (action.getType() == MultiIndex.Action.TYPE_ADD_NODE) {
+                    added.add(id);
+                }
+            }
+            pending.close();
+        }
+        if (!removed.isEmpty() || !added.isEmpty()) {
+            log.info("Applying {} pending index updates", removed.size() + added.size());
+            try {
+                handler.doUpdateNodes(removed.iterator(), new NodeStates(added));
+            } catch (RepositoryException e) {
+                IOException ex = new IOException("Unable to apply pending index updates");
+                ex.initCause(e);
+                throw ex;
+            }
+            removed.clear();
+            added.clear();
+        }
+        for (int i = 0; i < GENERATIONS.length; i++) {
+            deleteLog(i);
+        }
+    }
+
+    /**
+     * Logs the changes of a save and schedules the indexer. If changes older
+     * than the maximum delay are pending and no batch is being applied, they
+     * are applied in the current thread.
+     *
+     * @param remove the ids of the nodes to remove from the index.
+     * @param add    the states of the nodes to add to the index. The
+     *               iterator may return <code>null</code>.
+     * @throws IOException if the changes cannot be logged.
+     */
+    void enqueue(Iterator<NodeId> remove, Iterator<NodeState> add)
+            throws IOException {
+        // read the states before synchronizing
+        List<NodeId> removeIds = new ArrayList<NodeId>();
+        while (remove.hasNext()) {
+            removeIds.add(remove.next());
+        }
+        List<NodeId> addIds = new ArrayList<NodeId>();
+        while (add.hasNext()) {
+            NodeState state = add.next();
+            if (state != null) {
+                addIds.add(state.getNodeId());
+            }
+        }
+        if (removeIds.isEmpty() && addIds.isEmpty()) {
+            return;
+        }
+
+        boolean stale;
+        synchronized (this) {
+            if (redoLog == null) {
+                redoLog = DefaultRedoLog.create(directory, GENERATIONS[current]);
+            }
+            for (NodeId id : removeIds) {
+                redoLog.append(MultiIndex.createDeleteNode(id));
+            }
+            for (NodeId id : addIds) {
+                redoLog.append(MultiIndex.createAddNode(id));
+            }
+            redoLog.flush();
+            removed.addAll(removeIds);
+            added.addAll(addIds);
+            enqueued++;
+
+            long now = System.currentTimeMillis();
+            if (pendingSince == 0) {
+                pendingSince = now;
+            }
+            long oldest = applyingSince != 0 ? applyingSince : pendingSince;
+            stale = now - oldest > maxDelay;
+            if (!scheduled) {
+                scheduled = true;
+                executor.execute(task);
+            }
+        }
+        if (stale) {
+            applyPending(false);
+        }
+    }
+
+    /**
+     * Waits until the changes that were saved before this method is called
+     * are applied to the index.
+     *
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return <code>true</code> if the changes are applied,
+     *         <code>false</code> if the timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    synchronized boolean waitForIndex(long timeout)
+            throws InterruptedException {
+        long target = enqueued;
+        long end = System.currentTimeMillis() + timeout;
+        while (applied < target) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Applies the pending changes and closes the log.
+     */
+    void close() {
+        applyPending(true);
+        synchronized (this) {
+            try {
+                if (redoLog != null) {
+                    redoLog.close();
+                    redoLog = null;
+                }
+                directory.close();
+            } catch (IOException e) {
+                log.warn("Unable to close the log of pending index updates", e);
+            }
+        }
+    }
+
+    /**
+     * Applies the pending changes as one batch. Errors are logged, as when
+     * the index is updated within a save.
+     *
+     * @param wait whether to wait if another thread applies a batch.
+     */
+    private void applyPending(boolean wait) {
+        if (wait) {
+            applyLock.lock();
+        } else if (!applyLock.tryLock()) {
+            return;
+        }
+        try {
+            Set<NodeId> remove;
+            Set<NodeId> add;
+            long target;
+            synchronized (this) {
+                if (removed.isEmpty() && added.isEmpty()) {
+                    return;
+                }
+                remove = removed;
+                add = added;
+                removed = new LinkedHashSet<NodeId>();
+                added = new LinkedHashSet<NodeId>();
+                applyingSince = pendingSince;
+                pendingSince = 0;
+                target = enqueued;
+            }
+
+            long time = System.currentTimeMillis();
+            try {
+                handler.doUpdateNodes(remove.iterator(), new NodeStates(add));
+            } catch (RepositoryException e) {
+                log.error("Error indexing node.", e);
+            } catch (IOException e) {
+                log.error("Error indexing node.", e);
+            }
+            time = System.currentTimeMillis() - time;
+            log.debug("Applied {} pending index updates in {}ms",
+                    remove.size() + add.size(), time);
+
+            synchronized (this) {
+                applyingSince = 0;
+                applied = target;
+                try {
+                    rotate();
+                } catch (IOException e) {
+                    log.warn("Unable to write the log of pending index updates", e);
+                }
+                notifyAll();
+            }
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the changes that are still pending to the other log file, and
+     * deletes the current one. Called while synchronized on this.
+     *
+     * @throws IOException if the log cannot be written.
+     */
+    private void rotate() throws IOException {
+        int next = (current + 1) % GENERATIONS.length;
+        deleteLog(next);
+        RedoLog nextLog = null;
+        if (!removed.isEmpty() || !added.isEmpty()) {
+            nextLog = DefaultRedoLog.create(directory, GENERATIONS[next]);
+            for (NodeId id : removed) {
+                nextLog.append(MultiIndex.createDeleteNode(id));
+            }
+            for (NodeId id : added) {
+                nextLog.append(MultiIndex.createAddNode(id));
+            }
+            nextLog.flush();
+        }
+        if (redoLog != null) {
+            redoLog.close();
+        }
+        deleteLog(current);
+        redoLog = nextLog;
+        current = next;
+    }
+
+    private void deleteLog(int index) throws IOException {
+        String name = DefaultRedoLog.REDO_LOG_PREFIX
+                + Long.toString(GENERATIONS[index], Character.MAX_RADIX)
+                + DefaultRedoLog.DOT_LOG;
+        if (directory.fileExists(name)) {
+            directory.deleteFile(name);
+        }
+    }
+
+    /**
+     * Returns the current states of the nodes to add, or <code>null</code>
+     * for nodes that do not exist anymore.
+     */
+    private class NodeStates implements Iterator<NodeState> {
+
+        private final Iterator<NodeId> ids;
+
+        NodeStates(Set<NodeId> ids) {
+            this.ids = ids.iterator();
+        }
+
+        public boolean hasNext() {
+            return ids.hasNext();
+        }
+
+        public NodeState next() {
+            if (!ids.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            NodeId id = ids.next();
+            try {
+                return (NodeState) stateMgr.getItemState(id);
+            } catch (ItemStateException e) {
+                log.debug("Node no longer available {}, skipped.", id);
+                return null;
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
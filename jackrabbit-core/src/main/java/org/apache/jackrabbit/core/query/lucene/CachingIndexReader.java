@@ -28,6 +28,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.collections4.map.LRUMap;
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.NodeIdMap;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.index.CorruptIndexException;
@@ -464,7 +465,7 @@ class CachingIndexReader extends FilterIndexReader {
 
             for (;;) {
                 final Map<Object, NodeInfo> docs = new HashMap<Object, NodeInfo>();
-                final Map<NodeId, Integer> parents = new HashMap<NodeId, Integer>();
+                final NodeIdMap<Integer> parents = new NodeIdMap<Integer>();
 
                 if (startUUID[0].text().length() != 0) {
                     // force reading the next uuid after startUUID
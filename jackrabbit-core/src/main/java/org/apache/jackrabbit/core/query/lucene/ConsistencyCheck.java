@@ -30,6 +30,7 @@ import org.apache.jackrabbit.core.state.NodeState;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.ChildNodeEntry;
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.NodeIdMap;
 import org.apache.jackrabbit.spi.Path;
 import org.apache.jackrabbit.spi.commons.conversion.MalformedPathException;
 import org.apache.jackrabbit.spi.commons.name.NameConstants;
@@ -43,11 +44,9 @@ import javax.jcr.RepositoryException;
 
 import java.io.IOException;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 
@@ -96,7 +95,7 @@ public class ConsistencyCheck {
     /**
      * All the node ids and whether they were found in the index.
      */
-    private Map<NodeId, Boolean> nodeIds;
+    private NodeIdMap<Boolean> nodeIds;
 
     /**
      * Paths of nodes that are not be indexed
@@ -262,7 +261,7 @@ public class ConsistencyCheck {
         log.info("Loading nodes");
         try {
             int count = 0;
-            Map<NodeId, Boolean> nodeIds = new HashMap<NodeId, Boolean>();
+            NodeIdMap<Boolean> nodeIds = new NodeIdMap<Boolean>();
             List<NodeId> batch = pm.getAllNodeIds(null, NODESATONCE);
             NodeId lastId = null;
             while (!batch.isEmpty()) {
@@ -387,10 +386,10 @@ public class ConsistencyCheck {
         log.info("Checking index completeness");
         int i = 0;
         int size = nodeIds.size();
-        for (Map.Entry<NodeId, Boolean> entry : nodeIds.entrySet()) {
+        for (Iterator<NodeId> it = nodeIds.keyIterator(); it.hasNext(); ) {
             // check whether all nodes in the repository are indexed
-            NodeId nodeId = entry.getKey();
-            boolean indexed = entry.getValue();
+            NodeId nodeId = it.next();
+            boolean indexed = nodeIds.get(nodeId);
             try {
                 if (++i > 10 && i % (size / 10) == 0) {
                     long progress = Math.round((100.0 * (float) i) / (float) size);
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the progress while the initial index of a workspace is
+ * created, and publishes it as a JMX MBean. The remaining time is estimated
+ * from the number of nodes in the persistence manager, which are counted in
+ * a background thread if the persistence manager can iterate over its node
+ * ids. Nodes of other persistence managers that are indexed as well, for
+ * example the version storage, are not counted.
+ */
+public class IndexingProgress implements IndexingProgressMBean {
+
+    /**
+     * The logger instance for this class.
+     */
+    private static final Logger log =
+        LoggerFactory.getLogger(IndexingProgress.class);
+
+    /**
+     * The number of node ids that are read at once when counting the nodes.
+     */
+    private static final int COUNT_BATCH_SIZE = 10000;
+
+    private final String indexPath;
+
+    private final int threads;
+
+    private final long start = System.currentTimeMillis();
+
+    private final AtomicLong indexed = new AtomicLong();
+
+    private volatile long total = -1;
+
+    private volatile boolean finished;
+
+    private ObjectName objectName;
+
+    /**
+     * Creates the progress of a new index.
+     *
+     * @param indexPath the path of the index
+     * @param threads the number of threads that create the index
+     */
+    public IndexingProgress(String indexPath, int threads) {
+        this.indexPath = indexPath;
+        this.threads = threads;
+    }
+
+    /**
+     * Counts the nodes of the given persistence manager in a background
+     * thread, to estimate the remaining time.
+     *
+     * @param pm the persistence manager
+     */
+    public void countNodes(final IterablePersistenceManager pm) {
+        Thread counter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    long count = 0;
+                    NodeId after = null;
+                    List<NodeId> ids;
+                    do {
+                        ids = pm.getAllNodeIds(after, COUNT_BATCH_SIZE);
+                        count += ids.size();
+                        if (!ids.isEmpty()) {
+                            after = ids.get(ids.size() - 1);
+                        }
+                    } while (ids.size() == COUNT_BATCH_SIZE && !finished);
+                    total = count;
+                    log.debug("Counted {} nodes to index", count);
+                } catch (Exception e) {
+                    log.debug("Unable to count the nodes to index", e);
+                }
+            }
+        }, "IndexingProgress node count " + indexPath);
+        counter.setDaemon(true);
+        counter.start();
+    }
+
+    /**
+     * Called after a node has been added to the index.
+     *
+     * @return the number of nodes indexed so far
+     */
+    public long nodeIndexed() {
+        return indexed.incrementAndGet();
+    }
+
+    /**
+     * Called when the index is complete, stops counting the nodes.
+     */
+    public void finished() {
+        finished = true;
+    }
+
+    /**
+     * Registers this progress with the platform MBean server.
+     */
+    public synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(
+                    "org.apache.jackrabbit:type=IndexingProgress,name="
+                    + ObjectName.quote(indexPath));
+            server.registerMBean(this, on);
+            objectName = on;
+        } catch (JMException e) {
+            log.warn("Unable to register the indexing progress MBean", e);
+        }
+    }
+
+    /**
+     * Unregisters this progress from the platform MBean server, if it was
+     * registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        objectName);
+            } catch (JMException e) {
+                log.warn("Unable to unregister the indexing progress MBean", e);
+            }
+            objectName = null;
+        }
+    }
+
+    //-----------------------------------------< IndexingProgressMBean >--
+
+    public String getIndexPath() {
+        return indexPath;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public long getIndexedNodes() {
+        return indexed.get();
+    }
+
+    public long getTotalNodes() {
+        return total;
+    }
+
+    public long getElapsedTime() {
+        return System.currentTimeMillis() - start;
+    }
+
+    public double getNodesPerSecond() {
+        long elapsed = getElapsedTime();
+        return elapsed > 0 ? indexed.get() * 1000.0 / elapsed : 0;
+    }
+
+    public long getEstimatedRemainingTime() {
+        long count = indexed.get();
+        long t = total;
+        if (t < 0 || count == 0) {
+            return -1;
+        }
+        // more nodes than counted may be indexed
+        return Math.max(0, (t - count) * getElapsedTime() / count);
+    }
+
+    @Override
+    public String toString() {
+        return indexPath + ": " + indexed.get() + "/" + total + " nodes";
+    }
+
+}
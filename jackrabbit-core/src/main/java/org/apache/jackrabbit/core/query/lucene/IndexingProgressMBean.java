@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+/**
+ * Management interface of the {@link IndexingProgress}, registered as a JMX
+ * MBean while the initial index of a workspace is created.
+ */
+public interface IndexingProgressMBean {
+
+    /**
+     * Get the path of the index that is being created.
+     * @return the index path
+     */
+    String getIndexPath();
+
+    /**
+     * Get the number of threads that create the index.
+     * @return the number of threads
+     */
+    int getThreads();
+
+    /**
+     * Get the number of nodes indexed so far.
+     * @return the number of nodes
+     */
+    long getIndexedNodes();
+
+    /**
+     * Get the estimated number of nodes to index. The persistence manager
+     * nodes are counted in the background, which may take a while.
+     * @return the number of nodes, or -1 if not known (yet)
+     */
+    long getTotalNodes();
+
+    /**
+     * Get the time since indexing started.
+     * @return the time in milliseconds
+     */
+    long getElapsedTime();
+
+    /**
+     * Get the average number of nodes indexed per second.
+     * @return the number of nodes per second
+     */
+    double getNodesPerSecond();
+
+    /**
+     * Get the estimated time until all nodes are indexed.
+     * @return the time in milliseconds, or -1 if not known (yet)
+     */
+    long getEstimatedRemainingTime();
+
+}
@@ -108,6 +108,7 @@ import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TotalHitCountCollector;
 
 /**
  * Factory that creates Lucene queries from QOM elements.
@@ -197,26 +198,15 @@ public class LuceneQueryFactory {
                     session, reader, index.getContext().getItemStateManager());
             searcher.setSimilarity(index.getSimilarity());
 
-            Predicate filter = Predicate.TRUE;
-            BooleanQuery query = new BooleanQuery();
-
-            QueryPair qp = new QueryPair(query);
-
-            query.add(create(selector), MUST);
-            if (constraint != null) {
-                String name = selector.getSelectorName();
-                NodeType type =
-                    ntManager.getNodeType(selector.getNodeTypeName());
-                filter = mapConstraintToQueryAndFilter(qp,
-                        constraint, Collections.singletonMap(name, type),
-                        searcher, reader);
-            }
+            QueryPair qp = new QueryPair(new BooleanQuery());
+            Predicate filter =
+                create(qp, selector, constraint, searcher, reader);
 
             List<Row> rows = new ArrayList<Row>();
 
             // TODO depending on the filters, we could push the offset info
             // into the searcher
-            hits = searcher.evaluate(qp.mainQuery, sort, offset + limit);
+            hits = searcher.evaluate(qp.mainQuery, sort, (long) offset + limit);
             int currentNode = 0;
             int addedNodes = 0;
 
@@ -260,6 +250,60 @@ public class LuceneQueryFactory {
         }
     }
 
+    /**
+     * Returns the number of index hits for the given selector and
+     * constraint, without loading any nodes. Constraints that can only be
+     * evaluated on the loaded rows and access control are not taken into
+     * account, so the result is an upper bound for the number of rows
+     * returned by {@link #execute(Map, Selector, Constraint, Sort, boolean, long, long)}.
+     *
+     * @param selector the selector
+     * @param constraint the constraint, or <code>null</code>
+     * @return the number of hits
+     * @throws RepositoryException if the query can not be created
+     * @throws IOException if the index can not be read
+     */
+    public int count(Selector selector, Constraint constraint)
+            throws RepositoryException, IOException {
+        final IndexReader reader = index.getIndexReader(true);
+        try {
+            JackrabbitIndexSearcher searcher = new JackrabbitIndexSearcher(
+                    session, reader, index.getContext().getItemStateManager());
+            searcher.setSimilarity(index.getSimilarity());
+
+            QueryPair qp = new QueryPair(new BooleanQuery());
+            create(qp, selector, constraint, searcher, reader);
+
+            TotalHitCountCollector collector = new TotalHitCountCollector();
+            searcher.search(qp.mainQuery, collector);
+            return collector.getTotalHits();
+        } finally {
+            Util.closeOrRelease(reader);
+        }
+    }
+
+    /**
+     * Adds the query for the given selector and constraint to the main
+     * query of the given query pair.
+     *
+     * @return the filter for the constraints that are not part of the query
+     */
+    private Predicate create(
+            QueryPair qp, Selector selector, Constraint constraint,
+            JackrabbitIndexSearcher searcher, IndexReader reader)
+            throws RepositoryException, IOException {
+        qp.subQuery.add(create(selector), MUST);
+        if (constraint != null) {
+            String name = selector.getSelectorName();
+            NodeType type =
+                ntManager.getNodeType(selector.getNodeTypeName());
+            return mapConstraintToQueryAndFilter(qp,
+                    constraint, Collections.singletonMap(name, type),
+                    searcher, reader);
+        }
+        return Predicate.TRUE;
+    }
+
     /**
      * Creates a lucene query for the given QOM selector.
      *
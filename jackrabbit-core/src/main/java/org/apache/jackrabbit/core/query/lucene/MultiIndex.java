@@ -29,13 +29,20 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
 
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
 import org.apache.jackrabbit.core.query.lucene.directory.DirectoryManager;
 import org.apache.jackrabbit.core.state.ChildNodeEntry;
 import org.apache.jackrabbit.core.state.ItemStateException;
@@ -362,7 +369,9 @@ public class MultiIndex {
 
     /**
      * Creates an initial index by traversing the node hierarchy starting at the
-     * node with <code>rootId</code>.
+     * node with <code>rootId</code>. If {@link SearchIndex#getInitialIndexThreads()}
+     * is more than one, subtrees are indexed concurrently. The progress is
+     * published as an {@link IndexingProgressMBean}.
      *
      * @param stateMgr the item state manager.
      * @param rootId   the id of the node from where to start.
@@ -378,12 +387,25 @@ public class MultiIndex {
         // only do an initial index if there are no indexes at all
         if (indexNames.size() == 0) {
             reindexing = true;
+            int threads = handler.getInitialIndexThreads();
+            IndexingProgress progress =
+                new IndexingProgress(handler.getPath(), threads);
+            PersistenceManager pm = handler.getContext().getPersistenceManager();
+            if (pm instanceof IterablePersistenceManager) {
+                progress.countNodes((IterablePersistenceManager) pm);
+            }
+            progress.registerMBean();
             try {
                 long count = 0;
                 // traverse and index workspace
                 executeAndLog(new Start(Action.INTERNAL_TRANSACTION));
                 NodeState rootState = (NodeState) stateMgr.getItemState(rootId);
-                count = createIndex(rootState, rootPath, stateMgr, count);
+                if (threads > 1) {
+                    count = new InitialIndexBuilder(stateMgr, threads, progress)
+                            .createIndex(rootState, rootPath);
+                } else {
+                    count = createIndex(rootState, rootPath, stateMgr, count, progress);
+                }
                 checkIndexingQueue(true);
                 executeAndLog(new Commit(getTransactionId()));
                 log.debug("Created initial index for {} nodes", count);
@@ -395,6 +417,8 @@ public class MultiIndex {
                 ex.initCause(e);
                 throw ex;
             } finally {
+                progress.finished();
+                progress.unregisterMBean();
                 reindexing = false;
                 scheduleFlushTask();
             }
@@ -1108,10 +1132,21 @@ public class MultiIndex {
         if (volatileIndex != null) {
             volatileIndex.close();
         }
-        volatileIndex = new VolatileIndex(handler.getTextAnalyzer(),
+        volatileIndex = createVolatileIndex();
+    }
+
+    /**
+     * Creates a new volatile index with the settings of the handler.
+     *
+     * @return the volatile index.
+     * @throws IOException if the volatile index cannot be created.
+     */
+    private VolatileIndex createVolatileIndex() throws IOException {
+        VolatileIndex index = new VolatileIndex(handler.getTextAnalyzer(),
                 handler.getSimilarity(), indexingQueue);
-        volatileIndex.setUseCompoundFile(handler.getUseCompoundFile());
-        volatileIndex.setBufferSize(handler.getBufferSize());
+        index.setUseCompoundFile(handler.getUseCompoundFile());
+        index.setBufferSize(handler.getBufferSize());
+        return index;
     }
 
     /**
@@ -1205,6 +1240,7 @@ public class MultiIndex {
      * @param path     the path of the current <code>node</code> state.
      * @param stateMgr the shared item state manager.
      * @param count    the number of nodes already indexed.
+     * @param progress the progress of the initial index.
      * @return the number of nodes indexed so far.
      * @throws IOException         if an error occurs while writing to the
      *                             index.
@@ -1214,13 +1250,15 @@ public class MultiIndex {
     private long createIndex(NodeState node,
                              Path path,
                              ItemStateManager stateMgr,
-                             long count)
+                             long count,
+                             IndexingProgress progress)
             throws IOException, ItemStateException, RepositoryException {
         NodeId id = node.getNodeId();
         if (excludedIDs.contains(id)) {
             return count;
         }
         executeAndLog(new AddNode(getTransactionId(), id));
+        progress.nodeIndexed();
         if (++count % 100 == 0) {
             PathResolver resolver = new DefaultNamePathResolver(
                     handler.getContext().getNamespaceRegistry());
@@ -1245,7 +1283,7 @@ public class MultiIndex {
                         handler, childPath, node, child);
             }
             if (childState != null) {
-                count = createIndex(childState, childPath, stateMgr, count);
+                count = createIndex(childState, childPath, stateMgr, count, progress);
             }
         }
         return count;
@@ -1340,10 +1378,27 @@ public class MultiIndex {
      *                           the indexing queue to the index.
      */
     private void checkIndexingQueue(boolean transactionPresent) {
+        checkIndexingQueue(transactionPresent, Collections.<NodeId>emptySet());
+    }
+
+    /**
+     * Checks the indexing queue for finished text extrator jobs, except for
+     * the given nodes, and updates the index accordingly if there are any
+     * new ones.
+     *
+     * @param transactionPresent whether a transaction is in progress.
+     * @param unsettled          the nodes whose documents are left in the
+     *                           queue, because they are not yet part of a
+     *                           registered index.
+     */
+    private void checkIndexingQueue(boolean transactionPresent,
+                                    Set<NodeId> unsettled) {
         Map<NodeId, Document> finished = new HashMap<NodeId, Document>();
         for (Document document : indexingQueue.getFinishedDocuments()) {
             NodeId id = new NodeId(document.get(FieldNames.UUID));
-            finished.put(id, document);
+            if (!unsettled.contains(id)) {
+                finished.put(id, document);
+            }
         }
 
         // now update index with the remaining ones if there are any
@@ -1387,6 +1442,326 @@ public class MultiIndex {
         }
     }
 
+    //------------------------< InitialIndexBuilder >---------------------------
+
+    /**
+     * Creates the initial index with several threads. Each thread adds the
+     * documents of the subtrees it traverses to its own volatile index, which
+     * becomes a new persistent index once it is full, and the index merger
+     * combines these indexes later. A thread hands a child subtree to another
+     * thread instead of traversing it when there are not enough queued
+     * subtrees for the other threads.
+     * <p>
+     * Documents of the thread indexes are not written to the redo log, but
+     * only the creation of the persistent indexes. The documents that are
+     * re-indexed after text extraction finished must only be applied once
+     * the index that contains their placeholder has been added, otherwise
+     * the placeholder would not be deleted. Until then, their nodes are
+     * <code>unsettled</code>.
+     */
+    private class InitialIndexBuilder {
+
+        /**
+         * The interval in milliseconds in which the indexing queue is checked
+         * while the threads create the index.
+         */
+        private static final long CHECK_INTERVAL = 1000;
+
+        private final ItemStateManager stateMgr;
+
+        private final int threads;
+
+        private final IndexingProgress progress;
+
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * The index segment of the current thread.
+         */
+        private final ThreadLocal<Segment> segment = new ThreadLocal<Segment>();
+
+        /**
+         * The segments of all threads.
+         */
+        private final List<Segment> segments =
+            Collections.synchronizedList(new ArrayList<Segment>());
+
+        /**
+         * The nodes that were not ready when they were added to a segment
+         * that has not been added yet.
+         */
+        private final Set<NodeId> unsettled =
+            Collections.newSetFromMap(new ConcurrentHashMap<NodeId, Boolean>());
+
+        /**
+         * The number of subtrees that are queued or being indexed.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * The first exception thrown by a thread.
+         */
+        private volatile Throwable failure;
+
+        InitialIndexBuilder(ItemStateManager stateMgr, int threads,
+                            IndexingProgress progress) {
+            this.stateMgr = stateMgr;
+            this.threads = threads;
+            this.progress = progress;
+            final String name = "MultiIndex initial index " + handler.getPath();
+            executor = new ThreadPoolExecutor(threads, threads,
+                    0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, name);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+
+        /**
+         * Indexes the subtree of the given node and adds the segments of all
+         * threads. Must be called within a transaction.
+         *
+         * @param root     the root node.
+         * @param rootPath the path of the root node.
+         * @return the number of nodes indexed.
+         * @throws Exception if indexing fails.
+         */
+        long createIndex(NodeState root, Path rootPath) throws Exception {
+            try {
+                submit(root, rootPath);
+                while (!await()) {
+                    checkIndexingQueue(true, unsettled);
+                    synchronized (MultiIndex.this) {
+                        checkVolatileCommit();
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            Throwable t = failure;
+            try {
+                if (t == null) {
+                    for (Segment s : segments) {
+                        s.commit();
+                    }
+                }
+            } finally {
+                for (Segment s : segments) {
+                    s.close();
+                }
+            }
+            if (t instanceof Exception) {
+                throw (Exception) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            return progress.getIndexedNodes();
+        }
+
+        /**
+         * Waits for a while until all subtrees are indexed or one failed.
+         *
+         * @return <code>true</code> if indexing is done.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        private boolean await() throws InterruptedException {
+            synchronized (pending) {
+                if (pending.get() > 0 && failure == null) {
+                    pending.wait(CHECK_INTERVAL);
+                }
+                return pending.get() == 0 || failure != null;
+            }
+        }
+
+        private void submit(final NodeState node, final Path path) {
+            pending.incrementAndGet();
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        index(node, path);
+                    } catch (Throwable t) {
+                        synchronized (pending) {
+                            if (failure == null) {
+                                failure = t;
+                            }
+                            pending.notifyAll();
+                        }
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            synchronized (pending) {
+                                pending.notifyAll();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Recursively indexes the subtree of the given node in the current
+         * thread, and submits child subtrees if other threads are idle.
+         */
+        private void index(NodeState node, Path path)
+                throws IOException, RepositoryException {
+            NodeId id = node.getNodeId();
+            if (excludedIDs.contains(id) || failure != null) {
+                return;
+            }
+            Document doc = null;
+            try {
+                doc = createDocument(node);
+            } catch (RepositoryException e) {
+                // node does not exist anymore
+                log.debug(e.getMessage());
+            }
+            if (doc != null) {
+                getSegment().add(id, doc);
+            }
+            long count = progress.nodeIndexed();
+            if (count % 100 == 0) {
+                PathResolver resolver = new DefaultNamePathResolver(
+                        handler.getContext().getNamespaceRegistry());
+                log.info("indexing... {} ({})", resolver.getJCRPath(path), count);
+            }
+            for (ChildNodeEntry child : node.getChildNodeEntries()) {
+                Path childPath = PATH_FACTORY.create(path, child.getName(),
+                        child.getIndex(), false);
+                NodeState childState = null;
+                try {
+                    childState = (NodeState) stateMgr.getItemState(child.getId());
+                } catch (NoSuchItemStateException e) {
+                    handler.getOnWorkspaceInconsistencyHandler().handleMissingChildNode(
+                            e, handler, path, node, child);
+                } catch (ItemStateException e) {
+                    // JCR-3268 log bundle corruption and continue
+                    handler.getOnWorkspaceInconsistencyHandler().logError(e,
+                            handler, childPath, node, child);
+                }
+                if (childState != null) {
+                    if (executor.getQueue().size() < threads) {
+                        submit(childState, childPath);
+                    } else {
+                        index(childState, childPath);
+                    }
+                }
+            }
+        }
+
+        private Segment getSegment() throws IOException {
+            Segment s = segment.get();
+            if (s == null) {
+                s = new Segment();
+                segment.set(s);
+                segments.add(s);
+            }
+            return s;
+        }
+
+        /**
+         * The volatile index of a thread.
+         */
+        private class Segment {
+
+            private VolatileIndex index = createVolatileIndex();
+
+            /**
+             * The unsettled nodes in this segment.
+             */
+            private final List<NodeId> unsettledIds = new ArrayList<NodeId>();
+
+            Segment() throws IOException {
+            }
+
+            void add(NodeId id, Document doc) throws IOException {
+                if (!Util.isDocumentReady(doc)) {
+                    unsettled.add(id);
+                    unsettledIds.add(id);
+                }
+                index.addDocuments(new Document[]{doc});
+                if (index.getRamSizeInBytes() >= handler.getMaxVolatileIndexSize()) {
+                    commit();
+                }
+            }
+
+            /**
+             * Copies the documents to a new persistent index and adds it.
+             */
+            void commit() throws IOException {
+                if (index.getNumDocuments() == 0) {
+                    return;
+                }
+                long time = System.currentTimeMillis();
+                int numDocs = index.getNumDocuments();
+                CreateIndex create;
+                synchronized (MultiIndex.this) {
+                    create = new CreateIndex(getTransactionId(), null);
+                    executeAndLog(create);
+                }
+                getOrCreateIndex(create.getIndexName()).copyIndex(index);
+                synchronized (MultiIndex.this) {
+                    executeAndLog(new AddIndex(getTransactionId(), create.getIndexName()));
+                }
+                unsettled.removeAll(unsettledIds);
+                unsettledIds.clear();
+                index.close();
+                index = createVolatileIndex();
+                time = System.currentTimeMillis() - time;
+                log.debug("Committed in-memory index containing {} documents in {}ms.", numDocs, time);
+            }
+
+            void close() {
+                index.close();
+            }
+
+        }
+
+    }
+
+    //------------------------< AsyncIndexer support >-------------------------
+
+    /**
+     * Creates an action that adds the node with the given id. Used by the
+     * {@link AsyncIndexer} to log pending changes with the redo log format.
+     *
+     * @param id the node id.
+     * @return the action, not executed.
+     */
+    static Action createAddNode(NodeId id) {
+        return new AddNode(Action.INTERNAL_TRANSACTION, id);
+    }
+
+    /**
+     * Creates an action that deletes the node with the given id. Used by the
+     * {@link AsyncIndexer} to log pending changes with the redo log format.
+     *
+     * @param id the node id.
+     * @return the action, not executed.
+     */
+    static Action createDeleteNode(NodeId id) {
+        return new DeleteNode(Action.INTERNAL_TRANSACTION, id);
+    }
+
+    /**
+     * Returns the id of the node that an add node or delete node action
+     * refers to.
+     *
+     * @param action the action.
+     * @return the node id, or <code>null</code> for other actions.
+     */
+    static NodeId getNodeId(Action action) {
+        if (action instanceof AddNode) {
+            return ((AddNode) action).id;
+        } else if (action instanceof DeleteNode) {
+            return ((DeleteNode) action).id;
+        } else {
+            return null;
+        }
+    }
+
     //------------------------< Actions >---------------------------------------
 
     /**
@@ -18,10 +18,12 @@ package org.apache.jackrabbit.core.query.lucene;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.NodeIterator;
@@ -29,6 +31,7 @@ import javax.jcr.RepositoryException;
 import javax.jcr.query.RowIterator;
 
 import org.apache.jackrabbit.api.query.JackrabbitQueryResult;
+import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.session.SessionContext;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.commons.query.qom.ColumnImpl;
@@ -45,6 +48,11 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
      */
     private static final Logger log = LoggerFactory.getLogger(QueryResultImpl.class);
 
+    /**
+     * The maximum number of result rows that are access checked at once.
+     */
+    private static final int ACCESS_CHECK_BATCH_SIZE = 100;
+
     /**
      * The search index to execute the query.
      */
@@ -100,6 +108,17 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
      */
     private int invalid = 0;
 
+    /**
+     * The nodes of the block of hits that is being access checked, or
+     * <code>null</code> if no block is being checked.
+     */
+    private Set<NodeId> checkedNodes;
+
+    /**
+     * The nodes of {@link #checkedNodes} that can not be read.
+     */
+    private Set<NodeId> unreadableNodes;
+
     /**
      * If <code>true</code> nodes are returned in document order.
      */
@@ -351,7 +370,12 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
     /**
      * Collect score nodes from <code>hits</code> into the <code>collector</code>
      * list until the size of <code>collector</code> reaches <code>maxResults</code>
-     * or there are not more results.
+     * or there are not more results. The hits are read and access checked in
+     * blocks of at most {@link #ACCESS_CHECK_BATCH_SIZE} rows, but never more
+     * rows than the collector can still take, so that no hit is consumed
+     * without being counted. Each row is then passed to
+     * {@link #isAccessGranted(ScoreNode[])}, which uses the result of the
+     * block check.
      *
      * @param hits the raw hits.
      * @param collector where the access checked score nodes are collected.
@@ -363,23 +387,50 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
                                    List<ScoreNode[]> collector,
                                    long maxResults)
             throws IOException, RepositoryException {
-        while (collector.size() < maxResults) {
-            ScoreNode[] sn = hits.nextScoreNodes();
-            if (sn == null) {
-                // no more results
-                break;
+        List<ScoreNode[]> block = new ArrayList<ScoreNode[]>();
+        boolean more = true;
+        while (more && collector.size() < maxResults) {
+            long size = Math.min(maxResults - collector.size(), ACCESS_CHECK_BATCH_SIZE);
+            block.clear();
+            Set<NodeId> ids = new HashSet<NodeId>();
+            while (block.size() < size) {
+                ScoreNode[] sn = hits.nextScoreNodes();
+                if (sn == null) {
+                    // no more results
+                    more = false;
+                    break;
+                }
+                block.add(sn);
+                for (ScoreNode node : sn) {
+                    if (node != null) {
+                        ids.add(node.getNodeId());
+                    }
+                }
             }
             // check access
-            if (isAccessGranted(sn)) {
-                collector.add(sn);
-            } else {
-                invalid++;
+            checkedNodes = ids;
+            unreadableNodes =
+                    sessionContext.getAccessManager().getUnreadableNodes(ids);
+            try {
+                for (ScoreNode[] sn : block) {
+                    if (isAccessGranted(sn)) {
+                        collector.add(sn);
+                    } else {
+                        invalid++;
+                    }
+                }
+            } finally {
+                checkedNodes = null;
+                unreadableNodes = null;
             }
         }
     }
 
     /**
-     * Checks if access is granted to all <code>nodes</code>.
+     * Checks if access is granted to all <code>nodes</code>. Nodes of the
+     * block of hits that is being collected have already been checked with
+     * {@link org.apache.jackrabbit.core.security.AccessManager#getUnreadableNodes(java.util.Collection)},
+     * other nodes are checked one by one.
      *
      * @param nodes the nodes to check.
      * @return <code>true</code> if read access is granted to all
@@ -390,9 +441,18 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
     protected boolean isAccessGranted(ScoreNode[] nodes)
             throws RepositoryException {
         for (ScoreNode node : nodes) {
+            if (node == null) {
+                continue;
+            }
+            NodeId id = node.getNodeId();
+            if (checkedNodes != null && checkedNodes.contains(id)) {
+                if (unreadableNodes.contains(id)) {
+                    return false;
+                }
+                continue;
+            }
             try {
-                if (node != null && !sessionContext.getAccessManager().canRead(
-                        null, node.getNodeId())) {
+                if (!sessionContext.getAccessManager().canRead(null, id)) {
                     return false;
                 }
             } catch (ItemNotFoundException e) {
@@ -152,6 +152,12 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     private static final String NS_MAPPING_FILE = "ns_mappings.properties";
 
+    /**
+     * Name of the directory with the log of pending asynchronous index
+     * updates.
+     */
+    private static final String ASYNC_INDEXING_DIRECTORY = "async";
+
     /**
      * The default value for property {@link #minMergeDocs}.
      */
@@ -504,6 +510,28 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     private boolean initializeHierarchyCache = true;
 
+    /**
+     * The number of threads that create the initial index of a workspace.
+     */
+    private int initialIndexThreads = 1;
+
+    /**
+     * Whether the index is updated in the background after a save.
+     */
+    private boolean asyncIndexing = false;
+
+    /**
+     * The maximum time in milliseconds until a saved change is applied to
+     * the index when indexing asynchronously.
+     */
+    private long asyncIndexingMaxDelay = 1000;
+
+    /**
+     * Applies the index updates in the background, or <code>null</code> if
+     * the index is updated within a save.
+     */
+    private AsyncIndexer asyncIndexer;
+
     /**
      * The name of the redo log factory class implementation.
      */
@@ -607,6 +635,12 @@ public class SearchIndex extends AbstractQueryHandler {
         // initialize spell checker
         spellChecker = createSpellChecker();
 
+        if (asyncIndexing) {
+            asyncIndexer = new AsyncIndexer(this, context.getItemStateManager(),
+                    directoryManager.getDirectory(ASYNC_INDEXING_DIRECTORY),
+                    context.getExecutor(), asyncIndexingMaxDelay);
+        }
+
         log.info("Index initialized: {} Version: {}",
                 new Object[]{path, index.getIndexFormatVersion()});
         if (!index.getIndexFormatVersion().equals(getIndexFormatVersion())) {
@@ -639,7 +673,9 @@ public class SearchIndex extends AbstractQueryHandler {
     /**
      * This implementation forwards the call to
      * {@link MultiIndex#update(Collection, Collection)} and
-     * transforms the two iterators to the required types.
+     * transforms the two iterators to the required types. With
+     * {@link #isAsyncIndexing() asynchronous indexing}, the ids of the nodes
+     * are logged and the index is updated in the background.
      *
      * @param remove ids of nodes to remove.
      * @param add    NodeStates to add. Calls to <code>next()</code> on this
@@ -651,6 +687,24 @@ public class SearchIndex extends AbstractQueryHandler {
     public void updateNodes(Iterator<NodeId> remove, Iterator<NodeState> add)
             throws RepositoryException, IOException {
         checkOpen();
+        if (asyncIndexer != null) {
+            asyncIndexer.enqueue(remove, add);
+        } else {
+            doUpdateNodes(remove, add);
+        }
+    }
+
+    /**
+     * Updates the index with the given nodes in the current thread.
+     *
+     * @param remove ids of nodes to remove.
+     * @param add    NodeStates to add, may return <code>null</code>.
+     * @throws RepositoryException if an error occurs while indexing a node.
+     * @throws IOException         if an error occurs while updating the index.
+     */
+    void doUpdateNodes(Iterator<NodeId> remove, Iterator<NodeState> add)
+            throws RepositoryException, IOException {
+        checkOpen();
 
         Map<NodeId, NodeState> aggregateRoots = new HashMap<NodeId, NodeState>();
         Set<NodeId> removedIds = new HashSet<NodeId>();
@@ -839,6 +893,9 @@ public class SearchIndex extends AbstractQueryHandler {
         if (spellChecker != null) {
             spellChecker.close();
         }
+        if (asyncIndexer != null) {
+            asyncIndexer.close();
+        }
         index.close();
         getContext().destroy();
         super.close();
@@ -2555,6 +2612,82 @@ public class SearchIndex extends AbstractQueryHandler {
         this.redoLogFactoryClass = className;
     }
 
+    /**
+     * @return the number of threads that create the initial index of a
+     *         workspace.
+     */
+    public int getInitialIndexThreads() {
+        return initialIndexThreads;
+    }
+
+    /**
+     * Sets the number of threads that create the initial index of a
+     * workspace. With more than one thread, subtrees of the workspace are
+     * indexed concurrently into separate index segments, which are merged
+     * later. The default is 1.
+     *
+     * @param threads the number of threads.
+     */
+    public void setInitialIndexThreads(int threads) {
+        this.initialIndexThreads = Math.max(1, threads);
+    }
+
+    /**
+     * @return <code>true</code> if the index is updated in the background
+     *         after a save.
+     */
+    public boolean isAsyncIndexing() {
+        return asyncIndexing;
+    }
+
+    /**
+     * Sets whether the index is updated in the background after a save.
+     * Queries may then not see the most recent changes, see
+     * {@link #waitForIndex(long)}. The changes are logged, so that they are
+     * applied after a crash. The default is <code>false</code>.
+     *
+     * @param asyncIndexing <code>true</code> to index asynchronously.
+     */
+    public void setAsyncIndexing(boolean asyncIndexing) {
+        this.asyncIndexing = asyncIndexing;
+    }
+
+    /**
+     * @return the maximum time in milliseconds until a saved change is
+     *         applied to the index when indexing asynchronously.
+     */
+    public long getAsyncIndexingMaxDelay() {
+        return asyncIndexingMaxDelay;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds until a saved change is applied
+     * to the index when indexing asynchronously. If older changes are pending
+     * when a node is saved, the saving thread applies them unless the
+     * background indexer is already doing so. The default is 1000.
+     *
+     * @param maxDelay the maximum delay in milliseconds.
+     */
+    public void setAsyncIndexingMaxDelay(long maxDelay) {
+        this.asyncIndexingMaxDelay = maxDelay;
+    }
+
+    /**
+     * Waits until the changes that were saved before this method is called
+     * are applied to the index, so that queries see them. Returns
+     * immediately if the index is updated within a save. Must not be called
+     * by an observation listener.
+     *
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return <code>true</code> if the changes are applied,
+     *         <code>false</code> if the timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean waitForIndex(long timeout) throws InterruptedException {
+        AsyncIndexer indexer = asyncIndexer;
+        return indexer == null || indexer.waitForIndex(timeout);
+    }
+
     /**
      * In the case of an initial index build operation, this checks if there are
      * some new nodes pending in the journal and tries to preemptively delete
@@ -23,16 +23,19 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
 import javax.jcr.query.qom.Constraint;
 import javax.jcr.query.qom.DescendantNodeJoinCondition;
 import javax.jcr.query.qom.Join;
 import javax.jcr.query.qom.PropertyValue;
 import javax.jcr.query.qom.QueryObjectModelFactory;
 
+import org.apache.jackrabbit.commons.iterator.RowIterable;
 import org.apache.jackrabbit.commons.query.qom.OperandEvaluator;
 
 class DescendantNodeJoinMerger extends JoinMerger {
@@ -81,6 +84,61 @@ class DescendantNodeJoinMerger extends JoinMerger {
         return constraints;
     }
 
+    /**
+     * Sort-merge joins are supported if the descendant nodes are on the
+     * right side of the join.
+     */
+    @Override
+    public boolean isSortMergeSupported() {
+        return rightSelectors.contains(descendantSelector);
+    }
+
+    /**
+     * Sorts the right rows by the path of their descendant node. As the
+     * paths of all descendants of a node share its path as a prefix, they
+     * form a range of the sorted rows, so there is no need to compute all
+     * ancestor paths of each right row.
+     */
+    @Override
+    protected RightRows buildSortedRightRows(RowIterator rightRows)
+            throws RepositoryException {
+        final TreeMap<String, List<Row>> sorted =
+            new TreeMap<String, List<Row>>();
+        for (Row row : new RowIterable(rightRows)) {
+            Node node = row.getNode(descendantSelector);
+            if (node != null) {
+                String path = node.getPath();
+                List<Row> rows = sorted.get(path);
+                if (rows == null) {
+                    rows = new ArrayList<Row>();
+                    sorted.put(path, rows);
+                }
+                rows.add(row);
+            }
+        }
+        return new RightRows() {
+            public boolean isEmpty() {
+                return sorted.isEmpty();
+            }
+            public List<Row> get(String path) {
+                String prefix = "/".equals(path) ? path : path + "/";
+                // '0' follows '/', so this is the first path after the range
+                String end = prefix.substring(0, prefix.length() - 1) + '0';
+                List<Row> rows = null;
+                for (Map.Entry<String, List<Row>> entry
+                        : sorted.subMap(prefix, end).entrySet()) {
+                    if (!entry.getKey().equals(path)) {
+                        if (rows == null) {
+                            rows = new ArrayList<Row>();
+                        }
+                        rows.addAll(entry.getValue());
+                    }
+                }
+                return rows;
+            }
+        };
+    }
+
     private Set<String> getValues(Set<String> selectors, Row row)
             throws RepositoryException {
         if (selectors.contains(descendantSelector)) {
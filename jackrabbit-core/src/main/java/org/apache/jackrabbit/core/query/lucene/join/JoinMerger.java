@@ -24,9 +24,12 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import javax.jcr.RepositoryException;
@@ -194,21 +197,64 @@ abstract class JoinMerger {
     public QueryResult merge(RowIterator leftRows, RowIterator rightRows,
             Set<Row> excludingOuterJoinRowsSet, Comparator<Row> rowComparator)
             throws RepositoryException {
-        Map<String, List<Row>> map = buildRightRowValues(rightRows);
+        return merge(leftRows, buildRightRowValues(rightRows),
+                excludingOuterJoinRowsSet, rowComparator);
+    }
+
+    /**
+     * Returns whether this merger can join rows with
+     * {@link #sortMerge(RowIterator, RowIterator, Set, Comparator)}.
+     *
+     * @return <code>true</code> if sort-merge joins are supported
+     */
+    public boolean isSortMergeSupported() {
+        return false;
+    }
+
+    /**
+     * Merges the left and right dataset of a join query like
+     * {@link #merge(RowIterator, RowIterator, Set, Comparator)}, but looks
+     * up the matching right rows in a sorted index instead of a hash map.
+     *
+     * @param leftRows
+     *            the left dataset of the join
+     * @param rightRows
+     *            the right dataset of the join
+     * @param excludingOuterJoinRowsSet
+     *            if not <code>null</code> must be taken into consideration when
+     *            merging OUTER JOINs
+     * @param rowComparator
+     *            compares right rows with the excludingOuterJoinRowsSet
+     * @return a QueryResult that has the final JOIN resultset
+     * @throws RepositoryException
+     * @see #isSortMergeSupported()
+     */
+    public QueryResult sortMerge(RowIterator leftRows, RowIterator rightRows,
+            Set<Row> excludingOuterJoinRowsSet, Comparator<Row> rowComparator)
+            throws RepositoryException {
+        return merge(leftRows, buildSortedRightRows(rightRows),
+                excludingOuterJoinRowsSet, rowComparator);
+    }
 
+    private QueryResult merge(RowIterator leftRows, final RightRows map,
+            final Set<Row> excludingOuterJoinRowsSet,
+            final Comparator<Row> rowComparator)
+            throws RepositoryException {
         if (JCR_JOIN_TYPE_INNER.equals(type) && !map.isEmpty()) {
-            List<Row> rows = new ArrayList<Row>();
-            for (Row leftRow : new RowIterable(leftRows)) {
-                for (String value : getLeftValues(leftRow)) {
-                    List<Row> matchingRows = map.get(value);
-                    if (matchingRows != null) {
-                        for (Row rightRow : matchingRows) {
-                            rows.add(mergeRow(leftRow, rightRow));
+            return asQueryResult(new RowIteratorAdapter(new MergedRows(leftRows) {
+                @Override
+                protected void merge(Row leftRow, List<Row> rows)
+                        throws RepositoryException {
+                    for (String value : getLeftValues(leftRow)) {
+                        List<Row> matchingRows = map.get(value);
+                        if (matchingRows != null) {
+                            for (Row rightRow : matchingRows) {
+                                rows.add(mergeRow(leftRow, rightRow));
+                            }
                         }
                     }
                 }
-            }
-            return asQueryResult(new RowIteratorAdapter(rows));
+            }));
         }
 
         if (JCR_JOIN_TYPE_LEFT_OUTER.equals(type)) {
@@ -228,50 +274,52 @@ abstract class JoinMerger {
                         Collections.emptySet()));
             }
 
-            List<Row> rows = new ArrayList<Row>();
-            for (Row leftRow : new RowIterable(leftRows)) {
-                Set<String> leftValues = getLeftValues(leftRow);
-                if(leftValues.isEmpty()){
-                    leftValues.add(null);
-                }
-                for (String value : leftValues) {
-                    List<Row> matchingRows = map.get(value);
-                    if (matchingRows != null) {
-                        for (Row rightRow : matchingRows) {
-                            // I have possible WHERE clauses on the join that I
-                            // need to look at for each rightRow
-                            if (excludingOuterJoinRowsSet == null) {
-                                rows.add(mergeRow(leftRow, rightRow));
-                            } else {
-                                boolean isIncluded = false;
-                                // apparently
-                                // 'excludingOuterJoinRowsSet.contains' fails to
-                                // match rows
-
-                                // TODO can 'rightRow.getNode()' break because
-                                // of joins that are bigger than 2 way?
-                                // how does this perform for 3 way joins ?
-                                for (Row r : excludingOuterJoinRowsSet) {
-                                    if(rowComparator.compare(rightRow, r) == 0){
-                                        isIncluded = true;
-                                        break;
-                                    }
-                                }
-                                if (isIncluded) {
+            return asQueryResult(new RowIteratorAdapter(new MergedRows(leftRows) {
+                @Override
+                protected void merge(Row leftRow, List<Row> rows)
+                        throws RepositoryException {
+                    Set<String> leftValues = getLeftValues(leftRow);
+                    if(leftValues.isEmpty()){
+                        leftValues.add(null);
+                    }
+                    for (String value : leftValues) {
+                        List<Row> matchingRows = map.get(value);
+                        if (matchingRows != null) {
+                            for (Row rightRow : matchingRows) {
+                                // I have possible WHERE clauses on the join that I
+                                // need to look at for each rightRow
+                                if (excludingOuterJoinRowsSet == null) {
                                     rows.add(mergeRow(leftRow, rightRow));
+                                } else {
+                                    boolean isIncluded = false;
+                                    // apparently
+                                    // 'excludingOuterJoinRowsSet.contains' fails to
+                                    // match rows
+
+                                    // TODO can 'rightRow.getNode()' break because
+                                    // of joins that are bigger than 2 way?
+                                    // how does this perform for 3 way joins ?
+                                    for (Row r : excludingOuterJoinRowsSet) {
+                                        if(rowComparator.compare(rightRow, r) == 0){
+                                            isIncluded = true;
+                                            break;
+                                        }
+                                    }
+                                    if (isIncluded) {
+                                        rows.add(mergeRow(leftRow, rightRow));
+                                    }
                                 }
                             }
-                        }
-                    } else {
-                        // No matches in an outer join -> add a null row, if
-                        // there are no 'WHERE' conditions
-                        if (excludingOuterJoinRowsSet == null) {
-                            rows.add(mergeRow(leftRow, null));
+                        } else {
+                            // No matches in an outer join -> add a null row, if
+                            // there are no 'WHERE' conditions
+                            if (excludingOuterJoinRowsSet == null) {
+                                rows.add(mergeRow(leftRow, null));
+                            }
                         }
                     }
                 }
-            }
-            return asQueryResult(new RowIteratorAdapter(rows));
+            }));
         }
         return asQueryResult(new RowIteratorAdapter(Collections.emptySet()));
     }
@@ -280,9 +328,9 @@ abstract class JoinMerger {
         return new SimpleQueryResult(columnNames, selectorNames, rowIterator);
     }
 
-    private Map<String, List<Row>> buildRightRowValues(RowIterator rightRows)
+    private RightRows buildRightRowValues(RowIterator rightRows)
             throws RepositoryException {
-        Map<String, List<Row>> map = new HashMap<String, List<Row>>();
+        final Map<String, List<Row>> map = new HashMap<String, List<Row>>();
         for (Row row : new RowIterable(rightRows)) {
             for (String value : getRightValues(row)) {
                 List<Row> rows = map.get(value);
@@ -293,7 +341,28 @@ abstract class JoinMerger {
                 rows.add(row);
             }
         }
-        return map;
+        return new RightRows() {
+            public boolean isEmpty() {
+                return map.isEmpty();
+            }
+            public List<Row> get(String value) {
+                return map.get(value);
+            }
+        };
+    }
+
+    /**
+     * Sorts the right rows of a sort-merge join. Must be overridden by
+     * mergers that support sort-merge joins.
+     *
+     * @param rightRows the right dataset of the join
+     * @return the sorted rows
+     * @throws RepositoryException if the rows can not be sorted
+     */
+    protected RightRows buildSortedRightRows(RowIterator rightRows)
+            throws RepositoryException {
+        throw new UnsupportedRepositoryOperationException(
+                "Sort-merge join not supported: " + getClass().getName());
     }
 
     /**
@@ -318,4 +387,77 @@ abstract class JoinMerger {
     public abstract List<Constraint> getRightJoinConstraints(Collection<Row> leftRows)
             throws RepositoryException;
 
+    /**
+     * Merges the left rows with their matching right rows on demand, one
+     * left row at a time, so that only the rows that are actually read are
+     * merged.
+     */
+    private abstract static class MergedRows implements Iterator<Row> {
+
+        private final RowIterator leftRows;
+
+        private final LinkedList<Row> merged = new LinkedList<Row>();
+
+        public MergedRows(RowIterator leftRows) {
+            this.leftRows = leftRows;
+        }
+
+        public boolean hasNext() {
+            while (merged.isEmpty() && leftRows.hasNext()) {
+                Row leftRow = leftRows.nextRow();
+                try {
+                    merge(leftRow, merged);
+                } catch (RepositoryException e) {
+                    throw new RuntimeException(
+                            "Unable to merge the join row " + leftRow, e);
+                }
+            }
+            return !merged.isEmpty();
+        }
+
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return merged.removeFirst();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Adds the joined rows of the given left row.
+         *
+         * @param leftRow the left row
+         * @param rows the list to which the joined rows are added
+         * @throws RepositoryException if the rows can not be merged
+         */
+        protected abstract void merge(Row leftRow, List<Row> rows)
+                throws RepositoryException;
+
+    }
+
+    /**
+     * The right dataset of a join, indexed by the values that the left
+     * rows are joined on.
+     */
+    protected interface RightRows {
+
+        /**
+         * @return <code>true</code> if there are no right rows
+         */
+        boolean isEmpty();
+
+        /**
+         * Returns the right rows that match the given left value.
+         *
+         * @param value a value returned by {@link JoinMerger#getLeftValues(Row)}
+         * @return the matching rows, or <code>null</code> if there are none
+         * @throws RepositoryException if the rows can not be looked up
+         */
+        List<Row> get(String value) throws RepositoryException;
+
+    }
+
 }
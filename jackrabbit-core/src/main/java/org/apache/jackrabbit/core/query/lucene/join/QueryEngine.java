@@ -25,9 +25,12 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -82,6 +85,57 @@ public class QueryEngine {
     private static final boolean NATIVE_SORT = Boolean.valueOf(System
             .getProperty(NATIVE_SORT_SYSTEM_PROPERTY, "false"));
 
+    /**
+     * System property that forces the strategy used to fetch and merge the
+     * right side of joins, one of "nested", "hash" or "sortMerge". By
+     * default the strategy is chosen for each join from the estimated
+     * number of rows of its right side.
+     */
+    public static final String JOIN_STRATEGY_SYSTEM_PROPERTY = "joinStrategy";
+
+    /**
+     * The cost of each join constraint of the nested strategy, in rows
+     * loaded by a scan of the right side. The constraints are evaluated as
+     * large OR queries, and each of them matches at least one row in the
+     * common case.
+     */
+    private static final int JOIN_CONSTRAINT_COST = 10;
+
+    /**
+     * The strategies to fetch and merge the right side of a join.
+     */
+    enum JoinStrategy {
+
+        /**
+         * Runs constrained queries for the join values of the left rows,
+         * then merges the rows in a hash map.
+         */
+        NESTED("nested"),
+
+        /**
+         * Scans the right side once, then merges the rows in a hash map.
+         */
+        HASH("hash"),
+
+        /**
+         * Scans the right side once, then merges the rows sorted by path.
+         * Only used for descendant node joins.
+         */
+        SORT_MERGE("sortMerge");
+
+        private final String name;
+
+        private JoinStrategy(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+    }
+
     private static final int printIndentStep = 4;
     
     private final Session session;
@@ -250,15 +304,34 @@ public class QueryEngine {
                     new RowIteratorAdapter(new TreeSet<Row>()), null, rightCo);
         }
 
-        Set<Row> rightRows = buildRightRowsJoin(csInfo, rightConstraints,
-                isOuterJoin, rightCo, printIndentation + printIndentStep);
+        JoinStrategy strategy = getJoinStrategy(merger, csInfo,
+                rightConstraints.size(), isOuterJoin);
+        log.debug("{} SQL2 JOIN strategy {} for {} join constraints.",
+                new Object[] { genString(printIndentation), strategy,
+                        rightConstraints.size() });
 
+        Set<Row> rightRows;
         // this has to be initialized as null
         Set<Row> excludingOuterJoinRowsSet = null;
-        if (isOuterJoin && csInfo.getRightConstraint() != null) {
-            excludingOuterJoinRowsSet = buildRightRowsJoin(csInfo,
-                    rightConstraints, false, rightCo, printIndentation
-                            + printIndentStep);
+        if (strategy == JoinStrategy.NESTED) {
+            rightRows = buildRightRowsJoin(csInfo, rightConstraints,
+                    isOuterJoin, rightCo, printIndentation + printIndentStep);
+            if (isOuterJoin && csInfo.getRightConstraint() != null) {
+                excludingOuterJoinRowsSet = buildRightRowsJoin(csInfo,
+                        rightConstraints, false, rightCo, printIndentation
+                                + printIndentStep);
+            }
+        } else {
+            // the merger ignores all right rows that do not match a
+            // left row, so the 'ON' constraints need not be evaluated
+            rightRows = buildRightRowsScan(csInfo,
+                    isOuterJoin ? null : csInfo.getRightConstraint(),
+                    rightCo, printIndentation + printIndentStep);
+            if (isOuterJoin && csInfo.getRightConstraint() != null) {
+                excludingOuterJoinRowsSet = buildRightRowsScan(csInfo,
+                        csInfo.getRightConstraint(), rightCo,
+                        printIndentation + printIndentStep);
+            }
         }
 
         if (log.isDebugEnabled()) {
@@ -268,12 +341,69 @@ public class QueryEngine {
                     + " ms. fetched " + rightRows.size() + " rows.");
         }
         // merge left with right datasets
+        if (strategy == JoinStrategy.SORT_MERGE) {
+            return merger.sortMerge(new RowIteratorAdapter(leftRows),
+                    new RowIteratorAdapter(rightRows),
+                    excludingOuterJoinRowsSet, rightCo);
+        }
         return merger.merge(new RowIteratorAdapter(leftRows),
                 new RowIteratorAdapter(rightRows), excludingOuterJoinRowsSet,
                 rightCo);
 
     }
 
+    /**
+     * Chooses the strategy for the right side of a join. Scanning the right
+     * side is chosen if it has fewer index hits than the estimated cost of
+     * the constrained queries of the nested strategy. The estimate is only
+     * available if the right side is a single selector.
+     *
+     * @param merger
+     *            the join merger
+     * @param csi
+     *            contains 'WHERE' constraints and the source information
+     * @param constraintCount
+     *            the number of 'ON' constraints of the nested strategy
+     * @param isOuterJoin
+     *            whether the 'WHERE' constraints are ignored for the right
+     *            rows
+     * @return the join strategy
+     * @throws RepositoryException if the right side can not be estimated
+     */
+    private JoinStrategy getJoinStrategy(JoinMerger merger,
+            ConstraintSplitInfo csi, int constraintCount, boolean isOuterJoin)
+            throws RepositoryException {
+        JoinStrategy scan = merger.isSortMergeSupported()
+                ? JoinStrategy.SORT_MERGE : JoinStrategy.HASH;
+        String forced = System.getProperty(JOIN_STRATEGY_SYSTEM_PROPERTY);
+        if (forced != null && forced.length() > 0) {
+            if (JoinStrategy.NESTED.toString().equals(forced)) {
+                return JoinStrategy.NESTED;
+            } else if (JoinStrategy.HASH.toString().equals(forced)) {
+                return JoinStrategy.HASH;
+            } else if (JoinStrategy.SORT_MERGE.toString().equals(forced)) {
+                return scan;
+            }
+            log.warn("Unknown join strategy: {}", forced);
+        }
+
+        Source right = csi.getSource().getRight();
+        if (!(right instanceof Selector)) {
+            return JoinStrategy.NESTED;
+        }
+        int hits;
+        try {
+            hits = lqf.count((Selector) right,
+                    isOuterJoin ? null : csi.getRightConstraint());
+        } catch (IOException e) {
+            throw new RepositoryException("Failed to access the query index", e);
+        }
+        if (hits <= (long) constraintCount * JOIN_CONSTRAINT_COST) {
+            return scan;
+        }
+        return JoinStrategy.NESTED;
+    }
+
     private Set<Row> buildLeftRowsJoin(ConstraintSplitInfo csi,
             Comparator<Row> comparator, int printIndentation)
             throws RepositoryException {
@@ -377,6 +507,33 @@ public class QueryEngine {
         return rightRows;
     }
 
+    /**
+     * Fetches the complete right side of a join with a single query.
+     *
+     * @param csi
+     *            contains the source information
+     * @param rightConstraint
+     *            the 'WHERE' constraints of the right side, or
+     *            <code>null</code>
+     * @param comparator
+     *            used to merge similar rows together
+     * @param printIndentation
+     *            used in logging
+     * @return the right-side dataset of the join operation
+     * @throws RepositoryException
+     */
+    private Set<Row> buildRightRowsScan(ConstraintSplitInfo csi,
+            Constraint rightConstraint, Comparator<Row> comparator,
+            int printIndentation) throws RepositoryException {
+        Set<Row> rightRows = new TreeSet<Row>(comparator);
+        QueryResult rightResult = execute(null, csi.getSource().getRight(),
+                rightConstraint, null, 0, -1, printIndentation);
+        for (Row row : JcrUtils.getRows(rightResult)) {
+            rightRows.add(row);
+        }
+        return rightRows;
+    }
+
     private static String genString(int len) {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < len; i++) {
@@ -458,8 +615,11 @@ public class QueryEngine {
 
         // if true it means that the LuceneQueryFactory should just let the
         // QueryEngine take care of sorting and applying offset and limit
-        // constraints
-        boolean externalSort = !NATIVE_SORT;
+        // constraints. Without orderings the rows are returned in the order
+        // of the index, so the LuceneQueryFactory can apply offset and limit
+        // and stop loading nodes once the limit is reached
+        boolean unordered = orderings == null || orderings.length == 0;
+        boolean externalSort = !NATIVE_SORT && !unordered;
         RowIterator rows = null;
         try {
             rows = new RowIteratorAdapter(lqf.execute(columnMap, selector,
@@ -476,7 +636,7 @@ public class QueryEngine {
         }
         QueryResult result = new SimpleQueryResult(columnNames, selectorNames,
                 rows);
-        if (NATIVE_SORT) {
+        if (!externalSort) {
             return result;
         }
 
@@ -592,10 +752,13 @@ public class QueryEngine {
     }
 
     /**
-     * Sorts the given query results according to the given QOM orderings. If
-     * one or more orderings have been specified, this method will iterate
-     * through the entire original result set, order the collected rows, and
-     * return a new result set based on the sorted collection of rows.
+     * Sorts the given query results according to the given QOM orderings and
+     * applies the offset and limit. If one or more orderings have been
+     * specified, this method will iterate through the entire original result
+     * set and order the collected rows. With a limit, only the first
+     * <code>offset + limit</code> rows are kept while iterating. Without
+     * orderings, the original rows are read on demand and only until the
+     * limit is reached.
      * 
      * @param result
      *            original query results
@@ -611,18 +774,20 @@ public class QueryEngine {
      */
     protected static QueryResult sort(QueryResult result,
             final Ordering[] orderings, OperandEvaluator evaluator,
-            long offset, long limit) throws RepositoryException {
-        if ((orderings != null && orderings.length > 0) || offset != 0
-                || limit >= 0) {
-            List<Row> rows = new ArrayList<Row>();
-
-            RowIterator iterator = result.getRows();
-            while (iterator.hasNext()) {
-                rows.add(iterator.nextRow());
-            }
-
-            if (orderings != null && orderings.length > 0) {
-                Collections.sort(rows, new RowComparator(orderings, evaluator));
+            long offset, final long limit) throws RepositoryException {
+        if (orderings != null && orderings.length > 0) {
+            Comparator<Row> comparator = new RowComparator(orderings, evaluator);
+            List<Row> rows;
+            if (limit >= 0 && offset + limit <= Integer.MAX_VALUE) {
+                rows = getFirstRows(result.getRows(), comparator,
+                        (int) (offset + limit));
+            } else {
+                rows = new ArrayList<Row>();
+                RowIterator iterator = result.getRows();
+                while (iterator.hasNext()) {
+                    rows.add(iterator.nextRow());
+                }
+                Collections.sort(rows, comparator);
             }
 
             if (offset > 0) {
@@ -636,9 +801,101 @@ public class QueryEngine {
 
             return new SimpleQueryResult(result.getColumnNames(),
                     result.getSelectorNames(), new RowIteratorAdapter(rows));
+        } else if (offset != 0 || limit >= 0) {
+            RowIterator iterator = result.getRows();
+            for (long i = 0; i < offset && iterator.hasNext(); i++) {
+                iterator.nextRow();
+            }
+            // the size is not known until the rows have been read
+            RowIterator rows = new RowIteratorAdapter((Iterator<?>) iterator) {
+                private long remaining = limit >= 0 ? limit : Long.MAX_VALUE;
+                @Override
+                public boolean hasNext() {
+                    return remaining > 0 && super.hasNext();
+                }
+                @Override
+                public Object next() {
+                    if (remaining <= 0) {
+                        throw new NoSuchElementException();
+                    }
+                    remaining--;
+                    return super.next();
+                }
+            };
+            return new SimpleQueryResult(result.getColumnNames(),
+                    result.getSelectorNames(), rows);
         } else {
             return result;
         }
     }
 
+    /**
+     * Returns the first rows in the given order, keeping no more than the
+     * requested number of rows in a heap while iterating. Rows that compare
+     * equal keep their original order, as with a stable sort.
+     *
+     * @param rows the rows
+     * @param comparator the order of the rows
+     * @param count the number of rows to return
+     * @return the first <code>count</code> rows, sorted
+     */
+    private static List<Row> getFirstRows(RowIterator rows,
+            final Comparator<Row> comparator, int count) {
+        List<Row> first = new ArrayList<Row>();
+        if (count == 0) {
+            return first;
+        }
+        // the last of the first rows is at the head of the queue
+        PriorityQueue<RankedRow> queue = new PriorityQueue<RankedRow>(
+                Math.min(count, 1024), new Comparator<RankedRow>() {
+                    public int compare(RankedRow a, RankedRow b) {
+                        return b.compareTo(a, comparator);
+                    }
+                });
+        long rank = 0;
+        while (rows.hasNext()) {
+            RankedRow row = new RankedRow(rows.nextRow(), rank++);
+            if (queue.size() < count) {
+                queue.add(row);
+            } else if (row.compareTo(queue.peek(), comparator) < 0) {
+                queue.poll();
+                queue.add(row);
+            }
+        }
+        RankedRow[] sorted = queue.toArray(new RankedRow[queue.size()]);
+        Arrays.sort(sorted, new Comparator<RankedRow>() {
+            public int compare(RankedRow a, RankedRow b) {
+                return a.compareTo(b, comparator);
+            }
+        });
+        for (RankedRow row : sorted) {
+            first.add(row.row);
+        }
+        return first;
+    }
+
+    /**
+     * A row with its position in the unsorted rows.
+     */
+    private static class RankedRow {
+
+        private final Row row;
+
+        private final long rank;
+
+        private RankedRow(Row row, long rank) {
+            this.row = row;
+            this.rank = rank;
+        }
+
+        private int compareTo(RankedRow other, Comparator<Row> comparator) {
+            int c = comparator.compare(row, other.row);
+            if (c == 0) {
+                c = rank < other.rank ? -1 : (rank == other.rank ? 0 : 1);
+            }
+            return c;
+        }
+
+    }
+
 }
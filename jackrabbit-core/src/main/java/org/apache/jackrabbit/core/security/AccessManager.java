@@ -17,6 +17,7 @@
 package org.apache.jackrabbit.core.security;
 
 import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.security.authorization.AccessControlProvider;
 import org.apache.jackrabbit.core.security.authorization.WorkspaceAccessManager;
 import org.apache.jackrabbit.spi.Name;
@@ -26,6 +27,10 @@ import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.RepositoryException;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * The <code>AccessManager</code> can be queried to determines whether privileges
  * are granted on a specific item.
@@ -201,6 +206,33 @@ public interface AccessManager {
      */
     boolean canRead(Path itemPath, ItemId itemId) throws RepositoryException;
 
+    /**
+     * Determines which of the given existing nodes can not be read. The
+     * result is the same as calling {@link #canRead(Path, ItemId)} for each
+     * node, but an implementation may share the evaluation among the nodes,
+     * for example among siblings that inherit the same access control
+     * entries. This is used to filter query results in blocks. The default
+     * implementation calls {@link #canRead(Path, ItemId)} for each node.
+     *
+     * @param nodeIds The ids of the nodes to be tested.
+     * @return The ids of the nodes that can not be read. Nodes that do not
+     * exist (anymore) are not included.
+     * @throws RepositoryException if an error occurs.
+     */
+    default Set<NodeId> getUnreadableNodes(Collection<NodeId> nodeIds) throws RepositoryException {
+        Set<NodeId> unreadable = new HashSet<NodeId>();
+        for (NodeId id : nodeIds) {
+            try {
+                if (!canRead(null, id)) {
+                    unreadable.add(id);
+                }
+            } catch (ItemNotFoundException e) {
+                // node removed in the meantime
+            }
+        }
+        return unreadable;
+    }
+
     /**
      * Determines whether the subject of the current context is granted access
      * to the given workspace. Note that an implementation is free to test for
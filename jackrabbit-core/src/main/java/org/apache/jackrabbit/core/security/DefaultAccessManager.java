@@ -22,6 +22,7 @@ import org.apache.jackrabbit.commons.iterator.AccessControlPolicyIteratorAdapter
 import org.apache.jackrabbit.core.HierarchyManager;
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.security.authorization.AccessControlEditor;
 import org.apache.jackrabbit.core.security.authorization.AccessControlProvider;
 import org.apache.jackrabbit.core.security.authorization.CompiledPermissions;
@@ -48,6 +49,7 @@ import javax.security.auth.Subject;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -266,6 +268,18 @@ public class DefaultAccessManager extends AbstractAccessControlManager implement
         }
     }
 
+    /**
+     * @see AccessManager#getUnreadableNodes(Collection)
+     */
+    public Set<NodeId> getUnreadableNodes(Collection<NodeId> nodeIds) throws RepositoryException {
+        checkInitialized();
+        if (compiledPermissions.canReadAll()) {
+            return Collections.emptySet();
+        } else {
+            return compiledPermissions.getUnreadableNodes(nodeIds);
+        }
+    }
+
     /**
      * @see AccessManager#canAccess(String)
      */
@@ -17,10 +17,13 @@
 package org.apache.jackrabbit.core.security.authorization;
 
 import java.security.Principal;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.observation.ObservationManager;
@@ -31,6 +34,7 @@ import org.apache.jackrabbit.core.ItemImpl;
 import org.apache.jackrabbit.core.NodeImpl;
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.nodetype.NodeTypeImpl;
 import org.apache.jackrabbit.core.security.SystemPrincipal;
 import org.apache.jackrabbit.core.security.principal.AdminPrincipal;
@@ -119,6 +123,9 @@ public abstract class AbstractAccessControlProvider implements AccessControlProv
             public boolean canRead(Path itemPath, ItemId itemId) {
                 return true;
             }
+            public Set<NodeId> getUnreadableNodes(Collection<NodeId> nodeIds) {
+                return Collections.emptySet();
+            }
 
             private Privilege getAllPrivilege() throws RepositoryException {
                 return getPrivilegeManagerImpl().getPrivilege(Privilege.JCR_ALL);
@@ -177,6 +184,19 @@ public abstract class AbstractAccessControlProvider implements AccessControlProv
                     return !isAcItem(session.getItemManager().getItem(itemId));
                 }
             }
+            public Set<NodeId> getUnreadableNodes(Collection<NodeId> nodeIds) throws RepositoryException {
+                Set<NodeId> unreadable = new HashSet<NodeId>();
+                for (NodeId id : nodeIds) {
+                    try {
+                        if (isAcItem(session.getItemManager().getItem(id))) {
+                            unreadable.add(id);
+                        }
+                    } catch (ItemNotFoundException e) {
+                        // node removed in the meantime
+                    }
+                }
+                return unreadable;
+            }
 
             private Privilege getReadPrivilege() throws RepositoryException {
                 return getPrivilegeManagerImpl().getPrivilege(Privilege.JCR_READ);
@@ -18,10 +18,14 @@ package org.apache.jackrabbit.core.security.authorization;
 
 import org.apache.jackrabbit.spi.Path;
 import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
 
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.security.Privilege;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -119,6 +123,32 @@ public interface CompiledPermissions {
      */
     boolean canRead(Path itemPath, ItemId itemId) throws RepositoryException;
 
+    /**
+     * Returns the ids of the <i>existing</i> nodes for which READ permission
+     * is not granted. This is the batch variant of
+     * {@link #canRead(Path, ItemId)}, which allows an implementation to share
+     * the evaluation among nodes. The default implementation calls
+     * {@link #canRead(Path, ItemId)} for each node.
+     *
+     * @param nodeIds The ids of the nodes to be tested.
+     * @return The ids of the nodes that can not be read. Nodes that do not
+     * exist (anymore) are not included.
+     * @throws RepositoryException If an error occurs.
+     */
+    default Set<NodeId> getUnreadableNodes(Collection<NodeId> nodeIds) throws RepositoryException {
+        Set<NodeId> unreadable = new HashSet<NodeId>();
+        for (NodeId id : nodeIds) {
+            try {
+                if (!canRead(null, id)) {
+                    unreadable.add(id);
+                }
+            } catch (ItemNotFoundException e) {
+                // node removed in the meantime
+            }
+        }
+        return unreadable;
+    }
+
     /**
      * Static implementation of a <code>CompiledPermissions</code> that doesn't
      * grant any permissions at all.
@@ -148,5 +178,8 @@ public interface CompiledPermissions {
         public boolean canRead(Path itemPath, ItemId itemId) throws RepositoryException {
             return false;
         }
+        public Set<NodeId> getUnreadableNodes(Collection<NodeId> nodeIds) {
+            return new HashSet<NodeId>(nodeIds);
+        }
     };
 }
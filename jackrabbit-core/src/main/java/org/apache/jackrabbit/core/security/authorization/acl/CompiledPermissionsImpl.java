@@ -43,6 +43,9 @@ import javax.jcr.ItemNotFoundException;
 import javax.jcr.RepositoryException;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -286,6 +289,89 @@ class CompiledPermissionsImpl extends AbstractCompiledPermissions implements Acc
         return canRead;
     }
 
+    /**
+     * Evaluates the nodes in one pass. Nodes that are neither access
+     * controlled nor access control content inherit the entries of their
+     * parent, so siblings share a single evaluation as long as none of the
+     * inherited entries has restrictions, which depend on the path of the
+     * node.
+     *
+     * @see org.apache.jackrabbit.core.security.authorization.CompiledPermissions#getUnreadableNodes(Collection)
+     */
+    @Override
+    public Set<NodeId> getUnreadableNodes(Collection<NodeId> nodeIds) throws RepositoryException {
+        Set<NodeId> unreadable = new HashSet<NodeId>();
+        Map<NodeId, Boolean> parents = new HashMap<NodeId, Boolean>();
+        ItemManager itemMgr = session.getItemManager();
+        for (NodeId id : nodeIds) {
+            Boolean canRead;
+            synchronized (monitor) {
+                canRead = readCache.get(id);
+            }
+            if (canRead == null) {
+                NodeImpl node;
+                try {
+                    node = (NodeImpl) itemMgr.getItem(id);
+                } catch (ItemNotFoundException e) {
+                    // node removed in the meantime
+                    continue;
+                }
+                NodeId parentId = node.getParentId();
+                if (parentId != null && !util.isAcItem(node)
+                        && entryCollector.getEntries(node).isEmpty()) {
+                    if (parents.containsKey(parentId)) {
+                        canRead = parents.get(parentId);
+                    } else {
+                        canRead = canReadInherited(parentId);
+                        parents.put(parentId, canRead);
+                    }
+                }
+                if (canRead == null) {
+                    canRead = canRead(null, id);
+                } else {
+                    synchronized (monitor) {
+                        readCache.put(id, canRead);
+                    }
+                }
+            }
+            if (!canRead) {
+                unreadable.add(id);
+            }
+        }
+        return unreadable;
+    }
+
+    /**
+     * Evaluates the read permission that the children of the given node
+     * inherit if they are not access controlled themselves.
+     *
+     * @param parentId the id of the parent node
+     * @return whether the children are readable, or <code>null</code> if an
+     * inherited entry has restrictions and each child must be evaluated
+     * separately
+     * @throws RepositoryException if an error occurs
+     */
+    private Boolean canReadInherited(NodeId parentId) throws RepositoryException {
+        NodeId next = parentId;
+        while (next != null) {
+            EntryCollector.Entries entries = entryCollector.getEntries(next);
+            for (Entry ace : entries.getACEs()) {
+                if (ace.hasRestrictions()) {
+                    return null;
+                }
+            }
+            next = entries.getNextId();
+        }
+        NodeImpl parent = (NodeImpl) session.getItemManager().getItem(parentId);
+        EntryFilterImpl filter = new EntryFilterImpl(principalNames, parentId, session);
+        for (Entry ace : entryCollector.collectEntries(parent, filter)) {
+            if (ace.getPrivilegeBits().includesRead()) {
+                return ace.isAllow();
+            }
+        }
+        return false;
+    }
+
     //----------------------------------------< ACLModificationListener >---
     /**
      * @see org.apache.jackrabbit.core.security.authorization.AccessControlListener#acModified(org.apache.jackrabbit.core.security.authorization.AccessControlModifications)
@@ -25,6 +25,7 @@ import org.apache.jackrabbit.api.JackrabbitWorkspace;
 import org.apache.jackrabbit.api.security.authorization.PrivilegeManager;
 import org.apache.jackrabbit.core.HierarchyManager;
 import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.security.AMContext;
 import org.apache.jackrabbit.core.security.AbstractAccessControlManager;
 import org.apache.jackrabbit.core.security.AccessManager;
@@ -43,6 +44,8 @@ import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.security.auth.Subject;
 import java.security.Principal;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
 
 /**
@@ -184,6 +187,10 @@ public class SimpleAccessManager extends AbstractAccessControlManager implements
         return true;
     }
 
+    public Set<NodeId> getUnreadableNodes(Collection<NodeId> nodeIds) throws RepositoryException {
+        return Collections.emptySet();
+    }
+
     private boolean internalIsGranted(Path absPath, int permissions) throws RepositoryException {
         if (!absPath.isAbsolute()) {
             throw new RepositoryException("Absolute path expected");
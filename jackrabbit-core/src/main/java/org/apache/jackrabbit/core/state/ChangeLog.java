@@ -395,6 +395,17 @@ public class ChangeLog {
         this.updateSize = updateSize;
     }
 
+    /**
+     * Adds the size of a node that was stored as part of this change log
+     * to the update size.
+     *
+     * @param id the id of the stored node
+     * @param size the stored size of the node and its properties
+     */
+    public void addUpdateSize(NodeId id, long size) {
+        this.updateSize += size;
+    }
+
     /**
      * Returns a string representation of this change log for diagnostic
      * purposes.
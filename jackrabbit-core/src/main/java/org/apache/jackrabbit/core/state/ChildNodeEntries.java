@@ -16,38 +16,72 @@
  */
 package org.apache.jackrabbit.core.state;
 
-import org.apache.commons.collections4.map.LinkedMap;
 import org.apache.jackrabbit.core.id.NodeId;
-import org.apache.jackrabbit.core.util.EmptyLinkedMap;
+import org.apache.jackrabbit.core.id.NodeIdMap;
 import org.apache.jackrabbit.spi.Name;
 
 import java.util.List;
 import java.util.HashMap;
 import java.util.Collections;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
 /**
  * <code>ChildNodeEntries</code> represents an insertion-ordered
  * collection of <code>ChildNodeEntry</code>s that also maintains
  * the index values of same-name siblings on insertion and removal.
+ * <p>
+ * The entries are kept in buckets, selected by the hash code of the node id
+ * for the lookup by id, and by the hash code of the name for the lookup by
+ * name. The number of buckets grows with the number of entries, so that a
+ * bucket holds about {@link #BUCKET_SIZE} entries at most. Copies of an
+ * instance share all buckets, and a modification only copies the buckets it
+ * changes, so that modifying a node with millions of child nodes does not
+ * copy all of them. The insertion order is restored by merging the buckets
+ * on the order of the entries.
  */
-class ChildNodeEntries implements Cloneable {
+class ChildNodeEntries implements Cloneable, Iterable<ChildNodeEntry> {
 
     /**
-     * Insertion-ordered map of entries
-     * (key=NodeId, value=entry)
+     * Average number of entries per bucket above which the number of
+     * buckets is doubled.
      */
-    private LinkedMap entries;
+    static final int BUCKET_SIZE = 1024;
 
     /**
-     * Map used for lookup by name
-     * (key=name, value=either a single entry or a list of sns entries)
+     * Buckets of insertion-ordered entries
+     * (key=NodeId, value=entry), or <code>null</code> if empty
      */
-    private Map<Name, Object> nameMap;
+    private Bucket<NodeIdMap<ChildNodeEntry>>[] entries;
 
     /**
-     * Indicates whether the entries and nameMap are shared with another
+     * Buckets used for lookup by name
+     * (key=name, value=either a single entry or a list of sns entries),
+     * or <code>null</code> if empty
+     */
+    private Bucket<Map<Name, Object>>[] names;
+
+    /**
+     * The number of entries.
+     */
+    private int size;
+
+    /**
+     * The order of the next added entry.
+     */
+    private int nextOrder;
+
+    /**
+     * Identifies the buckets this instance may modify in place. All other
+     * buckets are shared with another ChildNodeEntries instance.
+     */
+    private Object owner;
+
+    /**
+     * Indicates whether the bucket arrays are shared with another
      * ChildNodeEntries instance.
      */
     private boolean shared;
@@ -57,12 +91,15 @@ class ChildNodeEntries implements Cloneable {
     }
 
     ChildNodeEntry get(NodeId id) {
-        return (ChildNodeEntry) entries.get(id);
+        if (entries == null) {
+            return null;
+        }
+        return entries[indexOf(id.hashCode(), entries.length)].data.get(id);
     }
 
     @SuppressWarnings("unchecked")
     List<ChildNodeEntry> get(Name nodeName) {
-        Object obj = nameMap.get(nodeName);
+        Object obj = lookup(nodeName);
         if (obj == null) {
             return Collections.emptyList();
         }
@@ -81,7 +118,7 @@ class ChildNodeEntries implements Cloneable {
             throw new IllegalArgumentException("index is 1-based");
         }
 
-        Object obj = nameMap.get(nodeName);
+        Object obj = lookup(nodeName);
         if (obj == null) {
             return null;
         }
@@ -103,6 +140,7 @@ class ChildNodeEntries implements Cloneable {
     @SuppressWarnings("unchecked")
     ChildNodeEntry add(Name nodeName, NodeId id) {
         ensureModifiable();
+        Map<Name, Object> nameMap = nameMap(nodeName);
         List<ChildNodeEntry> siblings = null;
         int index = 0;
         Object obj = nameMap.get(nodeName);
@@ -127,14 +165,26 @@ class ChildNodeEntries implements Cloneable {
 
         index++;
 
-        ChildNodeEntry entry = new ChildNodeEntry(nodeName, id, index);
+        NodeIdMap<ChildNodeEntry> entryMap = entryMap(id);
+        ChildNodeEntry existing = entryMap.get(id);
+        int order = existing != null ? existing.order : nextOrder++;
+
+        ChildNodeEntry entry = new ChildNodeEntry(nodeName, id, index, order);
         if (siblings != null) {
             siblings.add(entry);
         } else {
             nameMap.put(nodeName, entry);
         }
-        entries.put(id, entry);
+        if (entryMap.put(id, entry) == null) {
+            size++;
+            if (size > entries.length * BUCKET_SIZE) {
+                rehash(entries.length * 2);
+            }
+        }
 
+        if (nextOrder == Integer.MAX_VALUE) {
+            renumber();
+        }
         return entry;
     }
 
@@ -154,12 +204,13 @@ class ChildNodeEntries implements Cloneable {
             throw new IllegalArgumentException("index is 1-based");
         }
 
-        ensureModifiable();
-        Object obj = nameMap.get(nodeName);
-        if (obj == null) {
+        if (lookup(nodeName) == null) {
             return null;
         }
 
+        ensureModifiable();
+        Map<Name, Object> nameMap = nameMap(nodeName);
+        Object obj = nameMap.get(nodeName);
         if (obj instanceof ChildNodeEntry) {
             // map entry is a single child node entry
             if (index != 1) {
@@ -167,7 +218,7 @@ class ChildNodeEntries implements Cloneable {
             }
             ChildNodeEntry removedEntry = (ChildNodeEntry) obj;
             nameMap.remove(nodeName);
-            entries.remove(removedEntry.getId());
+            removeEntry(removedEntry.getId());
             return removedEntry;
         }
 
@@ -180,16 +231,18 @@ class ChildNodeEntries implements Cloneable {
         // remove from siblings list
         ChildNodeEntry removedEntry = siblings.remove(index - 1);
         // remove from ordered entries map
-        entries.remove(removedEntry.getId());
+        removeEntry(removedEntry.getId());
 
         // update indices of subsequent same-name siblings
         for (int i = index - 1; i < siblings.size(); i++) {
             ChildNodeEntry oldEntry = siblings.get(i);
-            ChildNodeEntry newEntry = new ChildNodeEntry(nodeName, oldEntry.getId(), oldEntry.getIndex() - 1);
+            ChildNodeEntry newEntry = new ChildNodeEntry(
+                    nodeName, oldEntry.getId(), oldEntry.getIndex() - 1,
+                    oldEntry.order);
             // overwrite old entry with updated entry in siblings list
             siblings.set(i, newEntry);
             // overwrite old entry with updated entry in ordered entries map
-            entries.put(newEntry.getId(), newEntry);
+            entryMap(newEntry.getId()).put(newEntry.getId(), newEntry);
         }
 
         // clean up name lookup map if necessary
@@ -214,7 +267,7 @@ class ChildNodeEntries implements Cloneable {
      * @return the removed entry or <code>null</code> if there is no such entry.
      */
     ChildNodeEntry remove(NodeId id) {
-        ChildNodeEntry entry = (ChildNodeEntry) entries.get(id);
+        ChildNodeEntry entry = get(id);
         if (entry != null) {
             return remove(entry.getName(), entry.getIndex());
         }
@@ -252,7 +305,7 @@ class ChildNodeEntries implements Cloneable {
      *         <code>this</code> but not in <code>other</code>
      */
     List<ChildNodeEntry> removeAll(ChildNodeEntries other) {
-        if (entries.isEmpty()) {
+        if (isEmpty()) {
             return Collections.emptyList();
         }
         if (other.isEmpty()) {
@@ -260,8 +313,7 @@ class ChildNodeEntries implements Cloneable {
         }
 
         List<ChildNodeEntry> result = new ArrayList<ChildNodeEntry>();
-        for (Object e : entries.values()) {
-            ChildNodeEntry entry = (ChildNodeEntry) e;
+        for (ChildNodeEntry entry : this) {
             ChildNodeEntry otherEntry = other.get(entry.getId());
             if (entry == otherEntry) {
                 continue;
@@ -288,14 +340,13 @@ class ChildNodeEntries implements Cloneable {
      *         <code>this</code> <i>and</i> in <code>other</code>
      */
     List<ChildNodeEntry> retainAll(ChildNodeEntries other) {
-        if (entries.isEmpty()
+        if (isEmpty()
                 || other.isEmpty()) {
             return Collections.emptyList();
         }
 
         List<ChildNodeEntry> result = new ArrayList<ChildNodeEntry>();
-        for (Object e : entries.values()) {
-            ChildNodeEntry entry = (ChildNodeEntry) e;
+        for (ChildNodeEntry entry : this) {
             ChildNodeEntry otherEntry = other.get(entry.getId());
             if (entry == otherEntry) {
                 result.add(entry);
@@ -310,18 +361,54 @@ class ChildNodeEntries implements Cloneable {
     //-----------------------------------------------< unmodifiable List view >
 
     public boolean isEmpty() {
-        return entries.isEmpty();
+        return size == 0;
     }
 
-    @SuppressWarnings("unchecked")
     public List<ChildNodeEntry> list() {
-        return new ArrayList<ChildNodeEntry>(entries.values());
+        List<ChildNodeEntry> list = new ArrayList<ChildNodeEntry>(size);
+        if (entries != null && entries.length > 1 && nextOrder <= 2 * size) {
+            // cheaper than merging the buckets: place each entry at its
+            // order, which is unique and less than nextOrder
+            ChildNodeEntry[] ordered = new ChildNodeEntry[nextOrder];
+            for (Bucket<NodeIdMap<ChildNodeEntry>> bucket : entries) {
+                for (ChildNodeEntry entry : bucket.data.values()) {
+                    ordered[entry.order] = entry;
+                }
+            }
+            for (ChildNodeEntry entry : ordered) {
+                if (entry != null) {
+                    list.add(entry);
+                }
+            }
+        } else {
+            for (ChildNodeEntry entry : this) {
+                list.add(entry);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the entries in insertion order. Unlike {@link #list()}, the
+     * entries are not copied, so this instance must not be modified while
+     * iterating.
+     *
+     * @return iterator over the entries
+     */
+    public Iterator<ChildNodeEntry> iterator() {
+        if (entries == null) {
+            return Collections.<ChildNodeEntry>emptyList().iterator();
+        } else if (entries.length == 1) {
+            return Collections.unmodifiableCollection(
+                    entries[0].data.values()).iterator();
+        } else {
+            return new OrderedIterator(entries);
+        }
     }
 
     public List<ChildNodeEntry> getRenamedEntries(ChildNodeEntries that) {
         List<ChildNodeEntry> renamed = Collections.emptyList();
-        for (Object e : entries.values()) {
-            ChildNodeEntry entry = (ChildNodeEntry) e;
+        for (ChildNodeEntry entry : this) {
             ChildNodeEntry other = that.get(entry.getId());
             if (other != null && !entry.getName().equals(other.getName())) {
                 // child node entry with same id but different name exists in
@@ -336,7 +423,7 @@ class ChildNodeEntries implements Cloneable {
     }
 
     public int size() {
-        return entries.size();
+        return size;
     }
 
     //-------------------------------------------< java.lang.Object overrides >
@@ -346,9 +433,17 @@ class ChildNodeEntries implements Cloneable {
         }
         if (obj instanceof ChildNodeEntries) {
             ChildNodeEntries other = (ChildNodeEntries) obj;
-            return (nameMap.equals(other.nameMap)
-                    && entries.equals(other.entries)
-                    && shared == other.shared);
+            if (size != other.size || shared != other.shared) {
+                return false;
+            }
+            // entries with equal ids, names and indexes
+            // imply equal name lookup maps
+            for (ChildNodeEntry entry : this) {
+                if (!entry.equals(other.get(entry.getId()))) {
+                    return false;
+                }
+            }
+            return true;
         }
         return false;
     }
@@ -375,7 +470,7 @@ class ChildNodeEntries implements Cloneable {
     protected Object clone() {
         try {
             ChildNodeEntries clone = (ChildNodeEntries) super.clone();
-            if (nameMap != Collections.EMPTY_MAP) {
+            if (entries != null) {
                 clone.shared = true;
                 shared = true;
             }
@@ -389,35 +484,228 @@ class ChildNodeEntries implements Cloneable {
     //-------------------------------------------------------------< internal >
 
     /**
-     * Initializes the name and entries map with unmodifiable empty instances.
+     * Initializes an empty instance. The buckets are only created when
+     * the first entry is added.
      */
     private void init() {
-        nameMap = Collections.emptyMap();
-        entries = EmptyLinkedMap.INSTANCE;
+        entries = null;
+        names = null;
+        size = 0;
+        nextOrder = 0;
+        owner = null;
         shared = false;
     }
 
     /**
-     * Ensures that the {@link #nameMap} and {@link #entries} map are
-     * modifiable.
+     * Ensures that the {@link #entries} and {@link #names} bucket arrays
+     * exist and are not shared with another instance. The buckets in them
+     * are copied by {@link #entryMap(NodeId)} and {@link #nameMap(Name)}
+     * when they are modified.
      */
-    @SuppressWarnings("unchecked")
     private void ensureModifiable() {
-        if (nameMap == Collections.EMPTY_MAP) {
-            nameMap = new HashMap<Name, Object>();
-            entries = new LinkedMap();
+        if (entries == null) {
+            owner = new Object();
+            entries = newBuckets(1);
+            entries[0] = new Bucket<NodeIdMap<ChildNodeEntry>>(
+                    new NodeIdMap<ChildNodeEntry>(), owner);
+            names = newBuckets(1);
+            names[0] = new Bucket<Map<Name, Object>>(
+                    new HashMap<Name, Object>(), owner);
         } else if (shared) {
-            entries = (LinkedMap) entries.clone();
-            nameMap = new HashMap<Name, Object>(nameMap);
-            for (Map.Entry<Name, Object> entry : nameMap.entrySet()) {
-                Object value = entry.getValue();
-                if (value instanceof List<?>) {
-                    entry.setValue(new ArrayList<ChildNodeEntry>(
-                            (List<ChildNodeEntry>) value));
+            owner = new Object();
+            entries = entries.clone();
+            names = names.clone();
+            shared = false;
+        }
+    }
+
+    /**
+     * Returns the value of the given name in the name lookup map.
+     */
+    private Object lookup(Name name) {
+        if (names == null) {
+            return null;
+        }
+        return names[indexOf(name.hashCode(), names.length)].data.get(name);
+    }
+
+    /**
+     * Returns the modifiable bucket of entries that contains the given id.
+     */
+    private NodeIdMap<ChildNodeEntry> entryMap(NodeId id) {
+        int index = indexOf(id.hashCode(), entries.length);
+        Bucket<NodeIdMap<ChildNodeEntry>> bucket = entries[index];
+        if (bucket.owner != owner) {
+            bucket = new Bucket<NodeIdMap<ChildNodeEntry>>(
+                    bucket.data.clone(), owner);
+            entries[index] = bucket;
+        }
+        return bucket.data;
+    }
+
+    /**
+     * Returns the modifiable name lookup map that contains the given name.
+     */
+    private Map<Name, Object> nameMap(Name name) {
+        int index = indexOf(name.hashCode(), names.length);
+        Bucket<Map<Name, Object>> bucket = names[index];
+        if (bucket.owner != owner) {
+            Map<Name, Object> copy = new HashMap<Name, Object>();
+            for (Map.Entry<Name, Object> entry : bucket.data.entrySet()) {
+                copy.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            bucket = new Bucket<Map<Name, Object>>(copy, owner);
+            names[index] = bucket;
+        }
+        return bucket.data;
+    }
+
+    private void removeEntry(NodeId id) {
+        if (entryMap(id).remove(id) != null) {
+            size--;
+        }
+    }
+
+    /**
+     * Redistributes the entries over the given number of buckets. Called
+     * with twice the current number of buckets, so that each new bucket
+     * takes its entries from a single old bucket, in the same order.
+     */
+    private void rehash(int length) {
+        Bucket<NodeIdMap<ChildNodeEntry>>[] newEntries = newBuckets(length);
+        Bucket<Map<Name, Object>>[] newNames = newBuckets(length);
+        for (int i = 0; i < length; i++) {
+            newEntries[i] = new Bucket<NodeIdMap<ChildNodeEntry>>(
+                    new NodeIdMap<ChildNodeEntry>(BUCKET_SIZE), owner);
+            newNames[i] = new Bucket<Map<Name, Object>>(
+                    new HashMap<Name, Object>(), owner);
+        }
+        for (Bucket<NodeIdMap<ChildNodeEntry>> bucket : entries) {
+            for (ChildNodeEntry entry : bucket.data.values()) {
+                NodeId id = entry.getId();
+                newEntries[indexOf(id.hashCode(), length)].data.put(id, entry);
+            }
+        }
+        for (Bucket<Map<Name, Object>> bucket : names) {
+            for (Map.Entry<Name, Object> entry : bucket.data.entrySet()) {
+                Name name = entry.getKey();
+                newNames[indexOf(name.hashCode(), length)].data.put(
+                        name, copyValue(entry.getValue()));
+            }
+        }
+        entries = newEntries;
+        names = newNames;
+    }
+
+    /**
+     * Assigns new orders to all entries, starting from zero. Called when
+     * the orders run out after more than two billion additions.
+     */
+    private void renumber() {
+        List<ChildNodeEntry> list = list();
+        init();
+        addAll(list);
+    }
+
+    /**
+     * Copies a value of the name lookup map. Lists of same name siblings
+     * are modified in place, so they are not shared between buckets.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object copyValue(Object value) {
+        if (value instanceof List<?>) {
+            return new ArrayList<ChildNodeEntry>((List<ChildNodeEntry>) value);
+        }
+        return value;
+    }
+
+    private static int indexOf(int hash, int length) {
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return hash & (length - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Bucket<T>[] newBuckets(int length) {
+        return new Bucket[length];
+    }
+
+    /**
+     * A bucket of entries, modifiable only by the instance that owns it.
+     */
+    private static class Bucket<T> {
+
+        private final T data;
+
+        private final Object owner;
+
+        Bucket(T data, Object owner) {
+            this.data = data;
+            this.owner = owner;
+        }
+
+    }
+
+    /**
+     * Iterates over the entries of several buckets in insertion order.
+     */
+    private static class OrderedIterator implements Iterator<ChildNodeEntry> {
+
+        private final PriorityQueue<Head> heads;
+
+        OrderedIterator(Bucket<NodeIdMap<ChildNodeEntry>>[] buckets) {
+            heads = new PriorityQueue<Head>(buckets.length);
+            for (Bucket<NodeIdMap<ChildNodeEntry>> bucket : buckets) {
+                Iterator<ChildNodeEntry> iterator =
+                    bucket.data.values().iterator();
+                if (iterator.hasNext()) {
+                    heads.add(new Head(iterator));
                 }
             }
-            shared = false;
         }
+
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        public ChildNodeEntry next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            ChildNodeEntry entry = head.entry;
+            if (head.iterator.hasNext()) {
+                head.entry = head.iterator.next();
+                heads.add(head);
+            }
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * The next entry of a bucket, ordered by its insertion order.
+     */
+    private static class Head implements Comparable<Head> {
+
+        private final Iterator<ChildNodeEntry> iterator;
+
+        private ChildNodeEntry entry;
+
+        Head(Iterator<ChildNodeEntry> iterator) {
+            this.iterator = iterator;
+            this.entry = iterator.next();
+        }
+
+        public int compareTo(Head other) {
+            return entry.order < other.entry.order
+                ? -1 : (entry.order == other.entry.order ? 0 : 1);
+        }
+
     }
 
 }
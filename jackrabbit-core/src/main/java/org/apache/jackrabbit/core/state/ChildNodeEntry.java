@@ -33,7 +33,13 @@ public final class ChildNodeEntry {
     private final int index; // 1-based index for same-name siblings
     private final NodeId id;
 
-    ChildNodeEntry(Name name, NodeId id, int index) {
+    /**
+     * Position of this entry in the insertion order of its parent's child
+     * node entries. Not part of the identity of the entry.
+     */
+    final int order;
+
+    ChildNodeEntry(Name name, NodeId id, int index, int order) {
         if (name == null) {
             throw new IllegalArgumentException("name can not be null");
         }
@@ -48,6 +54,7 @@ public final class ChildNodeEntry {
             throw new IllegalArgumentException("index is 1-based");
         }
         this.index = index;
+        this.order = order;
     }
 
     public NodeId getId() {
@@ -0,0 +1,351 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.AtomicPersistenceManager;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces change logs that are stored concurrently into a single call to
+ * {@link PersistenceManager#store(ChangeLog)}. The first thread that arrives
+ * becomes the leader of a group. A leader that is alone stores its change
+ * log right away. Otherwise it waits for more change logs until the
+ * configured window has passed or the group is full, takes the queued change
+ * logs and stores them as one change log. The other threads of the group
+ * block until the leader has completed the store. Threads arriving while a
+ * group is being stored form the next group.
+ * <p>
+ * Concurrent change logs can only reach this class if the locking strategy
+ * of the {@link SharedItemStateManager} grants concurrent write locks, which
+ * it only does for change logs that do not intersect. Should a group still
+ * contain intersecting change logs, or should storing the combined change
+ * log fail, the change logs of the group are stored one by one, so that
+ * each update only fails because of its own changes.
+ * <p>
+ * Retrying the change logs of a failed group is only safe if the failed
+ * store left no partial changes behind. Change logs are therefore only
+ * grouped if the persistence manager is an {@link AtomicPersistenceManager}.
+ * Any other persistence manager gets every change log stored separately.
+ */
+class GroupCommitter {
+
+    /**
+     * Logger instance
+     */
+    private static Logger log = LoggerFactory.getLogger(GroupCommitter.class);
+
+    /**
+     * The default maximum number of change logs stored as one group.
+     */
+    static final int DEFAULT_MAX_GROUP_SIZE = 64;
+
+    /**
+     * The persistence manager to store the change logs to.
+     */
+    private final PersistenceManager persistMgr;
+
+    /**
+     * Whether change logs are grouped, which requires a persistence manager
+     * that stores a change log completely or not at all.
+     */
+    private final boolean grouping;
+
+    /**
+     * Time in milliseconds the leader of a group waits for other change logs.
+     */
+    private final long window;
+
+    /**
+     * Maximum number of change logs stored as one group.
+     */
+    private final int maxGroupSize;
+
+    /**
+     * Requests waiting to be stored, in order of arrival.
+     */
+    private final LinkedList<Request> queue = new LinkedList<Request>();
+
+    /**
+     * Whether there currently is a leader collecting or storing a group.
+     */
+    private boolean leaderActive;
+
+    /**
+     * Creates a new group committer.
+     *
+     * @param persistMgr the persistence manager
+     * @param window time in milliseconds the leader of a group waits for
+     *               other change logs, may be zero
+     */
+    GroupCommitter(PersistenceManager persistMgr, long window) {
+        this(persistMgr, window, DEFAULT_MAX_GROUP_SIZE);
+    }
+
+    /**
+     * Creates a new group committer.
+     *
+     * @param persistMgr the persistence manager
+     * @param window time in milliseconds the leader of a group waits for
+     *               other change logs, may be zero
+     * @param maxGroupSize maximum number of change logs stored as one group
+     */
+    GroupCommitter(PersistenceManager persistMgr, long window,
+                   int maxGroupSize) {
+        this.persistMgr = persistMgr;
+        this.grouping = persistMgr instanceof AtomicPersistenceManager;
+        this.window = window;
+        this.maxGroupSize = Math.max(1, maxGroupSize);
+    }
+
+    /**
+     * Stores the given change log, possibly together with change logs of
+     * other threads. Returns once the change log has been stored.
+     *
+     * @param changes the change log to store
+     * @throws ItemStateException if the change log could not be stored
+     */
+    void store(ChangeLog changes) throws ItemStateException {
+        if (!grouping) {
+            persistMgr.store(changes);
+            return;
+        }
+
+        Request request = new Request(changes);
+        List<Request> group;
+        boolean interrupted = false;
+        synchronized (this) {
+            queue.add(request);
+            if (leaderActive) {
+                // the leader may be waiting for the group to fill up
+                notifyAll();
+                while (!request.done && !request.leader) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } else {
+                leaderActive = true;
+                request.leader = true;
+            }
+
+            if (request.leader) {
+                // only wait if there are other writers, as a lone
+                // change log would be delayed for nothing
+                long end = System.currentTimeMillis() + window;
+                long remaining = window;
+                while (remaining > 0 && queue.size() > 1
+                        && queue.size() < maxGroupSize) {
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                    remaining = end - System.currentTimeMillis();
+                }
+                group = new ArrayList<Request>();
+                while (!queue.isEmpty() && group.size() < maxGroupSize) {
+                    group.add(queue.removeFirst());
+                }
+            } else {
+                group = null;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (group != null) {
+            try {
+                store(group);
+            } finally {
+                synchronized (this) {
+                    for (Request r : group) {
+                        r.done = true;
+                    }
+                    if (queue.isEmpty()) {
+                        leaderActive = false;
+                    } else {
+                        // hand over to the next group
+                        queue.getFirst().leader = true;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        if (request.exception != null) {
+            throw request.exception;
+        }
+    }
+
+    /**
+     * Stores the change logs of a group, either combined or one by one.
+     *
+     * @param group the requests of the group
+     */
+    private void store(List<Request> group) {
+        if (group.size() > 1 && !intersect(group)) {
+            GroupChangeLog combined = new GroupChangeLog();
+            for (Request r : group) {
+                combined.add(r.changes);
+            }
+            try {
+                persistMgr.store(combined);
+                log.debug("Stored {} change logs as one group", group.size());
+                return;
+            } catch (ItemStateException e) {
+                log.debug("Storing a group of " + group.size()
+                        + " change logs failed, storing them one by one", e);
+            } catch (RuntimeException e) {
+                log.debug("Storing a group of " + group.size()
+                        + " change logs failed, storing them one by one", e);
+            }
+        }
+
+        for (Request r : group) {
+            try {
+                persistMgr.store(r.changes);
+            } catch (ItemStateException e) {
+                r.exception = e;
+            } catch (RuntimeException e) {
+                r.exception = new ItemStateException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether any two change logs of the group refer to the same item
+     * or to the references of the same node.
+     *
+     * @param group the requests of the group
+     * @return <code>true</code> if the change logs intersect
+     */
+    private static boolean intersect(List<Request> group) {
+        Set<ItemId> ids = new HashSet<ItemId>();
+        Set<ItemId> targets = new HashSet<ItemId>();
+        for (Request r : group) {
+            Set<ItemId> own = new HashSet<ItemId>();
+            for (ItemState state : r.changes.addedStates()) {
+                own.add(state.getId());
+            }
+            for (ItemState state : r.changes.modifiedStates()) {
+                own.add(state.getId());
+            }
+            for (ItemState state : r.changes.deletedStates()) {
+                own.add(state.getId());
+            }
+            for (ItemId id : own) {
+                if (!ids.add(id)) {
+                    return true;
+                }
+            }
+            for (NodeReferences refs : r.changes.modifiedRefs()) {
+                if (!targets.add(refs.getTargetId())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The combined change log of a group. Attributes the size of each stored
+     * node to the change log of the request that contains the node, so that
+     * every request keeps the update size of its own changes.
+     */
+    private static final class GroupChangeLog extends ChangeLog {
+
+        /**
+         * The change logs of the group by the ids of the nodes they change.
+         */
+        private final Map<NodeId, ChangeLog> owners =
+            new HashMap<NodeId, ChangeLog>();
+
+        private void add(ChangeLog changes) {
+            merge(changes);
+            changes.setUpdateSize(0);
+            addOwner(changes, changes.addedStates());
+            addOwner(changes, changes.modifiedStates());
+            addOwner(changes, changes.deletedStates());
+        }
+
+        private void addOwner(ChangeLog changes, Iterable<ItemState> states) {
+            for (ItemState state : states) {
+                if (state.isNode()) {
+                    owners.put((NodeId) state.getId(), changes);
+                } else if (!owners.containsKey(state.getParentId())) {
+                    owners.put(state.getParentId(), changes);
+                }
+            }
+        }
+
+        @Override
+        public void addUpdateSize(NodeId id, long size) {
+            super.addUpdateSize(id, size);
+            ChangeLog owner = owners.get(id);
+            if (owner != null) {
+                owner.addUpdateSize(id, size);
+            }
+        }
+
+    }
+
+    /**
+     * A change log waiting to be stored.
+     */
+    private static final class Request {
+
+        private final ChangeLog changes;
+
+        /**
+         * Set once the change log has been stored or failed to be stored.
+         * Guarded by the group committer.
+         */
+        private boolean done;
+
+        /**
+         * Set when this request leads the next group. Guarded by the group
+         * committer.
+         */
+        private boolean leader;
+
+        /**
+         * The exception thrown when storing the change log, if any.
+         */
+        private ItemStateException exception;
+
+        private Request(ChangeLog changes) {
+            this.changes = changes;
+        }
+
+    }
+
+}
@@ -16,6 +16,8 @@
  */
 package org.apache.jackrabbit.core.state;
 
+import java.util.Collection;
+
 import javax.jcr.InvalidItemStateException;
 import javax.jcr.ReferentialIntegrityException;
 import javax.jcr.RepositoryException;
@@ -230,6 +232,18 @@ public class LocalItemStateManager
         return sharedStateMgr.hasNodeReferences(id);
     }
 
+    /**
+     * Announces that the node states with the given ids are about to be
+     * accessed, so that the shared item state manager can load them in a
+     * single batch.
+     *
+     * @param ids the ids of the node states to prefetch
+     * @see SharedItemStateManager#prefetch(Collection)
+     */
+    public void prefetch(Collection<NodeId> ids) {
+        sharedStateMgr.prefetch(ids);
+    }
+
 
     //--------------------------------------------< UpdatableItemStateManager >
     /**
@@ -19,12 +19,12 @@ package org.apache.jackrabbit.core.state;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
 import org.apache.jackrabbit.core.id.ItemId;
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.NodeIdSet;
 import org.apache.jackrabbit.spi.Name;
 
 /**
@@ -556,7 +556,7 @@ public class NodeState extends ItemState {
             return false;
         }
         if (!sharedSetRW) {
-            sharedSet = new LinkedHashSet<NodeId>(sharedSet);
+            sharedSet = new NodeIdSet(sharedSet);
             sharedSetRW = true;
         }
         return sharedSet.add(parentId);
@@ -593,7 +593,7 @@ public class NodeState extends ItemState {
      */
     public synchronized void setSharedSet(Set<NodeId> set) {
         if (set != Collections.EMPTY_SET) {
-            sharedSet = new LinkedHashSet<NodeId>(set);
+            sharedSet = new NodeIdSet(set);
             sharedSetRW = true;
         } else {
             sharedSet = Collections.emptySet();
@@ -614,7 +614,7 @@ public class NodeState extends ItemState {
         // check first before making changes
         if (sharedSet.contains(parentId)) {
             if (!sharedSetRW) {
-                sharedSet = new LinkedHashSet<NodeId>(sharedSet);
+                sharedSet = new NodeIdSet(sharedSet);
                 sharedSetRW = true;
             }
             sharedSet.remove(parentId);
@@ -16,6 +16,8 @@
  */
 package org.apache.jackrabbit.core.state;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -42,6 +44,7 @@ import org.apache.jackrabbit.core.observation.EventStateCollection;
 import org.apache.jackrabbit.core.observation.EventStateCollectionFactory;
 import org.apache.jackrabbit.core.persistence.CachingPersistenceManager;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.persistence.PrefetchingPersistenceManager;
 import org.apache.jackrabbit.core.value.InternalValue;
 import org.apache.jackrabbit.core.virtual.VirtualItemStateProvider;
 import org.apache.jackrabbit.spi.Name;
@@ -126,6 +129,15 @@ public class SharedItemStateManager
     private static final boolean VALIDATE_HIERARCHY =
         Boolean.getBoolean("org.apache.jackrabbit.core.state.validatehierarchy");
 
+    /**
+     * Time in milliseconds concurrent updates are collected for a group
+     * commit, or a negative value to store every update separately (the
+     * default).
+     * @see #setGroupCommitWindow(long)
+     */
+    private static final long GROUP_COMMIT_WINDOW =
+        Long.getLong("org.apache.jackrabbit.core.state.groupcommitwindow", -1);
+
     /**
      * cache of weak references to ItemState objects issued by this
      * ItemStateManager
@@ -190,6 +202,12 @@ public class SharedItemStateManager
 
     private final NodeIdFactory nodeIdFactory;
 
+    /**
+     * Coalesces the change logs of concurrent updates, or <code>null</code>
+     * if every update is stored separately.
+     */
+    private GroupCommitter groupCommitter;
+
     /**
      * Creates a new <code>SharedItemStateManager</code> instance.
      *
@@ -212,6 +230,7 @@ public class SharedItemStateManager
         this.rootNodeId = rootNodeId;
         this.ismLocking = locking;
         this.nodeIdFactory = nodeIdFactory;
+        setGroupCommitWindow(GROUP_COMMIT_WINDOW);
         // create root node state if it doesn't yet exist
         if (!hasNonVirtualItemState(rootNodeId)) {
             createRootNodeState(rootNodeId, ntReg);
@@ -239,6 +258,31 @@ public class SharedItemStateManager
         this.eventChannel = eventChannel;
     }
 
+    /**
+     * Enables or disables group commits. When enabled, the change logs of
+     * updates that end concurrently are stored to the persistence manager
+     * in a single call, which saves the per-store overhead (such as a
+     * database transaction) of all but one of them. Updates can only end
+     * concurrently if the {@link ISMLocking locking strategy} grants
+     * concurrent write locks, like {@link StripedISMLocking} does. Each
+     * update still fails individually if its own changes cannot be stored.
+     * Updates are only grouped if the persistence manager is an
+     * {@link org.apache.jackrabbit.core.persistence.AtomicPersistenceManager}.
+     * An update that ends while no other update is waiting is stored
+     * right away.
+     *
+     * @param window maximum time in milliseconds to collect concurrent
+     *               updates before storing them, or a negative value to
+     *               store every update separately
+     */
+    public void setGroupCommitWindow(long window) {
+        if (window < 0) {
+            groupCommitter = null;
+        } else {
+            groupCommitter = new GroupCommitter(persistMgr, window);
+        }
+    }
+
     /**
      * Sets a new locking strategy.
      *
@@ -473,6 +517,35 @@ public class SharedItemStateManager
         cache.evictAll();
     }
 
+    /**
+     * Announces that the node states with the given ids are about to be
+     * accessed. If the underlying persistence manager supports it, the
+     * states that are not yet cached by this manager are loaded from the
+     * persistence manager in a single batch. Errors are logged and ignored,
+     * as the states are loaded individually again when they are accessed.
+     *
+     * @param ids the ids of the node states to prefetch
+     */
+    public void prefetch(Collection<NodeId> ids) {
+        if (!(persistMgr instanceof PrefetchingPersistenceManager)) {
+            return;
+        }
+
+        List<NodeId> missing = new ArrayList<NodeId>(ids.size());
+        for (NodeId id : ids) {
+            if (!cache.isCached(id)) {
+                missing.add(id);
+            }
+        }
+        if (missing.size() > 1) {
+            try {
+                ((PrefetchingPersistenceManager) persistMgr).prefetch(missing);
+            } catch (ItemStateException e) {
+                log.warn("Unable to prefetch " + missing.size() + " node states", e);
+            }
+        }
+    }
+
     /**
      * Adds a new virtual item state provider.
      * <p>
@@ -793,7 +866,11 @@ public class SharedItemStateManager
             try {
                 /* Store items in the underlying persistence manager */
                 long t0 = System.currentTimeMillis();
-                persistMgr.store(shared);
+                if (groupCommitter != null) {
+                    groupCommitter.store(shared);
+                } else {
+                    persistMgr.store(shared);
+                }
                 setAttribute(ATTRIBUTE_UPDATE_SIZE, shared.getUpdateSize());
                 succeeded = true;
                 if (log.isDebugEnabled()) {
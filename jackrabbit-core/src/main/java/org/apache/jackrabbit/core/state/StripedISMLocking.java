@@ -0,0 +1,494 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import static org.apache.jackrabbit.data.core.TransactionContext.getCurrentThreadId;
+import static org.apache.jackrabbit.data.core.TransactionContext.isSameThreadId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.PropertyType;
+
+import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Item state locking strategy that partitions the items of a workspace into
+ * a fixed number of stripes by node id. A property belongs to the stripe of
+ * its parent node, and node references belong to the stripe of their target
+ * node. A write lock covers the stripes of all items in the change log,
+ * including the targets of the REFERENCE properties it adds, changes or
+ * removes, so writers whose change logs touch disjoint sets of nodes, such
+ * as imports into unrelated subtrees, hold their write locks concurrently,
+ * while writers with overlapping change logs are serialized. Readers are only
+ * blocked by writers on the stripe of the item they read.
+ * <p>
+ * Configuration:<br>
+ * <ul>
+ * <li>&lt;param name="{@link #setStripes(int) stripes}" value="256"/&gt;
+ * <li>&lt;param name="{@link #setWriterPreference(boolean) writerPreference}" value="true"/&gt;
+ * </ul>
+ * <p>
+ * A writer that needs to read an item that is write locked by another
+ * writer waits for that writer like any other reader. Should the other
+ * writer in turn be waiting for an item locked by the first one, the
+ * request that would complete the cycle fails with an
+ * {@link InterruptedException}, which fails the corresponding update
+ * instead of blocking both writers forever.
+ */
+public class StripedISMLocking implements ISMLocking {
+
+    /**
+     * Logger instance
+     */
+    private static Logger log = LoggerFactory.getLogger(StripedISMLocking.class);
+
+    /**
+     * Number of stripes.
+     */
+    private int stripes = 256;
+
+    /**
+     * Flag for determining whether this locking strategy should give
+     * preference to writers or not. If writers are preferred (which
+     * is the default setting), then readers of a stripe get blocked
+     * whenever there's a writer waiting for that stripe.
+     */
+    private boolean writerPreference = true;
+
+    /**
+     * The write lock that currently holds each stripe, or <code>null</code>.
+     * A downgraded write lock keeps its stripes until it is released, so that
+     * related threads can still read while other writers are waiting.
+     */
+    private WriteLockImpl[] owners;
+
+    /**
+     * Number of acquired read locks per stripe.
+     */
+    private int[] readers;
+
+    /**
+     * Number of writers waiting per stripe.
+     */
+    private int[] writersWaiting;
+
+    /**
+     * Number of read locks acquired without an item id. These block all
+     * writers.
+     */
+    private int anonymousReaders;
+
+    /**
+     * The write locks that are currently held or waited for.
+     */
+    private final List<WriteLockImpl> writers = new ArrayList<WriteLockImpl>();
+
+    /**
+     * Returns the number of stripes.
+     *
+     * @return number of stripes
+     */
+    public synchronized int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * Sets the number of stripes. More stripes reduce the probability that
+     * unrelated change logs conflict, at the cost of a few bytes of memory
+     * per stripe. Must be set before the first lock is acquired.
+     *
+     * @param stripes number of stripes
+     */
+    public synchronized void setStripes(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+        if (owners != null) {
+            throw new IllegalStateException("locking already in use");
+        }
+        this.stripes = stripes;
+    }
+
+    /**
+     * Returns the writer preference status of this locking strategy.
+     *
+     * @return writer preference
+     */
+    public boolean isWriterPreference() {
+        return writerPreference;
+    }
+
+    /**
+     * Sets the writer preference status of this locking strategy.
+     *
+     * @param preference writer preference
+     */
+    public void setWriterPreference(boolean preference) {
+        this.writerPreference = preference;
+    }
+
+    /**
+     * Increments the reader count of the stripe of the given item and
+     * returns the acquired read lock once the stripe is not held by a writer
+     * of another thread. A <code>null</code> id acquires a read lock that
+     * blocks writers on all stripes.
+     */
+    public synchronized ReadLock acquireReadLock(ItemId id)
+            throws InterruptedException {
+        init();
+        Object currentId = getCurrentThreadId();
+        WriteLockImpl own = getWriteLock(currentId);
+
+        if (id == null) {
+            // start over after waiting, as other stripes may have been
+            // locked in the meantime
+            int stripe = 0;
+            while (stripe < stripes) {
+                if (waitForRead(stripe, currentId, own)) {
+                    stripe = 0;
+                } else {
+                    stripe++;
+                }
+            }
+            anonymousReaders++;
+            return new ReadLockImpl(-1);
+        }
+
+        int stripe = getStripe(id);
+        waitForRead(stripe, currentId, own);
+        readers[stripe]++;
+        return new ReadLockImpl(stripe);
+    }
+
+    /**
+     * Acquires the stripes of all items in the given change log, once none of
+     * them is held by a writer or reader of another thread.
+     */
+    public synchronized WriteLock acquireWriteLock(ChangeLog changeLog)
+            throws InterruptedException {
+        init();
+        Object currentId = getCurrentThreadId();
+        WriteLockImpl own = getWriteLock(currentId);
+        int[] requested = getStripes(changeLog);
+
+        for (int stripe : requested) {
+            writersWaiting[stripe]++;
+        }
+        WriteLockImpl lock = new WriteLockImpl(currentId);
+        writers.add(lock);
+        boolean acquired = false;
+        try {
+            WriteLockImpl blocker = getWriteBlocker(requested, currentId);
+            while (blocker != null || isBlockedByReaders(requested, currentId)) {
+                if (own != null && blocker != null) {
+                    waitFor(own, blocker);
+                } else {
+                    wait();
+                }
+                blocker = getWriteBlocker(requested, currentId);
+            }
+            acquired = true;
+        } finally {
+            for (int stripe : requested) {
+                writersWaiting[stripe]--;
+            }
+            if (!acquired) {
+                writers.remove(lock);
+                notifyAll();
+            }
+        }
+
+        // stripes already held by a related lock stay with that lock
+        int count = 0;
+        int[] acquiredStripes = new int[requested.length];
+        for (int stripe : requested) {
+            if (owners[stripe] == null) {
+                owners[stripe] = lock;
+                acquiredStripes[count++] = stripe;
+            }
+        }
+        lock.stripes = Arrays.copyOf(acquiredStripes, count);
+        return lock;
+    }
+
+    /**
+     * Waits until a read lock can be granted on the given stripe.
+     *
+     * @return <code>true</code> if the thread had to wait
+     */
+    private boolean waitForRead(int stripe, Object currentId, WriteLockImpl own)
+            throws InterruptedException {
+        boolean waited = false;
+        while (true) {
+            WriteLockImpl owner = owners[stripe];
+            if (owner != null && isSameThreadId(owner.threadId, currentId)) {
+                return waited;
+            }
+            if (owner != null && owner.writing) {
+                if (own != null) {
+                    waitFor(own, owner);
+                } else {
+                    wait();
+                }
+            } else if (own == null && writerPreference
+                    && writersWaiting[stripe] > 0) {
+                wait();
+            } else {
+                return waited;
+            }
+            waited = true;
+        }
+    }
+
+    /**
+     * Waits for a change of the lock state while the thread holding the
+     * write lock <code>own</code> is blocked by the write lock
+     * <code>blocker</code>. Fails if <code>blocker</code> is (directly or
+     * indirectly) waiting for <code>own</code>.
+     */
+    private void waitFor(WriteLockImpl own, WriteLockImpl blocker)
+            throws InterruptedException {
+        WriteLockImpl lock = blocker;
+        while (lock != null) {
+            if (lock == own) {
+                log.warn("Deadlock between concurrent writers detected,"
+                        + " failing the current request");
+                throw new InterruptedException(
+                        "Deadlock between concurrent writers detected");
+            }
+            lock = lock.waitingFor;
+        }
+        own.waitingFor = blocker;
+        try {
+            wait();
+        } finally {
+            own.waitingFor = null;
+        }
+    }
+
+    /**
+     * Returns the write lock that prevents a writer of the given thread from
+     * acquiring the given stripes, or <code>null</code> if there is none.
+     */
+    private WriteLockImpl getWriteBlocker(int[] stripes, Object currentId) {
+        for (int stripe : stripes) {
+            WriteLockImpl owner = owners[stripe];
+            if (owner != null && !isSameThreadId(owner.threadId, currentId)) {
+                return owner;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether readers of other threads prevent a writer from
+     * acquiring the given stripes.
+     */
+    private boolean isBlockedByReaders(int[] stripes, Object currentId) {
+        if (anonymousReaders > 0) {
+            return true;
+        }
+        for (int stripe : stripes) {
+            if (readers[stripe] > 0 && owners[stripe] == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the active write lock of the given thread, or <code>null</code>.
+     */
+    private WriteLockImpl getWriteLock(Object currentId) {
+        for (WriteLockImpl lock : writers) {
+            if (lock.stripes != null && isSameThreadId(lock.threadId, currentId)) {
+                return lock;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the sorted, distinct stripes of the items in the change log.
+     */
+    private int[] getStripes(ChangeLog changeLog) {
+        boolean[] used = new boolean[stripes];
+        for (ItemState state : changeLog.addedStates()) {
+            used[getStripe(state.getId())] = true;
+            useTargets(used, state);
+        }
+        for (ItemState state : changeLog.modifiedStates()) {
+            used[getStripe(state.getId())] = true;
+            useTargets(used, state);
+            useTargets(used, state.getOverlayedState());
+        }
+        for (ItemState state : changeLog.deletedStates()) {
+            used[getStripe(state.getId())] = true;
+            useTargets(used, state);
+            useTargets(used, state.getOverlayedState());
+        }
+        for (NodeReferences refs : changeLog.modifiedRefs()) {
+            used[getStripe(refs.getTargetId())] = true;
+        }
+        int count = 0;
+        int[] result = new int[stripes];
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            if (used[stripe]) {
+                result[count++] = stripe;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Marks the stripes of the nodes that the given REFERENCE property
+     * points to. The shared item state manager updates the node references
+     * of these nodes once the write lock is acquired, so their stripes are
+     * needed even if the change log does not contain the node references
+     * yet. The old values are those of the overlayed state. Should another
+     * writer change them in the meantime, it holds the stripe of the
+     * property, and the change log is rejected as stale.
+     */
+    private void useTargets(boolean[] used, ItemState state) {
+        if (state != null && !state.isNode()) {
+            PropertyState property = (PropertyState) state;
+            if (property.getType() == PropertyType.REFERENCE) {
+                InternalValue[] values = property.getValues();
+                for (int i = 0; values != null && i < values.length; i++) {
+                    used[getStripe(values[i].getNodeId())] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the stripe of the given item.
+     */
+    private int getStripe(ItemId id) {
+        NodeId nodeId;
+        if (id.denotesNode()) {
+            nodeId = (NodeId) id;
+        } else {
+            nodeId = ((PropertyId) id).getParentId();
+        }
+        return (nodeId.hashCode() & Integer.MAX_VALUE) % stripes;
+    }
+
+    /**
+     * Allocates the stripe tables on first use.
+     */
+    private void init() {
+        if (owners == null) {
+            owners = new WriteLockImpl[stripes];
+            readers = new int[stripes];
+            writersWaiting = new int[stripes];
+        }
+    }
+
+    /**
+     * Releases a read lock on the given stripe, or an anonymous read lock if
+     * the stripe is negative.
+     */
+    private synchronized void releaseReadLock(int stripe) {
+        if (stripe < 0) {
+            anonymousReaders--;
+        } else {
+            readers[stripe]--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Releases the stripes of the given write lock, or turns them into read
+     * locks if the downgrade argument is true.
+     */
+    private synchronized void releaseWriteLock(WriteLockImpl lock, boolean downgrade) {
+        if (downgrade) {
+            lock.writing = false;
+        } else {
+            for (int stripe : lock.stripes) {
+                owners[stripe] = null;
+            }
+            writers.remove(lock);
+        }
+        notifyAll();
+    }
+
+    private final class ReadLockImpl implements ReadLock {
+
+        private final int stripe;
+
+        private ReadLockImpl(int stripe) {
+            this.stripe = stripe;
+        }
+
+        public void release() {
+            releaseReadLock(stripe);
+        }
+
+    }
+
+    private final class WriteLockImpl implements WriteLock {
+
+        /**
+         * Thread or transaction identifier of the writer.
+         */
+        private final Object threadId;
+
+        /**
+         * The stripes owned by this lock, or <code>null</code> while the
+         * lock is being acquired.
+         */
+        private int[] stripes;
+
+        /**
+         * Whether this lock has not been downgraded yet.
+         */
+        private boolean writing = true;
+
+        /**
+         * The write lock the thread holding this lock is waiting for.
+         */
+        private WriteLockImpl waitingFor;
+
+        private WriteLockImpl(Object threadId) {
+            this.threadId = threadId;
+        }
+
+        public void release() {
+            releaseWriteLock(this, false);
+        }
+
+        public ReadLock downgrade() {
+            releaseWriteLock(this, true);
+            return new ReadLock() {
+                public void release() {
+                    releaseWriteLock(WriteLockImpl.this, false);
+                }
+            };
+        }
+
+    }
+
+}
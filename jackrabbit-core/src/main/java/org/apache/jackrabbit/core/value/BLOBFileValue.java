@@ -20,10 +20,12 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import javax.jcr.RepositoryException;
-import javax.jcr.Binary;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.core.data.DataIdentifier;
 import org.apache.jackrabbit.core.data.DataStore;
+import org.apache.jackrabbit.core.data.util.RangeInputStream;
+import org.apache.jackrabbit.value.RangeBinary;
 
 /**
  * Represents binary data which is backed by a resource or byte[].
@@ -36,7 +38,7 @@ import org.apache.jackrabbit.core.data.DataStore;
  * This interface is for Jackrabbit-internal use only. Applications should
  * use <code>javax.jcr.ValueFactory</code> to create binary values.
  */
-abstract class BLOBFileValue implements Binary {
+abstract class BLOBFileValue implements RangeBinary {
 
     /**
      * Deletes the persistent resource backing this <code>BLOBFileValue</code>.
@@ -94,6 +96,26 @@ abstract class BLOBFileValue implements Binary {
         }
     }
 
+    //------------------------------------------------------< RangeBinary >
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The default implementation skips the start of the stream returned by
+     * {@link #getStream()}.
+     */
+    public InputStream getStream(long offset, long length)
+            throws RepositoryException {
+        InputStream in = getStream();
+        try {
+            return new RangeInputStream(in, offset, length);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw new RepositoryException(
+                    "Error skipping to offset " + offset + " of " + this, e);
+        }
+    }
+
     /**
      * Check if this blob uses the given data store.
      *
@@ -16,6 +16,7 @@
  */
 package org.apache.jackrabbit.core.value;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.api.ReferenceBinary;
 import org.apache.jackrabbit.core.data.DataIdentifier;
 import org.apache.jackrabbit.core.data.DataRecord;
@@ -24,6 +25,7 @@ import org.apache.jackrabbit.core.data.DataStoreException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.InputStream;
 
 import javax.jcr.RepositoryException;
@@ -104,6 +106,31 @@ class BLOBInDataStore extends BLOBFileValue implements ReferenceBinary {
         return getDataRecord().getStream();
     }
 
+    /**
+     * Reads only the requested part of the data record, see
+     * {@link DataRecord#getStream(long, long)}.
+     */
+    @Override
+    public InputStream getStream(long offset, long length)
+            throws RepositoryException {
+        return getDataRecord().getStream(offset, length);
+    }
+
+    /**
+     * Reads only the requested part of the data record, see
+     * {@link #getStream(long, long)}.
+     */
+    @Override
+    public int read(byte[] b, long position) throws IOException, RepositoryException {
+        InputStream in = getStream(position, b.length);
+        try {
+            int read = IOUtils.read(in, b);
+            return read == 0 && b.length > 0 ? -1 : read;
+        } finally {
+            in.close();
+        }
+    }
+
     @Override
     public String getReference() {
         try {
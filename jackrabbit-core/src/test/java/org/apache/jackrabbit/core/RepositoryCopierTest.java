@@ -96,6 +96,38 @@ public class RepositoryCopierTest extends TestCase {
         }
     }
 
+    public void testParallelRepositoryCopy() throws Exception {
+        RepositoryImpl repository = createSourceRepository();
+        File checkpoints = new File(BASE, "checkpoints");
+        try {
+            copyParallel(repository, TARGET1, checkpoints);
+            assertTrue(new File(checkpoints, "version").isFile());
+            assertTrue(new File(checkpoints, "workspace-default").isFile());
+
+            // resuming a completed copy keeps the copied content intact
+            copyParallel(repository, TARGET1, checkpoints);
+            verifyTargetRepository(TARGET1);
+        } finally {
+            repository.shutdown();
+        }
+    }
+
+    private void copyParallel(
+            RepositoryImpl source, File target, File checkpoints)
+            throws Exception {
+        RepositoryImpl repository = RepositoryImpl.create(
+                RepositoryConfig.install(target));
+        try {
+            RepositoryCopier copier = new RepositoryCopier(source, repository);
+            copier.setThreads(4);
+            copier.setBatchSize(2);
+            copier.setCheckpointDirectory(checkpoints);
+            copier.copy();
+        } finally {
+            repository.shutdown();
+        }
+    }
+
     private RepositoryImpl createSourceRepository() throws Exception {
         RepositoryImpl repository = RepositoryImpl.create(RepositoryConfig.install(SOURCE));
 
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link TinyLFUCache} class.
+ */
+public class TinyLFUCacheTest extends TestCase {
+
+    public void testPutGetRemove() {
+        TinyLFUCache<String, String> cache =
+            new TinyLFUCache<String, String>("test");
+        cache.setMaxMemorySize(100);
+
+        assertNull(cache.get("a"));
+        assertNull(cache.put("a", "1", 10));
+        assertEquals("1", cache.get("a"));
+        assertEquals("1", cache.put("a", "2", 20));
+        assertEquals("2", cache.get("a"));
+        assertEquals(20, cache.getMemoryUsed());
+        assertEquals(1, cache.getElementCount());
+
+        assertEquals("2", cache.remove("a"));
+        assertNull(cache.get("a"));
+        assertTrue(cache.isEmpty());
+
+        cache.put("b", "1", 10);
+        cache.clear();
+        assertFalse(cache.containsKey("b"));
+        assertTrue(cache.isEmpty());
+    }
+
+    /**
+     * Adds lots of items and checks that the excess items have been evicted,
+     * also after the maximum size was reduced.
+     */
+    public void testEviction() {
+        TinyLFUCache<NodeId, NodeId> cache =
+            new TinyLFUCache<NodeId, NodeId>("test");
+        cache.setMaxMemorySize(500);
+        for (int i = 0; i < 10000; i++) {
+            NodeId id = NodeId.randomId();
+            cache.put(id, id, 1);
+        }
+        assertTrue(cache.getMemoryUsed() <= 500);
+        assertTrue(cache.getMemoryUsed() > 250);
+        assertEquals(cache.getMemoryUsed(), cache.getElementCount());
+
+        cache.setMaxMemorySize(100);
+        assertTrue(cache.getMemoryUsed() <= 100);
+        assertEquals(cache.getMemoryUsed(), cache.getElementCount());
+    }
+
+    /**
+     * Checks that a candidate leaving the admission window that is less
+     * popular than some of the entries it would replace is rejected without
+     * evicting any of the less popular entries.
+     */
+    public void testRejectedCandidateEvictsNothing() {
+        TinyLFUCache<String, String> cache =
+            new TinyLFUCache<String, String>("test");
+        cache.setMaxMemorySize(100);
+        for (int i = 0; i < 49; i++) {
+            cache.put("cold" + i, "", 1);
+        }
+        for (int i = 0; i < 50; i++) {
+            cache.put("hot" + i, "", 1);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                cache.get("hot" + i);
+            }
+        }
+        cache.put("filler", "", 1);
+
+        // accessed more often than the cold entries, less than the hot ones
+        cache.put("big", "", 1);
+        cache.remove("big");
+        int cold = 0;
+        for (int i = 0; i < 49; i++) {
+            if (cache.containsKey("cold" + i)) {
+                cold++;
+            }
+        }
+        assertTrue(cold > 0);
+
+        cache.put("big", "", 60);
+        assertFalse(cache.containsKey("big"));
+        for (int i = 0; i < 49; i++) {
+            if (cache.containsKey("cold" + i)) {
+                cold--;
+            }
+        }
+        assertEquals("Cold entries were evicted for a rejected candidate",
+                0, cold);
+        assertTrue(cache.getMemoryUsed() <= 100);
+    }
+
+    /**
+     * Compares the hit rates of {@link TinyLFUCache} and
+     * {@link ConcurrentCache} for a frequently accessed working set while
+     * large scans pass through the caches.
+     */
+    public void testScanResistance() {
+        NodeId[] hot = new NodeId[200];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = NodeId.randomId();
+        }
+
+        TinyLFUCache<NodeId, NodeId> tinyLFU =
+            new TinyLFUCache<NodeId, NodeId>("test");
+        tinyLFU.setMaxMemorySize(1000);
+        ConcurrentCache<NodeId, NodeId> lru =
+            new ConcurrentCache<NodeId, NodeId>("test");
+        lru.setMaxMemorySize(1000);
+
+        int tinyLFUHits = 0;
+        int lruHits = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < hot.length; i++) {
+                if (tinyLFU.get(hot[i]) != null) {
+                    tinyLFUHits++;
+                } else {
+                    tinyLFU.put(hot[i], hot[i], 1);
+                }
+                if (lru.get(hot[i]) != null) {
+                    lruHits++;
+                } else {
+                    lru.put(hot[i], hot[i], 1);
+                }
+            }
+            for (int i = 0; i < 2000; i++) {
+                NodeId id = NodeId.randomId();
+                if (tinyLFU.get(id) == null) {
+                    tinyLFU.put(id, id, 1);
+                }
+                if (lru.get(id) == null) {
+                    lru.put(id, id, 1);
+                }
+            }
+        }
+
+        int accesses = 20 * hot.length;
+        assertTrue("TinyLFU hit rate too low: " + tinyLFUHits + "/" + accesses,
+                tinyLFUHits > accesses * 7 / 10);
+        assertTrue("TinyLFU (" + tinyLFUHits + ") not better than LRU ("
+                + lruHits + ")", tinyLFUHits > lruHits);
+    }
+
+}
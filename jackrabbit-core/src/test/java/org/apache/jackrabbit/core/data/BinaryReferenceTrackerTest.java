@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import javax.jcr.Credentials;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+import org.apache.jackrabbit.core.gc.BinaryReferenceTracker;
+import org.apache.jackrabbit.core.gc.GarbageCollector;
+import org.apache.jackrabbit.core.gc.BinaryReferenceTracker.Changes;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.value.InternalValue;
+
+/**
+ * Tests the reference counting, saving and rebuilding of the
+ * {@link BinaryReferenceTracker}.
+ */
+public class BinaryReferenceTrackerTest extends TestCase {
+
+    private static final Comparator<NodeId> ORDER = new Comparator<NodeId>() {
+        public int compare(NodeId a, NodeId b) {
+            return a.compareTo(b);
+        }
+    };
+
+    private static final DataIdentifier A = new DataIdentifier("a");
+
+    private static final DataIdentifier B = new DataIdentifier("b");
+
+    private static final String INCREMENTAL =
+        "org.apache.jackrabbit.garbagecollector.incremental";
+
+    private static final Credentials CREDENTIALS =
+        new SimpleCredentials("admin", "admin".toCharArray());
+
+    private File directory;
+
+    protected void setUp() throws IOException {
+        directory = new File("target/references");
+        FileUtils.deleteDirectory(directory);
+    }
+
+    protected void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public void testCounts() throws IOException {
+        BinaryReferenceTracker tracker = new BinaryReferenceTracker(directory);
+        assertFalse(tracker.isComplete());
+
+        NodeId node = NodeId.randomId();
+        Changes changes = new Changes();
+        changes.added(node, values(A, A, B));
+        changes.added(node, new InternalValue[] { InternalValue.create("a") });
+        tracker.update(this, changes);
+        assertTrue(tracker.isReferenced(A));
+        assertTrue(tracker.isReferenced(B));
+        assertEquals(2, tracker.size());
+
+        changes = new Changes();
+        changes.removed(node, values(A, B));
+        tracker.update(this, changes);
+        assertTrue(tracker.isReferenced(A));
+        assertFalse(tracker.isReferenced(B));
+
+        changes = new Changes();
+        changes.removed(node, values(A));
+        tracker.update(this, changes);
+        assertEquals(0, tracker.size());
+    }
+
+    public void testSave() throws IOException {
+        BinaryReferenceTracker tracker = rebuild(new BinaryReferenceTracker(directory));
+        assertTrue(tracker.isComplete());
+        tracker.close();
+
+        tracker = new BinaryReferenceTracker(directory);
+        assertTrue(tracker.isComplete());
+        assertTrue(tracker.isReferenced(A));
+        assertFalse(tracker.isReferenced(B));
+
+        // not closed, as after an unclean shutdown
+        tracker = new BinaryReferenceTracker(directory);
+        assertFalse(tracker.isComplete());
+        assertEquals(0, tracker.size());
+    }
+
+    public void testRebuild() throws IOException {
+        BinaryReferenceTracker tracker = new BinaryReferenceTracker(directory);
+        NodeId first = new NodeId(1, 0);
+        NodeId second = new NodeId(2, 0);
+        NodeId third = new NodeId(3, 0);
+
+        tracker.startRebuild();
+        Changes scanned = new Changes();
+        scanned.added(first, values(A));
+        scanned.added(second, values(A));
+        tracker.scanned(this, ORDER, second, scanned);
+
+        // the scan has already passed the first node, so its change is
+        // counted, while the scan would see the change of the third node
+        Changes changes = new Changes();
+        changes.removed(first, values(A));
+        changes.added(third, values(B));
+        tracker.update(this, changes);
+
+        tracker.scanned(this, ORDER, null, new Changes());
+        assertTrue(tracker.finishRebuild());
+        assertTrue(tracker.isReferenced(A));
+        assertFalse(tracker.isReferenced(B));
+
+        changes = new Changes();
+        changes.removed(second, values(A));
+        tracker.update(this, changes);
+        assertEquals(0, tracker.size());
+    }
+
+    public void testRebuildWithUnscannedChanges() throws IOException {
+        BinaryReferenceTracker tracker = new BinaryReferenceTracker(directory);
+        tracker.startRebuild();
+        tracker.scanned(this, null, null, new Changes());
+
+        Changes changes = new Changes();
+        changes.added(NodeId.randomId(), values(A));
+        tracker.update(new Object(), changes);
+
+        assertFalse(tracker.finishRebuild());
+        assertFalse(tracker.isComplete());
+    }
+
+    public void testInvalidate() throws IOException {
+        BinaryReferenceTracker tracker = rebuild(new BinaryReferenceTracker(directory));
+        tracker.invalidate(this);
+        assertFalse(tracker.isComplete());
+
+        // incomplete counts are not saved
+        tracker.close();
+        tracker = new BinaryReferenceTracker(directory);
+        assertFalse(tracker.isComplete());
+
+        // the rebuild does not see whether the untracked change was scanned
+        tracker.startRebuild();
+        tracker.scanned(this, null, null, new Changes());
+        tracker.invalidate(this);
+        assertFalse(tracker.finishRebuild());
+        assertFalse(tracker.isComplete());
+    }
+
+    public void testDiscard() throws IOException {
+        rebuild(new BinaryReferenceTracker(directory)).close();
+        BinaryReferenceTracker.discard(directory);
+        assertFalse(new BinaryReferenceTracker(directory).isComplete());
+    }
+
+    /**
+     * Checks that a repository that ran without tracking the references
+     * discards the saved ones, so that the garbage collection does not
+     * delete the records that were referenced during that run.
+     */
+    public void testRestartWithoutTracking() throws Exception {
+        File home = new File(directory, "repository");
+        File saved = new File(home, "repository/gc/references.txt");
+        byte[] data = new byte[1000];
+        new Random().nextBytes(data);
+        try {
+            System.setProperty(INCREMENTAL, "true");
+            RepositoryImpl repository =
+                RepositoryImpl.create(RepositoryConfig.install(home));
+            try {
+                collectGarbage(repository);
+            } finally {
+                repository.shutdown();
+            }
+            assertTrue(saved.exists());
+
+            System.clearProperty(INCREMENTAL);
+            repository = RepositoryImpl.create(RepositoryConfig.create(home));
+            try {
+                Session session = repository.login(CREDENTIALS);
+                try {
+                    session.getRootNode().setProperty("binary",
+                            session.getValueFactory().createBinary(
+                                    new ByteArrayInputStream(data)));
+                    session.save();
+                } finally {
+                    session.logout();
+                }
+            } finally {
+                repository.shutdown();
+            }
+            assertFalse(saved.exists());
+
+            System.setProperty(INCREMENTAL, "true");
+            repository = RepositoryImpl.create(RepositoryConfig.create(home));
+            try {
+                // make sure the record is old (access time resolution
+                // is 2 seconds)
+                Thread.sleep(2000);
+                collectGarbage(repository);
+
+                Session session = repository.login(CREDENTIALS);
+                try {
+                    InputStream stream = session.getRootNode()
+                        .getProperty("binary").getBinary().getStream();
+                    try {
+                        assertTrue(Arrays.equals(
+                                data, IOUtils.toByteArray(stream)));
+                    } finally {
+                        stream.close();
+                    }
+                } finally {
+                    session.logout();
+                }
+            } finally {
+                repository.shutdown();
+            }
+        } finally {
+            System.clearProperty(INCREMENTAL);
+        }
+    }
+
+    private static void collectGarbage(RepositoryImpl repository)
+            throws Exception {
+        SessionImpl session = (SessionImpl) repository.login(CREDENTIALS);
+        try {
+            GarbageCollector gc = session.createDataStoreGarbageCollector();
+            try {
+                gc.mark();
+                gc.sweep();
+            } finally {
+                gc.close();
+            }
+        } finally {
+            session.logout();
+        }
+    }
+
+    private BinaryReferenceTracker rebuild(BinaryReferenceTracker tracker) {
+        tracker.startRebuild();
+        Changes scanned = new Changes();
+        scanned.added(NodeId.randomId(), values(A));
+        tracker.scanned(this, null, null, scanned);
+        assertTrue(tracker.finishRebuild());
+        return tracker;
+    }
+
+    private static InternalValue[] values(DataIdentifier... identifiers) {
+        InternalValue[] values = new InternalValue[identifiers.length];
+        for (int i = 0; i < identifiers.length; i++) {
+            values[i] = InternalValue.create(
+                    (DataStore) null, "dataStore:" + identifiers[i]);
+        }
+        return values;
+    }
+
+}
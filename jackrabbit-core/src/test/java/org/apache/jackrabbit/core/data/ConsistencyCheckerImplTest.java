@@ -19,6 +19,8 @@ package org.apache.jackrabbit.core.data;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -110,6 +112,9 @@ public class ConsistencyCheckerImplTest extends TestCase {
         assertEquals(1, bundle1.getChildNodeEntries().size());
         assertEquals(bundle2.getId(), bundle1.getChildNodeEntries().get(0).getId());
 
+        // the fix is stored without a change log
+        assertTrue(pm.invalidations > 0);
+
         slave.sync();
 
         // verify events were correctly broadcast to cluster
@@ -406,6 +411,63 @@ public class ConsistencyCheckerImplTest extends TestCase {
 
     }
 
+    public void testParallelCheck() throws RepositoryException {
+        Comparator<NodeId> order = new Comparator<NodeId>() {
+            public int compare(NodeId a, NodeId b) {
+                return a.compareTo(b);
+            }
+        };
+        assertParallelCheck(order, order);
+    }
+
+    public void testParallelCheckUnexpectedOrder() throws RepositoryException {
+        // the persistence manager claims the reverse of its actual order
+        Comparator<NodeId> order = new Comparator<NodeId>() {
+            public int compare(NodeId a, NodeId b) {
+                return a.compareTo(b);
+            }
+        };
+        assertParallelCheck(order, Collections.reverseOrder(order));
+    }
+
+    private void assertParallelCheck(Comparator<NodeId> order, Comparator<NodeId> claimedOrder)
+            throws RepositoryException {
+        List<NodePropBundle> bundles = new ArrayList<NodePropBundle>();
+        NodePropBundle root = new NodePropBundle(new NodeId(0, 0));
+        bundles.add(root);
+        for (int i = 0; i < 1000; i++) {
+            NodePropBundle child = new NodePropBundle(NodeId.randomId());
+            child.setParentId(root.getId());
+            root.addChildNodeEntry(nameFactory.create("", "node" + i), child.getId());
+            bundles.add(child);
+        }
+        NodeId missingId = NodeId.randomId();
+        root.addChildNodeEntry(nameFactory.create("", "missing"), missingId);
+        NodePropBundle orphan = new NodePropBundle(NodeId.randomId());
+        orphan.setParentId(NodeId.randomId());
+        bundles.add(orphan);
+
+        OrderedPersistenceManager pm = new OrderedPersistenceManager(bundles, order, claimedOrder);
+        ConsistencyCheckerImpl checker = new ConsistencyCheckerImpl(pm, null, null, null);
+        checker.setThreads(4);
+        checker.setThrottle(true);
+        checker.check(null, false);
+
+        assertEquals(bundles.size(), checker.getReport().getNodeCount());
+        Set<ReportItem.Type> types = new HashSet<ReportItem.Type>();
+        for (ReportItem item : checker.getReport().getItems()) {
+            types.add(item.getType());
+            if (item.getType() == ReportItem.Type.MISSING) {
+                assertEquals(root.getId().toString(), item.getNodeId());
+            } else {
+                assertEquals(orphan.getId().toString(), item.getNodeId());
+            }
+        }
+        assertEquals(2, checker.getReport().getItems().size());
+        assertTrue(types.contains(ReportItem.Type.MISSING));
+        assertTrue(types.contains(ReportItem.Type.ORPHANED));
+    }
+
     private ClusterNode createClusterNode(String id) throws Exception {
         final MemoryJournal journal = new MemoryJournal() {
             protected boolean syncAgainOnNewRecords() {
@@ -434,6 +496,8 @@ public class ConsistencyCheckerImplTest extends TestCase {
 
         private Map<NodeId, NodePropBundle> bundles = new LinkedHashMap<NodeId, NodePropBundle>();
 
+        private int invalidations;
+
         private MockPersistenceManager(List<NodePropBundle> bundles) {
             for (NodePropBundle bundle : bundles) {
                 this.bundles.put(bundle.getId(), bundle);
@@ -454,6 +518,11 @@ public class ConsistencyCheckerImplTest extends TestCase {
             return allNodeIds;
         }
 
+        @Override
+        protected void invalidateBinaryReferences() {
+            invalidations++;
+        }
+
         @Override
         protected NodePropBundle loadBundle(final NodeId id) {
             return bundles.get(id);
@@ -500,6 +569,44 @@ public class ConsistencyCheckerImplTest extends TestCase {
         }
     }
 
+    /**
+     * Lists the node ids in the given order, and respects the maximum count.
+     */
+    private static class OrderedPersistenceManager extends MockPersistenceManager {
+
+        private final Comparator<NodeId> order;
+
+        private final Comparator<NodeId> claimedOrder;
+
+        private OrderedPersistenceManager(
+                List<NodePropBundle> bundles, Comparator<NodeId> order, Comparator<NodeId> claimedOrder) {
+            super(bundles);
+            this.order = order;
+            this.claimedOrder = claimedOrder;
+        }
+
+        @Override
+        public List<NodeId> getAllNodeIds(NodeId after, int maxCount) {
+            List<NodeId> ids = new ArrayList<NodeId>(super.bundles.keySet());
+            Collections.sort(ids, order);
+            List<NodeId> result = new ArrayList<NodeId>();
+            for (NodeId id : ids) {
+                if (after == null || order.compare(id, after) > 0) {
+                    result.add(id);
+                    if (result.size() == maxCount) {
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        protected Comparator<NodeId> getNodeIdOrder() {
+            return claimedOrder;
+        }
+    }
+
     private static class TestUpdateEventListener implements UpdateEventListener {
 
         private ChangeLog changes;
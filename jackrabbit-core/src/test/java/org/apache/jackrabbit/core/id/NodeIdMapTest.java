@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.id;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class NodeIdMapTest extends TestCase {
+
+    public void testPutGetRemove() {
+        NodeIdMap<String> map = new NodeIdMap<String>();
+        NodeId a = new NodeId(1, 2);
+        NodeId b = new NodeId(2, 1);
+        assertTrue(map.isEmpty());
+        assertNull(map.put(a, "a"));
+        assertNull(map.put(b, null));
+        assertEquals(2, map.size());
+        assertEquals("a", map.get(new NodeId(1, 2)));
+        assertNull(map.get(b));
+        assertTrue(map.containsKey(b));
+        assertFalse(map.containsKey(new NodeId(1, 1)));
+        assertEquals("a", map.put(a, "c"));
+        assertEquals(2, map.size());
+        assertEquals("c", map.remove(a));
+        assertNull(map.remove(a));
+        assertFalse(map.containsKey(a));
+        assertEquals(1, map.size());
+    }
+
+    public void testInsertionOrder() {
+        NodeIdMap<Integer> map = new NodeIdMap<Integer>();
+        List<NodeId> ids = new ArrayList<NodeId>();
+        for (int i = 0; i < 100; i++) {
+            NodeId id = NodeId.randomId();
+            ids.add(id);
+            map.put(id, i);
+        }
+        // replacing a value keeps the position
+        map.put(ids.get(10), -1);
+        // removed entries are skipped, re-added entries go to the end
+        map.remove(ids.get(0));
+        map.remove(ids.get(50));
+        map.put(ids.get(0), 0);
+        ids.remove(50);
+        ids.add(ids.remove(0));
+
+        Iterator<NodeId> keys = map.keyIterator();
+        Iterator<Integer> values = map.values().iterator();
+        for (NodeId id : ids) {
+            assertEquals(id, keys.next());
+            assertEquals(map.get(id), values.next());
+        }
+        assertFalse(keys.hasNext());
+        assertFalse(values.hasNext());
+        assertEquals(ids.size(), map.size());
+        assertEquals(ids.size(), map.values().size());
+    }
+
+    public void testRandomOperations() {
+        Random random = new Random(1);
+        NodeIdMap<Integer> map = new NodeIdMap<Integer>();
+        Map<NodeId, Integer> expected = new HashMap<NodeId, Integer>();
+        for (int i = 0; i < 100000; i++) {
+            // small key range to get many collisions and re-additions
+            NodeId id = new NodeId(random.nextInt(20), random.nextInt(50));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(id), map.remove(id));
+            } else {
+                assertEquals(expected.put(id, i), map.put(id, i));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<NodeId, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    public void testRemoveWhileIterating() {
+        NodeIdMap<Integer> map = new NodeIdMap<Integer>();
+        for (int i = 0; i < 10; i++) {
+            map.put(new NodeId(0, i), i);
+        }
+        Iterator<Integer> it = map.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() % 2 == 0) {
+                it.remove();
+            }
+        }
+        assertEquals(5, map.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i % 2 != 0, map.containsKey(new NodeId(0, i)));
+        }
+    }
+
+    public void testCloneAndEquals() {
+        NodeIdMap<String> map = new NodeIdMap<String>();
+        map.put(new NodeId(0, 1), "a");
+        map.put(new NodeId(0, 2), "b");
+        NodeIdMap<String> clone = map.clone();
+        assertEquals(map, clone);
+        assertEquals(map.hashCode(), clone.hashCode());
+
+        clone.put(new NodeId(0, 3), "c");
+        assertFalse(map.equals(clone));
+        assertFalse(map.containsKey(new NodeId(0, 3)));
+
+        // order is not significant
+        NodeIdMap<String> other = new NodeIdMap<String>();
+        other.put(new NodeId(0, 2), "b");
+        other.put(new NodeId(0, 1), "a");
+        assertEquals(map, other);
+        other.put(new NodeId(0, 1), "c");
+        assertFalse(map.equals(other));
+    }
+
+    public void testNodeIdSet() {
+        Set<NodeId> set = new NodeIdSet();
+        NodeId a = NodeId.randomId();
+        NodeId b = NodeId.randomId();
+        assertTrue(set.add(a));
+        assertTrue(set.add(b));
+        assertFalse(set.add(new NodeId(a.toString())));
+        assertTrue(set.contains(a));
+        assertFalse(set.contains("a"));
+        assertEquals(a, set.iterator().next());
+
+        Set<NodeId> copy = new NodeIdSet(set);
+        assertEquals(set, copy);
+        assertTrue(copy.remove(a));
+        assertFalse(copy.remove(a));
+        assertEquals(b, copy.iterator().next());
+        assertEquals(1, copy.size());
+    }
+
+}
@@ -35,6 +35,7 @@ public class TestAll extends TestCase {
 
         suite.addTestSuite(NodeIdFactoryTest.class);
         suite.addTestSuite(NodeIdTest.class);
+        suite.addTestSuite(NodeIdMapTest.class);
 
         return suite;
     }
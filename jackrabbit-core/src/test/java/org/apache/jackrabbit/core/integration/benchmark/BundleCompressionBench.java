@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.integration.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.jcr.PropertyType;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.BundleBinding;
+import org.apache.jackrabbit.core.persistence.util.ErrorHandling;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+/**
+ * Compares the size of serialized bundles with the throughput of reading
+ * them, without compression and with the supported compression levels (see
+ * {@link BundleBinding#setCompression(String)}). The bundles resemble
+ * content nodes with a few text properties, a multi-valued property and
+ * some child nodes.
+ * <p>
+ * Usage: <code>BundleCompressionBench [number of bundles]</code>
+ */
+public class BundleCompressionBench {
+
+    private static final String[] COMPRESSIONS = {
+        BundleBinding.COMPRESSION_NONE,
+        BundleBinding.COMPRESSION_DEFLATE,
+        BundleBinding.COMPRESSION_DEFLATE + ":6",
+        BundleBinding.COMPRESSION_DEFLATE + ":9" };
+
+    private static final String[] WORDS = {
+        "jackrabbit", "content", "repository", "node", "property", "version",
+        "page", "asset", "image", "text", "title", "description", "the",
+        "a", "of", "and", "to", "in", "is", "for", "with", "on", "by" };
+
+    private static final NameFactory FACTORY = NameFactoryImpl.getInstance();
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        List<NodePropBundle> bundles = createBundles(count);
+        long uncompressed = 0;
+        for (String compression : COMPRESSIONS) {
+            BundleBinding binding = new BundleBinding(
+                    new ErrorHandling(), null, null, null, null);
+            binding.setCompression(compression);
+
+            long time = System.nanoTime();
+            List<byte[]> data = new ArrayList<byte[]>(bundles.size());
+            long size = 0;
+            for (NodePropBundle bundle : bundles) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                binding.writeBundle(out, bundle);
+                data.add(out.toByteArray());
+                size += out.size();
+            }
+            long writeTime = System.nanoTime() - time;
+            if (uncompressed == 0) {
+                uncompressed = size;
+            }
+
+            // the fastest of a few runs, the first ones warm up the JIT
+            long readTime = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                time = System.nanoTime();
+                for (int i = 0; i < data.size(); i++) {
+                    binding.readBundle(new ByteArrayInputStream(data.get(i)),
+                            bundles.get(i).getId());
+                }
+                readTime = Math.min(readTime, System.nanoTime() - time);
+            }
+
+            System.out.println(String.format(
+                    "%-10s %8d KB (%3d%%)  write %6d bundles/s  read %6d bundles/s",
+                    compression, size / 1024, size * 100 / uncompressed,
+                    count * 1000000000L / writeTime,
+                    count * 1000000000L / readTime));
+        }
+    }
+
+    private static List<NodePropBundle> createBundles(int count) {
+        Random random = new Random(1);
+        List<NodePropBundle> bundles = new ArrayList<NodePropBundle>(count);
+        for (int i = 0; i < count; i++) {
+            NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+            bundle.setParentId(NodeId.randomId());
+            bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+            bundle.setMixinTypeNames(Collections.<Name>emptySet());
+            bundle.setSharedSet(Collections.<NodeId>emptySet());
+            addProperty(bundle, "jcr:created", PropertyType.DATE, false,
+                    InternalValue.create(Calendar.getInstance()));
+            addProperty(bundle, "title", PropertyType.STRING, false,
+                    InternalValue.create(createText(random, 5)));
+            addProperty(bundle, "description", PropertyType.STRING, false,
+                    InternalValue.create(createText(random, 50)));
+            addProperty(bundle, "count", PropertyType.LONG, false,
+                    InternalValue.create(random.nextInt(1000)));
+            InternalValue[] tags = new InternalValue[random.nextInt(20)];
+            for (int j = 0; j < tags.length; j++) {
+                tags[j] = InternalValue.create(createText(random, 2));
+            }
+            addProperty(bundle, "tags", PropertyType.STRING, true, tags);
+            int children = random.nextInt(30);
+            for (int j = 0; j < children; j++) {
+                bundle.addChildNodeEntry(FACTORY.create(
+                        "", "item" + j), NodeId.randomId());
+            }
+            bundles.add(bundle);
+        }
+        return bundles;
+    }
+
+    private static void addProperty(NodePropBundle bundle, String name,
+            int type, boolean multiValued, InternalValue... values) {
+        PropertyEntry property = new PropertyEntry(
+                new PropertyId(bundle.getId(), FACTORY.create("", name)));
+        property.setType(type);
+        property.setMultiValued(multiValued);
+        property.setValues(values);
+        bundle.addProperty(property);
+    }
+
+    private static String createText(Random random, int words) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.PropertyType;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.NamespaceRegistryImpl;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.data.DataStore;
+import org.apache.jackrabbit.core.data.FileDataStore;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.gc.BinaryReferenceTracker;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.mem.InMemBundlePersistenceManager;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
+
+public class PersistenceCopierTest extends TestCase {
+
+    private static final Name TEST =
+        NameFactoryImpl.getInstance().create("", "test");
+
+    private File directory;
+
+    private InMemBundlePersistenceManager source;
+
+    private InMemBundlePersistenceManager target;
+
+    private final AtomicInteger stores = new AtomicInteger();
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("jackrabbit-copier-", "-test");
+        directory.delete();
+        directory.mkdirs();
+
+        source = new InMemBundlePersistenceManager();
+        source.init(createContext());
+        target = new InMemBundlePersistenceManager() {
+            @Override
+            public synchronized void store(ChangeLog changeLog)
+                    throws ItemStateException {
+                stores.incrementAndGet();
+                super.store(changeLog);
+            }
+        };
+        target.init(createContext());
+    }
+
+    protected void tearDown() throws Exception {
+        target.close();
+        source.close();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * Checks that {@link PersistenceCopier#copyAll()} skips the descendants
+     * of excluded nodes, also when the excluded node itself does not exist
+     * in the source, and that resuming a completed copy stores nothing.
+     */
+    public void testCopyAllWithExcludedNodes() throws Exception {
+        NodeId root = RepositoryImpl.ROOT_NODE_ID;
+        NodeId system = RepositoryImpl.SYSTEM_ROOT_NODE_ID;
+        NodeId excluded = NodeId.randomId();
+        NodeId missing = NodeId.randomId();
+
+        ChangeLog changes = new ChangeLog();
+        NodeState rootState = createNode(changes, root, null);
+        NodeState child = createNode(changes, NodeId.randomId(), root);
+        NodeState grandchild = createNode(changes, NodeId.randomId(), child.getNodeId());
+        NodeState excludedState = createNode(changes, excluded, root);
+        NodeState below = createNode(changes, NodeId.randomId(), excluded);
+        NodeState further = createNode(changes, NodeId.randomId(), below.getNodeId());
+        NodeState orphan = createNode(changes, NodeId.randomId(), missing);
+        NodeState systemChild = createNode(changes, NodeId.randomId(), system);
+        rootState.addChildNodeEntry(TEST, child.getNodeId());
+        rootState.addChildNodeEntry(TEST, excluded);
+        child.addChildNodeEntry(TEST, grandchild.getNodeId());
+        excludedState.addChildNodeEntry(TEST, below.getNodeId());
+        below.addChildNodeEntry(TEST, further.getNodeId());
+        source.store(changes);
+
+        File checkpoint = new File(directory, "checkpoint");
+        PersistenceCopier copier = new PersistenceCopier(source, target, null);
+        copier.excludeNode(system);
+        copier.excludeNode(excluded);
+        copier.setThreads(2);
+        copier.setBatchSize(1);
+        copier.setCheckpoint(checkpoint);
+        copier.copyAll();
+
+        assertTrue(target.exists(root));
+        assertTrue(target.exists(child.getNodeId()));
+        assertTrue(target.exists(grandchild.getNodeId()));
+        assertTrue(target.exists(orphan.getNodeId()));
+        assertFalse(target.exists(excluded));
+        assertFalse(target.exists(below.getNodeId()));
+        assertFalse(target.exists(further.getNodeId()));
+        assertFalse(target.exists(systemChild.getNodeId()));
+        assertEquals(4, stores.get());
+        assertTrue(checkpoint.isFile());
+
+        // resuming a completed copy does not copy anything again
+        stores.set(0);
+        copier = new PersistenceCopier(source, target, null);
+        copier.excludeNode(system);
+        copier.excludeNode(excluded);
+        copier.setThreads(2);
+        copier.setBatchSize(1);
+        copier.setCheckpoint(checkpoint);
+        copier.copyAll();
+        assertEquals(0, stores.get());
+    }
+
+    /**
+     * Checks that the binaries copied to the target are recorded by the
+     * tracker of its data store references.
+     */
+    public void testCopiedReferencesAreTracked() throws Exception {
+        NodeId root = RepositoryImpl.ROOT_NODE_ID;
+        byte[] data = new byte[1000];
+        new Random().nextBytes(data);
+
+        ChangeLog changes = new ChangeLog();
+        NodeState rootState = createNode(changes, root, null);
+        rootState.addPropertyName(TEST);
+        PropertyState property = source.createNew(new PropertyId(root, TEST));
+        property.setType(PropertyType.BINARY);
+        property.setValues(new InternalValue[] { InternalValue.create(data) });
+        changes.added(property);
+        source.store(changes);
+
+        FileDataStore store = new FileDataStore();
+        store.setPath(new File(directory, "datastore").getPath());
+        store.init(directory.getPath());
+        BinaryReferenceTracker tracker =
+            new BinaryReferenceTracker(new File(directory, "gc"));
+        tracker.startRebuild();
+        tracker.scanned(this, null, null, new BinaryReferenceTracker.Changes());
+        assertTrue(tracker.finishRebuild());
+
+        InMemBundlePersistenceManager tracked =
+            new InMemBundlePersistenceManager();
+        tracked.init(createContext(store, tracker));
+        try {
+            new PersistenceCopier(source, tracked, store).copy(root);
+
+            InternalValue copy =
+                tracked.load(new PropertyId(root, TEST)).getValues()[0];
+            assertTrue(copy.isInDataStore());
+            assertTrue(tracker.isReferenced(copy.getDataIdentifier()));
+            assertTrue(tracker.isComplete());
+        } finally {
+            tracked.close();
+            store.close();
+        }
+    }
+
+    private NodeState createNode(ChangeLog changes, NodeId id, NodeId parent) {
+        NodeState node = source.createNew(id);
+        node.setNodeTypeName(TEST);
+        node.setParentId(parent);
+        changes.added(node);
+        return node;
+    }
+
+    private PMContext createContext() throws Exception {
+        return createContext(null, null);
+    }
+
+    private PMContext createContext(
+            DataStore store, BinaryReferenceTracker tracker) throws Exception {
+        return new PMContext(
+                directory,
+                new MemoryFileSystem(),
+                RepositoryImpl.ROOT_NODE_ID,
+                new NamespaceRegistryImpl(new MemoryFileSystem()),
+                null,
+                store,
+                new RepositoryStatisticsImpl(),
+                tracker);
+    }
+
+}
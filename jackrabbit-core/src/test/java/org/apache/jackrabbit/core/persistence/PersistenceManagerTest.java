@@ -17,30 +17,51 @@
 package org.apache.jackrabbit.core.persistence;
 
 import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.PropertyType;
+import javax.sql.DataSource;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.api.stats.RepositoryStatistics;
 import org.apache.jackrabbit.core.NamespaceRegistryImpl;
 import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.data.DataIdentifier;
+import org.apache.jackrabbit.core.data.DataStore;
 import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.gc.BinaryReferenceTracker;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.bundle.MappedBundlePersistenceManager;
 import org.apache.jackrabbit.core.persistence.mem.InMemBundlePersistenceManager;
 import org.apache.jackrabbit.core.persistence.mem.InMemPersistenceManager;
 import org.apache.jackrabbit.core.persistence.obj.ObjectPersistenceManager;
+import org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
 import org.apache.jackrabbit.core.persistence.xml.XMLPersistenceManager;
 import org.apache.jackrabbit.core.state.ChangeLog;
 import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
 import org.apache.jackrabbit.core.state.NodeReferences;
 import org.apache.jackrabbit.core.state.NodeState;
 import org.apache.jackrabbit.core.state.PropertyState;
 import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
 import org.apache.jackrabbit.core.util.db.ConnectionFactory;
+import org.apache.jackrabbit.core.util.db.ConnectionHelper;
 import org.apache.jackrabbit.core.value.InternalValue;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.commons.name.NameConstants;
@@ -83,6 +104,149 @@ public class PersistenceManagerTest extends TestCase {
         assertPersistenceManager(new InMemBundlePersistenceManager());
     }
 
+    public void testTinyLFUBundleCache() throws Exception {
+        InMemBundlePersistenceManager manager =
+            new InMemBundlePersistenceManager();
+        manager.setBundleCachePolicy("tinylfu");
+        assertPersistenceManager(manager);
+    }
+
+    /**
+     * Checks that bundles evicted from the bundle cache are restored from
+     * the off-heap bundle cache, and that stored bundles replace them.
+     */
+    public void testOffHeapBundleCache() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        InMemBundlePersistenceManager manager =
+            new InMemBundlePersistenceManager() {
+                @Override
+                protected NodePropBundle loadBundle(NodeId id)
+                        throws ItemStateException {
+                    loads.incrementAndGet();
+                    return super.loadBundle(id);
+                }
+            };
+        // every bundle is evicted from the bundle cache right away
+        manager.setBundleCacheSize("0");
+        manager.setOffHeapBundleCacheSize("1");
+        manager.init(createContext());
+        try {
+            NodeState node = new NodeState(
+                    NODE_ID, TEST, RepositoryImpl.ROOT_NODE_ID,
+                    ItemState.STATUS_NEW, true);
+            node.addPropertyName(NameConstants.JCR_PRIMARYTYPE);
+            ChangeLog create = new ChangeLog();
+            create.added(node);
+            manager.store(create);
+
+            // the first load is evicted to the off-heap cache
+            assertEquals(TEST, manager.load(NODE_ID).getNodeTypeName());
+            assertEquals(1, loads.get());
+            assertEquals(TEST, manager.load(NODE_ID).getNodeTypeName());
+            assertEquals(1, loads.get());
+
+            node.setStatus(ItemState.STATUS_EXISTING);
+            node.setMixinTypeNames(Collections.singleton(TEST));
+            ChangeLog update = new ChangeLog();
+            update.modified(node);
+            manager.store(update);
+            assertEquals(Collections.singleton(TEST),
+                    manager.load(NODE_ID).getMixinTypeNames());
+            assertEquals(2, loads.get());
+            assertEquals(Collections.singleton(TEST),
+                    manager.load(NODE_ID).getMixinTypeNames());
+            assertEquals(2, loads.get());
+        } finally {
+            manager.close();
+        }
+    }
+
+    public void testMappedBundlePersistenceManager() throws Exception {
+        assertPersistenceManager(new MappedBundlePersistenceManager());
+    }
+
+    /**
+     * Checks that the blob store files of a change log that can not be
+     * committed do not replace the committed ones, and that replaced files
+     * are only deleted once the replacing change log is committed.
+     */
+    public void testMappedBundleBlobsOfFailedCommits() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        MappedBundlePersistenceManager manager =
+            new MappedBundlePersistenceManager() {
+                @Override
+                protected synchronized void destroy(NodeReferences refs)
+                        throws ItemStateException {
+                    if (failures.get() > 0) {
+                        failures.decrementAndGet();
+                        throw new ItemStateException("failed to delete " + refs);
+                    }
+                    super.destroy(refs);
+                }
+            };
+        manager.setMinBlobSize("16");
+        manager.init(createContext());
+        File blobs = new File(directory, "blobs");
+        byte[] first = new byte[100];
+        Arrays.fill(first, (byte) 1);
+        byte[] second = new byte[100];
+        Arrays.fill(second, (byte) 2);
+        try {
+            NodeState node = new NodeState(
+                    NODE_ID, TEST, RepositoryImpl.ROOT_NODE_ID,
+                    ItemState.STATUS_NEW, true);
+            node.addPropertyName(NameConstants.JCR_PRIMARYTYPE);
+            node.addPropertyName(TEST);
+            PropertyState property =
+                new PropertyState(PROPERTY_ID, ItemState.STATUS_NEW, true);
+            property.setType(PropertyType.BINARY);
+            property.setValues(new InternalValue[] {
+                    InternalValue.create(first) });
+            ChangeLog create = new ChangeLog();
+            create.added(node);
+            create.added(property);
+            manager.store(create);
+            assertEquals(1, FileUtils.listFiles(blobs, null, true).size());
+
+            // the change log is written, but can not be committed
+            property.setStatus(ItemState.STATUS_EXISTING);
+            property.setValues(new InternalValue[] {
+                    InternalValue.create(second) });
+            ChangeLog replace = new ChangeLog();
+            replace.modified(property);
+            replace.modified(new NodeReferences(NODE_ID));
+            failures.set(1);
+            try {
+                manager.store(replace);
+                fail("commit failures are not reported");
+            } catch (ItemStateException expected) {
+            }
+            assertTrue(Arrays.equals(first, loadBinary(manager)));
+            assertEquals(2, FileUtils.listFiles(blobs, null, true).size());
+
+            property.setValues(new InternalValue[] {
+                    InternalValue.create(second) });
+            manager.store(replace);
+            assertTrue(Arrays.equals(second, loadBinary(manager)));
+            assertEquals(2, FileUtils.listFiles(blobs, null, true).size());
+        } finally {
+            manager.close();
+        }
+        // the file of the failed change log is deleted on close
+        assertEquals(1, FileUtils.listFiles(blobs, null, true).size());
+    }
+
+    private static byte[] loadBinary(PersistenceManager manager)
+            throws Exception {
+        InputStream in =
+            manager.load(PROPERTY_ID).getValues()[0].getStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
     public void testXMLPersistenceManager() throws Exception {
         assertPersistenceManager(new XMLPersistenceManager());
     }
@@ -118,8 +282,234 @@ public class PersistenceManagerTest extends TestCase {
         assertPersistenceManager(manager);
     }
 
+    public void testDerbyPoolPersistenceManagerWithBatches() throws Exception {
+        org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager();
+        manager.setDriver("org.apache.derby.jdbc.EmbeddedDriver");
+        manager.setUrl("jdbc:derby:" + database.getPath() + ";create=true");
+        manager.setConnectionFactory(new ConnectionFactory());
+        manager.setBundleBatchSize("10");
+        manager.setCacheStatements(true);
+        assertPersistenceManager(manager);
+    }
+
+    public void testH2PoolPersistenceManagerWithBatches() throws Exception {
+        org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager();
+        manager.setDriver("org.h2.Driver");
+        manager.setUrl("jdbc:h2:mem:" + database.getPath());
+        manager.setConnectionFactory(new ConnectionFactory());
+        manager.setBundleBatchSize("10");
+        assertPersistenceManager(manager);
+    }
+
+    /**
+     * Checks that batches of modified bundles are written, but do not
+     * recreate a bundle that another cluster node has deleted.
+     */
+    public void testH2PoolPersistenceManagerBatchUpdates() throws Exception {
+        H2PersistenceManager manager = new H2PersistenceManager();
+        manager.setDriver("org.h2.Driver");
+        manager.setUrl("jdbc:h2:mem:" + database.getPath());
+        manager.setConnectionFactory(new ConnectionFactory());
+        manager.setBundleBatchSize("10");
+        manager.init(createContext());
+        H2PersistenceManager other = new H2PersistenceManager();
+        other.setDriver("org.h2.Driver");
+        other.setUrl("jdbc:h2:mem:" + database.getPath());
+        other.setConnectionFactory(new ConnectionFactory());
+        other.init(createContext());
+        try {
+            NodeState node = new NodeState(
+                    NODE_ID, TEST, RepositoryImpl.ROOT_NODE_ID,
+                    ItemState.STATUS_NEW, true);
+            node.addChildNodeEntry(TEST, CHILD_ID);
+            node.addPropertyName(NameConstants.JCR_PRIMARYTYPE);
+            NodeState child = new NodeState(
+                    CHILD_ID, TEST, NODE_ID, ItemState.STATUS_NEW, true);
+            child.addPropertyName(NameConstants.JCR_PRIMARYTYPE);
+            ChangeLog create = new ChangeLog();
+            create.added(node);
+            create.added(child);
+            manager.store(create);
+
+            node.setStatus(ItemState.STATUS_EXISTING);
+            child.setStatus(ItemState.STATUS_EXISTING);
+            node.setMixinTypeNames(Collections.singleton(TEST));
+            child.setMixinTypeNames(Collections.singleton(TEST));
+            ChangeLog update = new ChangeLog();
+            update.modified(node);
+            update.modified(child);
+            manager.store(update);
+            assertEquals(node, other.load(NODE_ID));
+            assertEquals(child, other.load(CHILD_ID));
+
+            // another cluster node deletes the child
+            ChangeLog delete = new ChangeLog();
+            delete.deleted(child);
+            other.store(delete);
+
+            ChangeLog stale = new ChangeLog();
+            stale.modified(node);
+            stale.modified(child);
+            try {
+                manager.store(stale);
+                fail("a deleted bundle was written again");
+            } catch (ItemStateException expected) {
+            }
+            assertFalse(other.exists(CHILD_ID));
+            assertFalse(manager.exists(CHILD_ID));
+        } finally {
+            other.close();
+            manager.close();
+        }
+    }
+
+    private PMContext createContext() throws Exception {
+        return new PMContext(
+                directory,
+                new MemoryFileSystem(),
+                RepositoryImpl.ROOT_NODE_ID,
+                new NamespaceRegistryImpl(new MemoryFileSystem()),
+                null,
+                null,
+                new RepositoryStatisticsImpl());
+    }
+
+    /**
+     * Checks that the data store references of a change log are reported
+     * once if committing it fails and is retried, and not at all if it
+     * can not be committed.
+     */
+    public void testBinaryReferencesOfFailedCommits() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        H2PersistenceManager manager = new H2PersistenceManager() {
+            @Override
+            protected ConnectionHelper createConnectionHelper(
+                    DataSource dataSrc) throws Exception {
+                return super.createConnectionHelper(
+                        failCommits(dataSrc, failures));
+            }
+        };
+        manager.setDriver("org.h2.Driver");
+        manager.setUrl("jdbc:h2:mem:" + database.getPath());
+        manager.setConnectionFactory(new ConnectionFactory());
+        BinaryReferenceTracker tracker =
+            new BinaryReferenceTracker(new File(directory, "gc"));
+        manager.init(new PMContext(
+                directory,
+                new MemoryFileSystem(),
+                RepositoryImpl.ROOT_NODE_ID,
+                new NamespaceRegistryImpl(new MemoryFileSystem()),
+                null,
+                null,
+                new RepositoryStatisticsImpl(),
+                tracker));
+        try {
+            DataIdentifier a = new DataIdentifier("a");
+            DataIdentifier b = new DataIdentifier("b");
+            NodeState node = new NodeState(
+                    NODE_ID, TEST, RepositoryImpl.ROOT_NODE_ID,
+                    ItemState.STATUS_NEW, true);
+            node.addPropertyName(NameConstants.JCR_PRIMARYTYPE);
+            node.addPropertyName(TEST);
+            PropertyState property =
+                new PropertyState(PROPERTY_ID, ItemState.STATUS_NEW, true);
+            property.setType(PropertyType.BINARY);
+            property.setValues(new InternalValue[] {
+                    InternalValue.create((DataStore) null, "dataStore:" + a) });
+
+            // the first commit fails, the retry succeeds
+            ChangeLog create = new ChangeLog();
+            create.added(node);
+            create.added(property);
+            failures.set(1);
+            manager.store(create);
+            assertTrue(tracker.isReferenced(a));
+
+            // no retry succeeds
+            node.setStatus(ItemState.STATUS_EXISTING);
+            property.setStatus(ItemState.STATUS_EXISTING);
+            property.setValues(new InternalValue[] {
+                    InternalValue.create((DataStore) null, "dataStore:" + b) });
+            ChangeLog replace = new ChangeLog();
+            replace.modified(property);
+            failures.set(2);
+            try {
+                manager.store(replace);
+                fail("commit failures are not reported");
+            } catch (ItemStateException expected) {
+            }
+            assertTrue(tracker.isReferenced(a));
+            assertFalse(tracker.isReferenced(b));
+
+            // a reference that was counted twice would survive the delete
+            node.removePropertyName(TEST);
+            ChangeLog delete = new ChangeLog();
+            delete.modified(node);
+            delete.deleted(property);
+            failures.set(0);
+            manager.store(delete);
+            assertFalse(tracker.isReferenced(a));
+            assertEquals(0, tracker.size());
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Returns a data source whose connections fail to commit the given
+     * number of times. The transaction is rolled back in that case.
+     */
+    private static DataSource failCommits(
+            final DataSource dataSource, final AtomicInteger failures) {
+        return (DataSource) Proxy.newProxyInstance(
+                DataSource.class.getClassLoader(),
+                new Class<?>[] { DataSource.class },
+                new InvocationHandler() {
+                    public Object invoke(
+                            Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        Object result = call(dataSource, method, args);
+                        if (result instanceof Connection) {
+                            result = failCommits((Connection) result, failures);
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    private static Connection failCommits(
+            final Connection connection, final AtomicInteger failures) {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                new InvocationHandler() {
+                    public Object invoke(
+                            Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals("commit")
+                                && failures.getAndDecrement() > 0) {
+                            connection.rollback();
+                            throw new SQLException("commit failed");
+                        }
+                        return call(connection, method, args);
+                    }
+                });
+    }
+
+    private static Object call(Object target, Method method, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
     private void assertPersistenceManager(PersistenceManager manager)
             throws Exception {
+        RepositoryStatisticsImpl stats = new RepositoryStatisticsImpl();
         manager.init(new PMContext(
                 directory,
                 new MemoryFileSystem(),
@@ -127,12 +517,13 @@ public class PersistenceManagerTest extends TestCase {
                 new NamespaceRegistryImpl(new MemoryFileSystem()),
                 null,
                 null,
-                new RepositoryStatisticsImpl()));
+                stats));
         try {
             assertCreateNewNode(manager);
             assertCreateNewProperty(manager);
             assertMissingItemStates(manager);
-            assertCreateUpdateDelete(manager);
+            assertCreateUpdateDelete(manager, stats.getCounter(
+                    RepositoryStatistics.Type.BUNDLE_CACHE_MISS_COUNTER));
         } finally {
             manager.close();
         }
@@ -191,7 +582,8 @@ public class PersistenceManagerTest extends TestCase {
         }
     }
 
-    private void assertCreateUpdateDelete(PersistenceManager manager)
+    private void assertCreateUpdateDelete(
+            PersistenceManager manager, AtomicLong cacheMisses)
             throws Exception {
         NodeState node = new NodeState(
                 NODE_ID, TEST, RepositoryImpl.ROOT_NODE_ID,
@@ -220,6 +612,20 @@ public class PersistenceManagerTest extends TestCase {
         create.modified(references);
         manager.store(create);
 
+        long prefetched = -1;
+        NodeId missing = NodeId.randomId();
+        if (manager instanceof PrefetchingPersistenceManager) {
+            // evict the stored states, so that they need to be prefetched
+            if (manager instanceof CachingPersistenceManager) {
+                ((CachingPersistenceManager) manager).onExternalUpdate(create);
+            }
+            long misses = cacheMisses.get();
+            ((PrefetchingPersistenceManager) manager).prefetch(Arrays.asList(
+                    NODE_ID, CHILD_ID, missing));
+            prefetched = cacheMisses.get();
+            assertEquals(misses + 3, prefetched);
+        }
+
         assertTrue(manager.exists(NODE_ID));
         assertTrue(manager.exists(CHILD_ID));
         assertTrue(manager.exists(PROPERTY_ID));
@@ -230,6 +636,12 @@ public class PersistenceManagerTest extends TestCase {
         assertEquals(property, manager.load(PROPERTY_ID));
         assertEquals(references, manager.loadReferencesTo(CHILD_ID));
 
+        if (prefetched >= 0) {
+            // the prefetched states, existing or not, are served from the cache
+            assertFalse(manager.exists(missing));
+            assertEquals(prefetched, cacheMisses.get());
+        }
+
         references.removeReference(PROPERTY_ID);
         node.setStatus(ItemState.STATUS_EXISTING);
         ChangeLog update = new ChangeLog();
@@ -18,6 +18,7 @@ package org.apache.jackrabbit.core.persistence.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.net.URI;
 import java.util.Arrays;
@@ -25,6 +26,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.jcr.PropertyType;
 
@@ -315,6 +317,255 @@ public class BundleBindingTest extends TestCase {
         assertBundleRoundtrip(bundle);
     }
 
+    /**
+     * Tests serialization of a large list of child node entries, which is
+     * written in pages, and that unchanged pages are reused.
+     */
+    public void testChildNodePages() throws Exception {
+        NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setParentId(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(Collections.<NodeId>emptySet());
+        for (int i = 0; i < 10000; i++) {
+            bundle.addChildNodeEntry(
+                    factory.create("ns" + (i % 10), "test" + i),
+                    new NodeId(i, i * 0x5DEECE66DL));
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        binding.writeBundle(buffer, bundle);
+        List<ChildNodePage> written = bundle.getChildNodePages();
+        assertTrue(written.size() > 2);
+
+        NodePropBundle result = binding.readBundle(
+                new ByteArrayInputStream(buffer.toByteArray()), bundle.getId());
+        assertEquals(bundle, result);
+        assertEquals(written.size(), result.getChildNodePages().size());
+
+        // remove a single entry, the other pages are copied unless the
+        // removed entry ended a page and two pages are merged
+        List<ChildNodePage> read = result.getChildNodePages();
+        result.getChildNodeEntries().remove(5000);
+        buffer.reset();
+        binding.writeBundle(buffer, result);
+        int copied = 0;
+        for (ChildNodePage page : result.getChildNodePages()) {
+            if (read.contains(page)) {
+                copied++;
+            }
+        }
+        assertTrue(copied >= read.size() - 2);
+
+        assertEquals(result, binding.readBundle(
+                new ByteArrayInputStream(buffer.toByteArray()), bundle.getId()));
+    }
+
+    public void testBundleDelta() throws Exception {
+        NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setParentId(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(Collections.<NodeId>emptySet());
+        InternalValue[] values = new InternalValue[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = InternalValue.create("value" + i);
+        }
+        addProperty(bundle, "multiple", values, true);
+        addProperty(bundle, "removed", new InternalValue[] {
+                InternalValue.create(1) }, false);
+        addProperty(bundle, "modified", new InternalValue[] {
+                InternalValue.create(2) }, false);
+        for (int i = 0; i < 100; i++) {
+            bundle.addChildNodeEntry(
+                    factory.create("", "test" + i), NodeId.randomId());
+        }
+
+        // no delta without a stored revision
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        assertFalse(binding.writeBundleDelta(buffer, bundle));
+        assertEquals(0, buffer.size());
+
+        binding.writeBundle(buffer, bundle);
+        byte[] stored = buffer.toByteArray();
+        NodePropBundle result = binding.readBundle(
+                new ByteArrayInputStream(stored), bundle.getId());
+        result.markStored();
+        assertEquals(stored.length, result.getStoredSize());
+
+        result.setMixinTypeNames(Collections.singleton(NameConstants.MIX_REFERENCEABLE));
+        result.setReferenceable(true);
+        result.setModCount((short) 5);
+        result.removeProperty(factory.create("", "removed"), null);
+        addProperty(result, "modified", new InternalValue[] {
+                InternalValue.create(3) }, false);
+        addProperty(result, "added", new InternalValue[] {
+                InternalValue.create("added") }, false);
+        result.getChildNodeEntries().remove(10);
+        result.getChildNodeEntries().remove(50);
+        result.addChildNodeEntry(factory.create("", "added"), NodeId.randomId());
+
+        buffer.reset();
+        assertTrue(binding.writeBundleDelta(buffer, result));
+        byte[] delta = buffer.toByteArray();
+        assertTrue(delta.length * 10 < stored.length);
+
+        NodePropBundle applied = binding.readBundle(
+                new ByteArrayInputStream(stored), bundle.getId());
+        binding.readBundleDelta(new ByteArrayInputStream(delta), applied);
+        assertEquals(result, applied);
+
+        try {
+            binding.readBundle(new ByteArrayInputStream(delta), bundle.getId());
+            fail("a delta is not a bundle");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            binding.readBundleDelta(new ByteArrayInputStream(stored), applied);
+            fail("a bundle is not a delta");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // reordering child nodes still gives the same result
+        applied.markStored();
+        applied.getChildNodeEntries().add(
+                applied.getChildNodeEntries().remove(0));
+        buffer.reset();
+        assertTrue(binding.writeBundleDelta(buffer, applied));
+        NodePropBundle reordered = binding.readBundle(
+                new ByteArrayInputStream(stored), bundle.getId());
+        binding.readBundleDelta(new ByteArrayInputStream(delta), reordered);
+        binding.readBundleDelta(
+                new ByteArrayInputStream(buffer.toByteArray()), reordered);
+        assertEquals(applied, reordered);
+        assertEquals(applied.getChildNodeEntries(), reordered.getChildNodeEntries());
+
+        // values in the blob store are deleted when replaced, so the stored
+        // revision could no longer be read
+        reordered.getPropertyEntry(factory.create("", "modified"))
+                .setBlobIds(new String[] { "blob" });
+        reordered.markStored();
+        addProperty(reordered, "modified", new InternalValue[] {
+                InternalValue.create(4) }, false);
+        buffer.reset();
+        assertFalse(binding.writeBundleDelta(buffer, reordered));
+        assertEquals(0, buffer.size());
+    }
+
+    public void testCompressedBundle() throws Exception {
+        NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setParentId(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(Collections.<NodeId>emptySet());
+        InternalValue[] values = new InternalValue[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = InternalValue.create("value " + i);
+        }
+        addProperty(bundle, "multiple", values, true);
+        for (int i = 0; i < 100; i++) {
+            bundle.addChildNodeEntry(
+                    factory.create("", "child" + i), NodeId.randomId());
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        binding.writeBundle(buffer, bundle);
+        byte[] uncompressed = buffer.toByteArray();
+
+        binding.setCompression(BundleBinding.COMPRESSION_DEFLATE);
+        buffer.reset();
+        binding.writeBundle(buffer, bundle);
+        byte[] compressed = buffer.toByteArray();
+        assertTrue(compressed.length < uncompressed.length);
+        assertEquals(BundleBinding.VERSION_CURRENT | BundleBinding.COMPRESSED,
+                compressed[0] & 0xff);
+        assertBundleSerialization(bundle, compressed);
+
+        // compressed bundles are read regardless of the setting
+        binding.setCompression(BundleBinding.COMPRESSION_NONE);
+        assertBundleSerialization(bundle, compressed);
+
+        // small bundles are not compressed
+        binding.setCompression("deflate:9");
+        assertEquals("deflate:9", binding.getCompression());
+        NodePropBundle small = new NodePropBundle(NodeId.randomId());
+        small.setParentId(NodeId.randomId());
+        small.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        small.setMixinTypeNames(Collections.<Name>emptySet());
+        small.setSharedSet(Collections.<NodeId>emptySet());
+        buffer.reset();
+        binding.writeBundle(buffer, small);
+        assertEquals(BundleBinding.VERSION_CURRENT, buffer.toByteArray()[0]);
+        assertBundleSerialization(small, buffer.toByteArray());
+
+        try {
+            binding.setCompression("lz4");
+            fail("unsupported compression");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            binding.setCompression("deflate:0");
+            fail("invalid compression level");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // a truncated compressed bundle is detected
+        try {
+            binding.readBundle(new ByteArrayInputStream(compressed, 0,
+                    compressed.length - 10), bundle.getId());
+            fail("truncated bundle");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that a bundle copy leaves the bundle and its values untouched.
+     */
+    public void testBundleCopy() throws Exception {
+        NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setParentId(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(Collections.<NodeId>emptySet());
+        InternalValue small = InternalValue.create(new byte[100]);
+        addProperty(bundle, "binary", new InternalValue[] { small }, false);
+        for (int i = 0; i < 10000; i++) {
+            bundle.addChildNodeEntry(
+                    factory.create("", "child" + i), NodeId.randomId());
+        }
+        long size = bundle.getSize();
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        binding.writeBundleCopy(buffer, bundle);
+        assertEquals(size, bundle.getSize());
+        assertNull(bundle.getChildNodePages());
+        PropertyEntry entry =
+            bundle.getPropertyEntry(factory.create("", "binary"));
+        assertSame(small, entry.getValues()[0]);
+        assertBundleSerialization(bundle, buffer.toByteArray());
+
+        // a large binary would have to be written to the blob store first
+        InternalValue large = InternalValue.create(
+                new byte[(int) binding.getMinBlobSize() + 1]);
+        addProperty(bundle, "binary", new InternalValue[] { large }, false);
+        entry = bundle.getPropertyEntry(factory.create("", "binary"));
+        entry.setBlobIds(new String[1]);
+        buffer.reset();
+        try {
+            binding.writeBundleCopy(buffer, bundle);
+            fail("binary value not in the blob store");
+        } catch (IOException e) {
+            // expected
+        }
+        assertSame(large, entry.getValues()[0]);
+        assertNull(entry.getBlobId(0));
+    }
+
     public void testBooleanSerialization() throws Exception {
         assertValueSerialization(InternalValue.create(true));
         assertValueSerialization(InternalValue.create(false));
@@ -474,6 +725,16 @@ public class BundleBindingTest extends TestCase {
         assertEquals(value, result.getPropertyEntry(name).getValues()[0]);
     }
 
+    private static void addProperty(NodePropBundle bundle, String name,
+            InternalValue[] values, boolean multiValued) {
+        PropertyEntry property = new PropertyEntry(
+                new PropertyId(bundle.getId(), factory.create("", name)));
+        property.setType(values[0].getType());
+        property.setMultiValued(multiValued);
+        property.setValues(values);
+        bundle.addProperty(property);
+    }
+
     private void assertBundleRoundtrip(NodePropBundle bundle)
             throws Exception {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
@@ -0,0 +1,381 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.id.NodeId;
+
+public class MappedBundleLogTest extends TestCase {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private File directory;
+
+    private MappedBundleLog log;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("jackrabbit-bundle-log-", "-test");
+        directory.delete();
+        log = new MappedBundleLog(directory, SEGMENT_SIZE, true);
+        log.open();
+    }
+
+    protected void tearDown() throws Exception {
+        log.close();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    public void testCommitAndReopen() throws Exception {
+        NodeId id = NodeId.randomId();
+        byte[] data = createData(100, 1);
+        log.putBundle(id, data);
+        log.putReferences(id, createData(10, 2));
+        log.commit();
+        assertTrue(Arrays.equals(data, log.getBundle(id)));
+        assertTrue(log.hasReferences(id));
+
+        reopen();
+        assertTrue(Arrays.equals(data, log.getBundle(id)));
+        assertTrue(Arrays.equals(createData(10, 2), log.getReferences(id)));
+
+        log.removeBundle(id);
+        log.removeReferences(id);
+        log.commit();
+        reopen();
+        assertNull(log.getBundle(id));
+        assertFalse(log.hasReferences(id));
+    }
+
+    public void testRollback() throws Exception {
+        NodeId id = NodeId.randomId();
+        NodeId other = NodeId.randomId();
+        log.putBundle(id, createData(100, 1));
+        log.commit();
+        long live = log.getLiveSize();
+
+        log.putBundle(id, createData(200, 2));
+        log.putBundle(other, createData(100, 3));
+        log.rollback();
+        assertTrue(Arrays.equals(createData(100, 1), log.getBundle(id)));
+        assertNull(log.getBundle(other));
+        assertEquals(live, log.getLiveSize());
+
+        reopen();
+        assertTrue(Arrays.equals(createData(100, 1), log.getBundle(id)));
+        assertNull(log.getBundle(other));
+    }
+
+    public void testUncommittedChangesAreDiscarded() throws Exception {
+        NodeId id = NodeId.randomId();
+        log.putBundle(id, createData(100, 1));
+        log.commit();
+        // simulate a crash in the middle of a change log
+        log.removeBundle(id);
+        log.putBundle(NodeId.randomId(), createData(100, 2));
+        reopen();
+        assertTrue(Arrays.equals(createData(100, 1), log.getBundle(id)));
+        assertEquals(1, log.getBundleIds(null, 0).size());
+
+        // new changes overwrite the discarded records
+        NodeId next = NodeId.randomId();
+        log.putBundle(next, createData(10, 3));
+        log.commit();
+        reopen();
+        assertEquals(2, log.getBundleIds(null, 0).size());
+        assertTrue(Arrays.equals(createData(10, 3), log.getBundle(next)));
+    }
+
+    public void testUncommittedChangesAreNotVisible() throws Exception {
+        NodeId id = NodeId.randomId();
+        log.putBundle(id, createData(100, 1));
+        log.commit();
+
+        // readers wait until the change is committed
+        log.putBundle(id, createData(100, 2));
+        FutureTask<byte[]> read = readInBackground(id);
+        try {
+            read.get(100, TimeUnit.MILLISECONDS);
+            fail("an uncommitted change was read");
+        } catch (TimeoutException expected) {
+        }
+        log.commit();
+        assertTrue(Arrays.equals(createData(100, 2), read.get()));
+
+        // or rolled back
+        log.putBundle(id, createData(100, 3));
+        read = readInBackground(id);
+        try {
+            read.get(100, TimeUnit.MILLISECONDS);
+            fail("an uncommitted change was read");
+        } catch (TimeoutException expected) {
+        }
+        log.rollback();
+        assertTrue(Arrays.equals(createData(100, 2), read.get()));
+    }
+
+    public void testCorruptRecordIsDiscarded() throws Exception {
+        NodeId id = NodeId.randomId();
+        log.putBundle(id, createData(100, 1));
+        log.commit();
+        NodeId corrupt = NodeId.randomId();
+        log.putBundle(corrupt, createData(100, 2));
+        log.commit();
+        log.close();
+
+        // overwrite a byte of the data of the second record
+        File segment = directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            int offset = 8 + (100 + 25) + 25 + (4 + 1 + 16) + 50;
+            file.seek(offset);
+            file.write(99);
+        } finally {
+            file.close();
+        }
+
+        log = new MappedBundleLog(directory, SEGMENT_SIZE, true);
+        log.open();
+        assertTrue(Arrays.equals(createData(100, 1), log.getBundle(id)));
+        assertNull(log.getBundle(corrupt));
+    }
+
+    public void testCompaction() throws Exception {
+        List<NodeId> ids = new ArrayList<NodeId>();
+        for (int i = 0; i < 500; i++) {
+            ids.add(NodeId.randomId());
+        }
+        for (int round = 0; round < 5; round++) {
+            for (NodeId id : ids) {
+                log.putBundle(id, createData(300, round));
+            }
+            log.commit();
+        }
+        for (int i = 0; i < 100; i++) {
+            log.removeBundle(ids.get(i));
+        }
+        log.commit();
+        long live = log.getLiveSize();
+        int segments = log.getSegmentCount();
+
+        int compacted = 0;
+        while (log.compact(50)) {
+            compacted++;
+        }
+        assertTrue(compacted > 0);
+        assertTrue(log.getSegmentCount() < segments);
+        assertEquals(live, log.getLiveSize());
+
+        reopen();
+        assertEquals(live, log.getLiveSize());
+        assertEquals(400, log.getBundleIds(null, 0).size());
+        for (int i = 0; i < ids.size(); i++) {
+            byte[] data = log.getBundle(ids.get(i));
+            if (i < 100) {
+                assertNull(data);
+            } else {
+                assertTrue(Arrays.equals(createData(300, 4), data));
+            }
+        }
+    }
+
+    public void testCompactedSegmentIsCleared() throws Exception {
+        log.close();
+        log = new MappedBundleLog(directory, SEGMENT_SIZE, true) {
+            @Override
+            boolean deleteSegment(File file) {
+                // the file of the first segment survives
+                return !file.getName().startsWith("00000001.")
+                        && super.deleteSegment(file);
+            }
+        };
+        log.open();
+
+        // the deletion record is dropped when its segment is compacted
+        // after the segment with the bundle record
+        NodeId deleted = NodeId.randomId();
+        List<NodeId> ids = new ArrayList<NodeId>();
+        for (int i = 0; i < 250; i++) {
+            ids.add(NodeId.randomId());
+        }
+        log.putBundle(deleted, createData(300, 0));
+        for (NodeId id : ids) {
+            log.putBundle(id, createData(300, 0));
+        }
+        log.commit();
+        log.removeBundle(deleted);
+        for (int round = 1; round < 3; round++) {
+            for (NodeId id : ids) {
+                log.putBundle(id, createData(300, round));
+            }
+            log.commit();
+        }
+        while (log.compact(50)) {
+            // compact all sparse segments
+        }
+        assertTrue(directory.listFiles().length > log.getSegmentCount());
+
+        reopen();
+        assertNull(log.getBundle(deleted));
+        assertEquals(250, log.getBundleIds(null, 0).size());
+        for (NodeId id : ids) {
+            assertTrue(Arrays.equals(createData(300, 2), log.getBundle(id)));
+        }
+
+        // the empty segments are compacted again
+        while (log.compact(50)) {
+            // compact all sparse segments
+        }
+        assertEquals(log.getSegmentCount(), directory.listFiles().length);
+    }
+
+    public void testDeltas() throws Exception {
+        NodeId id = NodeId.randomId();
+        log.putBundle(id, createData(100, 1));
+        log.putBundleDelta(id, createData(10, 2));
+        log.commit();
+        log.putBundleDelta(id, createData(10, 3));
+        log.commit();
+        long live = log.getLiveSize();
+        assertEquals(2, log.getDeltaCount(id));
+        assertRecords(id, createData(100, 1), createData(10, 2), createData(10, 3));
+
+        // a rolled back delta is removed from the chain
+        log.putBundleDelta(id, createData(10, 4));
+        log.rollback();
+        assertEquals(live, log.getLiveSize());
+        assertRecords(id, createData(100, 1), createData(10, 2), createData(10, 3));
+
+        reopen();
+        assertEquals(live, log.getLiveSize());
+        assertRecords(id, createData(100, 1), createData(10, 2), createData(10, 3));
+
+        // the complete bundle ends the chain
+        log.putBundle(id, createData(100, 5));
+        log.commit();
+        assertEquals(0, log.getDeltaCount(id));
+        assertRecords(id, createData(100, 5));
+        reopen();
+        assertRecords(id, createData(100, 5));
+
+        try {
+            log.putBundleDelta(NodeId.randomId(), createData(10, 6));
+            fail("deltas need a bundle");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testDeltaCompaction() throws Exception {
+        List<NodeId> ids = new ArrayList<NodeId>();
+        for (int i = 0; i < 200; i++) {
+            NodeId id = NodeId.randomId();
+            ids.add(id);
+            log.putBundle(id, createData(300, i));
+        }
+        log.commit();
+        // deltas in later segments, and rewritten bundles that make the
+        // first segments sparse
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < ids.size(); i++) {
+                if (i % 4 == 0) {
+                    log.putBundleDelta(ids.get(i), createData(20, round));
+                } else {
+                    log.putBundle(ids.get(i), createData(300, round));
+                }
+            }
+            log.commit();
+        }
+        long live = log.getLiveSize();
+
+        int compacted = 0;
+        while (log.compact(50)) {
+            compacted++;
+        }
+        assertTrue(compacted > 0);
+        assertEquals(live, log.getLiveSize());
+
+        reopen();
+        assertEquals(live, log.getLiveSize());
+        for (int i = 0; i < ids.size(); i++) {
+            if (i % 4 == 0) {
+                assertRecords(ids.get(i), createData(300, i),
+                        createData(20, 0), createData(20, 1), createData(20, 2));
+            } else {
+                assertRecords(ids.get(i), createData(300, 2));
+            }
+        }
+    }
+
+    public void testBundleIdsInOrder() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            log.putBundle(NodeId.randomId(), createData(10, i));
+        }
+        log.commit();
+        List<NodeId> all = log.getBundleIds(null, 0);
+        assertEquals(100, all.size());
+        List<NodeId> first = log.getBundleIds(null, 10);
+        assertEquals(all.subList(0, 10), first);
+        assertEquals(all.subList(10, 20), log.getBundleIds(first.get(9), 10));
+    }
+
+    private void assertRecords(NodeId id, byte[]... expected) {
+        List<byte[]> records = log.getBundleRecords(id);
+        assertEquals(expected.length, records.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(Arrays.equals(expected[i], records.get(i)));
+        }
+        assertTrue(Arrays.equals(expected[0], log.getBundle(id)));
+        assertEquals(expected.length - 1, log.getDeltaCount(id));
+    }
+
+    private FutureTask<byte[]> readInBackground(final NodeId id) {
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() {
+                return log.getBundle(id);
+            }
+        });
+        new Thread(task).start();
+        return task;
+    }
+
+    private void reopen() throws Exception {
+        log.close();
+        log = new MappedBundleLog(directory, SEGMENT_SIZE, true);
+        log.open();
+    }
+
+    private static byte[] createData(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+public class OffHeapBundleCacheTest extends TestCase {
+
+    private final AtomicLong hit = new AtomicLong();
+
+    private final AtomicLong miss = new AtomicLong();
+
+    private final AtomicLong eviction = new AtomicLong();
+
+    private final AtomicLong size = new AtomicLong();
+
+    private OffHeapBundleCache cache;
+
+    protected void setUp() throws Exception {
+        cache = new OffHeapBundleCache(256 * 1024, hit, miss, eviction, size);
+    }
+
+    public void testGetPut() {
+        NodeId id = NodeId.randomId();
+        assertNull(cache.get(id));
+        assertEquals(1, miss.get());
+
+        byte[] data = createData(100, 1);
+        cache.put(id, data);
+        assertTrue(Arrays.equals(data, cache.get(id)));
+        assertEquals(1, hit.get());
+
+        byte[] other = createData(50, 2);
+        cache.put(id, other);
+        assertTrue(Arrays.equals(other, cache.get(id)));
+        assertEquals(1, cache.getElementCount());
+
+        cache.remove(id);
+        assertNull(cache.get(id));
+        assertEquals(0, cache.getElementCount());
+    }
+
+    public void testEviction() {
+        NodeId first = NodeId.randomId();
+        cache.put(first, createData(1000, 3));
+        for (int i = 0; i < 1000; i++) {
+            cache.put(NodeId.randomId(), createData(1000, i));
+        }
+        assertNull(cache.get(first));
+        assertTrue(eviction.get() > 0);
+        assertTrue(size.get() <= 256 * 1024);
+
+        NodeId last = NodeId.randomId();
+        byte[] data = createData(1000, 4);
+        cache.put(last, data);
+        assertTrue(Arrays.equals(data, cache.get(last)));
+    }
+
+    public void testClear() {
+        NodeId id = NodeId.randomId();
+        cache.put(id, createData(10, 5));
+        cache.clear();
+        assertNull(cache.get(id));
+        assertEquals(0, cache.getElementCount());
+        assertEquals(0, size.get());
+    }
+
+    public void testTooLarge() {
+        NodeId id = NodeId.randomId();
+        cache.put(id, createData(1024 * 1024, 6));
+        assertNull(cache.get(id));
+    }
+
+    private static byte[] createData(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i + seed);
+        }
+        return data;
+    }
+
+}
@@ -29,6 +29,8 @@ public class TestAll extends TestCase {
         suite.addTestSuite(BundleBindingTest.class);
         suite.addTestSuite(NodeCorruptionTest.class);
         suite.addTestSuite(BundleBindingRandomizedTest.class);
+        suite.addTestSuite(OffHeapBundleCacheTest.class);
+        suite.addTestSuite(MappedBundleLogTest.class);
 
         return suite;
     }
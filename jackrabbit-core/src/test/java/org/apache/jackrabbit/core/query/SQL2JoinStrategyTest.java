@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query;
+
+import static javax.jcr.query.Query.JCR_SQL2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.jackrabbit.core.query.lucene.join.QueryEngine;
+
+/**
+ * Test case for the strategies of JOIN queries with JCR_SQL2. Each query
+ * must return the same rows with all strategies.
+ */
+public class SQL2JoinStrategyTest extends AbstractQueryTest {
+
+    private static final String[] STRATEGIES = { "nested", "hash", "sortMerge" };
+
+    private static final int COUNT = 5;
+
+    private Node node;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        node = testRootNode.addNode("joinstrategy", "nt:unstructured");
+        for (int i = 0; i < COUNT; i++) {
+            Node a = node.addNode("a" + i, "nt:unstructured");
+            a.setProperty("foo", i);
+            for (int j = 0; j < COUNT; j++) {
+                Node b = a.addNode("b" + j, "nt:unstructured");
+                b.setProperty("bar", j);
+                Node c = b.addNode("c", "nt:unstructured");
+                c.setProperty("baz", i);
+            }
+        }
+        testRootNode.getSession().save();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        System.clearProperty(QueryEngine.JOIN_STRATEGY_SYSTEM_PROPERTY);
+        node.remove();
+        testRootNode.getSession().save();
+        node = null;
+        super.tearDown();
+    }
+
+    public void testEquiJoin() throws Exception {
+        checkStrategies("SELECT a.*, b.* FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON a.foo = b.bar"
+                + " WHERE ISDESCENDANTNODE(a, '" + node.getPath() + "')"
+                + " AND ISDESCENDANTNODE(b, '" + node.getPath() + "')",
+                COUNT * COUNT);
+    }
+
+    public void testChildNodeJoin() throws Exception {
+        checkStrategies("SELECT a.*, b.* FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON ISCHILDNODE(b, a)"
+                + " WHERE ISCHILDNODE(a, '" + node.getPath() + "')",
+                COUNT * COUNT);
+    }
+
+    public void testDescendantNodeJoin() throws Exception {
+        checkStrategies("SELECT a.*, b.* FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON ISDESCENDANTNODE(b, a)"
+                + " WHERE ISCHILDNODE(a, '" + node.getPath() + "')",
+                COUNT * COUNT * 2);
+    }
+
+    public void testAncestorNodeJoin() throws Exception {
+        checkStrategies("SELECT a.*, b.* FROM [nt:unstructured] AS b"
+                + " INNER JOIN [nt:unstructured] AS a ON ISDESCENDANTNODE(b, a)"
+                + " WHERE b.baz = 2 AND a.foo IS NOT NULL",
+                COUNT);
+    }
+
+    public void testOuterDescendantNodeJoin() throws Exception {
+        checkStrategies("SELECT a.*, b.* FROM [nt:unstructured] AS a"
+                + " LEFT OUTER JOIN [nt:unstructured] AS b ON ISDESCENDANTNODE(b, a)"
+                + " WHERE ISCHILDNODE(a, '" + node.getPath() + "')"
+                + " AND b.baz = 2",
+                COUNT);
+    }
+
+    private void checkStrategies(String join, int hits)
+            throws RepositoryException {
+        List<String> expected = null;
+        for (String strategy : STRATEGIES) {
+            System.setProperty(
+                    QueryEngine.JOIN_STRATEGY_SYSTEM_PROPERTY, strategy);
+            List<String> rows = getRows(
+                    qm.createQuery(join, JCR_SQL2).execute());
+            assertEquals(strategy, hits, rows.size());
+            if (expected == null) {
+                expected = rows;
+            } else {
+                assertEquals(strategy, expected, rows);
+            }
+        }
+    }
+
+    private static List<String> getRows(QueryResult result)
+            throws RepositoryException {
+        List<String> rows = new ArrayList<String>();
+        for (Row row : JcrUtils.getRows(result)) {
+            Node a = row.getNode("a");
+            Node b = row.getNode("b");
+            rows.add((a != null ? a.getPath() : null)
+                    + " " + (b != null ? b.getPath() : null));
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+}
@@ -156,6 +156,59 @@ public class SQL2OffsetLimitTest extends AbstractQueryTest {
         assertTrue(expected.isEmpty());
     }
 
+    public void testOrderedPages() throws Exception {
+        // three nodes share a value, their order must not depend on the page
+        for (int i = 0; i < c.size(); i++) {
+            testRootNode.getNode(c.get(i)).setProperty(
+                    "value", Math.min(c.size() - i, 3));
+        }
+        testRootNode.getSession().save();
+
+        Query q = qm.createQuery("SELECT * FROM [nt:base] WHERE ISCHILDNODE(["
+                + testRoot + "]) ORDER BY [value]", Query.JCR_SQL2);
+        List<String> all = qrToPaths(q.execute());
+        assertEquals(c.size(), all.size());
+        assertEquals(Arrays.asList("e", "d"), all.subList(0, 2));
+
+        for (int offset = 0; offset < c.size(); offset++) {
+            q.setOffset(offset);
+            q.setLimit(2);
+            assertEquals(
+                    all.subList(offset, Math.min(offset + 2, c.size())),
+                    qrToPaths(q.execute()));
+        }
+    }
+
+    public void testUnorderedPages() throws Exception {
+        Query q = qm.createQuery("SELECT * FROM [nt:base] WHERE ISCHILDNODE(["
+                + testRoot + "])", Query.JCR_SQL2);
+        List<String> all = qrToPaths(q.execute());
+        assertEquals(c.size(), all.size());
+
+        q.setOffset(1);
+        q.setLimit(3);
+        assertEquals(all.subList(1, 4), qrToPaths(q.execute()));
+    }
+
+    public void testJoinLimit() throws Exception {
+        Query q = qm.createQuery("SELECT * FROM [nt:base] AS a"
+                + " INNER JOIN [nt:base] AS b ON ISSAMENODE(a, b)"
+                + " WHERE ISCHILDNODE(a, [" + testRoot + "])", Query.JCR_SQL2);
+        q.setLimit(2);
+        assertEquals(2, count(q.execute()));
+
+        q.setOffset(c.size() - 1);
+        assertEquals(1, count(q.execute()));
+    }
+
+    private static int count(QueryResult qr) throws RepositoryException {
+        int count = 0;
+        for (Row row : JcrUtils.getRows(qr)) {
+            count++;
+        }
+        return count;
+    }
+
     private List<String> qrToPaths(QueryResult qr) throws RepositoryException {
         List<String> ret = new ArrayList<String>();
         for (Row row : JcrUtils.getRows(qr)) {
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.ItemStateManager;
+import org.apache.jackrabbit.core.state.NoSuchItemStateException;
+import org.apache.jackrabbit.core.state.NodeReferences;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Tests the background updates and the log of the {@link AsyncIndexer}.
+ */
+public class AsyncIndexerTest extends TestCase {
+
+    private final NodeId a = NodeId.randomId();
+
+    private final NodeId b = NodeId.randomId();
+
+    private final RecordingIndex index = new RecordingIndex();
+
+    private final RAMDirectory directory = new RAMDirectory();
+
+    public void testBackground() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AsyncIndexer indexer = new AsyncIndexer(
+                    index, new States(), directory, executor, 60000);
+            assertTrue(indexer.waitForIndex(0));
+
+            indexer.enqueue(ids(a), states(a, b));
+            assertTrue(indexer.waitForIndex(10000));
+            assertEquals(Arrays.asList(a), index.removed);
+            assertEquals(Arrays.asList(a, b), index.added);
+            // the log is removed once all changes are applied
+            assertEquals(0, directory.listAll().length);
+            indexer.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testStale() throws Exception {
+        AsyncIndexer indexer = new AsyncIndexer(
+                index, new States(), directory, new Idle(), 0);
+        indexer.enqueue(ids(), states(a));
+        Thread.sleep(10);
+        // the saving thread applies both changes
+        indexer.enqueue(ids(b), states());
+        assertTrue(indexer.waitForIndex(0));
+        assertEquals(Arrays.asList(b), index.removed);
+        assertEquals(Arrays.asList(a), index.added);
+    }
+
+    public void testRecovery() throws Exception {
+        AsyncIndexer indexer = new AsyncIndexer(
+                index, new States(), directory, new Idle(), 60000);
+        indexer.enqueue(ids(b), states(a));
+        assertFalse(indexer.waitForIndex(10));
+        assertTrue(index.added.isEmpty());
+
+        // not closed, as after a crash
+        new AsyncIndexer(index, new States(), directory, new Idle(), 60000);
+        assertEquals(Arrays.asList(b), index.removed);
+        assertEquals(Arrays.asList(a), index.added);
+        assertEquals(0, directory.listAll().length);
+    }
+
+    private static Iterator<NodeId> ids(NodeId... ids) {
+        return Arrays.asList(ids).iterator();
+    }
+
+    private static Iterator<NodeState> states(NodeId... ids) {
+        List<NodeState> states = new ArrayList<NodeState>();
+        for (NodeId id : ids) {
+            states.add(new NodeState(id, null, null, ItemState.STATUS_NEW, false));
+        }
+        return states.iterator();
+    }
+
+    /**
+     * Records the updates instead of indexing the nodes.
+     */
+    private static class RecordingIndex extends SearchIndex {
+
+        private final List<NodeId> removed =
+            Collections.synchronizedList(new ArrayList<NodeId>());
+
+        private final List<NodeId> added =
+            Collections.synchronizedList(new ArrayList<NodeId>());
+
+        @Override
+        void doUpdateNodes(Iterator<NodeId> remove, Iterator<NodeState> add)
+                throws IOException {
+            while (remove.hasNext()) {
+                removed.add(remove.next());
+            }
+            while (add.hasNext()) {
+                NodeState state = add.next();
+                if (state != null) {
+                    added.add(state.getNodeId());
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Returns a new state for each node.
+     */
+    private static class States implements ItemStateManager {
+
+        public ItemState getItemState(ItemId id)
+                throws NoSuchItemStateException {
+            if (!id.denotesNode()) {
+                throw new NoSuchItemStateException(id.toString());
+            }
+            return new NodeState((NodeId) id, null, null,
+                    ItemState.STATUS_EXISTING, false);
+        }
+
+        public boolean hasItemState(ItemId id) {
+            return id.denotesNode();
+        }
+
+        public NodeReferences getNodeReferences(NodeId id)
+                throws NoSuchItemStateException {
+            throw new NoSuchItemStateException(id.toString());
+        }
+
+        public boolean hasNodeReferences(NodeId id) {
+            return false;
+        }
+
+    }
+
+    /**
+     * Never runs the indexer.
+     */
+    private static class Idle implements Executor {
+
+        public void execute(Runnable command) {
+        }
+
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+
+/**
+ * Tests the {@link IndexingProgress} of an initial index.
+ */
+public class IndexingProgressTest extends TestCase {
+
+    public void testEstimate() throws Exception {
+        IndexingProgress progress = new IndexingProgress("test", 2);
+        assertEquals(-1, progress.getTotalNodes());
+        assertEquals(-1, progress.getEstimatedRemainingTime());
+
+        progress.countNodes(persistenceManager(25000));
+        for (int i = 0; i < 100 && progress.getTotalNodes() < 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(25000, progress.getTotalNodes());
+        assertEquals(-1, progress.getEstimatedRemainingTime());
+
+        for (int i = 0; i < 5000; i++) {
+            progress.nodeIndexed();
+        }
+        Thread.sleep(10);
+        assertEquals(5000, progress.getIndexedNodes());
+        long elapsed = progress.getElapsedTime();
+        long remaining = progress.getEstimatedRemainingTime();
+        assertTrue(remaining >= 4 * elapsed);
+        assertTrue(progress.getNodesPerSecond() > 0);
+    }
+
+    public void testMBean() throws Exception {
+        IndexingProgress progress = new IndexingProgress("/test/index", 1);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(
+                "org.apache.jackrabbit:type=IndexingProgress,name="
+                + ObjectName.quote("/test/index"));
+        progress.registerMBean();
+        try {
+            progress.nodeIndexed();
+            assertEquals(1L, server.getAttribute(name, "IndexedNodes"));
+        } finally {
+            progress.unregisterMBean();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    /**
+     * Returns a persistence manager that only lists the given number of
+     * node ids.
+     */
+    private static IterablePersistenceManager persistenceManager(
+            final int size) {
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (!method.getName().equals("getAllNodeIds")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                NodeId after = (NodeId) args[0];
+                int maxCount = (Integer) args[1];
+                long first = after == null ? 0 : after.getLeastSignificantBits() + 1;
+                List<NodeId> ids = new ArrayList<NodeId>();
+                for (long i = first; i < size && ids.size() < maxCount; i++) {
+                    ids.add(new NodeId(0, i));
+                }
+                return ids;
+            }
+        };
+        return (IterablePersistenceManager) Proxy.newProxyInstance(
+                IterablePersistenceManager.class.getClassLoader(),
+                new Class<?>[] { IterablePersistenceManager.class }, handler);
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Credentials;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.TestHelper;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Checks that an initial index created with several threads has the same
+ * content as one created with a single thread.
+ */
+public class InitialIndexTest extends TestCase {
+
+    private static final Credentials CREDENTIALS =
+        new SimpleCredentials("admin", "admin".toCharArray());
+
+    private static final File DIRECTORY =
+        new File("target", "InitialIndexTest");
+
+    private static final File WORKSPACE =
+        new File(DIRECTORY, "workspaces/default");
+
+    private static final String[] QUERIES = {
+        "//element(*, nt:unstructured)[@value = 3]",
+        "//element(*, nt:unstructured)[jcr:contains(., 'lorem')]",
+        "/jcr:root/tree/n2//element(*, nt:unstructured)[@value > 4]"
+    };
+
+    protected void setUp() throws Exception {
+        FileUtils.deleteDirectory(DIRECTORY);
+        DIRECTORY.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(DIRECTORY);
+    }
+
+    public void testParallelInitialIndex() throws Exception {
+        RepositoryImpl repository =
+            RepositoryImpl.create(RepositoryConfig.install(DIRECTORY));
+        try {
+            Session session = repository.login(CREDENTIALS);
+            try {
+                Node tree = session.getRootNode().addNode("tree");
+                populate(tree, 3);
+                session.save();
+            } finally {
+                session.logout();
+            }
+        } finally {
+            repository.shutdown();
+        }
+
+        List<String> single = reindex(1);
+        assertTrue(single.size() > 1);
+        assertEquals(single, reindex(4));
+    }
+
+    /**
+     * Adds ten children with properties to the given node, and recursively
+     * to the children up to the given depth.
+     */
+    private void populate(Node node, int depth) throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Node child = node.addNode("n" + i);
+            child.setProperty("value", (depth * 10 + i) % 7);
+            child.setProperty("text", i % 3 == 0 ? "lorem ipsum" : "dolor sit");
+            if (depth > 1) {
+                populate(child, depth - 1);
+            }
+        }
+    }
+
+    /**
+     * Deletes the workspace index and creates it again with the given
+     * number of threads.
+     *
+     * @return the number of documents in the index, followed by the sorted
+     *         paths of the query results
+     */
+    private List<String> reindex(int threads) throws Exception {
+        FileUtils.deleteDirectory(new File(WORKSPACE, "index"));
+        File config = new File(WORKSPACE, "workspace.xml");
+        String xml = FileUtils.readFileToString(config, "UTF-8");
+        xml = xml.replaceAll("\\s*<param name=\"initialIndexThreads\"[^>]*/>", "");
+        xml = xml.replaceFirst("(<SearchIndex[^>]*>)",
+                "$1<param name=\"initialIndexThreads\" value=\"" + threads + "\"/>");
+        FileUtils.writeStringToFile(config, xml, "UTF-8");
+
+        List<String> content = new ArrayList<String>();
+        RepositoryImpl repository =
+            RepositoryImpl.create(RepositoryConfig.create(DIRECTORY));
+        try {
+            Session session = repository.login(CREDENTIALS);
+            try {
+                SearchIndex index = (SearchIndex)
+                    TestHelper.getSearchManager(session).getQueryHandler();
+                assertEquals(threads, index.getInitialIndexThreads());
+                IndexReader reader = index.getIndexReader(false);
+                try {
+                    content.add("documents: " + reader.numDocs());
+                } finally {
+                    Util.closeOrRelease(reader);
+                }
+
+                QueryManager manager =
+                    session.getWorkspace().getQueryManager();
+                for (String statement : QUERIES) {
+                    List<String> paths = new ArrayList<String>();
+                    NodeIterator nodes = manager.createQuery(
+                            statement, Query.XPATH).execute().getNodes();
+                    while (nodes.hasNext()) {
+                        paths.add(nodes.nextNode().getPath());
+                    }
+                    assertFalse(statement, paths.isEmpty());
+                    Collections.sort(paths);
+                    content.addAll(paths);
+                }
+            } finally {
+                session.logout();
+            }
+        } finally {
+            repository.shutdown();
+        }
+        return content;
+    }
+
+}
@@ -53,6 +53,9 @@ public class TestAll extends TestCase {
         suite.addTestSuite(ArrayHitsTest.class);
         suite.addTestSuite(IndexFormatVersionTest.class);
         suite.addTestSuite(SynonymProviderTest.class);
+        suite.addTestSuite(IndexingProgressTest.class);
+        suite.addTestSuite(AsyncIndexerTest.class);
+        suite.addTestSuite(InitialIndexTest.class);
 
         return suite;
     }
@@ -21,6 +21,10 @@ import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.JackrabbitAccessControlList;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.core.NodeImpl;
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.security.AccessManager;
 import org.apache.jackrabbit.core.security.authorization.AbstractEvaluationTest;
 import org.apache.jackrabbit.core.security.authorization.AccessControlConstants;
 import org.apache.jackrabbit.test.NotExecutableException;
@@ -36,9 +40,13 @@ import javax.jcr.ValueFactory;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
 import java.security.Principal;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * <code>ReadTest</code>...
@@ -95,6 +103,28 @@ public class ReadTest extends AbstractEvaluationTest {
         n.getDefinition();
     }
 
+    public void testGetUnreadableNodes() throws Exception {
+        Node n = superuser.getNode(path);
+        NodeId id = ((NodeImpl) n).getNodeId();
+        NodeId childId = ((NodeImpl) n.getNode(nodeName2)).getNodeId();
+        NodeId siblingId = ((NodeImpl) n.addNode(nodeName3, testNodeType)).getNodeId();
+        NodeId otherId = ((NodeImpl) n.addNode(nodeName4, testNodeType)).getNodeId();
+        superuser.save();
+
+        Privilege[] privileges = privilegesFromName(Privilege.JCR_READ);
+        withdrawPrivileges(path, privileges, getRestrictions(superuser, path));
+        givePrivileges(childNPath, privileges, getRestrictions(superuser, childNPath));
+
+        AccessManager accessMgr = ((SessionImpl) getTestSession()).getAccessManager();
+        List<NodeId> ids = Arrays.asList(
+                id, childId, siblingId, otherId, NodeId.randomId());
+        Set<NodeId> unreadable = accessMgr.getUnreadableNodes(ids);
+        assertEquals(new HashSet<NodeId>(Arrays.asList(id, siblingId, otherId)), unreadable);
+        for (NodeId nodeId : ids.subList(0, 4)) {
+            assertEquals(!unreadable.contains(nodeId), accessMgr.canRead(null, nodeId));
+        }
+    }
+
     public void testDenyUserAllowGroup() throws Exception {
         Privilege[] privileges = privilegesFromName(Privilege.JCR_READ);
         Principal group = getTestGroup().getPrincipal();
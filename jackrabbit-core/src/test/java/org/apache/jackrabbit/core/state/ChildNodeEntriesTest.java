@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>ChildNodeEntriesTest</code> checks the order, same name sibling
+ * indexes and copy-on-write behaviour of {@link ChildNodeEntries}, with
+ * enough entries to use several buckets.
+ */
+public class ChildNodeEntriesTest extends TestCase {
+
+    private static final NameFactory FACTORY = NameFactoryImpl.getInstance();
+
+    private static final int COUNT = ChildNodeEntries.BUCKET_SIZE * 5;
+
+    public void testOrder() {
+        ChildNodeEntries entries = new ChildNodeEntries();
+        List<NodeId> ids = new ArrayList<NodeId>();
+        for (int i = 0; i < COUNT; i++) {
+            NodeId id = NodeId.randomId();
+            ids.add(id);
+            entries.add(name(i), id);
+        }
+        assertEquals(COUNT, entries.size());
+
+        // remove every third entry
+        for (int i = COUNT - 1; i >= 0; i -= 3) {
+            assertNotNull(entries.remove(ids.remove(i)));
+        }
+        assertEquals(ids.size(), entries.size());
+
+        List<ChildNodeEntry> list = entries.list();
+        assertEquals(ids.size(), list.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(ids.get(i), list.get(i).getId());
+            assertEquals(list.get(i), entries.get(ids.get(i)));
+        }
+    }
+
+    public void testSameNameSiblings() {
+        ChildNodeEntries entries = new ChildNodeEntries();
+        Name name = FACTORY.create("", "sns");
+        List<NodeId> ids = new ArrayList<NodeId>();
+        for (int i = 0; i < COUNT; i++) {
+            NodeId id = NodeId.randomId();
+            ids.add(id);
+            entries.add(name, id);
+            entries.add(name(i), NodeId.randomId());
+        }
+        entries.remove(ids.remove(10));
+        for (int i = 0; i < ids.size(); i++) {
+            ChildNodeEntry entry = entries.get(ids.get(i));
+            assertEquals(i + 1, entry.getIndex());
+            assertEquals(entry, entries.get(name, i + 1));
+        }
+        assertEquals(ids.size(), entries.get(name).size());
+    }
+
+    public void testCopyOnWrite() {
+        Random random = new Random(1);
+        ChildNodeEntries entries = new ChildNodeEntries();
+        for (int i = 0; i < COUNT; i++) {
+            entries.add(name(random.nextInt(100)), NodeId.randomId());
+        }
+        List<ChildNodeEntry> original = entries.list();
+
+        ChildNodeEntries copy = (ChildNodeEntries) entries.clone();
+        assertEquals(entries, copy);
+        for (int i = 0; i < 100; i++) {
+            ChildNodeEntry entry =
+                original.get(random.nextInt(original.size()));
+            copy.remove(entry);
+            copy.add(name(random.nextInt(100)), NodeId.randomId());
+        }
+        assertFalse(entries.equals(copy));
+        assertEquals(original, entries.list());
+
+        // modifying the original does not affect the copy either
+        List<ChildNodeEntry> copied = copy.list();
+        entries.removeAll();
+        assertTrue(entries.isEmpty());
+        assertEquals(copied, copy.list());
+    }
+
+    private static Name name(int i) {
+        return FACTORY.create("", "node" + i);
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.AtomicPersistenceManager;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+/**
+ * <code>GroupCommitterTest</code> contains the test cases for
+ * {@link GroupCommitter}.
+ */
+public class GroupCommitterTest extends TestCase {
+
+    /**
+     * Change logs passed to the persistence manager.
+     */
+    private final List<ChangeLog> stored =
+        Collections.synchronizedList(new ArrayList<ChangeLog>());
+
+    /**
+     * Items written by the persistence manager, including the items of
+     * change logs that a non-atomic persistence manager failed to store.
+     */
+    private final Set<ItemId> written =
+        Collections.synchronizedSet(new HashSet<ItemId>());
+
+    /**
+     * Property that makes the persistence manager fail when it is stored.
+     */
+    private final PropertyId bad = createPropertyId();
+
+    /**
+     * Property that blocks the persistence manager until {@link #release}
+     * is counted down, so that other change logs queue up.
+     */
+    private final PropertyId blocker = createPropertyId();
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private PersistenceManager pm;
+
+    protected void setUp() throws Exception {
+        pm = createPersistenceManager(true);
+    }
+
+    public void testSingleStore() throws Exception {
+        GroupCommitter committer = new GroupCommitter(pm, 0);
+        ChangeLog changes = createChangeLog(createPropertyId());
+        committer.store(changes);
+        assertEquals(1, stored.size());
+        assertSame(changes, stored.get(0));
+    }
+
+    public void testLoneStoreDoesNotWait() throws Exception {
+        GroupCommitter committer = new GroupCommitter(pm, 10000);
+        long start = System.currentTimeMillis();
+        committer.store(createChangeLog(createPropertyId()));
+        assertTrue("A lone change log waited for the window",
+                System.currentTimeMillis() - start < 5000);
+        assertEquals(1, stored.size());
+    }
+
+    public void testConcurrentStoresAreGrouped() throws Exception {
+        // the window is long, but the full group is stored right away
+        GroupCommitter committer = new GroupCommitter(pm, 10000, 10);
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < 10; i++) {
+            workers.add(new Worker(committer, createPropertyId()));
+        }
+        long start = System.currentTimeMillis();
+        run(committer, workers);
+        assertTrue("The leader waited for a full group",
+                System.currentTimeMillis() - start < 5000);
+
+        int states = 0;
+        for (ChangeLog changes : stored) {
+            for (ItemState state : changes.addedStates()) {
+                states++;
+            }
+        }
+        assertEquals(11, states);
+        assertEquals("Change logs were not grouped", 2, stored.size());
+        for (Worker worker : workers) {
+            assertNull(worker.exception);
+            // each change log keeps the size of its own changes
+            assertEquals(10, worker.changes.getUpdateSize());
+        }
+        assertEquals(100, stored.get(1).getUpdateSize());
+    }
+
+    public void testGroupSizeIsBounded() throws Exception {
+        GroupCommitter committer = new GroupCommitter(pm, 10000, 3);
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < 9; i++) {
+            workers.add(new Worker(committer, createPropertyId()));
+        }
+        run(committer, workers);
+
+        // the blocker and three groups of three change logs
+        assertEquals(4, stored.size());
+        for (Worker worker : workers) {
+            assertNull(worker.exception);
+        }
+    }
+
+    public void testFailureIsIsolated() throws Exception {
+        GroupCommitter committer = new GroupCommitter(pm, 10000, 6);
+        List<Worker> workers = new ArrayList<Worker>();
+        workers.add(new Worker(committer, bad));
+        for (int i = 0; i < 5; i++) {
+            workers.add(new Worker(committer, createPropertyId()));
+        }
+        run(committer, workers);
+
+        assertNotNull(workers.get(0).exception);
+        for (Worker worker : workers.subList(1, workers.size())) {
+            assertNull(worker.exception);
+        }
+        // the blocker and the five good change logs one by one
+        assertEquals(6, stored.size());
+    }
+
+    public void testNonAtomicStoresAreNotGrouped() throws Exception {
+        // a failed group would leave the items of the good change
+        // logs behind, so that storing them again fails
+        pm = createPersistenceManager(false);
+        GroupCommitter committer = new GroupCommitter(pm, 10000, 6);
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < 5; i++) {
+            workers.add(new Worker(committer, createPropertyId()));
+        }
+        workers.add(new Worker(committer, bad));
+        run(committer, workers);
+
+        assertNotNull(workers.get(5).exception);
+        for (Worker worker : workers.subList(0, 5)) {
+            assertNull(worker.exception);
+            assertTrue(written.contains(worker.changes.addedStates()
+                    .iterator().next().getId()));
+        }
+        // the blocker and the five good change logs one by one
+        assertEquals(6, stored.size());
+    }
+
+    /**
+     * Creates a persistence manager that writes the added items of a change
+     * log and then fails if the change log contains the {@link #bad}
+     * property. An atomic persistence manager reverts the written items
+     * when it fails, any other leaves them behind. Writing an item that
+     * has already been written fails as well.
+     */
+    private PersistenceManager createPersistenceManager(final boolean atomic) {
+        Class<?>[] interfaces;
+        if (atomic) {
+            interfaces = new Class<?>[] { AtomicPersistenceManager.class };
+        } else {
+            interfaces = new Class<?>[] { PersistenceManager.class };
+        }
+        return (PersistenceManager) Proxy.newProxyInstance(
+                getClass().getClassLoader(), interfaces,
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals("store")) {
+                            ChangeLog changes = (ChangeLog) args[0];
+                            if (changes.has(blocker)) {
+                                entered.countDown();
+                                release.await();
+                            }
+                            List<ItemId> ids = new ArrayList<ItemId>();
+                            try {
+                                for (ItemState state : changes.addedStates()) {
+                                    if (state.getId().equals(bad)) {
+                                        continue;
+                                    }
+                                    if (!written.add(state.getId())) {
+                                        throw new ItemStateException(
+                                                "already written");
+                                    }
+                                    ids.add(state.getId());
+                                }
+                                if (changes.has(bad)) {
+                                    throw new ItemStateException("bad property");
+                                }
+                            } catch (ItemStateException e) {
+                                if (atomic) {
+                                    written.removeAll(ids);
+                                }
+                                throw e;
+                            }
+                            for (ItemState state : changes.addedStates()) {
+                                changes.addUpdateSize(state.getParentId(), 10);
+                            }
+                            stored.add(changes);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Runs the workers while the change log of another worker blocks the
+     * persistence manager, so that their change logs queue up behind it.
+     */
+    private void run(GroupCommitter committer, List<Worker> workers)
+            throws InterruptedException {
+        Worker first = new Worker(committer, blocker);
+        first.start();
+        entered.await();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(100);
+        release.countDown();
+        first.join();
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        assertNull(first.exception);
+    }
+
+    private static PropertyId createPropertyId() {
+        return new PropertyId(NodeId.randomId(),
+                NameFactoryImpl.getInstance().create("", "p"));
+    }
+
+    private static ChangeLog createChangeLog(PropertyId id) {
+        ChangeLog changes = new ChangeLog();
+        changes.added(new PropertyState(id, ItemState.STATUS_NEW, false));
+        return changes;
+    }
+
+    private static class Worker extends Thread {
+
+        private final GroupCommitter committer;
+
+        private final ChangeLog changes;
+
+        private ItemStateException exception;
+
+        private Worker(GroupCommitter committer, PropertyId id) {
+            this.committer = committer;
+            this.changes = createChangeLog(id);
+        }
+
+        public void run() {
+            try {
+                committer.store(changes);
+            } catch (ItemStateException e) {
+                exception = e;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import javax.jcr.PropertyType;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.state.ISMLocking.WriteLock;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+/**
+ * <code>StripedISMLockingTest</code> executes the test cases implemented in
+ * {@link AbstractISMLockingTest} and checks that disjoint change logs can be
+ * written concurrently, unless they reference the same node.
+ */
+public class StripedISMLockingTest extends AbstractISMLockingTest {
+
+    private static final Name REFERENCE =
+        NameFactoryImpl.getInstance().create("", "reference");
+
+    public ISMLocking createISMLocking() {
+        return new StripedISMLocking();
+    }
+
+    public void testDisjointWrites() throws InterruptedException {
+        ChangeLog cl = new ChangeLog();
+        cl.modified(state);
+        WriteLock wLock = locking.acquireWriteLock(cl);
+        verifyNotBlocked(startWriterThread(locking, createChangeLog(state)));
+        verifyNotBlocked(startReaderThread(locking, createOtherState(state).getId()));
+        wLock.release();
+    }
+
+    /**
+     * Checks that two change logs that add references to the same node are
+     * serialized, even though the node references of the target are only
+     * added to the change logs once the write lock is held.
+     */
+    public void testWritesReferencingSameTarget() throws InterruptedException {
+        NodeState first = createOtherState(state);
+        NodeState second;
+        do {
+            second = createOtherState(state);
+        } while (getStripe(second) == getStripe(first));
+
+        WriteLock wLock = locking.acquireWriteLock(createReference(first));
+        verifyBlocked(startWriterThread(locking, createReference(second)));
+        wLock.release();
+    }
+
+    /**
+     * Creates a change log that adds a REFERENCE property to the given node
+     * that points to {@link #state}.
+     */
+    private ChangeLog createReference(NodeState parent) {
+        PropertyState property = new PropertyState(
+                new PropertyId(parent.getNodeId(), REFERENCE),
+                ItemState.STATUS_NEW, true);
+        property.setType(PropertyType.REFERENCE);
+        property.setValues(new InternalValue[] {
+                InternalValue.create(state.getNodeId()) });
+        ChangeLog cl = new ChangeLog();
+        cl.modified(parent);
+        cl.added(property);
+        return cl;
+    }
+
+    private int getStripe(NodeState node) {
+        int stripes = ((StripedISMLocking) locking).getStripes();
+        return (node.getNodeId().hashCode() & Integer.MAX_VALUE) % stripes;
+    }
+
+    /**
+     * Creates a change log that modifies a node on a different stripe than
+     * the given node.
+     */
+    private ChangeLog createChangeLog(NodeState other) {
+        ChangeLog cl = new ChangeLog();
+        cl.modified(createOtherState(other));
+        return cl;
+    }
+
+    private NodeState createOtherState(NodeState other) {
+        int stripes = ((StripedISMLocking) locking).getStripes();
+        int stripe = (other.getNodeId().hashCode() & Integer.MAX_VALUE) % stripes;
+        NodeId id;
+        do {
+            id = NodeId.randomId();
+        } while ((id.hashCode() & Integer.MAX_VALUE) % stripes == stripe);
+        return new NodeState(id, NameConstants.NT_BASE, null, ItemState.STATUS_EXISTING, true);
+    }
+}
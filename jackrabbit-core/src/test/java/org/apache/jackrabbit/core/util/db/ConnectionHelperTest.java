@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.util.db;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the batch updates and the statement cache of the {@link ConnectionHelper}.
+ */
+public class ConnectionHelperTest extends TestCase {
+
+    private static final String DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+
+    private static final String DERBY_URL = "jdbc:derby:target/connection-helper-test/db;create=true";
+
+    private ConnectionFactory connectionFactory;
+
+    private ConnectionHelper helper;
+
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty("derby.stream.error.file", "target/derby-connectionhelpertest.log");
+        connectionFactory = new ConnectionFactory();
+        DataSource ds = connectionFactory.getDataSource(DRIVER, DERBY_URL, "user", "password");
+        helper = new ConnectionHelper(ds, false);
+        if (helper.tableExists("TEST_ITEMS")) {
+            helper.exec("drop table TEST_ITEMS");
+        }
+        helper.exec("create table TEST_ITEMS (ID int not null primary key, NAME varchar(32))");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        helper.exec("drop table TEST_ITEMS");
+        connectionFactory.close();
+    }
+
+    public void testUpdateBatch() throws Exception {
+        int[] counts = helper.updateBatch(
+                "insert into TEST_ITEMS (ID, NAME) values (?, ?)", rows(10));
+        assertEquals(10, counts.length);
+        assertEquals(10, count());
+
+        List<Object[]> deletes = new ArrayList<Object[]>();
+        deletes.add(new Object[] {1});
+        deletes.add(new Object[] {42});
+        counts = helper.updateBatch("delete from TEST_ITEMS where ID = ?", deletes);
+        assertEquals(1, counts[0]);
+        assertEquals(0, counts[1]);
+        assertEquals(9, count());
+    }
+
+    public void testCachedStatementsInBatch() throws Exception {
+        helper.setCacheStatements(true);
+        helper.startBatch();
+        try {
+            for (int i = 0; i < 10; i++) {
+                helper.exec("insert into TEST_ITEMS (ID, NAME) values (?, ?)", i, "item" + i);
+            }
+            helper.updateBatch("insert into TEST_ITEMS (ID, NAME) values (?, ?)", rows(20).subList(10, 20));
+            assertEquals(1, helper.update("update TEST_ITEMS set NAME = ? where ID = ?", "updated", 3));
+            assertEquals(1, helper.update("update TEST_ITEMS set NAME = ? where ID = ?", "updated", 4));
+        } finally {
+            helper.endBatch(true);
+        }
+        assertEquals(20, count());
+        ResultSet rs = helper.query("select count(*) from TEST_ITEMS where NAME = ?", "updated");
+        try {
+            assertTrue(rs.next());
+            assertEquals(2, rs.getInt(1));
+        } finally {
+            DbUtility.close(rs);
+        }
+    }
+
+    public void testCachedStatementsRollback() throws Exception {
+        helper.setCacheStatements(true);
+        helper.startBatch();
+        try {
+            helper.updateBatch("insert into TEST_ITEMS (ID, NAME) values (?, ?)", rows(5));
+        } finally {
+            helper.endBatch(false);
+        }
+        assertEquals(0, count());
+    }
+
+    private static List<Object[]> rows(int count) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int i = 0; i < count; i++) {
+            rows.add(new Object[] {i, "item" + i});
+        }
+        return rows;
+    }
+
+    private int count() throws Exception {
+        ResultSet rs = helper.query("select count(*) from TEST_ITEMS");
+        try {
+            assertTrue(rs.next());
+            return rs.getInt(1);
+        } finally {
+            DbUtility.close(rs);
+        }
+    }
+}
@@ -18,10 +18,15 @@
 package org.apache.jackrabbit.core.data;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.data.util.RangeInputStream;
+
 /**
  * The interface defines the backend which can be plugged into
  * {@link CachingDataStore}.
@@ -53,6 +58,35 @@ public interface Backend {
      */
     InputStream read(DataIdentifier identifier) throws DataStoreException;
 
+    /**
+     * Return inputstream of a part of the record identified by identifier.
+     * Backends should only transfer the requested part where the underlying
+     * storage allows it. The default implementation skips the start of the
+     * stream returned by {@link #read(DataIdentifier)}.
+     * 
+     * @param identifier
+     *            identifier of record.
+     * @param offset
+     *            the position of the first byte to read.
+     * @param length
+     *            the maximum number of bytes to read, or -1 to read to the
+     *            end of the record.
+     * @return inputstream of the part of the record.
+     * @throws DataStoreException
+     *             if record not found or any error.
+     */
+    default InputStream read(DataIdentifier identifier, long offset,
+            long length) throws DataStoreException {
+        InputStream in = read(identifier);
+        try {
+            return new RangeInputStream(in, offset, length);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw new DataStoreException("Error skipping to offset " + offset
+                    + " of " + identifier, e);
+        }
+    }
+
     /**
      * Return length of record identified by identifier.
      * 
@@ -139,6 +173,26 @@ public interface Backend {
     void touch(final DataIdentifier identifier, long minModifiedDate)
             throws DataStoreException;
     
+    /**
+     * Update the lastModified of all given records if their lastModified &lt;
+     * minModifiedDate. Identifiers of records that do not exist are ignored.
+     * Backends should group the updates where the underlying storage allows
+     * it, instead of touching each record with a separate call. The default
+     * implementation touches the records one by one.
+     * 
+     * @param identifiers
+     * @param minModifiedDate
+     * @throws DataStoreException
+     */
+    default void touchAll(Collection<DataIdentifier> identifiers,
+            long minModifiedDate) throws DataStoreException {
+        for (DataIdentifier identifier : identifiers) {
+            if (exists(identifier)) {
+                touch(identifier, minModifiedDate);
+            }
+        }
+    }
+
     /**
      * Update the lastModified of record if it's lastModified &lt; minModifiedDate
      * asynchronously. Result of update is passed using appropriate
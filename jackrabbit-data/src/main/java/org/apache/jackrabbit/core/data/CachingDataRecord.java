@@ -59,4 +59,10 @@ public class CachingDataRecord extends AbstractDataRecord {
         return store.getStream(getIdentifier());
     }
 
+    @Override
+    public InputStream getStream(long offset, long length)
+            throws DataStoreException {
+        return store.getStream(getIdentifier(), offset, length);
+    }
+
 }
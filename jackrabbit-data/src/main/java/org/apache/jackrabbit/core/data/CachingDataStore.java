@@ -18,6 +18,8 @@
 package org.apache.jackrabbit.core.data;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,6 +31,7 @@ import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -50,6 +53,7 @@ import javax.jcr.RepositoryException;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.core.data.util.NamedThreadFactory;
+import org.apache.jackrabbit.core.data.util.RangeInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -540,6 +544,29 @@ public abstract class CachingDataStore extends AbstractDataStore implements
         minModifiedDate = before;
     }
 
+    /**
+     * Touches the records that are still being uploaded in the
+     * {@link AsyncUploadCache}, and all other records in a single call to
+     * {@link Backend#touchAll(Collection, long)}.
+     */
+    @Override
+    public void touchAll(Collection<DataIdentifier> identifiers, long before)
+            throws DataStoreException {
+        List<DataIdentifier> stored =
+            new ArrayList<DataIdentifier>(identifiers.size());
+        try {
+            for (DataIdentifier identifier : identifiers) {
+                if (!asyncWriteCache.hasEntry(getFileName(identifier), true)) {
+                    stored.add(identifier);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new DataStoreException(ioe);
+        }
+        LOG.debug("touchAll: [{}] records in backend", stored.size());
+        backend.touchAll(stored, before);
+    }
+
     /**
      * Retrieves all identifiers from {@link Backend}.
      */
@@ -624,6 +651,34 @@ public abstract class CachingDataStore extends AbstractDataStore implements
         }
     }
 
+    /**
+     * Get a part of the stream of record. If record is available in
+     * {@link LocalCache}, the cached file is opened at the given offset.
+     * Otherwise only the part is read from {@link Backend}, and the whole
+     * record is cached asynchronously if proactive caching is enabled.
+     */
+    InputStream getStream(DataIdentifier identifier, long offset, long length)
+            throws DataStoreException {
+        String fileName = getFileName(identifier);
+        FileInputStream in = null;
+        try {
+            File cached = cache.getFileIfStored(fileName);
+            if (cached != null) {
+                in = new FileInputStream(cached);
+                in.getChannel().position(offset);
+                return new RangeInputStream(in, 0, length);
+            }
+        } catch (FileNotFoundException e) {
+            LOG.debug("[{}] purged from local cache, reading from backend",
+                fileName);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw new DataStoreException("IO Exception: " + identifier, e);
+        }
+        asyncDownload(identifier);
+        return backend.read(identifier, offset, length);
+    }
+
     /**
      * Return lastModified of record from {@link Backend} assuming
      * {@link Backend} as a single source of truth.
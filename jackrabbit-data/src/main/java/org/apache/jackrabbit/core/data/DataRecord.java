@@ -16,8 +16,12 @@
  */
 package org.apache.jackrabbit.core.data;
 
+import java.io.IOException;
 import java.io.InputStream;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.data.util.RangeInputStream;
+
 /**
  * Immutable data record that consists of a binary stream.
  */
@@ -54,6 +58,33 @@ public interface DataRecord {
      */
     InputStream getStream() throws DataStoreException;
 
+    /**
+     * Returns a part of the binary stream in this record. The stream is
+     * empty if the offset is at or beyond the end of the binary stream.
+     *
+     * <p>
+     * The default implementation skips the start of the stream returned by
+     * {@link #getStream()}. Records that can read a part of the binary
+     * stream directly override this method.
+     *
+     * @param offset the position of the first byte to read, from zero
+     * @param length the maximum number of bytes to read, or -1 to read to
+     *            the end of the binary stream
+     * @return binary stream
+     * @throws DataStoreException if the record could not be accessed
+     */
+    default InputStream getStream(long offset, long length)
+            throws DataStoreException {
+        InputStream in = getStream();
+        try {
+            return new RangeInputStream(in, offset, length);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw new DataStoreException("Error skipping to offset " + offset
+                    + " of " + getIdentifier(), e);
+        }
+    }
+
     /**
      * Returns the last modified of the record.
      * 
@@ -17,6 +17,7 @@
 package org.apache.jackrabbit.core.data;
 
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Iterator;
 
 import javax.jcr.RepositoryException;
@@ -105,6 +106,32 @@ public interface DataStore {
      */
     void updateModifiedDateOnAccess(long before);
 
+    /**
+     * Update the modified date of the given records to the current time if it
+     * is older than the given value, as if each record was accessed while
+     * {@link #updateModifiedDateOnAccess(long)} is enabled. Identifiers of
+     * records that do not exist are ignored. Like
+     * {@link #getRecordIfStored(DataIdentifier)}, this method marks the
+     * identifiers as in use. The garbage collector uses this method to mark
+     * many records at once, which is usually much faster than accessing them
+     * one by one.
+     * <p>
+     * The default implementation accesses the records one by one with
+     * {@link #getRecordIfStored(DataIdentifier)}. It therefore relies on
+     * {@link #updateModifiedDateOnAccess(long)} having been enabled with the
+     * same value, as the garbage collector does.
+     *
+     * @param identifiers the identifiers of the records
+     * @param before update the modified date to the current time if it is older than this value
+     * @throws DataStoreException if the data store could not be accessed
+     */
+    default void touchAll(Collection<DataIdentifier> identifiers, long before)
+            throws DataStoreException {
+        for (DataIdentifier identifier : identifiers) {
+            getRecordIfStored(identifier);
+        }
+    }
+
     /**
      * Delete objects that have a modified date older than the specified date.
      *
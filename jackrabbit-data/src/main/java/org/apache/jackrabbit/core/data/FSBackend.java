@@ -27,6 +27,8 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -35,6 +37,7 @@ import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.data.util.RangeInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -120,6 +123,22 @@ public class FSBackend extends AbstractBackend {
         }
     }
 
+    @Override
+    public InputStream read(DataIdentifier identifier, long offset,
+            long length) throws DataStoreException {
+        File file = getFile(identifier);
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            in.getChannel().position(offset);
+            return new RangeInputStream(in, 0, length);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw new DataStoreException("Error opening input stream of "
+                + file.getAbsolutePath(), e);
+        }
+    }
+
     @Override
     public long getLength(DataIdentifier identifier) throws DataStoreException {
         File file = getFile(identifier);
@@ -241,6 +260,31 @@ public class FSBackend extends AbstractBackend {
         }
     }
 
+    /**
+     * Touches the files sorted by path, so that the files in the same
+     * directory are touched together, and with the same timestamp.
+     */
+    @Override
+    public void touchAll(Collection<DataIdentifier> identifiers,
+                    long minModifiedDate) throws DataStoreException {
+        if (minModifiedDate <= 0) {
+            return;
+        }
+        List<File> files = new ArrayList<File>(identifiers.size());
+        for (DataIdentifier identifier : identifiers) {
+            files.add(getFile(identifier));
+        }
+        Collections.sort(files);
+        long now = System.currentTimeMillis() + ACCESS_TIME_RESOLUTION;
+        for (File file : files) {
+            long lastModified = file.lastModified();
+            // zero if the file does not exist
+            if (lastModified != 0 && lastModified < minModifiedDate) {
+                setLastModified(file, now);
+            }
+        }
+    }
+
     @Override
     public void touchAsync(final DataIdentifier identifier,
                     final long minModifiedDate,
@@ -17,9 +17,13 @@
 package org.apache.jackrabbit.core.data;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.data.util.RangeInputStream;
+
 
 /**
  * Data record that is based on a normal file.
@@ -62,6 +66,25 @@ public class FileDataRecord extends AbstractDataRecord {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The file is opened at the given offset.
+     */
+    @Override
+    public InputStream getStream(long offset, long length)
+            throws DataStoreException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            in.getChannel().position(offset);
+            return new RangeInputStream(in, 0, length);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw new DataStoreException("Error opening input stream of " + file.getAbsolutePath(), e);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -32,6 +32,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -268,6 +269,30 @@ public class FileDataStore extends AbstractDataStore
         minModifiedDate = before;
     }
 
+    /**
+     * Update the modified date of the given records. The identifiers are
+     * sorted, so that the files in the same directory are touched together.
+     */
+    public void touchAll(Collection<DataIdentifier> identifiers, long before)
+            throws DataStoreException {
+        List<File> files = new ArrayList<File>(identifiers.size());
+        for (DataIdentifier identifier : identifiers) {
+            // marks the identifier as in use
+            files.add(getFile(identifier));
+        }
+        Collections.sort(files);
+        long now = System.currentTimeMillis() + ACCESS_TIME_RESOLUTION;
+        synchronized (this) {
+            for (File file : files) {
+                long lastModified = file.lastModified();
+                // zero if the file does not exist
+                if (lastModified != 0 && lastModified < before) {
+                    setLastModified(file, now);
+                }
+            }
+        }
+    }
+
     public void deleteRecord(DataIdentifier identifier)
 			throws DataStoreException {
         File file = getFile(identifier);
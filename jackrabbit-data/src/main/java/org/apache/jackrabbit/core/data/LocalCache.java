@@ -18,17 +18,25 @@
 package org.apache.jackrabbit.core.data;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.FileUtils;
@@ -38,10 +46,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class implements a LRU cache used by {@link CachingDataStore}. If cache
- * size exceeds limit, this cache goes in purge mode. In purge mode any
- * operation to cache is no-op. After purge cache size would be less than
- * cachePurgeResizeFactor * maximum size.
+ * This class implements a LRU cache used by {@link CachingDataStore}. The
+ * entries are kept in a {@link ConcurrentHashMap}, and every access records
+ * a sequence number in the entry, so that reading from the cache never
+ * blocks. If cache size exceeds limit, a purge job deletes the least
+ * recently used files in a separate thread, without holding any lock, until
+ * the cache size is less than cachePurgeResizeFactor * maximum size. While
+ * the purge job runs, no files are added to the cache.
+ * <p>
+ * The entries are saved to an index file in the cache directory when the
+ * cache is closed, so that the directory does not need to be scanned when
+ * the cache is created again. The index file is removed when it is read, so
+ * that the directory is scanned after an unclean shutdown.
  */
 public class LocalCache {
 
@@ -50,15 +66,47 @@ public class LocalCache {
      */
     static final Logger LOG = LoggerFactory.getLogger(LocalCache.class);
 
+    /**
+     * The name of the file in which the entries are saved.
+     */
+    static final String INDEX_FILE = "local-cache-index.txt";
+
     /**
      * The file names of the files that need to be deleted.
      */
-    final Set<String> toBeDeleted = new HashSet<String>();
+    final Set<String> toBeDeleted =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The cache entries, by file name.
+     */
+    final ConcurrentHashMap<String, Entry> entries =
+        new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The sum of the file lengths of all entries.
+     */
+    final AtomicLong currentSizeInBytes = new AtomicLong();
+
+    /**
+     * The maximum size of the cache.
+     */
+    final long maxSizeInBytes;
+
+    /**
+     * The size above which the cache is purged.
+     */
+    final long cachePurgeTrigSize;
+
+    /**
+     * The size below which the purge job stops.
+     */
+    final long cachePurgeResize;
 
     /**
-     * The filename Vs file size LRU cache.
+     * The sequence number of the last access.
      */
-    LRUCache cache;
+    private final AtomicLong accessCounter = new AtomicLong();
 
     /**
      * The directory where the files are created.
@@ -71,11 +119,16 @@ public class LocalCache {
     private final File tmp;
 
     /**
-     * If true cache is in purgeMode and not available. All operation would be
-     * no-op.
+     * If true cache is in purgeMode and does not admit new files.
      */
-    private volatile boolean purgeMode;
-    
+    private final AtomicBoolean purgeMode = new AtomicBoolean();
+
+    /**
+     * Whether all files in the cache directory are known, so that the
+     * entries can be saved.
+     */
+    private volatile boolean complete;
+
     private AsyncUploadCache asyncUploadCache;
     
     private AtomicLong cacheMissCounter = new AtomicLong();
@@ -84,9 +137,11 @@ public class LocalCache {
     
 
     /**
-     * Build LRU cache of files located at 'path'. It uses lastModified property
-     * of file to build LRU cache. If cache size exceeds limit size, this cache
-     * goes in purge mode. In purge mode any operation to cache is no-op.
+     * Build LRU cache of files located at 'path'. The entries are read from
+     * the index file if the cache was closed properly, otherwise the
+     * directory is scanned in a separate thread, and the lastModified
+     * property of the files is used to order them. If cache size exceeds
+     * limit size, this cache goes in purge mode.
      * 
      * @param path file system path
      * @param tmpPath temporary directory used by cache.
@@ -108,9 +163,16 @@ public class LocalCache {
             new Object[] { cachePurgeTrigFactor, cachePurgeResizeFactor,
                 (cachePurgeTrigFactor * maxSizeInBytes), 
                 (cachePurgeResizeFactor * maxSizeInBytes) });
-        cache = new LRUCache(maxSizeInBytes, cachePurgeTrigFactor, cachePurgeResizeFactor);
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.cachePurgeTrigSize = (long) (cachePurgeTrigFactor * maxSizeInBytes);
+        this.cachePurgeResize = (long) (cachePurgeResizeFactor * maxSizeInBytes);
         this.asyncUploadCache = asyncUploadCache;
-        new Thread(new CacheBuildJob()).start();
+        if (loadIndex()) {
+            complete = true;
+            tryPurge();
+        } else {
+            new Thread(new CacheBuildJob()).start();
+        }
     }
 
     /**
@@ -152,7 +214,7 @@ public class LocalCache {
                 LOG.debug(
                     "file [{}] doesn't exists. adding to local cache using inputstream.",
                     fileName);
-                cache.put(fileName, f.length());
+                add(fileName, f.length());
             } else {
                 LOG.debug(
                     "file [{}] doesn't exists. returning transient file [{}].",
@@ -167,7 +229,7 @@ public class LocalCache {
             LOG.debug(
                 "file [{}]  exists. adding to local cache using inputstream.",
                 fileName);
-            cache.put(fileName, f.length());
+            add(fileName, f.length());
         }
         tryPurge();
         return new LazyFileInputStream(f);
@@ -230,7 +292,7 @@ public class LocalCache {
                 new Object[] { dest.getAbsolutePath(), dest.exists(),
                     destExists });
             
-            cache.put(fileName, dest.length());
+            add(fileName, dest.length());
             result.setFile(dest);
             if (tryForAsyncUpload) {
                 result.setAsyncUpload(asyncUploadCache.add(fileName).canAsyncUpload());
@@ -242,6 +304,7 @@ public class LocalCache {
         tryPurge();
         return result;
     }
+
     /**
      * Return the inputstream from from cache, or null if not in the cache.
      * 
@@ -263,20 +326,26 @@ public class LocalCache {
                 cacheMissCounter.getAndSet(0), diff });
             cacheMissDuration.set(System.currentTimeMillis());
         }
-        
-        // return file in purge mode = true and file present in asyncUploadCache
-        // as asyncUploadCache's files will be not be deleted in cache purge.
-        if (!f.exists() || (isInPurgeMode() && !asyncUploadCache.hasEntry(fileName, false))) {
-            LOG.debug(
-                "getFileIfStored returned: purgeMode=[{}], file=[{}] exists=[{}]",
-                new Object[] { isInPurgeMode(), f.getAbsolutePath(), f.exists() });
+
+        Entry entry = entries.get(fileName);
+        if (entry != null && f.exists()) {
+            // touch entry in LRU cache
+            entry.lastAccess = accessCounter.incrementAndGet();
+            return f;
+        } else if (entry == null && !toBeDeleted.contains(fileName)
+                && f.exists()) {
+            // not known yet while the cache directory is scanned
+            add(fileName, f.length());
+            return f;
+        } else {
+            if (entry != null) {
+                // deleted outside of the cache
+                removeEntry(fileName, entry);
+            }
+            LOG.debug("getFileIfStored returned: file=[{}] exists=[{}]",
+                f.getAbsolutePath(), f.exists());
             cacheMissCounter.incrementAndGet();
             return null;
-        } else {
-            // touch entry in LRU caches
-            f.setLastModified(System.currentTimeMillis());
-            cache.get(fileName);
-            return f;
         }
     }
 
@@ -287,12 +356,8 @@ public class LocalCache {
      * @param fileName file name that need to be removed from cache.
      */
     public void delete(String fileName) {
-        if (isInPurgeMode()) {
-            LOG.debug("purgeMode true :delete returned");
-            return;
-        }
         fileName = fileName.replace("\\", "/");
-        cache.remove(fileName);
+        remove(fileName);
     }
 
     /**
@@ -302,8 +367,10 @@ public class LocalCache {
     public Long getFileLength(String fileName) {
         Long length = null;
         try {
-            length = cache.get(fileName);
-            if( length == null ) {
+            Entry entry = entries.get(fileName);
+            if (entry != null) {
+                length = entry.length;
+            } else {
                 File f = getFileIfStored(fileName);
                 if (f != null) {
                     length = f.length();
@@ -318,11 +385,12 @@ public class LocalCache {
     /**
      * Close the cache. Cache maintain set of files which it was not able to
      * delete successfully. This method will an attempt to delete all
-     * unsuccessful delete files.
+     * unsuccessful delete files, and saves the entries to the index file.
      */
     public void close() {
         LOG.debug("close");
         deleteOldFiles();
+        saveIndex();
     }
 
     /**
@@ -331,11 +399,11 @@ public class LocalCache {
      * @return true if yes else return false.
      */
     private boolean canAdmitFile(final long length) {
-      //order is important here
-        boolean value = !isInPurgeMode() && (cache.canAdmitFile(length));
+        boolean value = !isInPurgeMode()
+            && currentSizeInBytes.get() + length < maxSizeInBytes;
         if (!value) {
             LOG.debug("cannot admit file of length=[{}] and currentSizeInBytes=[{}] ",
-                length, cache.currentSizeInBytes);
+                length, currentSizeInBytes.get());
         }
         return value;
     }
@@ -343,30 +411,108 @@ public class LocalCache {
     /**
      * Return true if cache is in purge mode else return false.
      */
-    synchronized boolean isInPurgeMode() {
-        return purgeMode;
+    boolean isInPurgeMode() {
+        return purgeMode.get();
     }
 
     /**
-     * Set purge mode. If set to true all cache operation will be no-op. If set
-     * to false, all operations to cache are available.
+     * Set purge mode. If set to true no files are added to the cache.
      * 
      * @param purgeMode purge mode
      */
-    synchronized void setPurgeMode(final boolean purgeMode) {
-        this.purgeMode = purgeMode;
+    void setPurgeMode(final boolean purgeMode) {
+        this.purgeMode.set(purgeMode);
+    }
+
+    /**
+     * Return true if all files in the cache directory are known.
+     */
+    boolean isComplete() {
+        return complete;
     }
 
     File getFile(final String fileName) {
         return new File(directory, fileName);
     }
 
+    /**
+     * Adds an entry for a file, or touches the existing entry.
+     *
+     * @param fileName name of the file.
+     * @param length length of the file.
+     */
+    private void add(String fileName, long length) {
+        Entry entry = new Entry(length, accessCounter.incrementAndGet());
+        Entry old = entries.putIfAbsent(fileName, entry);
+        if (old == null) {
+            currentSizeInBytes.addAndGet(length);
+        } else {
+            old.lastAccess = entry.lastAccess;
+        }
+        toBeDeleted.remove(fileName);
+    }
+
+    /**
+     * Adds an entry for a file that existed when the cache was created,
+     * unless the file has been used since.
+     *
+     * @param fileName name of the file.
+     * @param length length of the file.
+     * @param lastAccess the access sequence number, negative so that the file
+     *            is older than all files used since the cache was created
+     */
+    private void addExisting(String fileName, long length, long lastAccess) {
+        if (entries.putIfAbsent(fileName, new Entry(length, lastAccess)) == null) {
+            currentSizeInBytes.addAndGet(length);
+        }
+    }
+
+    /**
+     * Removes the entry and deletes the file, unless there is an in progress
+     * asynchronous upload of the file.
+     *
+     * @param fileName name of the file.
+     * @return the length of the removed entry, or null
+     */
+    private Long remove(String fileName) {
+        try {
+            // not removing file from local cache, if there is in progress
+            // async upload on it.
+            if (asyncUploadCache.hasEntry(fileName, false)) {
+                LOG.info(
+                    "AsyncUploadCache upload contains file [{}]. Not removing it from LocalCache.",
+                    fileName);
+                return null;
+            }
+        } catch (IOException e) {
+            LOG.debug("error: ", e);
+            return null;
+        }
+        // remove the entry first, so that the file is not returned while it
+        // is deleted
+        Entry entry = entries.remove(fileName);
+        if (entry != null) {
+            currentSizeInBytes.addAndGet(-entry.length);
+            LOG.debug("cache entry [{}], with size [{}] removed.", fileName,
+                entry.length);
+        }
+        tryDelete(fileName);
+        return entry != null ? entry.length : null;
+    }
+
+    private void removeEntry(String fileName, Entry entry) {
+        if (entries.remove(fileName, entry)) {
+            currentSizeInBytes.addAndGet(-entry.length);
+        }
+    }
+
     private void deleteOldFiles() {
         int initialSize = toBeDeleted.size();
         int count = 0;
         for (String fileName : new ArrayList<String>(toBeDeleted)) {
             fileName = fileName.replace("\\", "/");
-            if( cache.remove(fileName) != null) {
+            remove(fileName);
+            if (!toBeDeleted.contains(fileName)) {
                 count++;
             }
         }
@@ -388,7 +534,9 @@ public class LocalCache {
             toBeDeleted.remove(fileName);
             while (true) {
                 f = f.getParentFile();
-                if (f.equals(directory) || f.list().length > 0) {
+                String[] children = f.list();
+                if (f.equals(directory) || children == null
+                    || children.length > 0) {
                     break;
                 }
                 // delete empty parent folders (except the main directory)
@@ -400,147 +548,154 @@ public class LocalCache {
             toBeDeleted.add(fileName);
             return false;
         }
+        toBeDeleted.remove(fileName);
         return true;
     }
 
-    static int maxSizeElements(final long bytes) {
-        // after a CQ installation, the average item in
-        // the data store is about 52 KB
-        int count = (int) (bytes / 65535);
-        count = Math.max(1024, count);
-        count = Math.min(64 * 1024, count);
-        return count;
-    }
-    
     /**
      * This method tries purging of local cache. It checks if local cache
      * has exceeded the defined limit then it triggers purge cache job in a
      * seperate thread.
      */
-    synchronized void tryPurge() {
-        if (!isInPurgeMode()
-            && cache.currentSizeInBytes > cache.cachePurgeTrigSize) {
-            setPurgeMode(true);
+    void tryPurge() {
+        long size = currentSizeInBytes.get();
+        if (size > cachePurgeTrigSize && purgeMode.compareAndSet(false, true)) {
             LOG.info(
                 "cache.entries = [{}], currentSizeInBytes=[{}]  exceeds cachePurgeTrigSize=[{}]",
-                new Object[] { cache.size(), cache.currentSizeInBytes,
-                    cache.cachePurgeTrigSize });
+                new Object[] { entries.size(), size, cachePurgeTrigSize });
             new Thread(new PurgeJob()).start();
         } else {
             LOG.debug(
                 "currentSizeInBytes=[{}],cachePurgeTrigSize=[{}], isInPurgeMode =[{}]",
-                new Object[] { cache.currentSizeInBytes,
-                    cache.cachePurgeTrigSize, isInPurgeMode() });
+                new Object[] { size, cachePurgeTrigSize, isInPurgeMode() });
         }
     }
 
     /**
-     * A LRU based extension {@link LinkedHashMap}. The key is file name and
-     * value is length of file.
+     * Returns the file names of all entries, least recently used first.
      */
-    private class LRUCache extends LinkedHashMap<String, Long> {
-        private static final long serialVersionUID = 1L;
-
-        volatile long currentSizeInBytes;
-
-        final long maxSizeInBytes;
-
-        final long cachePurgeResize;
-        
-        final long cachePurgeTrigSize;
-
-        LRUCache(final long maxSizeInBytes,
-                final double cachePurgeTrigFactor,
-                final double cachePurgeResizeFactor) {
-            super(maxSizeElements(maxSizeInBytes), (float) 0.75, true);
-            this.maxSizeInBytes = maxSizeInBytes;
-            this.cachePurgeTrigSize = new Double(cachePurgeTrigFactor
-                * maxSizeInBytes).longValue();
-            this.cachePurgeResize = new Double(cachePurgeResizeFactor
-                * maxSizeInBytes).longValue();
+    private List<AccessedFile> getAccessOrder() {
+        // copy the sequence numbers, as they change while sorting
+        List<AccessedFile> files = new ArrayList<AccessedFile>(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            files.add(new AccessedFile(
+                entry.getKey(), entry.getValue().lastAccess));
         }
+        Collections.sort(files);
+        return files;
+    }
 
-        /**
-         * Overridden {@link Map#remove(Object)} to delete corresponding file
-         * from file system.
-         */
-        @Override
-        public synchronized Long remove(final Object key) {
-            String fileName = (String) key;
-            fileName = fileName.replace("\\", "/");
-            try {
-                // not removing file from local cache, if there is in progress
-                // async upload on it.
-                if (asyncUploadCache.hasEntry(fileName, false)) {
-                    LOG.info(
-                        "AsyncUploadCache upload contains file [{}]. Not removing it from LocalCache.",
-                        fileName);
-                    return null;
-                }
-            } catch (IOException e) {
-                LOG.debug("error: ", e);
-                return null;
+    /**
+     * Reads the entries from the index file, and deletes the index file.
+     *
+     * @return true if the entries were read
+     */
+    private boolean loadIndex() {
+        File index = new File(directory, INDEX_FILE);
+        if (!index.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(index), "UTF-8"));
+            List<String> lines = IOUtils.readLines(reader);
+            long lastAccess = -lines.size();
+            for (String line : lines) {
+                int space = line.indexOf(' ');
+                addExisting(line.substring(space + 1),
+                    Long.parseLong(line.substring(0, space)), lastAccess++);
             }
-            Long flength = null;
-            if (tryDelete(fileName)) {
-                flength = super.remove(key);
-                if (flength != null) {
-                    LOG.debug("cache entry [{}], with size [{}] removed.",
-                        fileName, flength);
-                    currentSizeInBytes -= flength.longValue();
-                }
-            } else if (!getFile(fileName).exists()) {
-                // second attempt. remove from cache if file doesn't exists
-                flength = super.remove(key);
-                if (flength != null) {
-                    LOG.debug(
-                        "file not exists. cache entry [{}], with size [{}] removed.",
-                        fileName, flength);
-                    currentSizeInBytes -= flength.longValue();
-                }
-            } else {
-                LOG.info("not able to remove cache entry [{}], size [{}]", key,
-                    super.get(key));
+            LOG.info("Read [{}] entries with currentSizeInBytes = [{}] from [{}]",
+                new Object[] { entries.size(), currentSizeInBytes.get(),
+                    index.getAbsolutePath() });
+            return true;
+        } catch (Exception e) {
+            LOG.warn("Could not read " + index.getAbsolutePath()
+                + ", scanning the cache directory", e);
+            entries.clear();
+            currentSizeInBytes.set(0);
+            return false;
+        } finally {
+            IOUtils.closeQuietly(reader);
+            if (!index.delete()) {
+                LOG.warn("Could not delete [{}]", index.getAbsolutePath());
             }
-            return flength;
         }
+    }
 
-        @Override
-        public Long put(final String fileName, final Long value) {
-            if( isInPurgeMode()) {
-                LOG.debug("cache is purge mode: put is no-op");
-                return null;
-            }
-            synchronized (this) {
-                Long oldValue = cache.get(fileName);
-                if (oldValue == null) {
-                    long flength = value.longValue();
-                    currentSizeInBytes += flength;
-                    return super.put(fileName.replace("\\", "/"), value);
-                }
-                toBeDeleted.remove(fileName);
-                return oldValue;
-            }
+    /**
+     * Saves the entries to the index file, least recently used first, if all
+     * files in the cache directory are known.
+     */
+    private void saveIndex() {
+        if (!complete) {
+            LOG.info("Cache directory not scanned completely, index not saved");
+            return;
         }
-        
-        @Override
-        public Long get(Object key) {
-            if( isInPurgeMode()) {
-                LOG.debug("cache is purge mode: get is no-op");
-                return null;
+        File index = new File(directory, INDEX_FILE);
+        File temp = new File(directory, INDEX_FILE + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), "UTF-8"));
+            for (AccessedFile file : getAccessOrder()) {
+                Entry entry = entries.get(file.fileName);
+                if (entry != null) {
+                    writer.write(Long.toString(entry.length));
+                    writer.write(' ');
+                    writer.write(file.fileName);
+                    writer.write('\n');
+                }
             }
-            synchronized (this) {
-                return super.get(key);
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(index)) {
+                LOG.warn("Could not rename [{}] to [{}]",
+                    temp.getAbsolutePath(), index.getAbsolutePath());
             }
+        } catch (IOException e) {
+            LOG.warn("Could not write " + temp.getAbsolutePath(), e);
+        } finally {
+            IOUtils.closeQuietly(writer);
         }
-        
-        /**
-         * This method check if cache can admit file of given length. 
-         * @param length length of file.
-         * @return true if cache size + length is less than maxSize.
-         */
-        synchronized boolean canAdmitFile(final long length) {
-            return cache.currentSizeInBytes + length < cache.maxSizeInBytes;
+    }
+
+    /**
+     * A cache entry. The length never changes, the access sequence number
+     * is updated without locking.
+     */
+    static final class Entry {
+
+        final long length;
+
+        volatile long lastAccess;
+
+        Entry(long length, long lastAccess) {
+            this.length = length;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * A file name with the sequence number of its last access.
+     */
+    private static final class AccessedFile
+            implements Comparable<AccessedFile> {
+
+        final String fileName;
+
+        final long lastAccess;
+
+        AccessedFile(String fileName, long lastAccess) {
+            this.fileName = fileName;
+            this.lastAccess = lastAccess;
+        }
+
+        @Override
+        public int compareTo(AccessedFile other) {
+            return lastAccess < other.lastAccess ? -1
+                : (lastAccess == other.lastAccess ? 0 : 1);
         }
     }
 
@@ -549,47 +704,35 @@ public class LocalCache {
      * {@link Runnable} and should be invoked in a separate thread.
      */
     private class PurgeJob implements Runnable {
-        public PurgeJob() {
-            // TODO Auto-generated constructor stub
-        }
 
         /**
          * This method purges local cache till its size is less than
-         * cacheResizefactor * maxSize
+         * cacheResizefactor * maxSize. Files that are used while the job
+         * runs are kept.
          */
         @Override
         public void run() {
             try {
-                synchronized (cache) {
-                    // first try to delete toBeDeleted files
-                    int initialSize = cache.size();
-                    LOG.info(" cache purge job started. initial cache entries = [{}]", initialSize);
-                    for (String fileName : new ArrayList<String>(toBeDeleted)) {
-                        cache.remove(fileName);
+                // first try to delete toBeDeleted files
+                int initialSize = entries.size();
+                LOG.info(" cache purge job started. initial cache entries = [{}]", initialSize);
+                for (String fileName : new ArrayList<String>(toBeDeleted)) {
+                    remove(fileName);
+                }
+                int count = 0;
+                for (AccessedFile file : getAccessOrder()) {
+                    if (currentSizeInBytes.get() <= cachePurgeResize) {
+                        break;
                     }
-                    int skipCount = 0;
-                    Iterator<Map.Entry<String, Long>> itr = cache.entrySet().iterator();
-                    while (itr.hasNext()) {
-                        Map.Entry<String, Long> entry = itr.next();
-                        if (entry.getKey() != null) {
-                            if (cache.currentSizeInBytes > cache.cachePurgeResize) {
-                                if (cache.remove(entry.getKey()) != null) {
-                                    itr = cache.entrySet().iterator();
-                                    for (int i = 0; i < skipCount && itr.hasNext(); i++) {
-                                        itr.next();
-                                    }
-                                } else {
-                                    skipCount++;
-                                }
-                            } else {
-                                break;
-                            }
-                        }
+                    Entry entry = entries.get(file.fileName);
+                    if (entry != null && entry.lastAccess == file.lastAccess
+                        && remove(file.fileName) != null) {
+                        count++;
                     }
-                    LOG.info(
-                        " cache purge job completed: cleaned [{}] files and currentSizeInBytes = [{}]",
-                        (initialSize - cache.size()), cache.currentSizeInBytes);
                 }
+                LOG.info(
+                    " cache purge job completed: cleaned [{}] files and currentSizeInBytes = [{}]",
+                    count, currentSizeInBytes.get());
             } catch (Exception e) {
                 LOG.error("error in purge jobs:", e);
             } finally {
@@ -600,7 +743,7 @@ public class LocalCache {
     
     /**
      * This class implements {@link Runnable} interface to build LRU cache
-     * asynchronously.
+     * asynchronously. The files are ordered by their lastModified property.
      */
     private class CacheBuildJob implements Runnable {
 
@@ -625,11 +768,11 @@ public class LocalCache {
             String tmpPath = tmp.getAbsolutePath();
             tmpPath = tmpPath.replace("\\", "/");
             LOG.debug("tmp path [{}]", tmpPath); 
-            long time = System.currentTimeMillis();
-            int count = 0;
+            List<AccessedFile> files = new ArrayList<AccessedFile>(allFiles.size());
             for (File f : allFiles) {
-                if (f.exists()) {
-                    count++;
+                long lastModified = f.lastModified();
+                // zero if the file does not exist any more
+                if (lastModified != 0) {
                     String name = f.getPath();
                     String filePath = f.getAbsolutePath();
                     // convert to java path format
@@ -646,23 +789,28 @@ public class LocalCache {
                     if (name.startsWith("/") || name.startsWith("\\")) {
                         name = name.substring(1);
                     }
-                    store(name, f);
-                    long now = System.currentTimeMillis();
-                    if (now > time + 10000) {
-                        LOG.info("Processed {" + (count) + "}/{" + allFiles.size() + "}");
-                        time = now;
+                    if (name.startsWith(INDEX_FILE)) {
+                        continue;
                     }
+                    files.add(new AccessedFile(name, lastModified));
                 }
             }
+            Collections.sort(files);
+            long lastAccess = -files.size();
+            for (AccessedFile file : files) {
+                addExisting(file.fileName, getFile(file.fileName).length(),
+                    lastAccess++);
+            }
+            complete = true;
             LOG.debug(
                 "Processed [{}]/[{}], currentSizeInBytes = [{}], maxSizeInBytes = [{}], cache.filecount = [{}]",
-                new Object[] { count, allFiles.size(),
-                    cache.currentSizeInBytes, cache.maxSizeInBytes,
-                    cache.size() });
+                new Object[] { files.size(), allFiles.size(),
+                    currentSizeInBytes.get(), maxSizeInBytes,
+                    entries.size() });
             long t3 = System.currentTimeMillis();
             LOG.info("Time to build cache of  [{}] files took [{}] sec",
                 allFiles.size(), ((t3 - startTime) / 1000));
+            tryPurge();
         }
     }
 }
-
@@ -25,6 +25,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -289,6 +290,23 @@ public class MultiDataStore implements DataStore {
         archiveDataStore.updateModifiedDateOnAccess(before);
     }
 
+    /**
+     * Update the modified date of the given records in the archive data
+     * store.
+     * 
+     * @param identifiers
+     *            the identifiers of the records
+     * @param before
+     *            update the modified date to the current time if it is older
+     *            than this value
+     * @throws DataStoreException
+     *             if the data store could not be accessed
+     */
+    public void touchAll(Collection<DataIdentifier> identifiers, long before)
+            throws DataStoreException {
+        archiveDataStore.touchAll(identifiers, before);
+    }
+
     /**
      * Delete objects that have a modified date older than the specified date
      * from the archive data store.
@@ -47,6 +47,7 @@ import java.security.NoSuchAlgorithmException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -75,6 +76,7 @@ import javax.sql.DataSource;
  *     &lt;param name="{@link #setTablePrefix(String) tablePrefix}" value=""/&gt;
  *     &lt;param name="{@link #setSchemaObjectPrefix(String) schemaObjectPrefix}" value=""/&gt;
  *     &lt;param name="{@link #setSchemaCheckEnabled(boolean) schemaCheckEnabled}" value="true"/&gt;
+ *     &lt;param name="{@link #setCacheStatements(boolean) cacheStatements}" value="false"/&gt;
  * &lt;/DataStore&gt;
  * </pre>
  * <p>
@@ -191,6 +193,11 @@ public class DbDataStore extends AbstractDataStore
      */
     private boolean schemaCheckEnabled = true;
 
+    /**
+     * Whether prepared statements are reused within a batch.
+     */
+    private boolean cacheStatements;
+
     /**
      * The logical name of the DataSource to use.
      */
@@ -618,6 +625,7 @@ public class DbDataStore extends AbstractDataStore
             initDatabaseType();
 
             conHelper = createConnectionHelper(getDataSource());
+            conHelper.setCacheStatements(cacheStatements);
 
             if (isSchemaCheckEnabled()) {
                 createCheckSchemaOperation().run();
@@ -771,6 +779,30 @@ public class DbDataStore extends AbstractDataStore
         minModifiedDate = before;
     }
 
+    /**
+     * Update the modified date of the given records. The updates are sent to
+     * the database as a single JDBC batch, instead of reading and updating
+     * each record separately.
+     */
+    public void touchAll(Collection<DataIdentifier> identifiers, long before)
+            throws DataStoreException {
+        if (identifiers.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Object[]> params = new ArrayList<Object[]>(identifiers.size());
+        for (DataIdentifier identifier : identifiers) {
+            usesIdentifier(identifier);
+            params.add(new Object[] { now, identifier.toString(), before });
+        }
+        try {
+            // UPDATE DATASTORE SET LAST_MODIFIED = ? WHERE ID = ? AND LAST_MODIFIED < ?
+            conHelper.updateBatch(updateLastModifiedSQL, params);
+        } catch (Exception e) {
+            throw convert("Can not update lastModified", e);
+        }
+    }
+
     /**
      * Update the modified date of an entry if required.
      *
@@ -904,6 +936,21 @@ public class DbDataStore extends AbstractDataStore
         schemaCheckEnabled = enabled;
     }
 
+    /**
+     * @return whether prepared statements are reused within a batch
+     */
+    public final boolean isCacheStatements() {
+        return cacheStatements;
+    }
+
+    /**
+     * @param cacheStatements set whether prepared statements are reused within a batch,
+     *            see {@link ConnectionHelper#setCacheStatements(boolean)}
+     */
+    public final void setCacheStatements(boolean cacheStatements) {
+        this.cacheStatements = cacheStatements;
+    }
+
     public synchronized void close() throws DataStoreException {
         // nothing to do
     }
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.data.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that returns a part of another stream. It skips to the
+ * start of the part when it is created, using {@link InputStream#skip(long)}
+ * of the wrapped stream, which is a seek for file streams. After the given
+ * number of bytes it returns the end of the stream.
+ */
+public class RangeInputStream extends FilterInputStream {
+
+    /**
+     * The number of bytes that may still be read.
+     */
+    private long remaining;
+
+    /**
+     * Creates a stream of a part of the given stream.
+     *
+     * @param in the stream to read from
+     * @param offset the number of bytes to skip
+     * @param length the maximum number of bytes to read, or -1 to read to
+     *            the end of the wrapped stream
+     * @throws IOException if skipping fails
+     */
+    public RangeInputStream(InputStream in, long offset, long length)
+            throws IOException {
+        super(in);
+        this.remaining = length < 0 ? Long.MAX_VALUE : length;
+        long skip = offset;
+        while (skip > 0) {
+            long skipped = in.skip(skip);
+            if (skipped <= 0) {
+                // beyond the end of the stream
+                break;
+            }
+            skip -= skipped;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int c = in.read();
+        if (c >= 0) {
+            remaining--;
+        }
+        return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        } else if (remaining <= 0) {
+            return -1;
+        }
+        int read = in.read(b, off, (int) Math.min(len, remaining));
+        if (read > 0) {
+            remaining -= read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        if (skipped > 0) {
+            remaining -= skipped;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        // not supported
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+}
@@ -24,6 +24,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.sql.DataSource;
@@ -53,6 +54,14 @@ import org.slf4j.LoggerFactory;
  *
  * <p>
  *
+ * Optionally, the prepared statements of updates that are executed in batch mode can be cached for the
+ * duration of the batch (see {@link #setCacheStatements(boolean)}), so that the same statement is only
+ * prepared once per batch. Outside of batch mode, statements are prepared on a pooled connection; the internal
+ * connection pool already caches prepared statements per connection (see {@code ConnectionFactory}).
+ * Multiple rows can be written with a single JDBC batch through {@link #updateBatch(String, List)}.
+ *
+ * <p>
+ *
  * This class is not thread-safe and if it is to be used by multiple threads then the clients must make sure
  * that access to this class is properly synchronized.
  *
@@ -82,6 +91,17 @@ public class ConnectionHelper {
 
     private Map<Object, Connection> batchConnectionMap = Collections.synchronizedMap(new HashMap<Object, Connection>());
 
+    /**
+     * The prepared statements cached for the current batch, keyed like the {@link #batchConnectionMap}.
+     */
+    private Map<Object, Map<String, PreparedStatement>> batchStatementMap =
+        Collections.synchronizedMap(new HashMap<Object, Map<String, PreparedStatement>>());
+
+    /**
+     * Whether prepared statements of updates are cached in batch mode.
+     */
+    private boolean cacheStatements;
+
     /**
      * The default fetchSize is '0'. This means the fetchSize Hint will be ignored 
      */
@@ -166,6 +186,26 @@ public class ConnectionHelper {
         escaped.append("_");
     }
 
+    /**
+     * Enables or disables the caching of prepared statements in batch mode. When enabled, the
+     * statements executed through {@link #exec(String, Object...)}, {@link #update(String, Object[])} and
+     * {@link #updateBatch(String, List)} while in batch mode are kept open until the batch ends, and are
+     * reused when the same SQL is executed again in the same batch. Queries are never cached, as their
+     * result sets may still be open when the same query is executed again.
+     *
+     * @param cacheStatements whether to cache prepared statements in batch mode
+     */
+    public void setCacheStatements(boolean cacheStatements) {
+        this.cacheStatements = cacheStatements;
+    }
+
+    /**
+     * @return whether prepared statements of updates are cached in batch mode
+     */
+    public boolean isCacheStatements() {
+        return cacheStatements;
+    }
+
     /**
      * Returns true if we are currently in a batch mode, false otherwise.
      * 
@@ -262,6 +302,7 @@ public class ConnectionHelper {
         }
         Connection batchConnection = getTransactionAwareBatchConnection(); 
         try {
+            closeCachedStatements();
             if (commit) {
             	batchConnection.commit();
             } else {
@@ -308,12 +349,12 @@ public class ConnectionHelper {
                 stmt = con.createStatement();
                 stmt.execute(sql);
             } else {
-                PreparedStatement p = con.prepareStatement(sql);
+                PreparedStatement p = prepareUpdate(con, sql, inBatchMode);
                 stmt = p;
                 execute(p, params);
             }
         } finally {
-            closeResources(con, stmt, null, inBatchMode);
+            closeUpdate(con, stmt, inBatchMode);
             long duration = System.currentTimeMillis() - start;
             log.debug("SQL-Execution [{}] took [{}] ms.", sql, duration);
         }
@@ -345,14 +386,75 @@ public class ConnectionHelper {
         long start = System.currentTimeMillis();
         try {
             con = getConnection(inBatchMode);
-            stmt = con.prepareStatement(sql);
+            stmt = prepareUpdate(con, sql, inBatchMode);
             return execute(stmt, params).getUpdateCount();
         } finally {
-            closeResources(con, stmt, null, inBatchMode);
+            closeUpdate(con, stmt, inBatchMode);
             log.debug("SQL-Execution [{}] took [{}] ms.", sql, (System.currentTimeMillis() - start) );
         }
     }
 
+    /**
+     * Executes an update or delete statement once for each of the given parameter sets and returns the
+     * update counts. The statement is only prepared once, and the parameter sets are sent to the database
+     * as a single JDBC batch, unless the helper does not {@link #supportsBatchUpdates() support} that.
+     *
+     * @param sql an SQL statement string
+     * @param paramsList the parameters for each execution of the SQL statement
+     * @return the update counts, in the order of the parameter sets; an element may be
+     *         {@link Statement#SUCCESS_NO_INFO} if the driver does not report the update count
+     * @throws SQLException on error
+     */
+    public final int[] updateBatch(final String sql, final List<Object[]> paramsList) throws SQLException {
+        int count = 0;
+        for (Object[] params : paramsList) {
+            count += params.length;
+        }
+        Object[] allParams = new Object[count];
+        int pos = 0;
+        for (Object[] params : paramsList) {
+            System.arraycopy(params, 0, allParams, pos, params.length);
+            pos += params.length;
+        }
+        return new RetryManager<int[]>(allParams) {
+
+            @Override
+            protected int[] call() throws SQLException {
+                return reallyUpdateBatch(sql, paramsList);
+            }
+
+        }.doTry();
+    }
+
+    int[] reallyUpdateBatch(String sql, List<Object[]> paramsList) throws SQLException {
+        Connection con = null;
+        PreparedStatement stmt = null;
+        boolean inBatchMode = inBatchMode();
+        long start = System.currentTimeMillis();
+        try {
+            con = getConnection(inBatchMode);
+            stmt = prepareUpdate(con, sql, inBatchMode);
+            int[] counts;
+            if (supportsBatchUpdates()) {
+                for (Object[] params : paramsList) {
+                    setParameters(stmt, params);
+                    stmt.addBatch();
+                }
+                counts = stmt.executeBatch();
+            } else {
+                counts = new int[paramsList.size()];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = execute(stmt, paramsList.get(i)).getUpdateCount();
+                }
+            }
+            return counts;
+        } finally {
+            closeUpdate(con, stmt, inBatchMode);
+            log.debug("SQL-Batch-Execution [{}] with [{}] rows took [{}] ms.",
+                    new Object[] { sql, paramsList.size(), (System.currentTimeMillis() - start) });
+        }
+    }
+
     /**
      * Executes a SQL query and returns the {@link ResultSet}. The
      * returned {@link ResultSet} should be closed by clients.
@@ -454,6 +556,73 @@ public class ConnectionHelper {
         }
     }
 
+    /**
+     * Prepares a statement that does not return a result set. In batch mode, the statement is taken from
+     * or added to the statement cache, if enabled.
+     *
+     * @param con the connection obtained through {@link #getConnection(boolean)}
+     * @param sql an SQL statement string
+     * @param inBatchMode indicates if we are in a batchMode
+     * @return the prepared statement, to be closed with {@link #closeUpdate(Connection, Statement, boolean)}
+     * @throws SQLException on error
+     */
+    private PreparedStatement prepareUpdate(Connection con, String sql, boolean inBatchMode)
+            throws SQLException {
+        if (!inBatchMode || !cacheStatements) {
+            return con.prepareStatement(sql);
+        }
+        Object threadId = TransactionContext.getCurrentThreadId();
+        Map<String, PreparedStatement> statements = batchStatementMap.get(threadId);
+        if (statements == null) {
+            statements = new HashMap<String, PreparedStatement>();
+            batchStatementMap.put(threadId, statements);
+        }
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = con.prepareStatement(sql);
+            statements.put(sql, stmt);
+        } else {
+            stmt.clearParameters();
+        }
+        return stmt;
+    }
+
+    /**
+     * Closes the resources of an update, unless the statement is cached for the current batch.
+     *
+     * @param con the {@code Connection} obtained through the {@link #getConnection(boolean)} method
+     * @param stmt a {@code Statement}
+     * @param inBatchMode indicates if we are in a batchMode
+     */
+    private void closeUpdate(Connection con, Statement stmt, boolean inBatchMode) {
+        if (inBatchMode && stmt != null) {
+            Map<String, PreparedStatement> statements =
+                batchStatementMap.get(TransactionContext.getCurrentThreadId());
+            if (statements != null && statements.containsValue(stmt)) {
+                try {
+                    stmt.clearBatch();
+                } catch (SQLException e) {
+                    log.debug("Unable to clear statement batch", e);
+                }
+                return;
+            }
+        }
+        closeResources(con, stmt, null, inBatchMode);
+    }
+
+    /**
+     * Closes the statements cached for the current batch.
+     */
+    private void closeCachedStatements() {
+        Map<String, PreparedStatement> statements =
+            batchStatementMap.remove(TransactionContext.getCurrentThreadId());
+        if (statements != null) {
+            for (PreparedStatement stmt : statements.values()) {
+                DbUtility.close(null, stmt, null);
+            }
+        }
+    }
+
     /**
      * Returns the Batch Connection.
      * 
@@ -512,6 +681,21 @@ public class ConnectionHelper {
      * @throws SQLException on error
      */
     protected PreparedStatement execute(PreparedStatement stmt, Object[] params) throws SQLException {
+        setParameters(stmt, params);
+        stmt.execute();
+        return stmt;
+    }
+
+    /**
+     * Sets the parameters of a statement and unwraps {@link StreamWrapper} instances. Used by the default
+     * implementation of {@link #execute(PreparedStatement, Object[])} and by
+     * {@link #updateBatch(String, List)}.
+     *
+     * @param stmt the {@link PreparedStatement}
+     * @param params the parameters
+     * @throws SQLException on error
+     */
+    protected void setParameters(PreparedStatement stmt, Object[] params) throws SQLException {
         for (int i = 0; params != null && i < params.length; i++) {
             Object p = params[i];
             if (p instanceof StreamWrapper) {
@@ -521,8 +705,17 @@ public class ConnectionHelper {
                 stmt.setObject(i + 1, p);
             }
         }
-        stmt.execute();
-        return stmt;
+    }
+
+    /**
+     * Whether {@link #updateBatch(String, List)} may send the parameter sets as a JDBC batch. Subclasses
+     * that need to do something special in {@link #execute(PreparedStatement, Object[])} should return
+     * {@code false}, in which case the statement is executed once per parameter set.
+     *
+     * @return {@code true} by default
+     */
+    protected boolean supportsBatchUpdates() {
+        return true;
     }
 
     /**
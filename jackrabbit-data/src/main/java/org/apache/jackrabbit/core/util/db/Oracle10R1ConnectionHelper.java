@@ -81,6 +81,17 @@ public final class Oracle10R1ConnectionHelper extends OracleConnectionHelper {
         }
     }
 
+    /**
+     * Returns {@code false}, as the temporary blobs created in
+     * {@link #execute(PreparedStatement, Object[])} are freed after each execution.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean supportsBatchUpdates() {
+        return false;
+    }
+
     /**
      * Wraps any input-stream parameters in temporary blobs and frees these again after the statement
      * has been executed.
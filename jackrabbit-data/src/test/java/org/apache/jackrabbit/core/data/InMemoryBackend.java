@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -77,6 +78,19 @@ public class InMemoryBackend implements Backend {
         return new ByteArrayInputStream(data.get(identifier));
     }
 
+    @Override
+    public InputStream read(final DataIdentifier identifier, long offset,
+            long length) throws DataStoreException {
+        log("read " + identifier + " offset " + offset + " length " + length);
+        byte[] bytes = data.get(identifier);
+        int start = (int) Math.min(offset, bytes.length);
+        int count = bytes.length - start;
+        if (length >= 0 && length < count) {
+            count = (int) length;
+        }
+        return new ByteArrayInputStream(bytes, start, count);
+    }
+
     @Override
     public void writeAsync(final DataIdentifier identifier, final File file,
             final AsyncUploadCallback callback) throws DataStoreException {
@@ -148,6 +162,17 @@ public class InMemoryBackend implements Backend {
         timeMap.put(identifier, System.currentTimeMillis());
     }
 
+    @Override
+    public void touchAll(Collection<DataIdentifier> identifiers,
+            long minModifiedDate) {
+        long now = System.currentTimeMillis();
+        for (DataIdentifier identifier : identifiers) {
+            if (data.containsKey(identifier)) {
+                timeMap.put(identifier, now);
+            }
+        }
+    }
+
     @Override
     public void touchAsync(DataIdentifier identifier, long minModifiedDate,
             AsyncTouchCallback callback) {
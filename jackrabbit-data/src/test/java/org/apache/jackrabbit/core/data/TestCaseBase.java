@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.io.SequenceInputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -35,6 +36,7 @@ import javax.jcr.RepositoryException;
 import junit.framework.TestCase;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -217,6 +219,43 @@ public abstract class TestCaseBase extends TestCase {
         }
     }
 
+    /**
+     * Testcase to validate {@link DataStore#touchAll(java.util.Collection, long)}
+     * API.
+     */
+    public void testTouchAll() {
+        try {
+            long start = System.currentTimeMillis();
+            LOG.info("Testcase: " + this.getClass().getName()
+                + "#testTouchAll, testDir=" + dataStoreDir);
+            doTouchAllTest();
+            LOG.info("Testcase: " + this.getClass().getName()
+                + "#testTouchAll finished, time taken = ["
+                + (System.currentTimeMillis() - start) + "]ms");
+        } catch (Exception e) {
+            LOG.error("error:", e);
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Testcase to validate {@link DataRecord#getStream(long, long)} API.
+     */
+    public void testGetStreamRange() {
+        try {
+            long start = System.currentTimeMillis();
+            LOG.info("Testcase: " + this.getClass().getName()
+                + "#testGetStreamRange, testDir=" + dataStoreDir);
+            doGetStreamRangeTest();
+            LOG.info("Testcase: " + this.getClass().getName()
+                + "#testGetStreamRange finished, time taken = ["
+                + (System.currentTimeMillis() - start) + "]ms");
+        } catch (Exception e) {
+            LOG.error("error:", e);
+            fail(e.getMessage());
+        }
+    }
+
     /**
      * Testcase to validate {@link DataStore#getRecordFromReference(String)}
      */
@@ -461,6 +500,78 @@ public abstract class TestCaseBase extends TestCase {
         ds.close();
     }
 
+    /**
+     * Asserts that {@link DataStore#touchAll(java.util.Collection, long)}
+     * only touches the given records, and ignores records that do not exist.
+     */
+    protected void doTouchAllTest() throws Exception {
+        ds = createDataStore();
+        Random random = randomGen;
+        byte[] data = new byte[dataLength];
+        random.nextBytes(data);
+        DataRecord rec1 = ds.addRecord(new ByteArrayInputStream(data));
+
+        data = new byte[dataLength];
+        random.nextBytes(data);
+        DataRecord rec2 = ds.addRecord(new ByteArrayInputStream(data));
+
+        // sleep for some time to ensure that async upload completes in backend.
+        sleep(6000);
+        long updateTime = System.currentTimeMillis();
+
+        // sleep to workaround System.currentTimeMillis granularity.
+        sleep(3000);
+        List<DataIdentifier> list = new ArrayList<DataIdentifier>();
+        list.add(rec1.getIdentifier());
+        list.add(new DataIdentifier("0000000000000000000000000000000000000000"));
+        ds.touchAll(list, updateTime);
+
+        rec1 = ds.getRecord(rec1.getIdentifier());
+        rec2 = ds.getRecord(rec2.getIdentifier());
+        assertEquals("rec1 touched", true, rec1.getLastModified() > updateTime);
+        assertEquals("rec2 not touched", true,
+            rec2.getLastModified() < updateTime);
+        assertNull("no record created",
+            ds.getRecordIfStored(list.get(1)));
+        ds.close();
+    }
+
+    /**
+     * Asserts that {@link DataRecord#getStream(long, long)} returns the
+     * requested part of the record, and stops at the end of the record.
+     */
+    protected void doGetStreamRangeTest() throws Exception {
+        ds = createDataStore();
+        byte[] data = new byte[dataLength];
+        randomGen.nextBytes(data);
+        DataRecord rec = ds.addRecord(new ByteArrayInputStream(data));
+        rec = ds.getRecord(rec.getIdentifier());
+
+        assertRange(data, rec, 0, -1);
+        assertRange(data, rec, 0, 100);
+        assertRange(data, rec, 1000, 5000);
+        assertRange(data, rec, dataLength - 10, 100);
+        assertRange(data, rec, dataLength - 10, -1);
+        assertRange(data, rec, dataLength, 100);
+        assertRange(data, rec, dataLength + 100, 100);
+        ds.close();
+    }
+
+    private static void assertRange(byte[] data, DataRecord rec, long offset,
+            long length) throws Exception {
+        int from = (int) Math.min(offset, data.length);
+        int to = length < 0 ? data.length
+            : (int) Math.min(offset + length, data.length);
+        InputStream in = rec.getStream(offset, length);
+        try {
+            assertTrue("range " + offset + "/" + length, Arrays.equals(
+                Arrays.copyOfRange(data, from, Math.max(from, to)),
+                IOUtils.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * Test if record can be accessed via
      * {@link DataStore#getRecordFromReference(String)}
@@ -357,6 +357,50 @@ public class TestLocalCache extends TestCase {
         }
     }
 
+    /**
+     * Test that the entries saved by {@link LocalCache#close()} are read
+     * instead of scanning the cache directory.
+     */
+    public void testIndexReload() {
+        try {
+            AsyncUploadCache pendingFiles = new AsyncUploadCache();
+            pendingFiles.init(tempDirPath, cacheDirPath, 100);
+            pendingFiles.reset();
+            LocalCache cache = new LocalCache(cacheDirPath, tempDirPath, 400,
+                0.95, 0.70, pendingFiles);
+            while (!cache.isComplete()) {
+                Thread.sleep(100);
+            }
+            Random random = new Random(12345);
+            for (int i = 0; i < 3; i++) {
+                byte[] data = new byte[100];
+                random.nextBytes(data);
+                cache.store("a" + i, new ByteArrayInputStream(data));
+            }
+            cache.close();
+            File index = new File(cacheDirPath, LocalCache.INDEX_FILE);
+            assertTrue(index.exists());
+
+            cache = new LocalCache(cacheDirPath, tempDirPath, 400, 0.95, 0.70,
+                pendingFiles);
+            assertTrue(cache.isComplete());
+            assertEquals(300, cache.currentSizeInBytes.get());
+            assertFalse(index.exists());
+            assertNotNull(cache.getIfStored("a0"));
+
+            // not closed, so the directory is scanned again
+            cache = new LocalCache(cacheDirPath, tempDirPath, 400, 0.95, 0.70,
+                pendingFiles);
+            while (!cache.isComplete()) {
+                Thread.sleep(100);
+            }
+            assertEquals(300, cache.currentSizeInBytes.get());
+        } catch (Exception e) {
+            LOG.error("error:", e);
+            fail();
+        }
+    }
+
     private class StoreWorker implements Runnable {
         Map<String, byte[]> byteMap;
 
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.value;
+
+import java.io.InputStream;
+
+import javax.jcr.Binary;
+import javax.jcr.RepositoryException;
+
+/**
+ * <code>RangeBinary</code> is a <code>Binary</code> that can return a part
+ * of its content without reading the bytes before it, for example to serve
+ * a byte range request from a remote binary store.
+ *
+ * @since 2.23
+ */
+public interface RangeBinary extends Binary {
+
+    /**
+     * Returns a stream of a part of the content of this binary. The stream
+     * is empty if the offset is at or beyond the end of the content. The
+     * caller is responsible for closing the stream.
+     *
+     * @param offset the position of the first byte to read, from zero
+     * @param length the maximum number of bytes to read, or -1 to read to
+     *            the end of the content
+     * @return a stream of the part of the content
+     * @throws RepositoryException if the content can not be read
+     */
+    InputStream getStream(long offset, long length) throws RepositoryException;
+
+}
@@ -23,6 +23,7 @@ import org.apache.jackrabbit.util.Text;
 import org.apache.jackrabbit.webdav.DavException;
 import org.apache.jackrabbit.webdav.DavResource;
 import org.apache.jackrabbit.webdav.DavServletResponse;
+import org.apache.jackrabbit.webdav.io.ByteRange;
 import org.apache.jackrabbit.webdav.jcr.JcrDavException;
 import org.apache.jackrabbit.webdav.xml.Namespace;
 import org.apache.jackrabbit.webdav.property.DavPropertyName;
@@ -33,6 +34,7 @@ import org.apache.tika.metadata.TikaCoreProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.jcr.Binary;
 import javax.jcr.Item;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -408,7 +410,9 @@ public class DefaultHandler implements IOHandler, PropertyHandler, CopyMoveHandl
 
     /**
      * Checks if the given content node contains a jcr:data property
-     * and spools its value to the output stream of the export context.<br>
+     * and spools its value to the output stream of the export context. If the
+     * context requests a range of the content, only that range is read and
+     * spooled.<br>
      * Please note, that subclasses that define a different structure of the
      * content node should create their own
      * {@link  #exportData(ExportContext, boolean, Node) exportData} method.
@@ -421,7 +425,21 @@ public class DefaultHandler implements IOHandler, PropertyHandler, CopyMoveHandl
     protected void exportData(ExportContext context, boolean isCollection, Node contentNode) throws IOException, RepositoryException {
         if (contentNode.hasProperty(JcrConstants.JCR_DATA)) {
             Property p = contentNode.getProperty(JcrConstants.JCR_DATA);
-            IOUtil.spool(p.getStream(), context.getOutputStream());
+            ByteRange range = context.getRange();
+            long length = p.getLength();
+            if (range != null && range.isSatisfiable(length)) {
+                long offset = range.getOffset(length);
+                long rangeLength = range.getLength(length);
+                Binary binary = p.getBinary();
+                try {
+                    IOUtil.spool(binary, offset, rangeLength, context.getOutputStream());
+                } finally {
+                    binary.dispose();
+                }
+                context.setContentRange(offset, rangeLength, length);
+            } else {
+                IOUtil.spool(p.getStream(), context.getOutputStream());
+            }
         } // else: stream undefined -> content length was not set
     }
 
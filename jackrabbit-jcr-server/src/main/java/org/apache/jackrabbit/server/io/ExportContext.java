@@ -16,6 +16,8 @@
  */
 package org.apache.jackrabbit.server.io;
 
+import org.apache.jackrabbit.webdav.io.ByteRange;
+
 import javax.jcr.Item;
 
 import java.io.OutputStream;
@@ -81,4 +83,30 @@ public interface ExportContext extends IOContext {
      * Sets an arbitrary property to this export context.
      */
     public void setProperty(Object propertyName, Object propertyValue);
+
+    /**
+     * Returns the byte range of the content requested by the client, or
+     * <code>null</code> if the whole content is requested. A handler that
+     * exports only the range must call
+     * {@link #setContentRange(long, long, long)}.
+     *
+     * @return the requested range or <code>null</code>
+     */
+    public default ByteRange getRange() {
+        return null;
+    }
+
+    /**
+     * Indicates that only the given part of the content has been written to
+     * the output stream, as requested by {@link #getRange()}. Handlers only
+     * call this method if {@link #getRange()} returned a range, so the
+     * default implementation, which does not return one, does nothing.
+     *
+     * @param offset the position of the first byte written
+     * @param length the number of bytes written
+     * @param contentLength the length of the whole content
+     */
+    public default void setContentRange(long offset, long length, long contentLength) {
+        // ranges are not supported by default
+    }
 }
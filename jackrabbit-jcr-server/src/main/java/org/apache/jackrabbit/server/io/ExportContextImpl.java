@@ -18,6 +18,7 @@ package org.apache.jackrabbit.server.io;
 
 import org.apache.jackrabbit.webdav.DavConstants;
 import org.apache.jackrabbit.webdav.DavResource;
+import org.apache.jackrabbit.webdav.io.ByteRange;
 import org.apache.jackrabbit.webdav.io.OutputContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,6 +53,8 @@ public class ExportContextImpl extends AbstractExportContext {
     private File outFile;
     private OutputStream outStream;
 
+    private long[] contentRange;
+
     public ExportContextImpl(Item exportRoot, OutputContext outputCtx)
             throws IOException {
         super(exportRoot, outputCtx != null && outputCtx.hasStream(), null);
@@ -146,6 +149,24 @@ public class ExportContextImpl extends AbstractExportContext {
         }
     }
 
+    /**
+     * Returns the range requested from the wrapped <code>OutputContext</code>.
+     *
+     * @see ExportContext#getRange()
+     */
+    @Override
+    public ByteRange getRange() {
+        return hasStream() ? outputCtx.getRange() : null;
+    }
+
+    /**
+     * @see ExportContext#setContentRange(long, long, long)
+     */
+    @Override
+    public void setContentRange(long offset, long length, long contentLength) {
+        contentRange = new long[] { offset, length, contentLength };
+    }
+
     /**
      * If success is true, the properties set before an the output stream are
      * written to the wrapped <code>OutputContext</code>.
@@ -182,7 +203,9 @@ public class ExportContextImpl extends AbstractExportContext {
                     OutputStream out = outputCtx.getOutputStream();
                     try {
                         // make sure the content-length is set
-                        if (!seenContentLength) {
+                        if (contentRange != null) {
+                            outputCtx.setContentRange(contentRange[0], contentRange[1], contentRange[2]);
+                        } else if (!seenContentLength) {
                             outputCtx.setContentLength(outFile.length());
                         }
                         FileInputStream in = new FileInputStream(outFile);
@@ -17,9 +17,11 @@
 package org.apache.jackrabbit.server.io;
 
 import org.apache.jackrabbit.util.Text;
+import org.apache.jackrabbit.value.RangeBinary;
 import org.apache.jackrabbit.webdav.DavConstants;
 import org.apache.jackrabbit.webdav.util.HttpDateFormat;
 
+import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import java.io.File;
@@ -90,6 +92,53 @@ public final class IOUtil {
         }
     }
 
+    /**
+     * Spools a range of the given binary to the output stream. The range is
+     * read from a single stream, which only contains the range if the binary
+     * is a {@link RangeBinary}. Otherwise the start of the content is
+     * skipped. The output stream is not closed.
+     *
+     * @param binary the binary
+     * @param offset the position of the first byte to spool
+     * @param length the number of bytes to spool
+     * @param out the output stream
+     * @throws IOException if an I/O error occurs
+     * @throws RepositoryException if the binary can not be read
+     */
+    public static void spool(Binary binary, long offset, long length, OutputStream out)
+            throws IOException, RepositoryException {
+        InputStream in;
+        long skip;
+        if (binary instanceof RangeBinary) {
+            in = ((RangeBinary) binary).getStream(offset, length);
+            skip = 0;
+        } else {
+            in = binary.getStream();
+            skip = offset;
+        }
+        try {
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0) {
+                    return;
+                }
+                skip -= skipped;
+            }
+            byte[] buffer = new byte[8192];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * Build a valid content type string from the given mimeType and encoding:
      * <pre>
@@ -16,6 +16,7 @@
  */
 package org.apache.jackrabbit.vfs.ext.ds;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -31,9 +32,12 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.vfs2.Capability;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 import org.apache.commons.vfs2.FileType;
+import org.apache.commons.vfs2.RandomAccessContent;
+import org.apache.commons.vfs2.util.RandomAccessMode;
 import org.apache.jackrabbit.core.data.AbstractBackend;
 import org.apache.jackrabbit.core.data.AsyncTouchCallback;
 import org.apache.jackrabbit.core.data.AsyncTouchResult;
@@ -42,6 +46,7 @@ import org.apache.jackrabbit.core.data.AsyncUploadResult;
 import org.apache.jackrabbit.core.data.CachingDataStore;
 import org.apache.jackrabbit.core.data.DataIdentifier;
 import org.apache.jackrabbit.core.data.DataStoreException;
+import org.apache.jackrabbit.core.data.util.RangeInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -121,6 +126,40 @@ public class VFSBackend extends AbstractBackend {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the file system supports random access reads, the file content is
+     * opened at the given offset. Otherwise the start of the content is
+     * skipped.
+     */
+    @Override
+    public InputStream read(DataIdentifier identifier, long offset, long length) throws DataStoreException {
+        FileObject fileObject = getExistingFileObject(identifier);
+
+        if (fileObject == null) {
+            throw new DataStoreException("Could not find file object for: " + identifier);
+        }
+
+        if (!fileObject.getFileSystem().hasCapability(Capability.RANDOM_ACCESS_READ)) {
+            return super.read(identifier, offset, length);
+        }
+
+        RandomAccessContent content = null;
+
+        try {
+            if (offset >= fileObject.getContent().getSize()) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            content = fileObject.getContent().getRandomAccessContent(RandomAccessMode.READ);
+            content.seek(offset);
+            return new RangeInputStream(content.getInputStream(), 0, length);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(content);
+            throw new DataStoreException("Could not get input stream from object: " + identifier, e);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.webdav.io;
+
+/**
+ * <code>ByteRange</code> represents a single byte range as requested by the
+ * <code>Range</code> header of a GET request (see RFC 9110, section 14).
+ * Requests for several ranges are not supported, the whole content is sent
+ * in that case.
+ */
+public class ByteRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * The first byte, or -1 for a suffix range.
+     */
+    private final long first;
+
+    /**
+     * The last byte (inclusive), -1 if the range extends to the end of the
+     * content, or the number of bytes of a suffix range.
+     */
+    private final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses the value of a <code>Range</code> header.
+     *
+     * @param value the header value, may be <code>null</code>
+     * @return the range, or <code>null</code> if the value is not a single
+     * valid byte range
+     */
+    public static ByteRange parse(String value) {
+        if (value == null || !value.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        String spec = value.substring(BYTES_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        try {
+            String start = spec.substring(0, dash).trim();
+            String end = spec.substring(dash + 1).trim();
+            if (start.isEmpty()) {
+                long suffix = Long.parseLong(end);
+                return suffix > 0 ? new ByteRange(-1, suffix) : null;
+            }
+            long first = Long.parseLong(start);
+            long last = end.isEmpty() ? -1 : Long.parseLong(end);
+            if (first < 0 || (last >= 0 && last < first)) {
+                return null;
+            }
+            return new ByteRange(first, last);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the range contains at least one byte of content of
+     * the given length.
+     *
+     * @param contentLength the length of the content
+     * @return <code>true</code> if the range can be sent
+     */
+    public boolean isSatisfiable(long contentLength) {
+        return contentLength > 0 && first < contentLength;
+    }
+
+    /**
+     * Returns the position of the first byte of the range.
+     *
+     * @param contentLength the length of the content
+     * @return the offset
+     */
+    public long getOffset(long contentLength) {
+        return first < 0 ? Math.max(0, contentLength - last) : first;
+    }
+
+    /**
+     * Returns the number of bytes of the range.
+     *
+     * @param contentLength the length of the content
+     * @return the length of the range
+     */
+    public long getLength(long contentLength) {
+        long end = (first < 0 || last < 0) ? contentLength - 1 : Math.min(last, contentLength - 1);
+        return end - getOffset(contentLength) + 1;
+    }
+
+    @Override
+    public String toString() {
+        return BYTES_UNIT + (first < 0 ? "" : Long.toString(first)) + "-" + (last < 0 ? "" : Long.toString(last));
+    }
+}
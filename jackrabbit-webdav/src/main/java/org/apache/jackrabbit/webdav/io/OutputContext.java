@@ -79,4 +79,27 @@ public interface OutputContext {
      * @param propertyValue
      */
     public void setProperty(String propertyName, String propertyValue);
+
+    /**
+     * Returns the byte range of the content requested by the client, or
+     * <code>null</code> if the whole content is requested. An export may
+     * ignore the range and write the whole content.
+     *
+     * @return the requested range or <code>null</code>
+     */
+    public default ByteRange getRange() {
+        return null;
+    }
+
+    /**
+     * Indicates that only the given part of the content is written to the
+     * output stream, as requested by {@link #getRange()}.
+     *
+     * @param offset the position of the first byte written
+     * @param length the number of bytes written
+     * @param contentLength the length of the whole content
+     */
+    public default void setContentRange(long offset, long length, long contentLength) {
+        // ranges are not supported by default
+    }
 }
@@ -32,14 +32,27 @@ public class OutputContextImpl implements OutputContext {
 
     private final HttpServletResponse response;
     private final OutputStream out;
+    private final ByteRange range;
 
     public OutputContextImpl(HttpServletResponse response, OutputStream out) {
+        this(response, out, null);
+    }
+
+    /**
+     * Creates an output context for a request of the given byte range.
+     *
+     * @param response the response
+     * @param out the output stream or <code>null</code>
+     * @param range the requested range or <code>null</code>
+     */
+    public OutputContextImpl(HttpServletResponse response, OutputStream out, ByteRange range) {
         if (response == null) {
             throw new IllegalArgumentException("Response must not be null.");
         }
 
         this.response = response;
         this.out = out;
+        this.range = range;
     }
 
     public boolean hasStream() {
@@ -85,4 +98,16 @@ public class OutputContextImpl implements OutputContext {
             response.setHeader(propertyName, propertyValue);
         }
     }
+
+    @Override
+    public ByteRange getRange() {
+        return range;
+    }
+
+    @Override
+    public void setContentRange(long offset, long length, long contentLength) {
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + contentLength);
+        response.setContentLengthLong(length);
+    }
 }
\ No newline at end of file
@@ -38,6 +38,7 @@ import org.apache.jackrabbit.webdav.bind.UnbindInfo;
 import org.apache.jackrabbit.webdav.bind.BindableResource;
 import org.apache.jackrabbit.webdav.bind.BindInfo;
 import org.apache.jackrabbit.webdav.header.CodedUrlHeader;
+import org.apache.jackrabbit.webdav.io.ByteRange;
 import org.apache.jackrabbit.webdav.io.InputContext;
 import org.apache.jackrabbit.webdav.io.InputContextImpl;
 import org.apache.jackrabbit.webdav.io.OutputContext;
@@ -602,9 +603,22 @@ abstract public class AbstractWebdavServlet extends HttpServlet implements DavCo
             }
         }
 
+        ByteRange range = null;
+        if (sendContent) {
+            try {
+                // a conditional range request is answered with the whole
+                // content, which is correct whether the condition holds or not
+                if (getSingletonField(request, "If-Range") == null) {
+                    range = ByteRange.parse(getSingletonField(request, "Range"));
+                }
+            } catch (IllegalArgumentException ex) {
+                log.debug("illegal value for range ignored: " + ex.getMessage());
+            }
+        }
+
         // spool resource properties and eventually resource content.
         OutputStream out = (sendContent) ? response.getOutputStream() : null;
-        resource.spool(getOutputContext(response, out));
+        resource.spool(getOutputContext(response, out, range));
         response.flushBuffer();
     }
 
@@ -1482,6 +1496,25 @@ abstract public class AbstractWebdavServlet extends HttpServlet implements DavCo
         return new OutputContextImpl(response, out);
     }
 
+    /**
+     * Return a new <code>OutputContext</code> used for spooling the resource
+     * content, or the given byte range of it, in response to a GET request.
+     * If no range is requested, {@link #getOutputContext(DavServletResponse, OutputStream)}
+     * is used.
+     *
+     * @param response
+     * @param out
+     * @param range the requested range or <code>null</code>
+     * @return
+     * @see #spoolResource(WebdavRequest, WebdavResponse, DavResource, boolean)
+     */
+    protected OutputContext getOutputContext(DavServletResponse response, OutputStream out, ByteRange range) {
+        if (range == null) {
+            return getOutputContext(response, out);
+        }
+        return new OutputContextImpl(response, out, range);
+    }
+
     /**
      * Obtain the (ordered!) list of content codings that have been used in the
      * request
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.webdav.io;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>ByteRangeTest</code>...
+ */
+public class ByteRangeTest extends TestCase {
+
+    public void testFirstLast() {
+        ByteRange range = ByteRange.parse("bytes=100-199");
+        assertTrue(range.isSatisfiable(1000));
+        assertEquals(100, range.getOffset(1000));
+        assertEquals(100, range.getLength(1000));
+        // truncated at the end of the content
+        assertEquals(50, range.getLength(150));
+        assertFalse(range.isSatisfiable(100));
+    }
+
+    public void testOpenEnded() {
+        ByteRange range = ByteRange.parse("bytes=500-");
+        assertEquals(500, range.getOffset(1000));
+        assertEquals(500, range.getLength(1000));
+    }
+
+    public void testSuffix() {
+        ByteRange range = ByteRange.parse("bytes=-300");
+        assertTrue(range.isSatisfiable(1000));
+        assertEquals(700, range.getOffset(1000));
+        assertEquals(300, range.getLength(1000));
+        // the whole content if it is shorter than the suffix
+        assertEquals(0, range.getOffset(100));
+        assertEquals(100, range.getLength(100));
+        assertFalse(range.isSatisfiable(0));
+    }
+
+    public void testUnsupported() {
+        assertNull(ByteRange.parse(null));
+        assertNull(ByteRange.parse("items=0-10"));
+        assertNull(ByteRange.parse("bytes=0-10,20-30"));
+        assertNull(ByteRange.parse("bytes=10-5"));
+        assertNull(ByteRange.parse("bytes=-0"));
+        assertNull(ByteRange.parse("bytes=a-b"));
+        assertNull(ByteRange.parse("bytes=5"));
+    }
+}
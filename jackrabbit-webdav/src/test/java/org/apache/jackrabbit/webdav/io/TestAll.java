@@ -26,6 +26,7 @@ public class TestAll extends TestCase {
         TestSuite suite = new TestSuite("WebDAV IO tests");
 
         suite.addTestSuite(OutputContextImplTest.class);
+        suite.addTestSuite(ByteRangeTest.class);
 
         return suite;
     }
@@ -51,7 +51,7 @@ public abstract class AbstractPerformanceTest {
     private Pattern testPattern;
 
     protected void testPerformance(String name) throws Exception {
-        repoPattern = Pattern.compile(System.getProperty("repo", "\\d\\.\\d"));
+        repoPattern = Pattern.compile(System.getProperty("repo", "\\d\\.\\d+"));
         testPattern = Pattern.compile(System.getProperty("only", ".*"));
 
         // Create a repository using the Jackrabbit default configuration
@@ -94,12 +94,14 @@ public abstract class AbstractPerformanceTest {
         runTest(new BigFileWriteTest(), name, conf);
         runTest(new ConcurrentReadTest(), name, conf);
         runTest(new ConcurrentReadWriteTest(), name, conf);
+        runTest(new ConcurrentReadBulkWriteTest(), name, conf);
         runTest(new SimpleSearchTest(), name, conf);
         runTest(new SQL2SearchTest(), name, conf);
         runTest(new DescendantSearchTest(), name, conf);
         runTest(new SQL2DescendantSearchTest(), name, conf);
         runTest(new TwoWayJoinTest(), name, conf);
         runTest(new ThreeWayJoinTest(), name, conf);
+        runTest(new DescendantNodeJoinTest(), name, conf);
         runTest(new CreateManyChildNodesTest(), name, conf);
         runTest(new UpdateManyChildNodesTest(), name, conf);
         runTest(new TransientManyChildNodesTest(), name, conf);
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A {@link ConcurrentReadTest} with a single writer thread that continuously
+ * saves large change sets of 1000 nodes each. Measures the read throughput
+ * while the persistence manager is busy storing big change logs. Run it
+ * against a configuration with the <code>concurrentReads</code> option of
+ * the bundle database persistence manager turned on to compare it with the
+ * default, fully synchronized behaviour.
+ */
+public class ConcurrentReadBulkWriteTest extends ConcurrentReadTest {
+
+    private static final int BULK_SIZE = 1000;
+
+    public void beforeSuite() throws Exception {
+        super.beforeSuite();
+
+        addBackgroundJob(new Writer());
+    }
+
+    private class Writer implements Runnable {
+
+        private final Session session = loginWriter();
+
+        private long count = 0;
+
+        public void run() {
+            try {
+                Node bulk = session.getRootNode().addNode(
+                        "bulk" + count++, "nt:unstructured");
+                for (int i = 0; i < BULK_SIZE; i++) {
+                    bulk.addNode("node" + i, "nt:unstructured")
+                        .setProperty("count", i);
+                }
+                session.save();
+
+                bulk.remove();
+                session.save();
+            } catch (RepositoryException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+    }
+
+}